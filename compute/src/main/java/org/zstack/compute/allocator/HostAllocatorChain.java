@@ -48,6 +48,8 @@ public class HostAllocatorChain implements HostAllocatorTrigger, HostAllocatorSt
     private ErrorFacade errf;
     @Autowired
     private DatabaseFacade dbf;
+    @Autowired
+    private HostCapacityIndex capacityIndex;
 
     public HostAllocatorSpec getAllocationSpec() {
         return allocationSpec;
@@ -73,25 +75,34 @@ public class HostAllocatorChain implements HostAllocatorTrigger, HostAllocatorSt
         this.flows = flows;
     }
 
-    @Transactional
     private boolean reserveCapacity(String hostUuid, long cpu, long memory) {
-        HostCapacityVO vo = dbf.getEntityManager().find(HostCapacityVO.class, hostUuid, LockModeType.PESSIMISTIC_WRITE);
+        HostCapacityVO vo = doReserveCapacity(hostUuid, cpu, memory);
         if (vo == null) {
             return false;
         }
+
+        capacityIndex.update(hostUuid, vo.getAvailableCpu(), vo.getAvailableMemory());
+        return true;
+    }
+
+    @Transactional
+    private HostCapacityVO doReserveCapacity(String hostUuid, long cpu, long memory) {
+        HostCapacityVO vo = dbf.getEntityManager().find(HostCapacityVO.class, hostUuid, LockModeType.PESSIMISTIC_WRITE);
+        if (vo == null) {
+            return null;
+        }
         long availCpu = vo.getAvailableCpu() - cpu;
         if (availCpu <= 0) {
-            return false;
+            return null;
         }
         vo.setAvailableCpu(availCpu);
 
         long availMemory = vo.getAvailableMemory() - memory;
         if (memory <=0 ) {
-            return false;
+            return null;
         }
         vo.setAvailableMemory(availMemory);
-        dbf.getEntityManager().merge(vo);
-        return true;
+        return dbf.getEntityManager().merge(vo);
     }
 
     protected void marshalResult() {
@@ -41,6 +41,8 @@ public class HostAllocatorManagerImpl extends AbstractService implements HostAll
 	private PluginRegistry pluginRgty;
     @Autowired
     private HostCapacityReserveManager reserveMgr;
+    @Autowired
+    private HostCapacityIndex capacityIndex;
 
 	@Override
     @MessageSafe
@@ -90,6 +92,8 @@ public class HostAllocatorManagerImpl extends AbstractService implements HostAll
         } else {
             dbf.update(vo);
         }
+
+        capacityIndex.update(vo.getUuid(), vo.getAvailableCpu(), vo.getAvailableMemory());
     }
 
 	private void handle(final AllocateHostMsg msg) {
@@ -242,12 +246,21 @@ public class HostAllocatorManagerImpl extends AbstractService implements HostAll
 	}
 	
 	@Override
-	@Transactional(propagation = Propagation.REQUIRES_NEW)
     public void returnCapacity(String hostUuid, long cpu, long memory) {
+        HostCapacityVO vo = doReturnCapacity(hostUuid, cpu, memory);
+        if (vo != null) {
+            capacityIndex.update(hostUuid, vo.getAvailableCpu(), vo.getAvailableMemory());
+        } else {
+            capacityIndex.remove(hostUuid);
+        }
+    }
+
+	@Transactional(propagation = Propagation.REQUIRES_NEW)
+    private HostCapacityVO doReturnCapacity(String hostUuid, long cpu, long memory) {
 		HostCapacityVO vo = dbf.getEntityManager().find(HostCapacityVO.class, hostUuid, LockModeType.PESSIMISTIC_WRITE);
 		if (vo == null) {
 			logger.warn(String.format("Unable to return cpu[%s], memory[%s] to host[uuid:%s], it may have been deleted", cpu, memory, hostUuid));
-			return;
+			return null;
 		}
 
         long availCpu = vo.getAvailableCpu() + cpu;
@@ -258,7 +271,8 @@ public class HostAllocatorManagerImpl extends AbstractService implements HostAll
         availMemory = availMemory > vo.getTotalMemory() ? vo.getTotalMemory() : availMemory;
         vo.setAvailableMemory(availMemory);
 
-		dbf.getEntityManager().merge(vo);
+		vo = dbf.getEntityManager().merge(vo);
 		logger.debug(String.format("Successfully returned cpu[%s HZ], memory[%s bytes] to host[uuid:%s]", cpu, memory, hostUuid));
+		return vo;
     }
 }
@@ -21,6 +21,8 @@ public class HostCapacityAllocatorFlow extends AbstractHostAllocatorFlow {
     private DatabaseFacade dbf;
     @Autowired
     private HostCapacityReserveManager reserveMgr;
+    @Autowired
+    private HostCapacityIndex capacityIndex;
 
 	@Transactional(readOnly = true)
 	private List<HostVO> allocate(long cpu, long memory) {
@@ -37,6 +39,47 @@ public class HostCapacityAllocatorFlow extends AbstractHostAllocatorFlow {
 		return query.getResultList();
 	}
 
+    @Transactional(readOnly = true)
+    private List<HostVO> allocateFromIndex(long cpu, long memory) {
+        List<String> huuids = capacityIndex.find(cpu, memory);
+        if (huuids.isEmpty()) {
+            return new ArrayList<HostVO>();
+        }
+
+        if (usePagination()) {
+            int from = Math.min(paginationInfo.getOffset(), huuids.size());
+            int to = Math.min(from + paginationInfo.getLimit(), huuids.size());
+            huuids = huuids.subList(from, to);
+            if (huuids.isEmpty()) {
+                return new ArrayList<HostVO>();
+            }
+        }
+
+        String sql = "select h from HostVO h where h.uuid in (:uuids)";
+        TypedQuery<HostVO> query = dbf.getEntityManager().createQuery(sql, HostVO.class);
+        query.setParameter("uuids", huuids);
+        return query.getResultList();
+    }
+
+    private List<HostVO> allocateFromIndex(List<HostVO> vos, long cpu, long memory) {
+        List<HostVO> ret = new ArrayList<HostVO>();
+        List<HostVO> notIndexed = new ArrayList<HostVO>();
+        for (HostVO hvo : vos) {
+            HostCapacityIndex.Capacity c = capacityIndex.getCapacity(hvo.getUuid());
+            if (c == null) {
+                notIndexed.add(hvo);
+            } else if (c.getFreeCpu() >= cpu && c.getFreeMemory() >= memory) {
+                ret.add(hvo);
+            }
+        }
+
+        if (!notIndexed.isEmpty()) {
+            ret.addAll(reserveMgr.filterOutHostsByReservedCapacity(allocate(notIndexed, cpu, memory), cpu, memory));
+        }
+
+        return ret;
+    }
+
 	private List<HostVO> allocate(List<HostVO> vos, long cpu, long memory) {
         List<HostVO> ret = new ArrayList<HostVO>();
         for (HostVO hvo : vos) {
@@ -50,7 +93,26 @@ public class HostCapacityAllocatorFlow extends AbstractHostAllocatorFlow {
 
     @Override
     public void allocate() {
-        if (amITheFirstFlow()) {
+        boolean first = amITheFirstFlow();
+        if (capacityIndex.isEnabled()) {
+            List<HostVO> ret;
+            if (first) {
+                ret = allocateFromIndex(spec.getCpuCapacity(), spec.getMemoryCapacity());
+            } else {
+                ret = allocateFromIndex(candidates, spec.getCpuCapacity(), spec.getMemoryCapacity());
+            }
+
+            if (!ret.isEmpty()) {
+                next(ret);
+                return;
+            }
+
+            // the index may be behind capacity returned on other management nodes, double check with the database
+            logger.debug(String.format("no host having cpu[%s HZ], memory[%s bytes] found in the capacity index, check the database",
+                    spec.getCpuCapacity(), spec.getMemoryCapacity()));
+        }
+
+        if (first) {
             candidates = allocate(spec.getCpuCapacity(), spec.getMemoryCapacity());
         } else {
             candidates = allocate(candidates, spec.getCpuCapacity(), spec.getMemoryCapacity());
@@ -0,0 +1,426 @@
+package org.zstack.compute.allocator;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.zstack.compute.cluster.ClusterSystemTags;
+import org.zstack.compute.host.HostSystemTags;
+import org.zstack.compute.zone.ZoneSystemTags;
+import org.zstack.core.Platform;
+import org.zstack.core.componentloader.PluginRegistry;
+import org.zstack.core.config.GlobalConfig;
+import org.zstack.core.config.GlobalConfigUpdateExtensionPoint;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.db.SimpleQuery;
+import org.zstack.core.thread.PeriodicTask;
+import org.zstack.core.thread.ThreadFacade;
+import org.zstack.header.Component;
+import org.zstack.header.allocator.HostCapacityVO;
+import org.zstack.header.allocator.HostCapacityVO_;
+import org.zstack.header.allocator.HostReservedCapacityExtensionPoint;
+import org.zstack.header.allocator.ReservedHostCapacity;
+import org.zstack.header.tag.SystemTagInventory;
+import org.zstack.header.tag.SystemTagLifeCycleListener;
+import org.zstack.tag.PatternedSystemTag;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import javax.persistence.Tuple;
+import java.util.*;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * in-memory index of host capacity, sorted by free cpu then free memory, where free capacity is the available
+ * capacity in HostCapacityVO minus the reserved capacity resolved from system tags and hypervisor extensions.
+ *
+ * the index is kept by the writers of HostCapacityVO on this management node; changes made by other management
+ * nodes, by system tags on other nodes and by hypervisor level reserve configurations are caught up by a
+ * checker that reconciles the whole index with the database periodically. The index is only a filter,
+ * HostAllocatorChain still reserves capacity with a row lock on HostCapacityVO
+ */
+public class HostCapacityIndex implements Component {
+    private static final CLogger logger = Utils.getLogger(HostCapacityIndex.class);
+
+    @Autowired
+    private DatabaseFacade dbf;
+    @Autowired
+    private ThreadFacade thdf;
+    @Autowired
+    private HostCapacityReserveManager reserveMgr;
+    @Autowired
+    private PluginRegistry pluginRgty;
+
+    private Future<Void> checkerThread;
+    private volatile boolean loaded;
+    private volatile boolean reservedCapacityDirty;
+    // hypervisor type -> {reserved cpu, reserved memory} the index is resolved with
+    private volatile Map<String, long[]> hypervisorReserves = new HashMap<String, long[]>();
+
+    private static class Entry {
+        String hostUuid;
+        long availableCpu;
+        long availableMemory;
+        long reservedCpu;
+        long reservedMemory;
+        long lastUpdateTime;
+
+        long freeCpu() {
+            return availableCpu - reservedCpu;
+        }
+
+        long freeMemory() {
+            return availableMemory - reservedMemory;
+        }
+    }
+
+    private static final Comparator<Entry> FREE_CAPACITY_COMPARATOR = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry e1, Entry e2) {
+            int ret = compareLong(e1.freeCpu(), e2.freeCpu());
+            if (ret != 0) {
+                return ret;
+            }
+
+            ret = compareLong(e1.freeMemory(), e2.freeMemory());
+            if (ret != 0) {
+                return ret;
+            }
+
+            return e1.hostUuid.compareTo(e2.hostUuid);
+        }
+
+        private int compareLong(long l1, long l2) {
+            return l1 < l2 ? -1 : (l1 == l2 ? 0 : 1);
+        }
+    };
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private final TreeSet<Entry> sorted = new TreeSet<Entry>(FREE_CAPACITY_COMPARATOR);
+
+    public static class Capacity {
+        private long freeCpu;
+        private long freeMemory;
+
+        public long getFreeCpu() {
+            return freeCpu;
+        }
+
+        public long getFreeMemory() {
+            return freeMemory;
+        }
+    }
+
+    private class ConsistencyChecker implements PeriodicTask {
+        @Override
+        public TimeUnit getTimeUnit() {
+            return TimeUnit.SECONDS;
+        }
+
+        @Override
+        public long getInterval() {
+            return HostAllocatorGlobalConfig.CAPACITY_INDEX_CHECK_INTERVAL.value(Long.class);
+        }
+
+        @Override
+        public String getName() {
+            return "host-capacity-index-checker-" + Platform.getManagementServerId();
+        }
+
+        @Override
+        public void run() {
+            try {
+                reconcile();
+            } catch (Throwable t) {
+                logger.warn("unhandled exception when reconciling host capacity index", t);
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return loaded && HostAllocatorGlobalConfig.USE_CAPACITY_INDEX.value(Boolean.class);
+    }
+
+    private Entry newEntry(String hostUuid, long cpu, long memory, ReservedHostCapacity rc) {
+        Entry e = new Entry();
+        e.hostUuid = hostUuid;
+        e.availableCpu = cpu;
+        e.availableMemory = memory;
+        e.reservedCpu = rc == null ? 0 : rc.getReservedCpuCapacity();
+        e.reservedMemory = rc == null ? 0 : rc.getReservedMemoryCapacity();
+        return e;
+    }
+
+    private void put(Entry e) {
+        Entry old = entries.put(e.hostUuid, e);
+        if (old != null) {
+            sorted.remove(old);
+        }
+        sorted.add(e);
+    }
+
+    /**
+     * must be called after the change of HostCapacityVO is committed
+     */
+    public void update(String hostUuid, long availableCpu, long availableMemory) {
+        if (!loaded) {
+            return;
+        }
+
+        synchronized (this) {
+            Entry old = entries.get(hostUuid);
+            if (old != null) {
+                Entry e = newEntry(hostUuid, availableCpu, availableMemory, null);
+                e.reservedCpu = old.reservedCpu;
+                e.reservedMemory = old.reservedMemory;
+                e.lastUpdateTime = System.currentTimeMillis();
+                put(e);
+                return;
+            }
+        }
+
+        // a new host, resolve its reserved capacity out of the lock
+        ReservedHostCapacity rc = reserveMgr.getReservedHostCapacityOfHosts(Arrays.asList(hostUuid)).get(hostUuid);
+        synchronized (this) {
+            Entry e = newEntry(hostUuid, availableCpu, availableMemory, rc);
+            e.lastUpdateTime = System.currentTimeMillis();
+            put(e);
+        }
+    }
+
+    public synchronized void remove(String hostUuid) {
+        Entry e = entries.remove(hostUuid);
+        if (e != null) {
+            sorted.remove(e);
+        }
+    }
+
+    /**
+     * @return uuids of hosts whose free cpu and free memory are no less than required, in ascending order of free cpu
+     */
+    public List<String> find(long requiredCpu, long requiredMemory) {
+        refreshReservedCapacityIfNeeded();
+
+        Entry from = new Entry();
+        from.hostUuid = "";
+        from.availableCpu = requiredCpu;
+        from.availableMemory = Long.MIN_VALUE;
+
+        List<String> ret = new ArrayList<String>();
+        synchronized (this) {
+            for (Entry e : sorted.tailSet(from, true)) {
+                if (e.freeMemory() >= requiredMemory) {
+                    ret.add(e.hostUuid);
+                }
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * @return free capacity of the host, or null if the host is not in the index
+     */
+    public synchronized Capacity getCapacity(String hostUuid) {
+        Entry e = entries.get(hostUuid);
+        if (e == null) {
+            return null;
+        }
+
+        Capacity c = new Capacity();
+        c.freeCpu = e.freeCpu();
+        c.freeMemory = e.freeMemory();
+        return c;
+    }
+
+    private Map<String, long[]> getHypervisorReserves() {
+        Map<String, long[]> ret = new HashMap<String, long[]>();
+        for (HostReservedCapacityExtensionPoint ext : pluginRgty.getExtensionList(HostReservedCapacityExtensionPoint.class)) {
+            ReservedHostCapacity rc = ext.getReservedHostCapacity();
+            ret.put(ext.getHypervisorTypeForHostReserveCapacityExtension(),
+                    new long[]{rc.getReservedCpuCapacity(), rc.getReservedMemoryCapacity()});
+        }
+        return ret;
+    }
+
+    private boolean isHypervisorReservesChanged() {
+        Map<String, long[]> current = getHypervisorReserves();
+        Map<String, long[]> resolved = hypervisorReserves;
+        if (current.size() != resolved.size()) {
+            return true;
+        }
+
+        for (Map.Entry<String, long[]> e : current.entrySet()) {
+            if (!Arrays.equals(e.getValue(), resolved.get(e.getKey()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void refreshReservedCapacityIfNeeded() {
+        // hypervisor reserves are changed by global configs of hypervisor plugins, which we don't listen to
+        if (!reservedCapacityDirty && !isHypervisorReservesChanged()) {
+            return;
+        }
+
+        reservedCapacityDirty = false;
+        hypervisorReserves = getHypervisorReserves();
+        List<String> hostUuids;
+        synchronized (this) {
+            hostUuids = new ArrayList<String>(entries.keySet());
+        }
+
+        Map<String, ReservedHostCapacity> reserves = reserveMgr.getReservedHostCapacityOfHosts(hostUuids);
+        synchronized (this) {
+            for (Map.Entry<String, ReservedHostCapacity> r : reserves.entrySet()) {
+                Entry old = entries.get(r.getKey());
+                if (old == null) {
+                    continue;
+                }
+
+                Entry e = newEntry(old.hostUuid, old.availableCpu, old.availableMemory, r.getValue());
+                e.lastUpdateTime = old.lastUpdateTime;
+                put(e);
+            }
+        }
+    }
+
+    /**
+     * reloads all capacity from the database and fixes entries that drift from it. An entry updated locally
+     * after the database is read is left alone, it's newer than what we read
+     */
+    public void reconcile() {
+        long startTime = System.currentTimeMillis();
+
+        SimpleQuery<HostCapacityVO> q = dbf.createQuery(HostCapacityVO.class);
+        q.select(HostCapacityVO_.uuid, HostCapacityVO_.availableCpu, HostCapacityVO_.availableMemory);
+        List<Tuple> tuples = q.listTuple();
+
+        reservedCapacityDirty = false;
+        hypervisorReserves = getHypervisorReserves();
+        List<String> hostUuids = new ArrayList<String>(tuples.size());
+        for (Tuple t : tuples) {
+            hostUuids.add(t.get(0, String.class));
+        }
+        Map<String, ReservedHostCapacity> reserves = hostUuids.isEmpty() ? new HashMap<String, ReservedHostCapacity>() :
+                reserveMgr.getReservedHostCapacityOfHosts(new ArrayList<String>(hostUuids));
+
+        int added = 0;
+        int fixed = 0;
+        int removed = 0;
+        synchronized (this) {
+            Set<String> inDb = new HashSet<String>(hostUuids.size());
+            for (Tuple t : tuples) {
+                String huuid = t.get(0, String.class);
+                long cpu = t.get(1, Long.class);
+                long mem = t.get(2, Long.class);
+                inDb.add(huuid);
+
+                Entry old = entries.get(huuid);
+                if (old != null && old.lastUpdateTime >= startTime) {
+                    continue;
+                }
+
+                Entry e = newEntry(huuid, cpu, mem, reserves.get(huuid));
+                if (old == null) {
+                    added ++;
+                } else if (old.availableCpu != e.availableCpu || old.availableMemory != e.availableMemory
+                        || old.reservedCpu != e.reservedCpu || old.reservedMemory != e.reservedMemory) {
+                    fixed ++;
+                    if (logger.isTraceEnabled()) {
+                        logger.trace(String.format("[Host Capacity Index]: host[uuid:%s] drifts, index[cpu:%s, memory:%s, reserved cpu:%s, reserved memory:%s]," +
+                                " database[cpu:%s, memory:%s, reserved cpu:%s, reserved memory:%s]", huuid, old.availableCpu, old.availableMemory,
+                                old.reservedCpu, old.reservedMemory, e.availableCpu, e.availableMemory, e.reservedCpu, e.reservedMemory));
+                    }
+                } else {
+                    continue;
+                }
+
+                put(e);
+            }
+
+            Iterator<Entry> it = entries.values().iterator();
+            while (it.hasNext()) {
+                Entry e = it.next();
+                if (!inDb.contains(e.hostUuid) && e.lastUpdateTime < startTime) {
+                    it.remove();
+                    sorted.remove(e);
+                    removed ++;
+                }
+            }
+        }
+
+        loaded = true;
+        if (fixed != 0 || removed != 0) {
+            logger.debug(String.format("[Host Capacity Index]: reconciled with database, %s hosts added, %s hosts fixed, %s hosts removed",
+                    added, fixed, removed));
+        }
+    }
+
+    private void startChecker() {
+        if (checkerThread != null) {
+            checkerThread.cancel(true);
+        }
+
+        checkerThread = thdf.submitPeriodicTask(new ConsistencyChecker());
+    }
+
+    private void installReservedCapacityListeners() {
+        SystemTagLifeCycleListener tagListener = new SystemTagLifeCycleListener() {
+            @Override
+            public void tagCreated(SystemTagInventory tag) {
+                reservedCapacityDirty = true;
+            }
+
+            @Override
+            public void tagDeleted(SystemTagInventory tag) {
+                reservedCapacityDirty = true;
+            }
+        };
+
+        PatternedSystemTag[] tags = new PatternedSystemTag[] {
+                HostSystemTags.RESERVED_CPU_CAPACITY,
+                HostSystemTags.RESERVED_MEMORY_CAPACITY,
+                ClusterSystemTags.HOST_RESERVED_CPU_CAPACITY,
+                ClusterSystemTags.HOST_RESERVED_MEMORY_CAPACITY,
+                ZoneSystemTags.HOST_RESERVED_CPU_CAPACITY,
+                ZoneSystemTags.HOST_RESERVED_MEMORY_CAPACITY,
+        };
+        for (PatternedSystemTag tag : tags) {
+            tag.installLifeCycleListener(tagListener);
+        }
+
+        GlobalConfigUpdateExtensionPoint configListener = new GlobalConfigUpdateExtensionPoint() {
+            @Override
+            public void updateGlobalConfig(GlobalConfig oldConfig, GlobalConfig newConfig) {
+                reservedCapacityDirty = true;
+            }
+        };
+        HostAllocatorGlobalConfig.HOST_LEVEL_RESERVE_CAPACITY.installUpdateExtension(configListener);
+        HostAllocatorGlobalConfig.CLUSTER_LEVEL_RESERVE_CAPACITY.installUpdateExtension(configListener);
+        HostAllocatorGlobalConfig.ZONE_LEVEL_RESERVE_CAPACITY.installUpdateExtension(configListener);
+    }
+
+    @Override
+    public boolean start() {
+        installReservedCapacityListeners();
+        startChecker();
+
+        HostAllocatorGlobalConfig.CAPACITY_INDEX_CHECK_INTERVAL.installUpdateExtension(new GlobalConfigUpdateExtensionPoint() {
+            @Override
+            public void updateGlobalConfig(GlobalConfig oldConfig, GlobalConfig newConfig) {
+                logger.debug(String.format("%s change from %s to %s, restart host capacity index checker",
+                        oldConfig.getCanonicalName(), oldConfig.value(), newConfig.value()));
+                startChecker();
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        if (checkerThread != null) {
+            checkerThread.cancel(true);
+        }
+        return true;
+    }
+}
@@ -522,6 +522,19 @@ public abstract class HostBase extends AbstractHost {
         });
     }
 
+    /**
+     * calls the task when no operation of vms runs on the host, operations of vms submitted later wait until
+     * the task calls chain.next(). Hypervisors running operations of vms out of the chain of the host override it,
+     * the default calls the task right away.
+     */
+    protected void drainHostOperations(ChainTask task) {
+        task.run(new SyncTaskChain() {
+            @Override
+            public void next() {
+            }
+        });
+    }
+
     private void handle(final HostDeletionMsg msg) {
         thdf.chainSubmit(new ChainTask(msg) {
             @Override
@@ -530,14 +543,33 @@ public abstract class HostBase extends AbstractHost {
             }
 
             @Override
-            public void run(SyncTaskChain chain) {
-                HostInventory hinv = HostInventory.valueOf(self);
-                extpEmitter.beforeDelete(hinv);
-                deleteHook();
-                extpEmitter.afterDelete(hinv);
-                bus.reply(msg, new HostDeletionReply());
-                tracker.untrackHost(self.getUuid());
-                chain.next();
+            public void run(final SyncTaskChain chain) {
+                drainHostOperations(new ChainTask(msg, chain) {
+                    @Override
+                    public String getSyncSignature() {
+                        return id;
+                    }
+
+                    @Override
+                    public void run(SyncTaskChain drain) {
+                        try {
+                            HostInventory hinv = HostInventory.valueOf(self);
+                            extpEmitter.beforeDelete(hinv);
+                            deleteHook();
+                            extpEmitter.afterDelete(hinv);
+                            bus.reply(msg, new HostDeletionReply());
+                            tracker.untrackHost(self.getUuid());
+                        } finally {
+                            drain.next();
+                        }
+                        chain.next();
+                    }
+
+                    @Override
+                    public String getName() {
+                        return String.format("host-deletion-%s", self.getUuid());
+                    }
+                });
             }
 
             @Override
@@ -608,10 +640,26 @@ public abstract class HostBase extends AbstractHost {
 
             @Override
             public void run(final SyncTaskChain chain) {
-                reconnectHost(msg, new NoErrorCompletion(chain) {
+                drainHostOperations(new ChainTask(msg, chain) {
                     @Override
-                    public void done() {
-                        chain.next();
+                    public String getSyncSignature() {
+                        return id;
+                    }
+
+                    @Override
+                    public void run(final SyncTaskChain drain) {
+                        reconnectHost(msg, new NoErrorCompletion(chain) {
+                            @Override
+                            public void done() {
+                                drain.next();
+                                chain.next();
+                            }
+                        });
+                    }
+
+                    @Override
+                    public String getName() {
+                        return "reconnect-host-" + self.getUuid();
                     }
                 });
             }
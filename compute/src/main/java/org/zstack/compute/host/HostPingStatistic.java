@@ -0,0 +1,62 @@
+package org.zstack.compute.host;
+
+import java.beans.ConstructorProperties;
+
+/**
+ */
+public class HostPingStatistic {
+    private int trackedHostNum;
+    private int inFlightPingNum;
+    private int deferredPingNum;
+    private long pingCount;
+    private long missCount;
+    private long disconnectedCount;
+    private long averageLatency;
+    private long maxLatency;
+
+    @ConstructorProperties({"trackedHostNum", "inFlightPingNum", "deferredPingNum", "pingCount", "missCount",
+            "disconnectedCount", "averageLatency", "maxLatency"})
+    public HostPingStatistic(int trackedHostNum, int inFlightPingNum, int deferredPingNum, long pingCount, long missCount,
+                             long disconnectedCount, long averageLatency, long maxLatency) {
+        this.trackedHostNum = trackedHostNum;
+        this.inFlightPingNum = inFlightPingNum;
+        this.deferredPingNum = deferredPingNum;
+        this.pingCount = pingCount;
+        this.missCount = missCount;
+        this.disconnectedCount = disconnectedCount;
+        this.averageLatency = averageLatency;
+        this.maxLatency = maxLatency;
+    }
+
+    public int getTrackedHostNum() {
+        return trackedHostNum;
+    }
+
+    public int getInFlightPingNum() {
+        return inFlightPingNum;
+    }
+
+    public int getDeferredPingNum() {
+        return deferredPingNum;
+    }
+
+    public long getPingCount() {
+        return pingCount;
+    }
+
+    public long getMissCount() {
+        return missCount;
+    }
+
+    public long getDisconnectedCount() {
+        return disconnectedCount;
+    }
+
+    public long getAverageLatency() {
+        return averageLatency;
+    }
+
+    public long getMaxLatency() {
+        return maxLatency;
+    }
+}
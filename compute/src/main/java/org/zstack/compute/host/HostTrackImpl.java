@@ -10,6 +10,7 @@ import org.zstack.core.config.GlobalConfig;
 import org.zstack.core.config.GlobalConfigUpdateExtensionPoint;
 import org.zstack.core.db.DatabaseFacade;
 import org.zstack.core.db.SimpleQuery;
+import org.zstack.core.jmx.JmxFacade;
 import org.zstack.core.thread.PeriodicTask;
 import org.zstack.core.thread.ThreadFacade;
 import org.zstack.header.Component;
@@ -21,19 +22,35 @@ import org.zstack.utils.Utils;
 import org.zstack.utils.logging.CLogger;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * hosts are spread over a timing wheel with one slot per second of the ping interval, a host lands in a
+ * random slot when it's tracked so pings don't bunch up on the interval boundary. The tracker advances
+ * the wheel every second and keeps at most host.ping.parallelismDegree pings in flight, hosts over
+ * the bound are deferred to the next tick. Reconnects decided in one tick are sent together.
  */
-public class HostTrackImpl implements HostTracker, ManagementNodeChangeListener, Component {
+public class HostTrackImpl implements HostTracker, ManagementNodeChangeListener, Component, HostTrackerMXBean {
     private final static CLogger logger = Utils.getLogger(HostTrackImpl.class);
+    private final static Random random = new Random();
 
-    private final List<String> hostUuids = Collections.synchronizedList(new ArrayList<String>());
-    private Set<String> hostInTracking = Collections.synchronizedSet(new HashSet<String>());
+    private final Wheel wheel = new Wheel();
+    private final Set<String> deferredHosts = new LinkedHashSet<String>();
+    private final Map<String, Long> hostInTracking = new ConcurrentHashMap<String, Long>();
     private Future<Void> trackerThread = null;
     private final Map<String, HostStatusEvent> hostConnectionStateEventMap = Collections.synchronizedMap(new HashMap<String, HostStatusEvent>());
-    private final List<String> inReconnectingHost = Collections.synchronizedList(new ArrayList<String>());
+    private final Set<String> inReconnectingHost = Collections.synchronizedSet(new HashSet<String>());
+    private final Set<String> hostsToReconnect = new LinkedHashSet<String>();
+
+    private final AtomicLong pingCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong disconnectedCount = new AtomicLong();
+    private long repliedCount;
+    private long totalLatency;
+    private long maxLatency;
 
     @Autowired
     private DatabaseFacade dbf;
@@ -43,6 +60,66 @@ public class HostTrackImpl implements HostTracker, ManagementNodeChangeListener,
     private CloudBus bus;
     @Autowired
     private ThreadFacade thdf;
+    @Autowired
+    private JmxFacade jmxf;
+
+    private static class Wheel {
+        private List<Set<String>> slots;
+        private final Map<String, Integer> hostSlots = new HashMap<String, Integer>();
+        private int cursor;
+
+        Wheel() {
+            resize(1);
+        }
+
+        void resize(int size) {
+            slots = new ArrayList<Set<String>>(size);
+            for (int i = 0; i < size; i++) {
+                slots.add(new HashSet<String>());
+            }
+            cursor = 0;
+
+            List<String> huuids = new ArrayList<String>(hostSlots.keySet());
+            hostSlots.clear();
+            for (String huuid : huuids) {
+                add(huuid);
+            }
+        }
+
+        boolean add(String huuid) {
+            if (hostSlots.containsKey(huuid)) {
+                return false;
+            }
+
+            int slot = random.nextInt(slots.size());
+            slots.get(slot).add(huuid);
+            hostSlots.put(huuid, slot);
+            return true;
+        }
+
+        boolean remove(String huuid) {
+            Integer slot = hostSlots.remove(huuid);
+            if (slot == null) {
+                return false;
+            }
+
+            slots.get(slot).remove(huuid);
+            return true;
+        }
+
+        boolean contains(String huuid) {
+            return hostSlots.containsKey(huuid);
+        }
+
+        Set<String> getHosts() {
+            return hostSlots.keySet();
+        }
+
+        Set<String> advance() {
+            cursor = (cursor + 1) % slots.size();
+            return slots.get(cursor);
+        }
+    }
 
     private class Tracker implements PeriodicTask {
         @Override
@@ -52,7 +129,7 @@ public class HostTrackImpl implements HostTracker, ManagementNodeChangeListener,
 
         @Override
         public long getInterval() {
-            return HostGlobalConfig.PING_HOST_INTERVAL.value(Integer.class);
+            return 1;
         }
 
         @Override
@@ -62,6 +139,7 @@ public class HostTrackImpl implements HostTracker, ManagementNodeChangeListener,
 
         private void handleReply(final String hostUuid, MessageReply reply) {
             if (!reply.isSuccess()) {
+                missCount.incrementAndGet();
                 logger.warn(String.format("[Host Tracker]: unable track host[uuid:%s], %s", hostUuid, reply.getError()));
                 return;
             }
@@ -73,77 +151,136 @@ public class HostTrackImpl implements HostTracker, ManagementNodeChangeListener,
                 logger.trace(String.format("[Host Tracker]: ping host[uuid:%s], connection state[%s], %s", hostUuid, cevt, moreInfo));
             }
 
+            if (cevt == HostStatusEvent.disconnected) {
+                disconnectedCount.incrementAndGet();
+            }
+
             //TODO: use hostConnectionStateEventMap to implement stopping PING after failing specific times
 
             boolean needReconnect = cevt == HostStatusEvent.disconnected && preply.isSuccess() && HostGlobalConfig.AUTO_RECONNECT_ON_ERROR.value(Boolean.class);
-            if (needReconnect && !inReconnectingHost.contains(hostUuid)) {
-                inReconnectingHost.add(hostUuid);
-                logger.debug(String.format("[Host Tracker]: detected host[uuid:%s] connection lost, issue a reconnect because %s is set to true",
-                        hostUuid, HostGlobalConfig.AUTO_RECONNECT_ON_ERROR.getCanonicalName()));
-                ReconnectHostMsg msg = new ReconnectHostMsg();
-                msg.setHostUuid(hostUuid);
-                msg.setSkipIfHostConnected(true);
-                bus.makeTargetServiceIdByResourceUuid(msg, HostConstant.SERVICE_ID, hostUuid);
-                bus.send(msg, new CloudBusCallBack() {
-                    @Override
-                    public void run(MessageReply reply) {
-                        inReconnectingHost.remove(hostUuid);
-
-                        if (!reply.isSuccess()) {
-                            logger.warn(String.format("host[uuid:%s] failed to reconnect, %s", hostUuid, reply.getError()));
-                            hostConnectionStateEventMap.put(hostUuid, HostStatusEvent.disconnected);
-                        } else {
-                            hostConnectionStateEventMap.put(hostUuid, HostStatusEvent.connected);
-                        }
-
-                    }
-                });
+            if (needReconnect && inReconnectingHost.add(hostUuid)) {
+                synchronized (hostsToReconnect) {
+                    hostsToReconnect.add(hostUuid);
+                }
             } else {
                 hostConnectionStateEventMap.put(hostUuid, cevt);
             }
         }
 
+        private void reconnect() {
+            final List<ReconnectHostMsg> msgs = new ArrayList<ReconnectHostMsg>();
+            synchronized (hostsToReconnect) {
+                for (String huuid : hostsToReconnect) {
+                    ReconnectHostMsg msg = new ReconnectHostMsg();
+                    msg.setHostUuid(huuid);
+                    msg.setSkipIfHostConnected(true);
+                    bus.makeTargetServiceIdByResourceUuid(msg, HostConstant.SERVICE_ID, huuid);
+                    msgs.add(msg);
+                }
+                hostsToReconnect.clear();
+            }
+
+            if (msgs.isEmpty()) {
+                return;
+            }
+
+            logger.debug(String.format("[Host Tracker]: detected %s hosts connection lost, issue reconnects because %s is set to true",
+                    msgs.size(), HostGlobalConfig.AUTO_RECONNECT_ON_ERROR.getCanonicalName()));
+            bus.send(msgs, HostGlobalConfig.HOST_TRACK_PARALLELISM_DEGREE.value(Integer.class), new CloudBusSteppingCallback() {
+                @Override
+                public void run(NeedReplyMessage msg, MessageReply reply) {
+                    String hostUuid = ((ReconnectHostMsg) msg).getHostUuid();
+                    inReconnectingHost.remove(hostUuid);
+
+                    if (!reply.isSuccess()) {
+                        logger.warn(String.format("host[uuid:%s] failed to reconnect, %s", hostUuid, reply.getError()));
+                        hostConnectionStateEventMap.put(hostUuid, HostStatusEvent.disconnected);
+                    } else {
+                        hostConnectionStateEventMap.put(hostUuid, HostStatusEvent.connected);
+                    }
+                }
+            });
+        }
+
+        private void ping(final String hostUuid) {
+            final long start = System.currentTimeMillis();
+            hostInTracking.put(hostUuid, start);
+            pingCount.incrementAndGet();
+
+            PingHostMsg msg = new PingHostMsg();
+            msg.setHostUuid(hostUuid);
+            bus.makeTargetServiceIdByResourceUuid(msg, HostConstant.SERVICE_ID, hostUuid);
+            bus.send(msg, new CloudBusCallBack() {
+                @Override
+                public void run(MessageReply reply) {
+                    hostInTracking.remove(hostUuid);
+                    if (reply.isSuccess()) {
+                        countLatency(System.currentTimeMillis() - start);
+                    }
+                    handleReply(hostUuid, reply);
+                }
+            });
+        }
+
         @Override
         public void run() {
             try {
-                List<PingHostMsg> msgs = null;
-                synchronized (hostUuids) {
-                    msgs = new ArrayList<PingHostMsg>();
-                    for (String huuid : hostUuids) {
-                        if (hostInTracking.contains(huuid)) {
-                            continue;
-                        }
+                List<String> due;
+                synchronized (wheel) {
+                    Set<String> s = new LinkedHashSet<String>(deferredHosts);
+                    s.addAll(wheel.advance());
+                    deferredHosts.clear();
+                    due = new ArrayList<String>(s);
+                }
 
-                        PingHostMsg msg = new PingHostMsg();
-                        msg.setHostUuid(huuid);
-                        bus.makeTargetServiceIdByResourceUuid(msg, HostConstant.SERVICE_ID, huuid);
-                        msgs.add(msg);
-                        hostInTracking.add(huuid);
+                int parallelism = HostGlobalConfig.HOST_TRACK_PARALLELISM_DEGREE.value(Integer.class);
+                List<String> deferred = new ArrayList<String>();
+                for (String huuid : due) {
+                    if (hostInTracking.containsKey(huuid)) {
+                        // the last ping is still not replied when the host is due again
+                        missCount.incrementAndGet();
+                        continue;
                     }
-                }
 
-                if (msgs.isEmpty()) {
-                    return;
+                    if (hostInTracking.size() >= parallelism) {
+                        deferred.add(huuid);
+                        continue;
+                    }
+
+                    try {
+                        ping(huuid);
+                    } catch (Throwable t) {
+                        hostInTracking.remove(huuid);
+                        logger.warn(String.format("[Host Tracker]: unable to ping host[uuid:%s]", huuid), t);
+                    }
                 }
 
-                bus.send(msgs, HostGlobalConfig.HOST_TRACK_PARALLELISM_DEGREE.value(Integer.class), new CloudBusSteppingCallback() {
-                    @Override
-                    public void run(NeedReplyMessage msg, MessageReply reply) {
-                        PingHostMsg pmsg = (PingHostMsg)msg;
-                        handleReply(pmsg.getHostUuid(), reply);
-                        hostInTracking.remove(pmsg.getHostUuid());
+                if (!deferred.isEmpty()) {
+                    synchronized (wheel) {
+                        for (String huuid : deferred) {
+                            if (wheel.contains(huuid)) {
+                                deferredHosts.add(huuid);
+                            }
+                        }
                     }
-                });
+                }
+
+                reconnect();
             } catch (Throwable t) {
                 logger.warn("unhandled exception", t);
             }
         }
     }
 
+    private synchronized void countLatency(long latency) {
+        repliedCount ++;
+        totalLatency += latency;
+        maxLatency = Math.max(maxLatency, latency);
+    }
+
     public void trackHost(String hostUuid) {
-        synchronized (hostUuids) {
-            if (!hostUuids.contains(hostUuid)) {
-                hostUuids.add(hostUuid);
+        synchronized (wheel) {
+            if (wheel.add(hostUuid)) {
                 logger.debug(String.format("start tracking host[uuid:%s]", hostUuid));
             }
         }
@@ -151,8 +288,9 @@ public class HostTrackImpl implements HostTracker, ManagementNodeChangeListener,
 
     @Override
     public void untrackHost(String hostUuid) {
-        synchronized (hostUuids) {
-            hostUuids.remove(hostUuid);
+        synchronized (wheel) {
+            wheel.remove(hostUuid);
+            deferredHosts.remove(hostUuid);
             hostConnectionStateEventMap.remove(hostUuid);
             logger.debug(String.format("stop tracking host[uuid:%s]", hostUuid));
         }
@@ -160,10 +298,9 @@ public class HostTrackImpl implements HostTracker, ManagementNodeChangeListener,
 
     @Override
     public void trackHost(Collection<String> huuids) {
-        synchronized (hostUuids) {
+        synchronized (wheel) {
             for (String huuid : huuids) {
-                if (!hostUuids.contains(huuid)) {
-                    hostUuids.add(huuid);
+                if (wheel.add(huuid)) {
                     logger.debug(String.format("start tracking host[uuid:%s]", huuid));
                 }
             }
@@ -172,9 +309,10 @@ public class HostTrackImpl implements HostTracker, ManagementNodeChangeListener,
 
     @Override
     public void untrackHost(Collection<String> huuids) {
-        synchronized (hostUuids) {
+        synchronized (wheel) {
             for (String huuid : huuids) {
-                hostUuids.remove(huuid);
+                wheel.remove(huuid);
+                deferredHosts.remove(huuid);
                 hostConnectionStateEventMap.remove(huuid);
                 logger.debug(String.format("stop tracking host[uuid:%s]", huuid));
             }
@@ -182,25 +320,35 @@ public class HostTrackImpl implements HostTracker, ManagementNodeChangeListener,
     }
 
     private void reScanHost() {
-        synchronized (hostUuids) {
-            hostUuids.clear();
-
-            long count = dbf.count(HostVO.class);
-            int times = (int)count / 10000 + (count%10000 == 0 ? 0 : 1);
-            int offset = 0;
-            for (int i=0; i<times; i++) {
-                SimpleQuery<HostVO> q = dbf.createQuery(HostVO.class);
-                q.select(HostVO_.uuid);
-                q.setStart(offset);
-                q.setLimit(10000);
-                List<String> huuids = q.listValue();
-                for (String h : huuids) {
-                    if (destMaker.isManagedByUs(h)) {
-                        hostUuids.add(h);
-                    }
+        Set<String> ours = new HashSet<String>();
+        long count = dbf.count(HostVO.class);
+        int times = (int)count / 10000 + (count%10000 == 0 ? 0 : 1);
+        int offset = 0;
+        for (int i=0; i<times; i++) {
+            SimpleQuery<HostVO> q = dbf.createQuery(HostVO.class);
+            q.select(HostVO_.uuid);
+            q.setStart(offset);
+            q.setLimit(10000);
+            List<String> huuids = q.listValue();
+            for (String h : huuids) {
+                if (destMaker.isManagedByUs(h)) {
+                    ours.add(h);
                 }
+            }
 
-                offset += 10000;
+            offset += 10000;
+        }
+
+        synchronized (wheel) {
+            // hosts still managed by us keep their slots
+            for (String huuid : new ArrayList<String>(wheel.getHosts())) {
+                if (!ours.contains(huuid)) {
+                    wheel.remove(huuid);
+                    deferredHosts.remove(huuid);
+                }
+            }
+            for (String huuid : ours) {
+                wheel.add(huuid);
             }
         }
     }
@@ -230,6 +378,10 @@ public class HostTrackImpl implements HostTracker, ManagementNodeChangeListener,
             trackerThread.cancel(true);
         }
 
+        synchronized (wheel) {
+            wheel.resize(HostGlobalConfig.PING_HOST_INTERVAL.value(Integer.class));
+        }
+
         trackerThread = thdf.submitPeriodicTask(new Tracker());
     }
 
@@ -248,6 +400,7 @@ public class HostTrackImpl implements HostTracker, ManagementNodeChangeListener,
 
     @Override
     public boolean start() {
+        jmxf.registerBean("HostTracker", this);
         setupTracker();
         return true;
     }
@@ -257,4 +410,19 @@ public class HostTrackImpl implements HostTracker, ManagementNodeChangeListener,
         trackerThread.cancel(true);
         return true;
     }
+
+    @Override
+    public HostPingStatistic getPingStatistic() {
+        int trackedHostNum;
+        int deferredPingNum;
+        synchronized (wheel) {
+            trackedHostNum = wheel.getHosts().size();
+            deferredPingNum = deferredHosts.size();
+        }
+
+        synchronized (this) {
+            return new HostPingStatistic(trackedHostNum, hostInTracking.size(), deferredPingNum, pingCount.get(), missCount.get(),
+                    disconnectedCount.get(), repliedCount == 0 ? 0 : totalLatency / repliedCount, maxLatency);
+        }
+    }
 }
@@ -121,16 +121,28 @@ public class VmAllocatePrimaryStorageFlow implements Flow {
         List<Bucket> buckets = (List<Bucket>) data.get(SUCCESS);
         if (buckets != null) {
             for (Bucket b : buckets) {
-                ReturnPrimaryStorageCapacityMsg msg = new ReturnPrimaryStorageCapacityMsg();
                 PrimaryStorageInventory pri = b.get(0);
                 Long size = b.get(1);
-                msg.setDiskSize(size);
-                msg.setPrimaryStorageUuid(pri.getUuid());
-                bus.makeTargetServiceIdByResourceUuid(msg, PrimaryStorageConstant.SERVICE_ID, pri.getUuid());
-                bus.send(msg);
+                returnCapacity(pri.getUuid(), size);
+            }
+        } else {
+            // rolled back from the workflow journal, buckets are not journaled but volume specs are
+            VmInstanceSpec spec = (VmInstanceSpec) data.get(VmInstanceConstant.Params.VmInstanceSpec.toString());
+            if (spec != null) {
+                for (VolumeSpec vspec : spec.getVolumeSpecs()) {
+                    returnCapacity(vspec.getPrimaryStorageInventory().getUuid(), vspec.getSize());
+                }
             }
         }
 
         chain.rollback();
     }
+
+    private void returnCapacity(String primaryStorageUuid, long size) {
+        ReturnPrimaryStorageCapacityMsg msg = new ReturnPrimaryStorageCapacityMsg();
+        msg.setDiskSize(size);
+        msg.setPrimaryStorageUuid(primaryStorageUuid);
+        bus.makeTargetServiceIdByResourceUuid(msg, PrimaryStorageConstant.SERVICE_ID, primaryStorageUuid);
+        bus.send(msg);
+    }
 }
@@ -4,6 +4,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.transaction.annotation.Transactional;
 import org.zstack.core.cascade.AbstractAsyncCascadeExtension;
 import org.zstack.core.cascade.CascadeAction;
+import org.zstack.core.cascade.CascadeBatchExtensionPoint;
 import org.zstack.core.cascade.CascadeConstant;
 import org.zstack.core.cloudbus.CloudBus;
 import org.zstack.core.cloudbus.CloudBusListCallBack;
@@ -50,7 +51,7 @@ import java.util.concurrent.Callable;
 
 /**
  */
-public class VmCascadeExtension extends AbstractAsyncCascadeExtension {
+public class VmCascadeExtension extends AbstractAsyncCascadeExtension implements CascadeBatchExtensionPoint {
     private static final CLogger logger = Utils.getLogger(VmCascadeExtension.class);
 
     @Autowired
@@ -292,30 +293,7 @@ public class VmCascadeExtension extends AbstractAsyncCascadeExtension {
                 }
             });
         } else if (op == OP_DELETION) {
-            List<VmInstanceDeletionMsg> msgs = new ArrayList<VmInstanceDeletionMsg>();
-            for (VmInstanceInventory inv : vminvs) {
-                VmInstanceDeletionMsg msg = new VmInstanceDeletionMsg();
-                msg.setForceDelete(action.isActionCode(CascadeConstant.DELETION_FORCE_DELETE_CODE));
-                msg.setVmInstanceUuid(inv.getUuid());
-                bus.makeTargetServiceIdByResourceUuid(msg, VmInstanceConstant.SERVICE_ID, inv.getUuid());
-                msgs.add(msg);
-            }
-
-            bus.send(msgs, 20, new CloudBusListCallBack(completion) {
-                @Override
-                public void run(List<MessageReply> replies) {
-                    if (!action.isActionCode(CascadeConstant.DELETION_FORCE_DELETE_CODE)) {
-                        for (MessageReply r : replies) {
-                            if (!r.isSuccess()) {
-                                completion.fail(r.getError());
-                                return;
-                            }
-                        }
-                    }
-
-                    completion.success();
-                }
-            });
+            deleteVms(action, vmUuids(vminvs), completion);
         } else if (op == OP_DETACH_NIC) {
             List<DetachNicFromVmMsg> msgs = new ArrayList<DetachNicFromVmMsg>();
             List<L3NetworkInventory> l3s = action.getParentIssuerContext();
@@ -347,6 +325,59 @@ public class VmCascadeExtension extends AbstractAsyncCascadeExtension {
         }
     }
 
+    private List<String> vmUuids(List<VmInstanceInventory> vms) {
+        return CollectionUtils.transformToList(vms, new Function<String, VmInstanceInventory>() {
+            @Override
+            public String call(VmInstanceInventory arg) {
+                return arg.getUuid();
+            }
+        });
+    }
+
+    private void deleteVms(final CascadeAction action, List<String> vmUuids, final Completion completion) {
+        List<VmInstanceDeletionMsg> msgs = new ArrayList<VmInstanceDeletionMsg>();
+        for (String vmUuid : vmUuids) {
+            VmInstanceDeletionMsg msg = new VmInstanceDeletionMsg();
+            msg.setForceDelete(action.isActionCode(CascadeConstant.DELETION_FORCE_DELETE_CODE));
+            msg.setVmInstanceUuid(vmUuid);
+            bus.makeTargetServiceIdByResourceUuid(msg, VmInstanceConstant.SERVICE_ID, vmUuid);
+            msgs.add(msg);
+        }
+
+        bus.send(msgs, 20, new CloudBusListCallBack(completion) {
+            @Override
+            public void run(List<MessageReply> replies) {
+                if (!action.isActionCode(CascadeConstant.DELETION_FORCE_DELETE_CODE)) {
+                    for (MessageReply r : replies) {
+                        if (!r.isSuccess()) {
+                            completion.fail(r.getError());
+                            return;
+                        }
+                    }
+                }
+
+                completion.success();
+            }
+        });
+    }
+
+    @Override
+    public List<String> getCascadeResourceUuids(CascadeAction action) {
+        // only deletion is done in batch, a vm reached from several parents is deleted once
+        if (!action.isActionCode(CascadeConstant.DELETION_DELETE_CODE, CascadeConstant.DELETION_FORCE_DELETE_CODE)
+                || toDeletionOpCode(action) != OP_DELETION) {
+            return null;
+        }
+
+        List<VmInstanceInventory> vms = vmFromDeleteAction(action);
+        return vms == null ? new ArrayList<String>() : vmUuids(vms);
+    }
+
+    @Override
+    public void asyncBatchCascade(CascadeAction action, List<String> resourceUuids, Completion completion) {
+        deleteVms(action, resourceUuids, completion);
+    }
+
     private void handleDeletionCheck(CascadeAction action, Completion completion) {
         int op = toDeletionOpCode(action);
         if (op == OP_NOPE || op == OP_STOP) {
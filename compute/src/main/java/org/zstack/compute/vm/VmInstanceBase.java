@@ -1011,6 +1011,7 @@ public class VmInstanceBase extends AbstractVmInstance {
 
             chain.setName(String.format("create-vm-%s", self.getUuid()));
             chain.getData().put(VmInstanceConstant.Params.VmInstanceSpec.toString(), spec);
+            chain.journal(self.getUuid(), VmInstanceConstant.Params.VmInstanceSpec.toString());
             chain.done(new FlowDoneHandler(msg, taskChain) {
                 @Override
                 public void handle(final Map data) {
@@ -14,10 +14,12 @@ import org.zstack.core.db.SimpleQuery;
 import org.zstack.core.db.SimpleQuery.Op;
 import org.zstack.core.errorcode.ErrorFacade;
 import org.zstack.core.workflow.FlowChainBuilder;
+import org.zstack.core.workflow.WorkFlowChainTakeOverExtensionPoint;
 import org.zstack.header.AbstractService;
 import org.zstack.header.apimediator.ApiMessageInterceptionException;
 import org.zstack.header.configuration.InstanceOfferingVO;
 import org.zstack.header.core.workflow.FlowChain;
+import org.zstack.header.errorcode.ErrorCode;
 import org.zstack.header.exception.CloudConfigureFailException;
 import org.zstack.header.exception.CloudRuntimeException;
 import org.zstack.header.host.HostInventory;
@@ -43,6 +45,8 @@ import org.zstack.header.tag.SystemTagVO;
 import org.zstack.header.tag.SystemTagValidator;
 import org.zstack.header.vm.*;
 import org.zstack.header.vm.ChangeVmMetaDataMsg.AtomicVmState;
+import org.zstack.header.vm.VmInstanceConstant.VmOperation;
+import org.zstack.header.vm.ChangeVmStatesOnHostMsg.VmStateChange;
 import org.zstack.header.volume.VolumeConstant;
 import org.zstack.header.volume.VolumeType;
 import org.zstack.header.volume.VolumeVO;
@@ -57,13 +61,16 @@ import org.zstack.utils.gson.JSONObjectUtil;
 import org.zstack.utils.logging.CLogger;
 import org.zstack.utils.network.NetworkUtils;
 
+import javax.persistence.LockModeType;
+import javax.persistence.Query;
 import javax.persistence.Tuple;
 import javax.persistence.TypedQuery;
 import java.util.*;
 
 import static org.zstack.utils.CollectionDSL.list;
 
-public class VmInstanceManagerImpl extends AbstractService implements VmInstanceManager, HostStatusChangeNotifyPoint, ReportQuotaExtensionPoint {
+public class VmInstanceManagerImpl extends AbstractService implements VmInstanceManager, HostStatusChangeNotifyPoint, ReportQuotaExtensionPoint,
+        WorkFlowChainTakeOverExtensionPoint {
     private static final CLogger logger = Utils.getLogger(VmInstanceManagerImpl.class);
     private Map<String, VmInstanceFactory> vmInstanceFactories = Collections.synchronizedMap(new HashMap<String, VmInstanceFactory>());
     private List<String> createVmWorkFlowElements;
@@ -100,6 +107,10 @@ public class VmInstanceManagerImpl extends AbstractService implements VmInstance
     private TagManager tagMgr;
     @Autowired
     private ErrorFacade errf;
+    @Autowired
+    private VmInstanceNotifyPointEmitter notifyEmitter;
+    @Autowired
+    private VmInstanceExtensionPointEmitter extEmitter;
 
     @Override
     @MessageSafe
@@ -132,11 +143,88 @@ public class VmInstanceManagerImpl extends AbstractService implements VmInstance
     private void handleLocalMessage(Message msg) {
         if (msg instanceof VmInstanceMessage) {
             passThrough((VmInstanceMessage)msg);
+        } else if (msg instanceof ChangeVmStatesOnHostMsg) {
+            handle((ChangeVmStatesOnHostMsg) msg);
         } else {
             bus.dealWithUnknownMessage(msg);
         }
     }
 
+    @Transactional
+    private List<VmStateChange> changeVmStatesOnHost(String hostUuid, List<VmStateChange> changes) {
+        Map<String, List<VmStateChange>> groups = new HashMap<String, List<VmStateChange>>();
+        for (VmStateChange c : changes) {
+            String key = String.format("%s-%s", c.getExpected(), c.getValue());
+            List<VmStateChange> group = groups.get(key);
+            if (group == null) {
+                group = new ArrayList<VmStateChange>();
+                groups.put(key, group);
+            }
+            group.add(c);
+        }
+
+        List<VmStateChange> done = new ArrayList<VmStateChange>();
+        for (List<VmStateChange> group : groups.values()) {
+            VmInstanceState from = group.get(0).getExpected();
+            VmInstanceState to = from.nextState(group.get(0).getValue().getDrivenEvent());
+            if (from == to) {
+                continue;
+            }
+
+            Map<String, VmStateChange> byUuid = new HashMap<String, VmStateChange>();
+            for (VmStateChange c : group) {
+                byUuid.put(c.getVmUuid(), c);
+            }
+
+            String sql = "select vm.uuid from VmInstanceVO vm where vm.uuid in (:uuids) and vm.state = :from and vm.hostUuid = :huuid";
+            TypedQuery<String> q = dbf.getEntityManager().createQuery(sql, String.class);
+            q.setLockMode(LockModeType.PESSIMISTIC_WRITE);
+            q.setParameter("uuids", byUuid.keySet());
+            q.setParameter("from", from);
+            q.setParameter("huuid", hostUuid);
+            List<String> uuids = q.getResultList();
+            if (uuids.isEmpty()) {
+                continue;
+            }
+
+            sql = "update VmInstanceVO vm set vm.state = :to where vm.uuid in (:uuids)";
+            Query uq = dbf.getEntityManager().createQuery(sql);
+            uq.setParameter("to", to);
+            uq.setParameter("uuids", uuids);
+            uq.executeUpdate();
+
+            for (String uuid : uuids) {
+                VmStateChange c = byUuid.get(uuid);
+                c.setValue(to);
+                done.add(c);
+            }
+        }
+
+        return done;
+    }
+
+    private void handle(ChangeVmStatesOnHostMsg msg) {
+        ChangeVmStatesOnHostReply reply = new ChangeVmStatesOnHostReply();
+        List<VmStateChange> done = changeVmStatesOnHost(msg.getHostUuid(), msg.getChanges());
+        reply.setChangesDone(done);
+        if (!done.isEmpty()) {
+            Map<String, VmStateChange> byUuid = new HashMap<String, VmStateChange>();
+            for (VmStateChange c : done) {
+                byUuid.put(c.getVmUuid(), c);
+            }
+
+            SimpleQuery<VmInstanceVO> q = dbf.createQuery(VmInstanceVO.class);
+            q.add(VmInstanceVO_.uuid, Op.IN, byUuid.keySet());
+            List<VmInstanceVO> vos = q.list();
+            for (VmInstanceVO vo : vos) {
+                VmStateChange c = byUuid.get(vo.getUuid());
+                notifyEmitter.notifyVmStateChange(VmInstanceInventory.valueOf(vo), c.getExpected(), c.getValue());
+            }
+            logger.debug(String.format("changed states of %s vms on host[uuid:%s] in a batch", done.size(), msg.getHostUuid()));
+        }
+        bus.reply(msg, reply);
+    }
+
     private void handleApiMessage(APIMessage msg) {
         if (msg instanceof APICreateVmInstanceMsg) {
             handle((APICreateVmInstanceMsg) msg);
@@ -647,4 +735,37 @@ public class VmInstanceManagerImpl extends AbstractService implements VmInstance
 
         return list(quota);
     }
+
+    private boolean isNewCreatedVmChain(Map data) {
+        Object spec = data.get(VmInstanceConstant.Params.VmInstanceSpec.toString());
+        return spec instanceof VmInstanceSpec && ((VmInstanceSpec) spec).getCurrentVmOperation() == VmOperation.NewCreate;
+    }
+
+    @Override
+    public boolean isOrphanChainToRollback(String chainName, String owner, Map data) {
+        if (!isNewCreatedVmChain(data)) {
+            return false;
+        }
+
+        // the vm is still being created, resources allocated by flows are leaked unless we roll them back
+        VmInstanceVO vo = dbf.findByUuid(owner, VmInstanceVO.class);
+        return vo != null && vo.getState() == VmInstanceState.Starting;
+    }
+
+    @Override
+    public void afterRollbackOrphanChain(String chainName, String owner, Map data) {
+        if (!isNewCreatedVmChain(data)) {
+            return;
+        }
+
+        VmInstanceVO vo = dbf.findByUuid(owner, VmInstanceVO.class);
+        if (vo == null) {
+            return;
+        }
+
+        ErrorCode err = errf.stringToOperationError(String.format("management node creating the vm[uuid:%s] died", owner));
+        extEmitter.failedToStartNewCreatedVm(VmInstanceInventory.valueOf(vo), err);
+        dbf.remove(vo);
+        logger.debug(String.format("rolled back the creation of the vm[uuid:%s] left by a dead management node", owner));
+    }
 }
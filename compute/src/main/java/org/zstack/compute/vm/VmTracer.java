@@ -15,18 +15,25 @@ import org.zstack.header.message.MessageReply;
 import org.zstack.header.vm.*;
 import org.zstack.header.vm.ChangeVmMetaDataMsg.AtomicHostUuid;
 import org.zstack.header.vm.ChangeVmMetaDataMsg.AtomicVmState;
+import org.zstack.header.vm.ChangeVmStatesOnHostMsg.VmStateChange;
 import org.zstack.header.vm.VmTracerCanonicalEvents.HostChangedData;
 import org.zstack.header.vm.VmTracerCanonicalEvents.StrangerVmFoundData;
 import org.zstack.header.vm.VmTracerCanonicalEvents.VmStateChangedData;
+import org.zstack.header.vm.VmTracerCanonicalEvents.VmStatesChangedOnHostData;
 import org.zstack.utils.Utils;
 import org.zstack.utils.logging.CLogger;
 
 import javax.persistence.Tuple;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
+ * changes between Running and Unknown of vms on a host, which happen to all of them when the host
+ * is disconnected or reconnected, are applied by one ChangeVmStatesOnHostMsg per host; other changes
+ * go through the vm's own queue by ChangeVmMetaDataMsg.
+ *
+ * a host whose reported vm states and vm states in database are both the same as the last trace is skipped,
+ * unless changes sent by the last trace failed.
  */
 public abstract class VmTracer {
     private static final CLogger logger = Utils.getLogger(VmTracer.class);
@@ -40,17 +47,39 @@ public abstract class VmTracer {
     @Autowired
     private EventFacade evtf;
 
+    private static class StateDigest {
+        final Map<String, VmInstanceState> hostSideStates;
+        final Map<String, VmInstanceState> mgmtSideStates;
+
+        StateDigest(Map<String, VmInstanceState> hostSideStates, Map<String, VmInstanceState> mgmtSideStates) {
+            this.hostSideStates = new HashMap<String, VmInstanceState>(hostSideStates);
+            this.mgmtSideStates = mgmtSideStates;
+        }
+
+        boolean isSame(Map<String, VmInstanceState> hostSide, Map<String, VmInstanceState> mgmtSide) {
+            return hostSideStates.equals(hostSide) && mgmtSideStates.equals(mgmtSide);
+        }
+    }
+
+    private final Map<String, StateDigest> stateDigests = new ConcurrentHashMap<String, StateDigest>();
+
     private class Tracer {
         String hostUuid;
         Map<String, VmInstanceState> hostSideStates;
         Map<String, VmInstanceState> mgmtSideStates;
+        Set<String> vmsOnHost;
+        List<VmStateChange> batchedChanges = new ArrayList<VmStateChange>();
 
         private void buildManagementServerSideVmStates() {
             mgmtSideStates = new HashMap<String, VmInstanceState>();
+            vmsOnHost = new HashSet<String>();
             SimpleQuery<VmInstanceVO> q = dbf.createQuery(VmInstanceVO.class);
             q.select(VmInstanceVO_.uuid, VmInstanceVO_.state);
             q.add(VmInstanceVO_.hostUuid, Op.EQ, hostUuid);
             List<Tuple> ts = q.listTuple();
+            for (Tuple t : ts) {
+                vmsOnHost.add(t.get(0, String.class));
+            }
 
             q = dbf.createQuery(VmInstanceVO.class);
             q.select(VmInstanceVO_.uuid, VmInstanceVO_.state);
@@ -74,11 +103,66 @@ public abstract class VmTracer {
                     handleAnonymousVm(vmUuid, actualState);
                 } else if (actualState != expectedState) {
                     // vm state changed on host side
-                    handleStateChangeOnHostSide(vmUuid, actualState, expectedState);
+                    if (isBatchable(vmUuid, actualState, expectedState)) {
+                        VmStateChange c = new VmStateChange();
+                        c.setVmUuid(vmUuid);
+                        c.setExpected(expectedState);
+                        c.setValue(actualState);
+                        batchedChanges.add(c);
+                    } else {
+                        handleStateChangeOnHostSide(vmUuid, actualState, expectedState);
+                    }
                 }
             }
         }
 
+        private boolean isBatchable(String vmUuid, VmInstanceState actualState, VmInstanceState expectedState) {
+            return vmsOnHost.contains(vmUuid)
+                    && (expectedState == VmInstanceState.Running || expectedState == VmInstanceState.Unknown)
+                    && (actualState == VmInstanceState.Running || actualState == VmInstanceState.Unknown);
+        }
+
+        private void changeBatchedStates() {
+            if (batchedChanges.isEmpty()) {
+                return;
+            }
+
+            ChangeVmStatesOnHostMsg msg = new ChangeVmStatesOnHostMsg();
+            msg.setHostUuid(hostUuid);
+            msg.setChanges(batchedChanges);
+            bus.makeLocalServiceId(msg, VmInstanceConstant.SERVICE_ID);
+            bus.send(msg, new CloudBusCallBack() {
+                @Override
+                public void run(MessageReply reply) {
+                    if (!reply.isSuccess()) {
+                        stateDigests.remove(hostUuid);
+                        logger.warn(String.format("[Vm Tracer] failed to change states of %s vms on host[uuid:%s], %s", batchedChanges.size(), hostUuid, reply.getError()));
+                        return;
+                    }
+
+                    ChangeVmStatesOnHostReply cr = reply.castReply();
+                    if (cr.getChangesDone().isEmpty()) {
+                        return;
+                    }
+
+                    List<VmStateChangedData> changes = new ArrayList<VmStateChangedData>(cr.getChangesDone().size());
+                    for (VmStateChange c : cr.getChangesDone()) {
+                        VmStateChangedData data = new VmStateChangedData();
+                        data.setVmUuid(c.getVmUuid());
+                        data.setFrom(c.getExpected());
+                        data.setTo(c.getValue());
+                        changes.add(data);
+                    }
+
+                    VmStatesChangedOnHostData data = new VmStatesChangedOnHostData();
+                    data.setHostUuid(hostUuid);
+                    data.setChanges(changes);
+                    evtf.fire(VmTracerCanonicalEvents.VM_STATES_CHANGED_ON_HOST_PATH, data);
+                    logger.debug(String.format("[Vm Tracer] changed states of %s vms on host[uuid:%s]", changes.size(), hostUuid));
+                }
+            });
+        }
+
         private void handleStateChangeOnHostSide(final String vmUuid, final VmInstanceState actualState, final VmInstanceState expectedState) {
             ChangeVmMetaDataMsg msg = new ChangeVmMetaDataMsg();
             AtomicVmState s = new AtomicVmState();
@@ -91,6 +175,7 @@ public abstract class VmTracer {
                 @Override
                 public void run(MessageReply reply) {
                     if (!reply.isSuccess()) {
+                        stateDigests.remove(hostUuid);
                         logger.warn(String.format("[Vm Tracer] failed to change vm[uuid:%s] from state[%s] to state[%s]", vmUuid, expectedState, actualState));
                     } else {
                         ChangeVmMetaDataReply cr = reply.castReply();
@@ -149,6 +234,7 @@ public abstract class VmTracer {
                 @Override
                 public void run(MessageReply reply) {
                     if (!reply.isSuccess()) {
+                        stateDigests.remove(hostUuid);
                         logger.debug(String.format("[Vm Tracer] failed to change vm[uuid:%s] meta data, %s", vmUuid, reply.getError()));
                     } else {
                         ChangeVmMetaDataReply cr = reply.castReply();
@@ -214,6 +300,7 @@ public abstract class VmTracer {
                 @Override
                 public void run(MessageReply reply) {
                     if (!reply.isSuccess()) {
+                        stateDigests.remove(hostUuid);
                         logger.debug(String.format("[Vm Tracer] failed to change vm[uuid:%s] meta data, %s", vmUuid, reply.getError()));
                     } else {
                         ChangeVmMetaDataReply cr = reply.castReply();
@@ -232,8 +319,19 @@ public abstract class VmTracer {
 
         void trace() {
             buildManagementServerSideVmStates();
+            StateDigest digest = stateDigests.get(hostUuid);
+            if (digest != null && digest.isSame(hostSideStates, mgmtSideStates)) {
+                if (logger.isTraceEnabled()) {
+                    logger.trace(String.format("[Vm Tracer] states of %s vms on host[uuid:%s] not changed since last trace", hostSideStates.size(), hostUuid));
+                }
+                return;
+            }
+
+            // set before sending changes, a failed change removes it
+            stateDigests.put(hostUuid, new StateDigest(hostSideStates, mgmtSideStates));
             checkFromHostSide();
             checkFromManagementServerSide();
+            changeBatchedStates();
         }
     }
 
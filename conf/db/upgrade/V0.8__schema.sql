@@ -121,3 +121,21 @@ CREATE INDEX idxLocalStorageHostRefVOtotalPhysicalCapacity ON LocalStorageHostRe
 CREATE INDEX idxLocalStorageHostRefVOavailablePhysicalCapacity ON LocalStorageHostRefVO (availablePhysicalCapacity);
 
 ALTER TABLE PolicyVO DROP COLUMN type;
+
+ALTER TABLE ImageCacheVO ADD hostUuid varchar(32) DEFAULT NULL;
+UPDATE ImageCacheVO SET hostUuid = SUBSTRING_INDEX(installUrl, 'hostUuid://', -1) WHERE installUrl LIKE '%;hostUuid://%';
+CREATE INDEX idxImageCacheVOhostUuid ON ImageCacheVO (primaryStorageUuid, imageUuid, hostUuid);
+
+CREATE TABLE  `zstack`.`SecurityGroupHostRuleVersionVO` (
+    `hostUuid` varchar(32) NOT NULL UNIQUE,
+    `version` bigint unsigned NOT NULL,
+    `lastOpDate` timestamp ON UPDATE CURRENT_TIMESTAMP,
+    `createDate` timestamp,
+    PRIMARY KEY  (`hostUuid`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+ALTER TABLE SecurityGroupHostRuleVersionVO ADD CONSTRAINT fkSecurityGroupHostRuleVersionVOHostEO FOREIGN KEY (hostUuid) REFERENCES HostEO (uuid) ON DELETE CASCADE;
+
+ALTER TABLE WorkFlowChainVO ADD managementNodeUuid varchar(32) DEFAULT NULL;
+CREATE INDEX idxWorkFlowChainVOmanagementNodeUuid ON WorkFlowChainVO (managementNodeUuid);
+CREATE INDEX idxWorkFlowVOchainUuid ON WorkFlowVO (chainUuid);
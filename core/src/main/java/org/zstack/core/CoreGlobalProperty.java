@@ -26,4 +26,12 @@ public class CoreGlobalProperty {
     public static boolean EXPOSE_SIMULATOR_TYPE;
     @GlobalProperty(name="exitJVMOnStop", defaultValue = "true")
     public static boolean EXIT_JVM_ON_STOP;
+    @GlobalProperty(name="WorkFlowJournal.flushInterval", defaultValue = "200")
+    public static long WORKFLOW_JOURNAL_FLUSH_INTERVAL;
+    @GlobalProperty(name="WorkFlowJournal.batchSize", defaultValue = "500")
+    public static int WORKFLOW_JOURNAL_BATCH_SIZE;
+    @GlobalProperty(name="CascadeFacade.parallelismDegree", defaultValue = "5")
+    public static int CASCADE_PARALLELISM_DEGREE;
+    @GlobalProperty(name="RESTFacade.asyncTimeoutTick", defaultValue = "500")
+    public static long REST_ASYNC_TIMEOUT_TICK;
 }
@@ -0,0 +1,20 @@
+package org.zstack.core.cascade;
+
+import org.zstack.header.core.Completion;
+
+import java.util.List;
+
+/**
+ * a CascadeExtensionPoint that handles its resources of an async cascade in batch. CascadeFacade hands the
+ * extension each resource once per cascade, resources already handed by another branch of the cascade tree
+ * are removed from the batch.
+ */
+public interface CascadeBatchExtensionPoint extends CascadeExtensionPoint {
+    /**
+     * @return uuids of resources of this extension the action touches, or null if the action is not handled
+     * in batch, in which case asyncCascade() is called
+     */
+    List<String> getCascadeResourceUuids(CascadeAction action);
+
+    void asyncBatchCascade(CascadeAction action, List<String> resourceUuids, Completion completion);
+}
@@ -1,23 +1,27 @@
 package org.zstack.core.cascade;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.zstack.core.CoreGlobalProperty;
 import org.zstack.core.componentloader.PluginRegistry;
-import org.zstack.core.workflow.*;
+import org.zstack.core.errorcode.ErrorFacade;
+import org.zstack.core.jmx.JmxFacade;
 import org.zstack.header.Component;
 import org.zstack.header.core.Completion;
-import org.zstack.header.core.workflow.*;
 import org.zstack.header.errorcode.ErrorCode;
 import org.zstack.header.exception.CloudRuntimeException;
-import org.zstack.utils.Bucket;
 import org.zstack.utils.DebugUtils;
 import org.zstack.utils.Utils;
 import org.zstack.utils.logging.CLogger;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  */
-public class CascadeFacadeImpl implements CascadeFacade, Component {
+public class CascadeFacadeImpl implements CascadeFacade, Component, CascadeFacadeMXBean {
     private static final CLogger logger = Utils.getLogger(CascadeFacadeImpl.class);
 
     private class Node {
@@ -55,11 +59,239 @@ public class CascadeFacadeImpl implements CascadeFacade, Component {
         private HashSet<TreeNode> leafs;
     }
 
+    private static class CascadeTask {
+        private Node node;
+        private CascadeAction action;
+        private CascadeTask parent;
+        private int pendingChildren;
+    }
+
+    /**
+     * runs the tasks of an async cascade as a DAG: a task runs after all its children succeed, independent
+     * branches run in parallel with at most CascadeFacade.parallelismDegree extensions running at the same time.
+     *
+     * tasks of the same extension never run at the same time, because a resource may show up in several
+     * branches of the tree. On failure no more task is started, the completion fails after running tasks finish.
+     */
+    private class AsyncCascadeRun {
+        private final CascadeAction action;
+        private final Completion completion;
+        private final int parallelism = Math.max(1, CoreGlobalProperty.CASCADE_PARALLELISM_DEGREE);
+        private final List<CascadeTask> readyTasks = new LinkedList<CascadeTask>();
+        private final Set<Node> runningNodes = new HashSet<Node>();
+        private final Map<String, Set<String>> batchedUuids = new HashMap<String, Set<String>>();
+        private final Map<String, Long> timings = new LinkedHashMap<String, Long>();
+        private final long startTime = System.currentTimeMillis();
+        private int leftTaskNum;
+        private ErrorCode error;
+        private boolean finished;
+
+        AsyncCascadeRun(CascadeAction action, List<CascadeTask> tasks, Completion completion) {
+            this.action = action;
+            this.completion = completion;
+            leftTaskNum = tasks.size();
+            for (CascadeTask task : tasks) {
+                if (task.pendingChildren == 0) {
+                    readyTasks.add(task);
+                }
+            }
+        }
+
+        void start() {
+            runningCascadeNum.incrementAndGet();
+            schedule();
+        }
+
+        private void schedule() {
+            List<CascadeTask> toRun = new ArrayList<CascadeTask>();
+            boolean toFinish = false;
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+
+                if (error == null) {
+                    Iterator<CascadeTask> it = readyTasks.iterator();
+                    while (it.hasNext() && runningNodes.size() < parallelism) {
+                        CascadeTask task = it.next();
+                        if (runningNodes.contains(task.node)) {
+                            continue;
+                        }
+
+                        it.remove();
+                        runningNodes.add(task.node);
+                        toRun.add(task);
+                    }
+                }
+
+                if (runningNodes.isEmpty()) {
+                    DebugUtils.Assert(error != null || leftTaskNum == 0, String.format("async cascade[%s] has %s tasks never run", action.getActionCode(), leftTaskNum));
+                    finished = true;
+                    toFinish = true;
+                }
+            }
+
+            if (toFinish) {
+                finish();
+                return;
+            }
+
+            for (CascadeTask task : toRun) {
+                run(task);
+            }
+        }
+
+        private void finish() {
+            runningCascadeNum.decrementAndGet();
+            logger.debug(String.format("[Async cascade (%s)]: %s %s in %sms, time spent by extensions: %s", action.getActionCode(), action.getRootIssuer(),
+                    error == null ? "succeeded" : "failed", System.currentTimeMillis() - startTime, timings));
+
+            if (error == null) {
+                completion.success();
+            } else {
+                completion.fail(error);
+            }
+        }
+
+        private List<String> removeBatchedUuids(Node node, List<String> uuids) {
+            synchronized (this) {
+                Set<String> batched = batchedUuids.get(node.getName());
+                if (batched == null) {
+                    batched = new HashSet<String>();
+                    batchedUuids.put(node.getName(), batched);
+                }
+
+                List<String> ret = new ArrayList<String>();
+                for (String uuid : uuids) {
+                    if (batched.add(uuid)) {
+                        ret.add(uuid);
+                    }
+                }
+                return ret;
+            }
+        }
+
+        private void run(final CascadeTask task) {
+            final long start = System.currentTimeMillis();
+            final CascadeAction caction = task.action;
+            Completion taskCompletion = new Completion() {
+                @Override
+                public void success() {
+                    done(task, null, start);
+                }
+
+                @Override
+                public void fail(ErrorCode errorCode) {
+                    done(task, errorCode, start);
+                }
+            };
+
+            try {
+                CascadeExtensionPoint ext = task.node.getExtension();
+                List<String> uuids = null;
+                if (ext instanceof CascadeBatchExtensionPoint) {
+                    uuids = ((CascadeBatchExtensionPoint) ext).getCascadeResourceUuids(caction);
+                }
+
+                if (uuids == null) {
+                    logger.debug(String.format("[Async cascade (%s)]: %s --> %s", caction.getActionCode(), caction.getParentIssuer(), task.node.getName()));
+                    ext.asyncCascade(caction, taskCompletion);
+                    return;
+                }
+
+                uuids = removeBatchedUuids(task.node, uuids);
+                if (uuids.isEmpty()) {
+                    taskCompletion.success();
+                    return;
+                }
+
+                logger.debug(String.format("[Async batch cascade (%s)]: %s --> %s, %s resources", caction.getActionCode(), caction.getParentIssuer(), task.node.getName(), uuids.size()));
+                ((CascadeBatchExtensionPoint) ext).asyncBatchCascade(caction, uuids, taskCompletion);
+            } catch (Throwable t) {
+                logger.warn(String.format("unhandled exception when cascading %s --> %s", caction.getParentIssuer(), task.node.getName()), t);
+                taskCompletion.fail(errf.throwableToInternalError(t));
+            }
+        }
+
+        private void done(CascadeTask task, ErrorCode err, long start) {
+            long cost = System.currentTimeMillis() - start;
+            recordTiming(task.node.getName(), cost);
+
+            synchronized (this) {
+                if (!runningNodes.remove(task.node)) {
+                    logger.warn(String.format("CascadeExtensionPoint[%s] calls the completion more than once", task.node.getExtension().getClass().getName()));
+                    return;
+                }
+
+                leftTaskNum --;
+                Long t = timings.get(task.node.getName());
+                timings.put(task.node.getName(), t == null ? cost : t + cost);
+
+                if (err != null) {
+                    if (error == null) {
+                        error = err;
+                    }
+                } else if (task.parent != null && --task.parent.pendingChildren == 0) {
+                    readyTasks.add(task.parent);
+                }
+            }
+
+            schedule();
+        }
+    }
+
     @Autowired
     private PluginRegistry pluginRgty;
+    @Autowired
+    private ErrorFacade errf;
+    @Autowired
+    private JmxFacade jmxf;
 
     private Map<String, Node> nodes = new HashMap<String, Node>();
     private Map<String, TreeNode> cascadeTree = new HashMap<String, TreeNode>();
+    private final AtomicInteger runningCascadeNum = new AtomicInteger();
+    private final ConcurrentMap<String, AtomicLong> extensionTime = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, AtomicLong> extensionCount = new ConcurrentHashMap<String, AtomicLong>();
+
+    public void init() {
+        jmxf.registerBean("CascadeFacade", this);
+    }
+
+    private void recordTiming(String name, long cost) {
+        AtomicLong time = extensionTime.get(name);
+        if (time == null) {
+            // count goes first, so the count is there once the time is
+            extensionCount.putIfAbsent(name, new AtomicLong());
+            extensionTime.putIfAbsent(name, new AtomicLong());
+            time = extensionTime.get(name);
+        }
+
+        time.addAndGet(cost);
+        extensionCount.get(name).incrementAndGet();
+    }
+
+    private Map<String, Long> toMap(Map<String, AtomicLong> m) {
+        Map<String, Long> ret = new HashMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> e : m.entrySet()) {
+            ret.put(e.getKey(), e.getValue().get());
+        }
+        return ret;
+    }
+
+    @Override
+    public int getRunningAsyncCascadeNum() {
+        return runningCascadeNum.get();
+    }
+
+    @Override
+    public Map<String, Long> getExtensionCascadeTime() {
+        return toMap(extensionTime);
+    }
+
+    @Override
+    public Map<String, Long> getExtensionCascadeCount() {
+        return toMap(extensionCount);
+    }
 
     private void doSyncCascade(TreeNode treeNode, boolean init, CascadeAction action) throws CascadeException {
         CascadeAction currentAction;
@@ -120,7 +352,7 @@ public class CascadeFacadeImpl implements CascadeFacade, Component {
         }
     }
 
-    private void collectPathsForAsyncCascade(TreeNode treeNode, boolean init, boolean fullTraverse, CascadeAction action, List<Bucket> result) {
+    private CascadeTask collectTasksForAsyncCascade(TreeNode treeNode, boolean init, boolean fullTraverse, CascadeAction action, List<CascadeTask> result) {
         CascadeAction currentAction;
         Node node = treeNode.node;
         if (!init) {
@@ -129,6 +361,11 @@ public class CascadeFacadeImpl implements CascadeFacade, Component {
             currentAction = action;
         }
 
+        CascadeTask task = new CascadeTask();
+        task.node = node;
+        task.action = action;
+
+        List<CascadeTask> children = new ArrayList<CascadeTask>();
         if (fullTraverse) {
             if (currentAction == null) {
                 currentAction = new CascadeAction();
@@ -140,19 +377,24 @@ public class CascadeFacadeImpl implements CascadeFacade, Component {
             }
 
             for (TreeNode tn : treeNode.leafs) {
-                collectPathsForAsyncCascade(tn, false, true, currentAction, result);
+                children.add(collectTasksForAsyncCascade(tn, false, true, currentAction, result));
             }
         } else {
             if (currentAction != null) {
                 checkForNullElement(node, currentAction);
 
                 for (TreeNode tn : treeNode.leafs) {
-                    collectPathsForAsyncCascade(tn, false, false, currentAction, result);
+                    children.add(collectTasksForAsyncCascade(tn, false, false, currentAction, result));
                 }
             }
         }
 
-        result.add(Bucket.newBucket(node, action));
+        for (CascadeTask child : children) {
+            child.parent = task;
+        }
+        task.pendingChildren = children.size();
+        result.add(task);
+        return task;
     }
 
     @Override
@@ -178,42 +420,9 @@ public class CascadeFacadeImpl implements CascadeFacade, Component {
 
         TreeNode root = cascadeTree.get(action.getRootIssuer());
         DebugUtils.Assert(root!=null, String.format("found no CascadeExtension for %s", action.getRootIssuer()));
-        List<Bucket> paths = new ArrayList<Bucket>();
-        collectPathsForAsyncCascade(root, true, action.isFullTraverse(), action, paths);
-        FlowChain chain = FlowChainBuilder.newSimpleFlowChain();
-        for (Bucket path : paths) {
-            final Node node = path.get(0);
-            final CascadeAction caction = path.get(1);
-            chain.then(new NoRollbackFlow() {
-                @Override
-                public void run(final FlowTrigger trigger, Map data) {
-                    logger.debug(String.format("[Async cascade (%s)]: %s --> %s", caction.getActionCode(), caction.getParentIssuer(), node.getName()));
-                    node.getExtension().asyncCascade(caction, new Completion() {
-                        @Override
-                        public void success() {
-                            trigger.next();
-                        }
-
-                        @Override
-                        public void fail(ErrorCode errorCode) {
-                            trigger.fail(errorCode);
-                        }
-                    });
-                }
-            });
-        }
-
-        chain.done(new FlowDoneHandler() {
-            @Override
-            public void handle(Map data) {
-                completion.success();
-            }
-        }).error(new FlowErrorHandler() {
-            @Override
-            public void handle(ErrorCode errCode, Map data) {
-                completion.fail(errCode);
-            }
-        }).setName(String.format("Cascade: %s", action.getActionCode())).start();
+        List<CascadeTask> tasks = new ArrayList<CascadeTask>();
+        collectTasksForAsyncCascade(root, true, action.isFullTraverse(), action, tasks);
+        new AsyncCascadeRun(action, tasks, completion).start();
     }
 
     @Override
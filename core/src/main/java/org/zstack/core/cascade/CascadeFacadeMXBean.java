@@ -0,0 +1,16 @@
+package org.zstack.core.cascade;
+
+import java.util.Map;
+
+/**
+ */
+public interface CascadeFacadeMXBean {
+    int getRunningAsyncCascadeNum();
+
+    /**
+     * @return milliseconds each extension spent in async cascades, keyed by cascade resource name
+     */
+    Map<String, Long> getExtensionCascadeTime();
+
+    Map<String, Long> getExtensionCascadeCount();
+}
@@ -0,0 +1,563 @@
+package org.zstack.core.cloudbus;
+
+import org.zstack.header.exception.CloudRuntimeException;
+import org.zstack.header.message.GsonTransient;
+import org.zstack.header.message.Message;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.io.*;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Timestamp;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * a compact binary mediaType for CloudBus messages.
+ *
+ * every class is described by a schema(its serializable fields in a fixed order) that is generated once and cached,
+ * so encoding/decoding is a walk over the schema without any text parsing. Field values carry a one byte tag,
+ * so polymorphic fields are restored to their real types without the help of MessageJsonSchemaBuilder.
+ *
+ * a schema fingerprint is written along with each object; nodes whose classes differ will refuse to decode
+ * instead of silently corrupting messages. Use the JSON codec until all nodes in the cluster run the same version.
+ */
+public class BinaryMessageCodec implements MessageCodec {
+    private static final CLogger logger = Utils.getLogger(BinaryMessageCodec.class);
+
+    public static final String CONTENT_TYPE = "application/x-zstack-binary";
+
+    private static final byte VERSION = 1;
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte INT = 2;
+    private static final byte LONG = 3;
+    private static final byte BOOLEAN = 4;
+    private static final byte DOUBLE = 5;
+    private static final byte FLOAT = 6;
+    private static final byte SHORT = 7;
+    private static final byte BYTE = 8;
+    private static final byte CHAR = 9;
+    private static final byte ENUM = 10;
+    private static final byte DATE = 11;
+    private static final byte TIMESTAMP = 12;
+    private static final byte BIG_DECIMAL = 13;
+    private static final byte BIG_INTEGER = 14;
+    private static final byte BYTES = 15;
+    private static final byte ARRAY = 16;
+    private static final byte LIST = 17;
+    private static final byte SET = 18;
+    private static final byte MAP = 19;
+    private static final byte OBJECT = 20;
+
+    private static final Map<String, Class> primitiveClasses = new HashMap<String, Class>();
+    private static final Set<Class> concreteContainerClasses = new HashSet<Class>();
+
+    private static Object unsafe;
+    private static Method allocateInstance;
+
+    static {
+        primitiveClasses.put("int", int.class);
+        primitiveClasses.put("long", long.class);
+        primitiveClasses.put("boolean", boolean.class);
+        primitiveClasses.put("double", double.class);
+        primitiveClasses.put("float", float.class);
+        primitiveClasses.put("short", short.class);
+        primitiveClasses.put("byte", byte.class);
+        primitiveClasses.put("char", char.class);
+
+        concreteContainerClasses.add(ArrayList.class);
+        concreteContainerClasses.add(LinkedList.class);
+        concreteContainerClasses.add(CopyOnWriteArrayList.class);
+        concreteContainerClasses.add(HashSet.class);
+        concreteContainerClasses.add(LinkedHashSet.class);
+        concreteContainerClasses.add(TreeSet.class);
+        concreteContainerClasses.add(HashMap.class);
+        concreteContainerClasses.add(LinkedHashMap.class);
+        concreteContainerClasses.add(TreeMap.class);
+        concreteContainerClasses.add(ConcurrentHashMap.class);
+
+        // the same trick as Gson uses for classes without default constructor
+        try {
+            Class unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field f = unsafeClass.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            unsafe = f.get(null);
+            allocateInstance = unsafeClass.getMethod("allocateInstance", Class.class);
+        } catch (Exception e) {
+            logger.warn("sun.misc.Unsafe is not available, classes without default constructor cannot be decoded by the binary codec");
+        }
+    }
+
+    private static class ClassSchema {
+        Class clazz;
+        Field[] fields;
+        Class[] types;
+        int fingerprint;
+        Constructor constructor;
+
+        Object newInstance() throws Exception {
+            if (constructor != null) {
+                return constructor.newInstance();
+            }
+
+            if (allocateInstance == null) {
+                throw new CloudRuntimeException(String.format("class[%s] has no default constructor", clazz.getName()));
+            }
+
+            return allocateInstance.invoke(unsafe, clazz);
+        }
+    }
+
+    private Map<Class, ClassSchema> schemas = new ConcurrentHashMap<Class, ClassSchema>();
+    private Map<String, Class> classes = new ConcurrentHashMap<String, Class>();
+
+    @Override
+    public String getContentType() {
+        return CONTENT_TYPE;
+    }
+
+    /**
+     * generate schemas ahead so the first message of each type doesn't pay for reflection
+     */
+    public void prepareSchemas(Collection<Class> clazzs) {
+        int count = 0;
+        for (Class clz : clazzs) {
+            if (Modifier.isAbstract(clz.getModifiers()) || clz.isInterface()) {
+                continue;
+            }
+
+            try {
+                getSchema(clz);
+                count ++;
+            } catch (CloudRuntimeException e) {
+                logger.debug(String.format("cannot generate binary schema for class[%s], %s", clz.getName(), e.getMessage()));
+            }
+        }
+
+        logger.debug(String.format("generated binary schemas for %s message classes", count));
+    }
+
+    private static boolean isSkip(Field f) {
+        int mod = f.getModifiers();
+        return Modifier.isStatic(mod) || Modifier.isTransient(mod) || f.isSynthetic() || f.isAnnotationPresent(GsonTransient.class);
+    }
+
+    private ClassSchema getSchema(Class clazz) {
+        ClassSchema schema = schemas.get(clazz);
+        if (schema != null) {
+            return schema;
+        }
+
+        String name = clazz.getName();
+        if (name.startsWith("java.") || name.startsWith("javax.") || name.startsWith("sun.") || name.startsWith("com.google.gson.")) {
+            throw new CloudRuntimeException(String.format("binary codec doesn't support class[%s]", name));
+        }
+
+        List<Class> hierarchy = new ArrayList<Class>();
+        for (Class c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+            hierarchy.add(0, c);
+        }
+
+        List<Field> fields = new ArrayList<Field>();
+        StringBuilder sb = new StringBuilder(name);
+        for (Class c : hierarchy) {
+            List<Field> declared = new ArrayList<Field>();
+            for (Field f : c.getDeclaredFields()) {
+                if (!isSkip(f)) {
+                    declared.add(f);
+                }
+            }
+
+            // getDeclaredFields() doesn't guarantee any order, sort them to get the same schema on every node
+            Collections.sort(declared, new Comparator<Field>() {
+                @Override
+                public int compare(Field o1, Field o2) {
+                    return o1.getName().compareTo(o2.getName());
+                }
+            });
+
+            for (Field f : declared) {
+                f.setAccessible(true);
+                fields.add(f);
+                sb.append(",").append(f.getName()).append(":").append(f.getType().getName());
+            }
+        }
+
+        schema = new ClassSchema();
+        schema.clazz = clazz;
+        schema.fields = fields.toArray(new Field[fields.size()]);
+        schema.types = new Class[schema.fields.length];
+        for (int i = 0; i < schema.fields.length; i++) {
+            schema.types[i] = schema.fields[i].getType();
+        }
+        schema.fingerprint = sb.toString().hashCode();
+        try {
+            schema.constructor = clazz.getDeclaredConstructor();
+            schema.constructor.setAccessible(true);
+        } catch (NoSuchMethodException e) {
+            schema.constructor = null;
+        }
+
+        schemas.put(clazz, schema);
+        return schema;
+    }
+
+    private Class resolveClass(String name) {
+        Class clz = primitiveClasses.get(name);
+        if (clz != null) {
+            return clz;
+        }
+
+        clz = classes.get(name);
+        if (clz == null) {
+            try {
+                clz = Class.forName(name);
+            } catch (ClassNotFoundException e) {
+                throw new CloudRuntimeException(String.format("unable to decode class[%s]", name), e);
+            }
+            classes.put(name, clz);
+        }
+
+        return clz;
+    }
+
+    private class Encoder {
+        DataOutputStream out;
+        Map<String, Integer> names = new HashMap<String, Integer>();
+
+        Encoder(OutputStream os) {
+            out = new DataOutputStream(os);
+        }
+
+        void writeString(String str) throws IOException {
+            byte[] bytes = str.getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        void writeClassName(Class clz) throws IOException {
+            String name = clz.getName();
+            Integer index = names.get(name);
+            if (index != null) {
+                out.writeInt(index);
+                return;
+            }
+
+            out.writeInt(-1);
+            writeString(name);
+            names.put(name, names.size());
+        }
+
+        void writePrimitive(Class type, Field f, Object obj) throws Exception {
+            if (type == int.class) {
+                out.writeInt(f.getInt(obj));
+            } else if (type == long.class) {
+                out.writeLong(f.getLong(obj));
+            } else if (type == boolean.class) {
+                out.writeBoolean(f.getBoolean(obj));
+            } else if (type == double.class) {
+                out.writeDouble(f.getDouble(obj));
+            } else if (type == float.class) {
+                out.writeFloat(f.getFloat(obj));
+            } else if (type == short.class) {
+                out.writeShort(f.getShort(obj));
+            } else if (type == byte.class) {
+                out.writeByte(f.getByte(obj));
+            } else if (type == char.class) {
+                out.writeChar(f.getChar(obj));
+            }
+        }
+
+        void writeContainerClass(Object container, Class defaultClass) throws IOException {
+            writeClassName(concreteContainerClasses.contains(container.getClass()) ? container.getClass() : defaultClass);
+        }
+
+        void writeValue(Object v) throws Exception {
+            if (v == null) {
+                out.writeByte(NULL);
+            } else if (v instanceof String) {
+                out.writeByte(STRING);
+                writeString((String) v);
+            } else if (v instanceof Integer) {
+                out.writeByte(INT);
+                out.writeInt((Integer) v);
+            } else if (v instanceof Long) {
+                out.writeByte(LONG);
+                out.writeLong((Long) v);
+            } else if (v instanceof Boolean) {
+                out.writeByte(BOOLEAN);
+                out.writeBoolean((Boolean) v);
+            } else if (v instanceof Double) {
+                out.writeByte(DOUBLE);
+                out.writeDouble((Double) v);
+            } else if (v instanceof Float) {
+                out.writeByte(FLOAT);
+                out.writeFloat((Float) v);
+            } else if (v instanceof Short) {
+                out.writeByte(SHORT);
+                out.writeShort((Short) v);
+            } else if (v instanceof Byte) {
+                out.writeByte(BYTE);
+                out.writeByte((Byte) v);
+            } else if (v instanceof Character) {
+                out.writeByte(CHAR);
+                out.writeChar((Character) v);
+            } else if (v instanceof Enum) {
+                out.writeByte(ENUM);
+                writeClassName(((Enum) v).getDeclaringClass());
+                writeString(((Enum) v).name());
+            } else if (v instanceof Timestamp) {
+                out.writeByte(TIMESTAMP);
+                out.writeLong(((Timestamp) v).getTime());
+                out.writeInt(((Timestamp) v).getNanos());
+            } else if (v.getClass() == Date.class) {
+                out.writeByte(DATE);
+                out.writeLong(((Date) v).getTime());
+            } else if (v instanceof BigDecimal) {
+                out.writeByte(BIG_DECIMAL);
+                writeString(v.toString());
+            } else if (v instanceof BigInteger) {
+                out.writeByte(BIG_INTEGER);
+                writeString(v.toString());
+            } else if (v instanceof byte[]) {
+                byte[] bytes = (byte[]) v;
+                out.writeByte(BYTES);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            } else if (v.getClass().isArray()) {
+                out.writeByte(ARRAY);
+                writeClassName(v.getClass().getComponentType());
+                int len = Array.getLength(v);
+                out.writeInt(len);
+                for (int i = 0; i < len; i++) {
+                    writeValue(Array.get(v, i));
+                }
+            } else if (v instanceof Set) {
+                Set set = (Set) v;
+                out.writeByte(SET);
+                writeContainerClass(v, LinkedHashSet.class);
+                out.writeInt(set.size());
+                for (Object o : set) {
+                    writeValue(o);
+                }
+            } else if (v instanceof Collection) {
+                Collection c = (Collection) v;
+                out.writeByte(LIST);
+                writeContainerClass(v, ArrayList.class);
+                out.writeInt(c.size());
+                for (Object o : c) {
+                    writeValue(o);
+                }
+            } else if (v instanceof Map) {
+                Map<Object, Object> m = (Map<Object, Object>) v;
+                out.writeByte(MAP);
+                writeContainerClass(v, LinkedHashMap.class);
+                out.writeInt(m.size());
+                for (Map.Entry<Object, Object> e : m.entrySet()) {
+                    writeValue(e.getKey());
+                    writeValue(e.getValue());
+                }
+            } else {
+                ClassSchema schema = getSchema(v.getClass());
+                out.writeByte(OBJECT);
+                writeClassName(schema.clazz);
+                out.writeInt(schema.fingerprint);
+                for (int i = 0; i < schema.fields.length; i++) {
+                    Class type = schema.types[i];
+                    if (type.isPrimitive()) {
+                        writePrimitive(type, schema.fields[i], v);
+                    } else {
+                        writeValue(schema.fields[i].get(v));
+                    }
+                }
+            }
+        }
+    }
+
+    private class Decoder {
+        DataInputStream in;
+        List<Class> names = new ArrayList<Class>();
+
+        Decoder(InputStream is) {
+            in = new DataInputStream(is);
+        }
+
+        String readString() throws IOException {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return new String(bytes, "UTF-8");
+        }
+
+        Class readClass() throws IOException {
+            int index = in.readInt();
+            if (index >= 0) {
+                return names.get(index);
+            }
+
+            Class clz = resolveClass(readString());
+            names.add(clz);
+            return clz;
+        }
+
+        void readPrimitive(Class type, Field f, Object obj) throws Exception {
+            if (type == int.class) {
+                f.setInt(obj, in.readInt());
+            } else if (type == long.class) {
+                f.setLong(obj, in.readLong());
+            } else if (type == boolean.class) {
+                f.setBoolean(obj, in.readBoolean());
+            } else if (type == double.class) {
+                f.setDouble(obj, in.readDouble());
+            } else if (type == float.class) {
+                f.setFloat(obj, in.readFloat());
+            } else if (type == short.class) {
+                f.setShort(obj, in.readShort());
+            } else if (type == byte.class) {
+                f.setByte(obj, in.readByte());
+            } else if (type == char.class) {
+                f.setChar(obj, in.readChar());
+            }
+        }
+
+        Object readValue() throws Exception {
+            byte tag = in.readByte();
+            switch (tag) {
+                case NULL:
+                    return null;
+                case STRING:
+                    return readString();
+                case INT:
+                    return in.readInt();
+                case LONG:
+                    return in.readLong();
+                case BOOLEAN:
+                    return in.readBoolean();
+                case DOUBLE:
+                    return in.readDouble();
+                case FLOAT:
+                    return in.readFloat();
+                case SHORT:
+                    return in.readShort();
+                case BYTE:
+                    return in.readByte();
+                case CHAR:
+                    return in.readChar();
+                case ENUM: {
+                    Class clz = readClass();
+                    return Enum.valueOf(clz, readString());
+                }
+                case TIMESTAMP: {
+                    Timestamp ts = new Timestamp(in.readLong());
+                    ts.setNanos(in.readInt());
+                    return ts;
+                }
+                case DATE:
+                    return new Date(in.readLong());
+                case BIG_DECIMAL:
+                    return new BigDecimal(readString());
+                case BIG_INTEGER:
+                    return new BigInteger(readString());
+                case BYTES: {
+                    byte[] bytes = new byte[in.readInt()];
+                    in.readFully(bytes);
+                    return bytes;
+                }
+                case ARRAY: {
+                    Class componentType = readClass();
+                    int len = in.readInt();
+                    Object arr = Array.newInstance(componentType, len);
+                    for (int i = 0; i < len; i++) {
+                        Array.set(arr, i, readValue());
+                    }
+                    return arr;
+                }
+                case SET:
+                case LIST: {
+                    Collection c = (Collection) readClass().newInstance();
+                    int size = in.readInt();
+                    for (int i = 0; i < size; i++) {
+                        c.add(readValue());
+                    }
+                    return c;
+                }
+                case MAP: {
+                    Map m = (Map) readClass().newInstance();
+                    int size = in.readInt();
+                    for (int i = 0; i < size; i++) {
+                        Object key = readValue();
+                        m.put(key, readValue());
+                    }
+                    return m;
+                }
+                case OBJECT: {
+                    Class clz = readClass();
+                    ClassSchema schema = getSchema(clz);
+                    int fingerprint = in.readInt();
+                    if (fingerprint != schema.fingerprint) {
+                        throw new CloudRuntimeException(String.format("binary schema of class[%s] mismatches the sender's, are management nodes running different versions? Please use the JSON codec", clz.getName()));
+                    }
+
+                    Object obj = schema.newInstance();
+                    for (int i = 0; i < schema.fields.length; i++) {
+                        Class type = schema.types[i];
+                        if (type.isPrimitive()) {
+                            readPrimitive(type, schema.fields[i], obj);
+                        } else {
+                            schema.fields[i].set(obj, readValue());
+                        }
+                    }
+                    return obj;
+                }
+                default:
+                    throw new CloudRuntimeException(String.format("unknown binary tag[%s]", tag));
+            }
+        }
+    }
+
+    @Override
+    public byte[] encode(Message msg) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(512);
+        Encoder encoder = new Encoder(bos);
+        try {
+            encoder.out.writeByte(VERSION);
+            encoder.writeValue(msg);
+            encoder.out.flush();
+        } catch (IOException e) {
+            throw e;
+        } catch (CloudRuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new CloudRuntimeException(String.format("unable to encode message[%s]", msg.getClass().getName()), e);
+        }
+
+        return bos.toByteArray();
+    }
+
+    @Override
+    public Message decode(byte[] data) throws IOException {
+        Decoder decoder = new Decoder(new ByteArrayInputStream(data));
+        try {
+            byte version = decoder.in.readByte();
+            if (version != VERSION) {
+                throw new CloudRuntimeException(String.format("unsupported binary codec version[%s], expected version[%s]", version, VERSION));
+            }
+
+            return (Message) decoder.readValue();
+        } catch (IOException e) {
+            throw e;
+        } catch (CloudRuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new CloudRuntimeException("unable to decode binary message", e);
+        }
+    }
+}
@@ -31,4 +31,25 @@ public class CloudBusGlobalProperty {
     public static int CHANNEL_POOL_SIZE;
     @GlobalProperty(name="CloudBus.messageTTL", defaultValue = "300")
     public static int MESSAGE_TTL;
+    @GlobalProperty(name="CloudBus.messageCodec", defaultValue = "json")
+    public static String MESSAGE_CODEC;
+    @GlobalProperty(name="CloudBus.publisherNum", defaultValue = "0")
+    public static int PUBLISHER_NUM;
+    @GlobalProperty(name="CloudBus.publishQueueSize", defaultValue = "10000")
+    public static int PUBLISH_QUEUE_SIZE;
+    @GlobalProperty(name="CloudBus.publishBatchSize", defaultValue = "100")
+    public static int PUBLISH_BATCH_SIZE;
+    @GlobalProperty(name="CloudBus.publishConfirmTimeout", defaultValue = "60")
+    public static int PUBLISH_CONFIRM_TIMEOUT;
+    /**
+     * opt-in, off when not greater than 1. The owners of hosts are only rebalanced on management node change;
+     * if a host is added or deleted while management nodes are handling the same change, they may disagree on
+     * the owners of some hosts until the next management node change.
+     */
+    @GlobalProperty(name="CloudBus.boundedLoadFactor", defaultValue = "0")
+    public static double BOUNDED_LOAD_FACTOR;
+    @GlobalProperty(name="CloudBus.messageTimeoutTick", defaultValue = "100")
+    public static long MESSAGE_TIMEOUT_TICK;
+    @GlobalProperty(name="CloudBus.localDelivery", defaultValue = "true")
+    public static boolean LOCAL_DELIVERY;
 }
@@ -1,9 +1,7 @@
 package org.zstack.core.cloudbus;
 
-import com.google.gson.*;
 import com.rabbitmq.client.*;
 import org.apache.commons.lang.StringUtils;
-import org.mvel2.MVEL;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.zstack.core.Platform;
 import org.zstack.core.componentloader.PluginRegistry;
@@ -26,19 +24,17 @@ import org.zstack.header.search.APISearchMessage;
 import org.zstack.header.search.APISearchReply;
 import org.zstack.utils.*;
 import org.zstack.utils.function.Function;
-import org.zstack.utils.gson.GsonTypeCoder;
-import org.zstack.utils.gson.GsonUtil;
 import org.zstack.utils.gson.JSONObjectUtil;
 import org.zstack.utils.logging.CLogger;
 
 import javax.management.MXBean;
 import java.io.IOException;
 import java.io.Serializable;
-import java.lang.reflect.Type;
 import java.sql.Timestamp;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.zstack.utils.CollectionDSL.e;
 import static org.zstack.utils.CollectionDSL.map;
@@ -52,6 +48,22 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
     private Connection conn;
     private BusQueue outboundQueue;
     private ChannelPool channelPool;
+    private ConfirmPublisher[] publishers;
+
+    private final AtomicLong publishedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong batchedCount = new AtomicLong();
+    private final AtomicLong blockedCount = new AtomicLong();
+    private final AtomicLong localRequestCount = new AtomicLong();
+    private final AtomicLong localReplyCount = new AtomicLong();
+    private final AtomicLong remoteRequestCount = new AtomicLong();
+    private final AtomicLong remoteReplyCount = new AtomicLong();
+    private final AtomicLong localFallbackCount = new AtomicLong();
+    private volatile boolean blocked;
+    private final AtomicLong publishLatencyCount = new AtomicLong();
+    private final AtomicLong totalPublishLatency = new AtomicLong();
+    private final AtomicLong maxPublishLatency = new AtomicLong();
 
     @Autowired
     private ResourceDestinationMaker destMaker;
@@ -71,11 +83,12 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
 
     private Map<String, Envelope> envelopes = new ConcurrentHashMap<String, Envelope>();
     private Map<String, EndPoint> endpoints = new ConcurrentHashMap<String, EndPoint>();
+    // routing keys of queues consumed by this management node
+    private Map<String, LocalReceiver> localReceivers = new ConcurrentHashMap<String, LocalReceiver>();
     private AtomicBoolean stopped = new AtomicBoolean(false);
     private boolean trackerClose = false;
     private Map<String, MessageStatistic> statistics = new HashMap<String, MessageStatistic>();
 
-    private Map<Class, Map<String, Serializable>> mvelExpressions = Collections.synchronizedMap(new HashMap<Class, Map<String,Serializable>>());
     private Map<Class, List<ReplyMessagePreSendingExtensionPoint>> replyMessageMarshaller = new ConcurrentHashMap<Class, List<ReplyMessagePreSendingExtensionPoint>>();
     private Map<Class, Long> messageTimeout = new ConcurrentHashMap<Class, Long>();
 
@@ -131,6 +144,35 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
     }
 
 
+    private void replyUndeliverable(Message msg, String details) {
+        if (msg instanceof NeedReplyMessage) {
+            Envelope e = envelopes.get(msg.getId());
+            if (e == null) {
+                logger.warn(String.format("unable to deliver the message; %s; message dump:\n%s", details, wire.dumpMessage(msg)));
+            } else {
+                MessageReply reply = new MessageReply();
+                reply.setError(errf.instantiateErrorCode(SysErrors.UNDELIVERABLE_ERROR,
+                        String.format("unable to deliver the message; %s", details)));
+                e.ack(reply);
+            }
+        } else {
+            logger.warn(String.format("unable to deliver the message; %s; message dump:\n%s", details, wire.dumpMessage(msg)));
+        }
+    }
+
+    private final ReturnListener returnListener = new ReturnListener() {
+        @Override
+        public void handleReturn(int i, String s, String s2, String s3, AMQP.BasicProperties basicProperties, byte[] bytes) throws IOException {
+            try {
+                Message msg = wire.toMessage(bytes, basicProperties);
+                replyUndeliverable(msg, String.format("the destination service[%s] is dead; please use rabbitmqctl to check if the queue is existing and if there is any consumers on that queue",
+                        msg.getServiceId()));
+            } catch (Throwable t) {
+                logger.warn("unhandled throwable", t);
+            }
+        }
+    };
+
     private class ChannelPool {
         BlockingQueue<Channel> pool;
 
@@ -140,31 +182,7 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
                 for (int i = 0; i < size; i++) {
                     Channel chan = connection.createChannel();
                     pool.add(chan);
-                    chan.addReturnListener(new ReturnListener() {
-                        @Override
-                        public void handleReturn(int i, String s, String s2, String s3, AMQP.BasicProperties basicProperties, byte[] bytes) throws IOException {
-                            try {
-                                Message msg = wire.toMessage(bytes, basicProperties);
-                                if (msg instanceof NeedReplyMessage) {
-                                    Envelope e = envelopes.get(msg.getId());
-                                    if (e == null) {
-                                        logger.warn(String.format("unable to deliver the message; the destination service[%s] is dead; please use rabbitmqctl to check if the queue is existing and if there is any consumers on that queue; message dump:\n%s",
-                                                msg.getServiceId(), wire.dumpMessage(msg)));
-                                    } else {
-                                        MessageReply reply = new MessageReply();
-                                        reply.setError(errf.instantiateErrorCode(SysErrors.UNDELIVERABLE_ERROR,
-                                                String.format("unable to deliver the message; the destination service[%s] is dead; please use rabbitmqctl to check if the queue is existing and if any consumers on that queue", msg.getServiceId())));
-                                        e.ack(reply);
-                                    }
-                                } else {
-                                    logger.warn(String.format("unable to deliver the message; the destination service[%s] is dead; please use rabbitmqctl to check if the queue is existing and if there is any consumers on that queue; message dump:\n%s",
-                                            msg.getServiceId(), wire.dumpMessage(msg)));
-                                }
-                            } catch (Throwable t) {
-                                logger.warn("unhandled throwable", t);
-                            }
-                        }
-                    });
+                    chan.addReturnListener(returnListener);
                 }
                 logger.debug(String.format("created channel pool with size[%s]", CloudBusGlobalProperty.CHANNEL_POOL_SIZE));
             } catch (Exception e) {
@@ -297,10 +315,14 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
 
     private NoRouteEndPoint noRouteEndPoint = new NoRouteEndPoint();
 
-    private Consumer consumer = new AbstractConsumer() {
+    private interface LocalReceiver {
+        void receive(Message msg);
+    }
+
+    private class ReplyConsumer extends AbstractConsumer {
         @AsyncThread
         @MessageSafe
-        private void handle(Message msg) {
+        void handle(Message msg) {
             if (logger.isTraceEnabled() && wire.logMessage(msg))  {
                 logger.trace(String.format("[msg received]: %s", wire.dumpMessage(msg)));
             }
@@ -330,10 +352,73 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
                 logger.warn("unhandled throwable", t);
             }
         }
+    }
+
+    private ReplyConsumer consumer = new ReplyConsumer();
+
+    private void basicPublish(String exchange, String routingKey, Message msg, byte[] data) throws IOException {
+        if (publishers != null) {
+            // messages sent by the same thread go through the same publisher, in order
+            publishers[(int) (Thread.currentThread().getId() % publishers.length)].publish(new ConfirmPublisher.PendingPublish(exchange, routingKey, msg, data));
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        Channel chan = channelPool.acquire();
+        try {
+            chan.basicPublish(exchange, routingKey, true, msg.getAMQPProperties(), data);
+        } finally {
+            channelPool.returnChannel(chan);
+        }
+        publishedCount.incrementAndGet();
+        countPublishLatency(System.currentTimeMillis() - start);
+    }
+
+    private void countPublishLatency(long latency) {
+        publishLatencyCount.incrementAndGet();
+        totalPublishLatency.addAndGet(latency);
+        long max = maxPublishLatency.get();
+        while (latency > max && !maxPublishLatency.compareAndSet(max, latency)) {
+            max = maxPublishLatency.get();
+        }
+    }
+
+    private final ConfirmPublisher.ChannelFactory publisherChannelFactory = new ConfirmPublisher.ChannelFactory() {
+        @Override
+        public Channel createChannel() throws IOException {
+            Channel chan = conn.createChannel();
+            chan.addReturnListener(returnListener);
+            return chan;
+        }
+    };
+
+    private final ConfirmPublisher.PublishListener publishListener = new ConfirmPublisher.PublishListener() {
+        @Override
+        public void confirmed(ConfirmPublisher.PendingPublish p, long latency) {
+            publishedCount.incrementAndGet();
+            countPublishLatency(latency);
+        }
+
+        @Override
+        public void failed(ConfirmPublisher.PendingPublish p, String reason) {
+            failedCount.incrementAndGet();
+            replyUndeliverable(p.getMsg(), reason);
+        }
+
+        @Override
+        public void batched(int size) {
+            batchCount.incrementAndGet();
+            batchedCount.addAndGet(size);
+        }
     };
 
-    private class Wire implements GsonTypeCoder<Message> {
+    private class Wire {
         private List<String> filterMsgNames = new ArrayList<String>();
+        private final JsonMessageCodec jsonCodec = new JsonMessageCodec();
+        private final BinaryMessageCodec binaryCodec = new BinaryMessageCodec();
+        private final Map<String, MessageCodec> codecs = new ConcurrentHashMap<String, MessageCodec>();
+        private final Set<Class> binaryUnsupported = Collections.newSetFromMap(new ConcurrentHashMap<Class, Boolean>());
+        private MessageCodec defaultCodec;
 
         {
             if (CloudBusGlobalProperty.MESSAGE_LOG != null) {
@@ -342,47 +427,115 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
                     filterMsgNames.add(name.trim());
                 }
             }
+
+            registerCodec(jsonCodec);
+            registerCodec(binaryCodec);
+            defaultCodec = jsonCodec;
         }
 
-        private final Gson gson = new GsonUtil().setCoder(Message.class, this).setExclusionStrategies(new ExclusionStrategy[]{
-                new ExclusionStrategy() {
-                    @Override
-                    public boolean shouldSkipField(FieldAttributes fieldAttributes) {
-                        return fieldAttributes.getAnnotation(GsonTransient.class) != null;
-                    }
+        void registerCodec(MessageCodec codec) {
+            MessageCodec old = codecs.get(codec.getContentType());
+            if (old != null && old != codec) {
+                throw new CloudRuntimeException(String.format("duplicate message codec for content type[%s], %s, %s",
+                        codec.getContentType(), codec.getClass().getName(), old.getClass().getName()));
+            }
 
-                    @Override
-                    public boolean shouldSkipClass(Class<?> aClass) {
-                        return false;
-                    }
+            codecs.put(codec.getContentType(), codec);
+        }
+
+        void setDefaultCodec(String name) {
+            if ("json".equals(name)) {
+                defaultCodec = jsonCodec;
+            } else if ("binary".equals(name)) {
+                defaultCodec = binaryCodec;
+                binaryCodec.prepareSchemas(BeanUtils.scanClassByType("org.zstack", Message.class));
+            } else {
+                MessageCodec codec = codecs.get(name);
+                if (codec == null) {
+                    throw new CloudRuntimeException(String.format("unknown message codec[%s], valid values are json, binary or content type of a registered codec %s",
+                            name, codecs.keySet()));
                 }
-        }).create();
+                defaultCodec = codec;
+            }
 
-        @Override
-        public Message deserialize(JsonElement jsonElement, Type type, JsonDeserializationContext jsonDeserializationContext) throws JsonParseException {
-            JsonObject jObj = jsonElement.getAsJsonObject();
-            Map.Entry<String, JsonElement> entry = jObj.entrySet().iterator().next();
-            String className = entry.getKey();
-            Class<?> clazz;
-            try {
-                clazz = Class.forName(className);
-            } catch (ClassNotFoundException e) {
-                throw new JsonParseException(String.format("Unable to deserialize class[%s]", className), e);
+            logger.info(String.format("use message codec[%s] for CloudBus", defaultCodec.getContentType()));
+        }
+
+        private MessageCodec selectCodec(Message msg) {
+            // API messages/events may be consumed by clients of old versions, always send them in JSON
+            if (msg instanceof APIEvent || msg instanceof APIMessage || binaryUnsupported.contains(msg.getClass())) {
+                return jsonCodec;
             }
-            return (Message) gson.fromJson(entry.getValue(), clazz);
+
+            return defaultCodec;
         }
 
-        @Override
-        public JsonElement serialize(Message message, Type type, JsonSerializationContext jsonSerializationContext) {
-            JsonObject jObj = new JsonObject();
-            jObj.add(message.getClass().getName(), gson.toJsonTree(message));
-            return jObj;
+        private byte[] encode(Message msg) throws IOException {
+            MessageCodec codec = selectCodec(msg);
+            byte[] data = null;
+            if (codec != jsonCodec) {
+                try {
+                    data = codec.encode(msg);
+                } catch (CloudRuntimeException e) {
+                    logger.debug(String.format("codec[%s] cannot encode message[%s], fall back to JSON. %s",
+                            codec.getContentType(), msg.getClass().getName(), e.getMessage()));
+                    binaryUnsupported.add(msg.getClass());
+                    codec = jsonCodec;
+                }
+            }
+
+            if (data == null) {
+                data = jsonCodec.encode(msg);
+            }
+
+            // tell the receiver how to decode the body
+            msg.setAMQPProperties(msg.getAMQPProperties().builder().contentType(codec.getContentType()).build());
+            return data;
         }
 
         public void send(Message msg) {
             send(msg, true);
         }
 
+        /**
+         * a copy decoded from the encoded message is handed over, so neither side sees changes made by the other
+         * after sending, as if the message went through the broker
+         */
+        private Message copy(Message msg) throws IOException {
+            byte[] data = encode(msg);
+            MessageCodec codec = codecs.get(msg.getAMQPProperties().getContentType());
+            Message copy = codec.decode(data);
+            AMQP.BasicProperties props = msg.getAMQPProperties();
+            copy.setAMQPProperties(props.builder().headers(new HashMap<String, Object>(msg.getAMQPHeaders())).build());
+            return copy;
+        }
+
+        private boolean deliverLocally(String routingKey, Message msg) {
+            if (!CloudBusGlobalProperty.LOCAL_DELIVERY) {
+                return false;
+            }
+
+            LocalReceiver receiver = localReceivers.get(routingKey);
+            if (receiver == null) {
+                return false;
+            }
+
+            Message copy;
+            try {
+                copy = copy(msg);
+            } catch (Exception e) {
+                localFallbackCount.incrementAndGet();
+                logger.debug(String.format("unable to copy message[%s] for local delivery, send it through the broker. %s",
+                        msg.getClass().getName(), e.getMessage()));
+                return false;
+            }
+
+            // the broker would have copied the message to the tracker
+            tracker.trackLocally(msg);
+            receiver.receive(copy);
+            return true;
+        }
+
         public boolean logMessage(Message msg) {
             if (CloudBusGlobalProperty.MESSAGE_LOG_FILTER_ALL) {
                 return !filterMsgNames.contains(msg.getClass().getName());
@@ -391,17 +544,13 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
             }
         }
 
-        private void buildSchema(Message msg) {
-            msg.putHeaderEntry("schema", MessageJsonSchemaBuilder.buildSchema(msg));
-        }
-
-        private byte[] compressMessageIfNeeded(Message msg) throws IOException {
+        private byte[] compressMessageIfNeeded(Message msg, byte[] data) throws IOException {
             if (!CloudBusGlobalProperty.COMPRESS_NON_API_MESSAGE || msg instanceof APIEvent || msg instanceof APIMessage) {
-                return gson.toJson(msg, Message.class).getBytes();
+                return data;
             }
 
             msg.getAMQPHeaders().put(AMQP_PROPERTY_HEADER__COMPRESSED, "true");
-            return Compresser.deflate(gson.toJson(msg, Message.class).getBytes());
+            return Compresser.deflate(data);
         }
 
         public void send(Message msg, boolean makeQueueName) {
@@ -414,21 +563,20 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
                 serviceId = makeMessageQueueName(serviceId);
             }
 
-            buildSchema(msg);
-
             if (logger.isTraceEnabled() && logMessage(msg)) {
                 logger.trace(String.format("[msg send]: %s", wire.dumpMessage(msg)));
             }
 
+            boolean isReply = msg instanceof MessageReply;
+            if (deliverLocally(serviceId, msg)) {
+                (isReply ? localReplyCount : localRequestCount).incrementAndGet();
+                return;
+            }
+            (isReply ? remoteReplyCount : remoteRequestCount).incrementAndGet();
+
             try {
-                byte[] data = compressMessageIfNeeded(msg);
-                Channel chan = channelPool.acquire();
-                try {
-                    chan.basicPublish(outboundQueue.getBusExchange().toString(), serviceId,
-                            true, msg.getAMQPProperties(), data);
-                } finally {
-                    channelPool.returnChannel(chan);
-                }
+                byte[] data = compressMessageIfNeeded(msg, encode(msg));
+                basicPublish(outboundQueue.getBusExchange().toString(), serviceId, msg, data);
                 /*
                 watch.stop();
                 logger.debug(String.mediaType("sending %s cost %sms", msg.getClass().getName(), watch.getTime()));
@@ -444,21 +592,13 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
             watch.start();
             */
 
-            buildSchema(evt);
-
             if (logger.isTraceEnabled() && logMessage(evt)) {
                 logger.trace(String.format("[event publish]: %s", wire.dumpMessage(evt)));
             }
 
             try {
-                byte[] data = compressMessageIfNeeded(evt);
-                Channel chan = channelPool.acquire();
-                try {
-                    chan.basicPublish(BusExchange.BROADCAST.toString(), evt.getType().toString(),
-                            true, evt.getAMQPProperties(), data);
-                } finally {
-                    channelPool.returnChannel(chan);
-                }
+                byte[] data = compressMessageIfNeeded(evt, encode(evt));
+                basicPublish(BusExchange.BROADCAST.toString(), evt.getType().toString(), evt, data);
                 /*
                 watch.stop();
                 logger.debug(String.mediaType("sending %s cost %sms", evt.getClass().getName(), watch.getTime()));
@@ -468,57 +608,6 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
             }
         }
 
-        private Serializable getMVELExpression(Message msg, String express, String prefix) {
-            Map<String, Serializable> exps = mvelExpressions.get(msg.getClass());
-            if (exps == null) {
-                exps = new HashMap<String, Serializable>();
-                mvelExpressions.put(msg.getClass(), exps);
-            }
-
-            String key = String.format("%s:%s", express, prefix);
-            Serializable exp = exps.get(key);
-            if (exp == null) {
-                exp = MVEL.compileExpression(express);
-                exps.put(key, exp);
-            }
-            return exp;
-        }
-
-        private void restoreFromSchema(Message msg, byte[] binary) throws ClassNotFoundException {
-            Map<String, List<String>> schema = msg.getHeaderEntry("schema");
-            if (schema == null) {
-                return;
-            }
-
-            Map raw = JSONObjectUtil.toObject(new String(binary), LinkedHashMap.class);
-            raw = (Map) raw.values().iterator().next();
-            for (Map.Entry<String, List<String>> e : schema.entrySet()) {
-                String rawClassName = e.getKey();
-                List<String> paths = e.getValue();
-                for (String path : paths) {
-                    Serializable exp = getMVELExpression(msg, path, "msg:get");
-                    Object obj = MVEL.executeExpression(exp, msg);
-                    if (obj.getClass().getName().equals(rawClassName)) {
-                        continue;
-                    }
-
-                    exp = getMVELExpression(msg, path, "raw:get");
-                    Object rawData = MVEL.executeExpression(exp, raw);
-                    Class rawClass = Class.forName(rawClassName);
-                    Object newValue = JSONObjectUtil.rehashObject(rawData, rawClass);
-                    String setExpress = String.format("CONTEXT_OBJECT.%s = newValue", path);
-                    exp = getMVELExpression(msg, setExpress, "msg:set");
-                    Map vars = map(e("newValue", newValue));
-                    // Note MVEL context is
-                    // not meant for write but rather for read. Use a Map context to
-                    // force MVEL to assign newValue on msg, not to create a new variable
-                    // in vars map
-                    Map context = map(e("CONTEXT_OBJECT", msg));
-                    MVEL.executeExpression(exp, context, vars);
-                }
-            }
-        }
-
         private void tryBestToReplyError(byte[] binary, String errMsg) {
             // try best to reply an error message to invalid JSON formed message
             String msgStr = new String(binary);
@@ -555,6 +644,7 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
             StopWatch watch = new StopWatch();
             watch.start();
             */
+            MessageCodec codec = jsonCodec;
             try {
                 byte[] data;
                 if (basicProperties.getHeaders() != null && basicProperties.getHeaders().containsKey(AMQP_PROPERTY_HEADER__COMPRESSED)) {
@@ -563,15 +653,18 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
                     data = binary;
                 }
 
-                Message msg = gson.fromJson(new String(data), Message.class);
-                msg.setAMQPProperties(basicProperties);
-
-                try {
-                    restoreFromSchema(msg, data);
-                } catch (ClassNotFoundException e) {
-                    throw new CloudRuntimeException(e);
+                // messages from nodes of old versions have no content type, they are always JSON
+                String contentType = basicProperties.getContentType();
+                if (contentType != null) {
+                    codec = codecs.get(contentType);
+                    if (codec == null) {
+                        throw new CloudRuntimeException(String.format("no codec found for message of content type[%s]", contentType));
+                    }
                 }
 
+                Message msg = codec.decode(data);
+                msg.setAMQPProperties(basicProperties);
+
             /*
             watch.stop();
             logger.debug(String.mediaType("receive %s cost %sms", msg.getClass().getName(), watch.getTime()));
@@ -579,7 +672,9 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
                 return msg;
             } catch (RuntimeException je) {
                 logger.warn(je.getMessage(), je);
-                tryBestToReplyError(binary, je.getMessage());
+                if (codec == jsonCodec) {
+                    tryBestToReplyError(binary, je.getMessage());
+                }
                 throw je;
             } catch (IOException e) {
                 throw new CloudRuntimeException(e);
@@ -587,7 +682,7 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
         }
 
         public String dumpMessage(Message msg) {
-            return gson.toJson(msg, Message.class);
+            return jsonCodec.dumpMessage(msg);
         }
     }
 
@@ -898,13 +993,28 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
                 }
 
                 LongString metaData = (LongString) headers.get(MESSAGE_META_DATA);
-                Map m = JSONObjectUtil.toObject(new String(metaData.getBytes()), LinkedHashMap.class);
-                trackMessage((MessageMetaData) JSONObjectUtil.rehashObject(m, metaDataClassCache.get(m.get("className"))));
+                trackMessage(toMetaData(new String(metaData.getBytes())));
             } catch (Throwable t) {
                 logger.warn("unhandled throwable", t);
             }
         }
 
+        private MessageMetaData toMetaData(String json) {
+            Map m = JSONObjectUtil.toObject(json, LinkedHashMap.class);
+            return (MessageMetaData) JSONObjectUtil.rehashObject(m, metaDataClassCache.get(m.get("className")));
+        }
+
+        void trackLocally(Message msg) {
+            if (trackerClose) {
+                return;
+            }
+
+            Object metaData = msg.getAMQPHeaders().get(MESSAGE_META_DATA);
+            if (metaData != null) {
+                trackMessage(toMetaData(metaData.toString()));
+            }
+        }
+
         @AsyncThread
         private void trackMessage(final MessageMetaData metaData) {
             if (metaData instanceof LockMessageMetaData) {
@@ -1068,7 +1178,31 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
             }
 
             conn = connFactory.newConnection(addresses.toArray(new Address[]{}));
+            conn.addBlockedListener(new BlockedListener() {
+                @Override
+                public void handleBlocked(String reason) throws IOException {
+                    blocked = true;
+                    blockedCount.incrementAndGet();
+                    logger.warn(String.format("RabbitMQ blocked the connection, %s. Publishing will stall until it's unblocked", reason));
+                }
+
+                @Override
+                public void handleUnblocked() throws IOException {
+                    blocked = false;
+                    logger.info("RabbitMQ unblocked the connection");
+                }
+            });
             channelPool = new ChannelPool(CloudBusGlobalProperty.CHANNEL_POOL_SIZE, conn);
+            if (CloudBusGlobalProperty.PUBLISHER_NUM > 0) {
+                publishers = new ConfirmPublisher[CloudBusGlobalProperty.PUBLISHER_NUM];
+                for (int i = 0; i < publishers.length; i++) {
+                    publishers[i] = new ConfirmPublisher(String.format("cloudbus-publisher-%s", i), publisherChannelFactory, publishListener,
+                            CloudBusGlobalProperty.PUBLISH_QUEUE_SIZE, CloudBusGlobalProperty.PUBLISH_BATCH_SIZE,
+                            TimeUnit.SECONDS.toMillis(CloudBusGlobalProperty.PUBLISH_CONFIRM_TIMEOUT));
+                    publishers[i].start();
+                }
+                logger.debug(String.format("created %s publishers with confirms", publishers.length));
+            }
             createExchanges();
             outboundQueue = new BusQueue(makeMessageQueueName(SERVICE_ID), BusExchange.P2P);
             Channel chan = channelPool.acquire();
@@ -1076,6 +1210,12 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
             chan.basicConsume(outboundQueue.getName(), true, consumer);
             chan.queueBind(outboundQueue.getName(), outboundQueue.getBusExchange().toString(), outboundQueue.getBindingKey());
             channelPool.returnChannel(chan);
+            localReceivers.put(outboundQueue.getBindingKey(), new LocalReceiver() {
+                @Override
+                public void receive(Message msg) {
+                    consumer.handle(msg);
+                }
+            });
             maid.construct();
             noRouteEndPoint.construct();
             tracker.construct();
@@ -1205,7 +1345,7 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
                 public void run() {
                     self.timeout();
                 }
-            }, TimeUnit.MILLISECONDS, msg.getTimeout());
+            }, TimeUnit.MILLISECONDS, msg.getTimeout(), CloudBusGlobalProperty.MESSAGE_TIMEOUT_TICK);
 
             @Override
             public void ack(MessageReply reply) {
@@ -1277,7 +1417,7 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
                 public void run() {
                     self.timeout();
                 }
-            }, TimeUnit.MILLISECONDS, timeout);
+            }, TimeUnit.MILLISECONDS, timeout, CloudBusGlobalProperty.MESSAGE_TIMEOUT_TICK);
 
             private void cleanup(boolean cancelTimeout) {
                 for (Message msg : msgs) {
@@ -1776,9 +1916,45 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
         EndPoint e = new EndPoint() {
             Channel echan;
             Consumer handler;
+            LocalReceiver receiver;
             String baseName;
             List<String> aliasNames = new ArrayList<String>();
 
+            void dispatch(final Message msg) {
+                if (logger.isTraceEnabled() && wire.logMessage(msg)) {
+                    logger.trace(String.format("[msg received]: %s", wire.dumpMessage(msg)));
+                }
+
+                SyncTask<Void> task = new SyncTask<Void>() {
+                    @Override
+                    public String getSyncSignature() {
+                        return serv.getId();
+                    }
+
+                    @Override
+                    public int getSyncLevel() {
+                        return syncLevel;
+                    }
+
+                    @Override
+                    public String getName() {
+                        return String.format("CloudBus EndPoint[%s]", serv.getId());
+                    }
+
+                    @Override
+                    public Void call() throws Exception {
+                        serv.handleMessage(msg);
+                        return null;
+                    }
+                };
+
+                if (syncLevel == 0) {
+                    thdf.submit(task);
+                } else {
+                    thdf.syncSubmit(task);
+                }
+            }
+
             {
                 baseName = makeMessageQueueName(serv.getId());
                 if (alias != null) {
@@ -1791,45 +1967,19 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
                     @Override
                     public void handleDelivery(String s, com.rabbitmq.client.Envelope envelope, AMQP.BasicProperties basicProperties, byte[] bytes) throws IOException {
                         try {
-                            final Message msg = wire.toMessage(bytes, basicProperties);
-
-                            if (logger.isTraceEnabled() && wire.logMessage(msg)) {
-                                logger.trace(String.format("[msg received]: %s", wire.dumpMessage(msg)));
-                            }
-
-                            SyncTask<Void> task = new SyncTask<Void>() {
-                                @Override
-                                public String getSyncSignature() {
-                                    return serv.getId();
-                                }
-
-                                @Override
-                                public int getSyncLevel() {
-                                    return syncLevel;
-                                }
-
-                                @Override
-                                public String getName() {
-                                    return String.format("CloudBus EndPoint[%s]", serv.getId());
-                                }
-
-                                @Override
-                                public Void call() throws Exception {
-                                    serv.handleMessage(msg);
-                                    return null;
-                                }
-                            };
-
-                            if (syncLevel == 0) {
-                                thdf.submit(task);
-                            } else {
-                                thdf.syncSubmit(task);
-                            }
+                            dispatch(wire.toMessage(bytes, basicProperties));
                         } catch (Throwable t) {
                             logger.warn("unhandled throwable", t);
                         }
                     }
                 };
+
+                receiver = new LocalReceiver() {
+                    @Override
+                    public void receive(Message msg) {
+                        dispatch(msg);
+                    }
+                };
             }
 
             @Override
@@ -1845,6 +1995,11 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
                         echan.basicConsume(aliasName, true, handler);
                         echan.queueBind(aliasName, BusExchange.P2P.toString(), aliasName);
                     }
+
+                    localReceivers.put(baseName, receiver);
+                    for (String aliasName : aliasNames) {
+                        localReceivers.put(aliasName, receiver);
+                    }
                 } catch (IOException e1) {
                     throw new CloudRuntimeException(e1);
                 }
@@ -1852,6 +2007,11 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
 
             @Override
             public void inactive() {
+                localReceivers.remove(baseName);
+                for (String aliasName : aliasNames) {
+                    localReceivers.remove(aliasName);
+                }
+
                 try {
                     echan.queueUnbind(baseName, BusExchange.P2P.toString(), baseName);
                     for (String aliasName: aliasNames) {
@@ -2064,6 +2224,9 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
 
     private void populateExtension() {
         services = pluginRgty.getExtensionList(Service.class);
+        for (MessageCodec codec : pluginRgty.getExtensionList(MessageCodec.class)) {
+            wire.registerCodec(codec);
+        }
         for (ReplyMessagePreSendingExtensionPoint extp : pluginRgty.getExtensionList(ReplyMessagePreSendingExtensionPoint.class)) {
             List<Class> clazzs = extp.getReplyMessageClassForPreSendingExtensionPoint();
             if (clazzs == null || clazzs.isEmpty()) {
@@ -2120,6 +2283,7 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
         populateExtension();
         prepareStatistics();
         collectMessageTimeOut();
+        wire.setDefaultCodec(CloudBusGlobalProperty.MESSAGE_CODEC);
 
         for (Service serv : services) {
             assert serv.getId() != null : String.format("service id can not be null[%s]", serv.getClass().getName());
@@ -2165,7 +2329,16 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
 
         tracker.destruct();
 
-        throwableSafe(new Runnable() {
+        throwableSafe(new ExceptionDSL.RunnableWithThrowable() {
+            @Override
+            public void run() throws Throwable {
+                if (publishers != null) {
+                    for (ConfirmPublisher p : publishers) {
+                        p.destruct();
+                    }
+                }
+            }
+        }).throwableSafe(new Runnable() {
             @Override
             public void run() {
                 try {
@@ -2258,6 +2431,29 @@ public class CloudBusImpl2 implements CloudBus, CloudBusIN, ManagementNodeChange
         );
     }
 
+    @Override
+    public PublishStatistic getPublishStatistic() {
+        int depth = 0;
+        if (publishers != null) {
+            for (ConfirmPublisher p : publishers) {
+                depth += p.getQueueDepth();
+            }
+        }
+
+        long batches = batchCount.get();
+        long latencyCount = publishLatencyCount.get();
+        return new PublishStatistic(publishers == null ? 0 : publishers.length, depth, publishedCount.get(), failedCount.get(),
+                batches, batches == 0 ? 0 : batchedCount.get() / batches,
+                latencyCount == 0 ? 0 : totalPublishLatency.get() / latencyCount, maxPublishLatency.get(),
+                blocked, blockedCount.get());
+    }
+
+    @Override
+    public DeliveryStatistic getDeliveryStatistic() {
+        return new DeliveryStatistic(CloudBusGlobalProperty.LOCAL_DELIVERY, localRequestCount.get(), localReplyCount.get(),
+                remoteRequestCount.get(), remoteReplyCount.get(), localFallbackCount.get());
+    }
+
     private Map<String, Object> queueArguments() {
         Map<String, Object> ret = new HashMap<String, Object>();
         ret.put("x-dead-letter-exchange", BusExchange.NO_ROUTE.toString());
@@ -0,0 +1,267 @@
+package org.zstack.core.cloudbus;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.ShutdownSignalException;
+import org.zstack.header.exception.CloudRuntimeException;
+import org.zstack.header.message.Message;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * publishes messages on its own channel in confirm mode. A publisher drains up to batchSize messages from its
+ * queue, publishes them and waits confirms of the whole batch once. A full queue blocks senders, which is the
+ * back-pressure when RabbitMQ blocks the connection.
+ *
+ * messages nacked by RabbitMQ or failed to publish are reported to the listener as failed. Messages not confirmed
+ * within the confirm timeout may have been routed already, they stay pending until confirmed or until the channel
+ * is closed; only then are they reported as failed, with a reason telling they may have been delivered.
+ */
+public class ConfirmPublisher implements Runnable {
+    private static final CLogger logger = Utils.getLogger(ConfirmPublisher.class);
+
+    public static class PendingPublish {
+        final String exchange;
+        final String routingKey;
+        final AMQP.BasicProperties properties;
+        final byte[] data;
+        final Message msg;
+        final long enqueueTime = System.currentTimeMillis();
+
+        public PendingPublish(String exchange, String routingKey, Message msg, byte[] data) {
+            this.exchange = exchange;
+            this.routingKey = routingKey;
+            this.properties = msg.getAMQPProperties();
+            this.data = data;
+            this.msg = msg;
+        }
+
+        public Message getMsg() {
+            return msg;
+        }
+    }
+
+    public interface ChannelFactory {
+        Channel createChannel() throws IOException;
+    }
+
+    public interface PublishListener {
+        void confirmed(PendingPublish p, long latency);
+
+        void failed(PendingPublish p, String reason);
+
+        void batched(int size);
+    }
+
+    private final BlockingQueue<PendingPublish> queue;
+    private final ConcurrentSkipListMap<Long, PendingPublish> unconfirmed = new ConcurrentSkipListMap<Long, PendingPublish>();
+    private final ChannelFactory channelFactory;
+    private final PublishListener listener;
+    private final int batchSize;
+    private final long confirmTimeout;
+    private final ConfirmListener confirmListener = new ConfirmListener() {
+        @Override
+        public void handleAck(long deliveryTag, boolean multiple) throws IOException {
+            long now = System.currentTimeMillis();
+            for (PendingPublish p : confirmed(deliveryTag, multiple)) {
+                try {
+                    listener.confirmed(p, now - p.enqueueTime);
+                } catch (Throwable t) {
+                    logger.warn("unhandled throwable", t);
+                }
+            }
+        }
+
+        @Override
+        public void handleNack(long deliveryTag, boolean multiple) throws IOException {
+            for (PendingPublish p : confirmed(deliveryTag, multiple)) {
+                fail(p, "RabbitMQ rejected the message");
+            }
+        }
+    };
+    // only replaced by the publisher thread
+    private volatile Channel chan;
+    private final Thread thread;
+    private volatile boolean stopped;
+
+    /**
+     * @param confirmTimeout milliseconds to wait for confirms of a batch before publishing the next one
+     */
+    public ConfirmPublisher(String name, ChannelFactory channelFactory, PublishListener listener, int queueSize,
+                            int batchSize, long confirmTimeout) throws IOException {
+        this.channelFactory = channelFactory;
+        this.listener = listener;
+        this.batchSize = batchSize;
+        this.confirmTimeout = confirmTimeout;
+        queue = new LinkedBlockingQueue<PendingPublish>(queueSize);
+        chan = createChannel();
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+    }
+
+    private Channel createChannel() throws IOException {
+        Channel c = channelFactory.createChannel();
+        c.confirmSelect();
+        c.addConfirmListener(confirmListener);
+        return c;
+    }
+
+    private boolean reopenChannel() {
+        // sequence numbers start over on the new channel, messages unconfirmed on the old one can never be confirmed
+        if (!unconfirmed.isEmpty()) {
+            logger.warn(String.format("the channel of publisher[%s] is closed, %s messages are not confirmed", thread.getName(), unconfirmed.size()));
+            failUnconfirmed("the channel of publisher is closed before RabbitMQ confirmed the message, it may have been delivered");
+        }
+
+        try {
+            chan.abort();
+        } catch (Throwable t) {
+            logger.trace("failed to abort the closed channel of publisher", t);
+        }
+
+        try {
+            chan = createChannel();
+            logger.debug(String.format("reopened the channel of publisher[%s]", thread.getName()));
+            return true;
+        } catch (Throwable t) {
+            logger.warn(String.format("unable to reopen the channel of publisher[%s], try again on next batch", thread.getName()), t);
+            return false;
+        }
+    }
+
+    private void failUnconfirmed(String reason) {
+        for (PendingPublish p : confirmed(Long.MAX_VALUE, true)) {
+            fail(p, reason);
+        }
+    }
+
+    private Collection<PendingPublish> confirmed(long deliveryTag, boolean multiple) {
+        if (!multiple) {
+            PendingPublish p = unconfirmed.remove(deliveryTag);
+            return p == null ? new ArrayList<PendingPublish>() : Arrays.asList(p);
+        }
+
+        Map<Long, PendingPublish> head = unconfirmed.headMap(deliveryTag, true);
+        List<PendingPublish> ret = new ArrayList<PendingPublish>(head.values());
+        head.clear();
+        return ret;
+    }
+
+    private void fail(PendingPublish p, String reason) {
+        try {
+            listener.failed(p, reason);
+        } catch (Throwable t) {
+            logger.warn("unhandled throwable", t);
+        }
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public void publish(PendingPublish p) {
+        try {
+            if (!queue.offer(p, 10, TimeUnit.MINUTES)) {
+                throw new CloudRuntimeException(String.format("cannot publish message[%s] after 10 minutes, the publish queue is full", p.msg.getClass().getName()));
+            }
+        } catch (InterruptedException e) {
+            throw new CloudRuntimeException(e);
+        }
+    }
+
+    public int getQueueDepth() {
+        return queue.size() + unconfirmed.size();
+    }
+
+    private void publishBatch(List<PendingPublish> batch) throws InterruptedException {
+        if (!chan.isOpen() && !reopenChannel()) {
+            for (PendingPublish p : batch) {
+                fail(p, "the channel of publisher is closed");
+            }
+            return;
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            PendingPublish p = batch.get(i);
+            long seq = chan.getNextPublishSeqNo();
+            unconfirmed.put(seq, p);
+            try {
+                chan.basicPublish(p.exchange, p.routingKey, true, p.properties, p.data);
+            } catch (IOException e) {
+                unconfirmed.remove(seq);
+                fail(p, String.format("failed to publish, %s", e.getMessage()));
+            } catch (ShutdownSignalException e) {
+                // AlreadyClosedException included, nothing can be published or confirmed on the channel any more
+                unconfirmed.remove(seq);
+                String reason = String.format("the channel of publisher is closed, %s", e.getMessage());
+                logger.warn(String.format("%s, %s messages are not published", reason, batch.size() - i));
+                for (PendingPublish r : batch.subList(i, batch.size())) {
+                    fail(r, reason);
+                }
+                reopenChannel();
+                return;
+            }
+        }
+
+        listener.batched(batch.size());
+
+        try {
+            chan.waitForConfirms(confirmTimeout);
+        } catch (TimeoutException e) {
+            logger.warn(String.format("no publisher confirms after %sms, %s messages stay pending until confirmed or the channel is closed",
+                    confirmTimeout, unconfirmed.size()));
+        } catch (ShutdownSignalException e) {
+            reopenChannel();
+        }
+    }
+
+    @Override
+    public void run() {
+        List<PendingPublish> batch = new ArrayList<PendingPublish>(batchSize);
+        while (!stopped || !queue.isEmpty()) {
+            try {
+                PendingPublish p = queue.poll(1, TimeUnit.SECONDS);
+                if (p == null) {
+                    if (!unconfirmed.isEmpty() && !chan.isOpen()) {
+                        reopenChannel();
+                    }
+                    continue;
+                }
+
+                batch.add(p);
+                queue.drainTo(batch, batchSize - 1);
+                publishBatch(batch);
+            } catch (InterruptedException e) {
+                break;
+            } catch (Throwable t) {
+                logger.warn("unhandled throwable", t);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    public void destruct() throws IOException {
+        stopped = true;
+        try {
+            thread.join(confirmTimeout);
+        } catch (InterruptedException e) {
+            logger.warn("interrupted when waiting for the publisher to flush", e);
+        }
+
+        try {
+            chan.close();
+        } catch (IOException e) {
+            chan.abort();
+        }
+    }
+}
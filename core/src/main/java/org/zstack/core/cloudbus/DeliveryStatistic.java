@@ -0,0 +1,50 @@
+package org.zstack.core.cloudbus;
+
+import java.beans.ConstructorProperties;
+
+/**
+ */
+public class DeliveryStatistic {
+    private boolean localDeliveryEnabled;
+    private long localRequestCount;
+    private long localReplyCount;
+    private long remoteRequestCount;
+    private long remoteReplyCount;
+    private long localFallbackCount;
+
+    @ConstructorProperties({"localDeliveryEnabled", "localRequestCount", "localReplyCount", "remoteRequestCount",
+            "remoteReplyCount", "localFallbackCount"})
+    public DeliveryStatistic(boolean localDeliveryEnabled, long localRequestCount, long localReplyCount, long remoteRequestCount,
+                             long remoteReplyCount, long localFallbackCount) {
+        this.localDeliveryEnabled = localDeliveryEnabled;
+        this.localRequestCount = localRequestCount;
+        this.localReplyCount = localReplyCount;
+        this.remoteRequestCount = remoteRequestCount;
+        this.remoteReplyCount = remoteReplyCount;
+        this.localFallbackCount = localFallbackCount;
+    }
+
+    public boolean isLocalDeliveryEnabled() {
+        return localDeliveryEnabled;
+    }
+
+    public long getLocalRequestCount() {
+        return localRequestCount;
+    }
+
+    public long getLocalReplyCount() {
+        return localReplyCount;
+    }
+
+    public long getRemoteRequestCount() {
+        return remoteRequestCount;
+    }
+
+    public long getRemoteReplyCount() {
+        return remoteReplyCount;
+    }
+
+    public long getLocalFallbackCount() {
+        return localFallbackCount;
+    }
+}
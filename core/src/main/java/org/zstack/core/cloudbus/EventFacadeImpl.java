@@ -8,9 +8,7 @@ import org.zstack.header.message.Event;
 import org.zstack.header.message.NeedJsonSchema;
 import org.zstack.utils.TypeUtils;
 
-import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -23,41 +21,26 @@ public class EventFacadeImpl implements EventFacade, CloudBusEventListener, Comp
     @Autowired
     private CloudBus bus;
 
-    private ConcurrentMap<Object, CallbackWrapper> callbacks = new ConcurrentHashMap<Object, CallbackWrapper>();
-    private final List<Object> toRemove = new ArrayList<Object>();
-    private final List<CallbackWrapper> toAdd = new ArrayList<CallbackWrapper>();
+    private final EventSubscriptionTrie<CallbackWrapper> subscriptions = new EventSubscriptionTrie<CallbackWrapper>();
     private EventSubscriberReceipt unsubscriber;
 
     private class CallbackWrapper {
-        String path;
-        String glob;
         Object callback;
         AtomicBoolean hasRun;
 
-        CallbackWrapper(String path, String glob, Object callback) {
-            this.path = path;
-            this.glob = glob;
+        CallbackWrapper(Object callback) {
             this.callback = callback;
             if (callback instanceof AutoOffEventCallback) {
                 hasRun = new AtomicBoolean(false);
             }
         }
 
-        Object getIdentity() {
-            return callback;
-        }
-
-        public String getGlob() {
-            return glob;
-        }
-
         @AsyncThread
-        void call(CanonicalEvent e) {
+        void call(CanonicalEvent e, Map<String, String> tokens) {
             if (callback instanceof Runnable) {
                 Runnable r = (Runnable)callback;
                 r.run();
             } else {
-                Map<String, String> tokens = tokenize(e.getPath(), path);
                 Object data = null;
                 if (e.getContent() != null) {
                     data = e.getContent();
@@ -78,78 +61,24 @@ public class EventFacadeImpl implements EventFacade, CloudBusEventListener, Comp
         }
     }
 
-    public String createRegexFromGlob(String glob) {
-        String out = "^";
-        for(int i = 0; i < glob.length(); ++i) {
-            final char c = glob.charAt(i);
-            switch(c) {
-                case '*': out += ".*"; break;
-                case '?': out += '.'; break;
-                case '\\': out += "\\\\"; break;
-                default: out += c;
-            }
-        }
-        out += '$';
-        return out;
-    }
-
-    private Map<String, String> tokenize(String str1, String str2) {
-        StringTokenizer token = new StringTokenizer(str1, "/");
-        List<String> origins =  new ArrayList<String>();
-        while (token.hasMoreElements()) {
-            origins.add(token.nextToken());
-        }
-
-        token = new StringTokenizer(str2, "/");
-        List<String> t = new ArrayList<String>();
-        while (token.hasMoreElements()) {
-            t.add(token.nextToken());
-        }
-
-        Map ret = new HashMap();
-        for (int i=0;i<t.size(); i++) {
-            String key = t.get(i);
-            if (!key.startsWith("{") || !key.endsWith("}")) {
-                continue;
-            }
-
-            key = key.replaceAll("\\{", "").replaceAll("\\}", "");
-            ret.put(key, origins.get(i));
-        }
-
-        return ret;
-    }
-
-
     @Override
     public void on(String path, AutoOffEventCallback cb) {
-        synchronized (toAdd) {
-            String glob = createRegexFromGlob(path.replaceAll("\\{.*\\}", ".*"));
-            toAdd.add(new CallbackWrapper(path, glob, cb));
-        }
+        subscriptions.subscribe(path, cb, new CallbackWrapper(cb));
     }
 
     @Override
     public void on(String path, final EventCallback cb) {
-        synchronized (toAdd) {
-            String glob = createRegexFromGlob(path.replaceAll("\\{.*\\}", ".*"));
-            toAdd.add(new CallbackWrapper(path, glob, cb));
-        }
+        subscriptions.subscribe(path, cb, new CallbackWrapper(cb));
     }
 
     @Override
     public void on(String path, Runnable runnable) {
-        synchronized (toAdd) {
-            String glob = createRegexFromGlob(path.replaceAll("\\{.*\\}", ".*"));
-            toAdd.add(new CallbackWrapper(path, glob, runnable));
-        }
+        subscriptions.subscribe(path, runnable, new CallbackWrapper(runnable));
     }
 
     @Override
     public void off(Object cb) {
-        synchronized (toRemove) {
-            toRemove.add(cb);
-        }
+        subscriptions.unsubscribe(cb);
     }
 
     @Override
@@ -173,31 +102,9 @@ public class EventFacadeImpl implements EventFacade, CloudBusEventListener, Comp
             return false;
         }
 
-        synchronized (toAdd) {
-            if (!toAdd.isEmpty()) {
-                for (CallbackWrapper wrapper : toAdd) {
-                    callbacks.put(wrapper.getIdentity(), wrapper);
-                }
-
-                toAdd.clear();
-            }
-        }
-
-        synchronized (toRemove) {
-            if (!toRemove.isEmpty()) {
-                for (Object cb : toRemove) {
-                    callbacks.remove(cb);
-                }
-
-                toRemove.clear();
-            }
-        }
-
         CanonicalEvent cevt = (CanonicalEvent)evt;
-        for (CallbackWrapper wrapper : callbacks.values()) {
-            if (cevt.getPath().matches(wrapper.getGlob())) {
-                wrapper.call(cevt);
-            }
+        for (EventSubscriptionTrie.Match<CallbackWrapper> m : subscriptions.match(cevt.getPath())) {
+            m.getValue().call(cevt, m.getTokens());
         }
 
         return false;
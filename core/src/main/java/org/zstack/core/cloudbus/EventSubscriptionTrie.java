@@ -0,0 +1,347 @@
+package org.zstack.core.cloudbus;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.regex.Pattern;
+
+/**
+ * subscriptions of canonical event paths kept in a trie of path segments, so an event is matched by walking
+ * its segments instead of testing every subscription. A segment of a subscribed path can be:
+ *
+ * 1. a literal, matching the same segment
+ * 2. {name}, matching any one segment, whose value is returned as token 'name'
+ * 3. *, matching one or more segments
+ * 4. a glob with '*' or '?' inside, e.g. ?e?t, matching one segment
+ *
+ * subscribe() and unsubscribe() are lock-free. Every node counts its children and subscriptions plus walkers
+ * passing it; a node whose count drops to zero is marked dead with a CAS and removed from its parent, walkers
+ * never stop at a dead node, so no subscription is lost in a removed branch.
+ */
+public class EventSubscriptionTrie<T> {
+    private static final String TOKEN_KEY = "{}";
+    private static final String MULTI_KEY = "*";
+
+    public static class Match<T> {
+        private final T value;
+        private final Map<String, String> tokens;
+
+        Match(T value, Map<String, String> tokens) {
+            this.value = value;
+            this.tokens = tokens;
+        }
+
+        public T getValue() {
+            return value;
+        }
+
+        public Map<String, String> getTokens() {
+            return tokens;
+        }
+    }
+
+    private static class Subscription<T> {
+        private final Object identity;
+        private final T value;
+        // token name of each segment of the subscribed path, null for segments not a token
+        private final String[] tokenNames;
+        private final Node<T> node;
+
+        Subscription(Object identity, T value, String[] tokenNames, Node<T> node) {
+            this.identity = identity;
+            this.value = value;
+            this.tokenNames = tokenNames;
+            this.node = node;
+        }
+    }
+
+    private static class Node<T> {
+        private static final AtomicReferenceFieldUpdater<Node, ConcurrentMap> childrenUpdater =
+                AtomicReferenceFieldUpdater.newUpdater(Node.class, ConcurrentMap.class, "children");
+        private static final AtomicReferenceFieldUpdater<Node, ConcurrentMap> globChildrenUpdater =
+                AtomicReferenceFieldUpdater.newUpdater(Node.class, ConcurrentMap.class, "globChildren");
+
+        private final Node<T> parent;
+        private final String key;
+        private final Pattern glob;
+        // -1 means dead
+        private final AtomicInteger refs;
+        private final ConcurrentMap<Object, Subscription<T>> subscriptions = new ConcurrentHashMap<Object, Subscription<T>>(2);
+        // most nodes are leaves, maps of children are created on demand
+        private volatile ConcurrentMap<String, Node<T>> children;
+        private volatile ConcurrentMap<String, Node<T>> globChildren;
+
+        Node(Node<T> parent, String key, Pattern glob, int refs) {
+            this.parent = parent;
+            this.key = key;
+            this.glob = glob;
+            this.refs = new AtomicInteger(refs);
+        }
+
+        ConcurrentMap<String, Node<T>> childMap(boolean isGlob, boolean create) {
+            ConcurrentMap<String, Node<T>> m = isGlob ? globChildren : children;
+            if (m == null && create) {
+                AtomicReferenceFieldUpdater<Node, ConcurrentMap> updater = isGlob ? globChildrenUpdater : childrenUpdater;
+                updater.compareAndSet(this, null, new ConcurrentHashMap<String, Node<T>>(4));
+                m = isGlob ? globChildren : children;
+            }
+            return m;
+        }
+
+        boolean acquire() {
+            while (true) {
+                int c = refs.get();
+                if (c < 0) {
+                    return false;
+                }
+                if (refs.compareAndSet(c, c + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void release() {
+            Node<T> n = this;
+            while (n != null && n.refs.decrementAndGet() == 0 && n.refs.compareAndSet(0, -1)) {
+                // n is dead, drop it from its parent and the reference it holds on the parent
+                n.parent.childMap(n.glob != null, false).remove(n.key, n);
+                n = n.parent;
+            }
+        }
+    }
+
+    private static class Segment {
+        private String key;
+        private Pattern glob;
+        private String tokenName;
+    }
+
+    // the root never dies
+    private final Node<T> root = new Node<T>(null, null, null, 1);
+    private final ConcurrentMap<Object, Subscription<T>> subscriptions = new ConcurrentHashMap<Object, Subscription<T>>();
+
+    static List<String> split(String path) {
+        List<String> ret = new ArrayList<String>();
+        int start = 0;
+        for (int i = 0; i <= path.length(); i++) {
+            if (i == path.length() || path.charAt(i) == '/') {
+                if (i > start) {
+                    ret.add(path.substring(start, i));
+                }
+                start = i + 1;
+            }
+        }
+        return ret;
+    }
+
+    private static Pattern globToPattern(String glob) {
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            String wildcard = null;
+            if (c == '*') {
+                wildcard = ".*";
+            } else if (c == '?') {
+                wildcard = ".";
+            } else if (c == '{') {
+                int end = glob.indexOf('}', i);
+                if (end > 0) {
+                    wildcard = ".*";
+                    i = end;
+                }
+            }
+
+            if (wildcard == null) {
+                literal.append(c);
+                continue;
+            }
+
+            if (literal.length() > 0) {
+                regex.append(Pattern.quote(literal.toString()));
+                literal = new StringBuilder();
+            }
+            regex.append(wildcard);
+        }
+        if (literal.length() > 0) {
+            regex.append(Pattern.quote(literal.toString()));
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    private static List<Segment> parse(String path) {
+        List<Segment> ret = new ArrayList<Segment>();
+        for (String s : split(path)) {
+            Segment seg = new Segment();
+            if (s.startsWith("{") && s.endsWith("}") && s.indexOf('{', 1) < 0) {
+                seg.key = TOKEN_KEY;
+                seg.tokenName = s.substring(1, s.length() - 1);
+            } else if (MULTI_KEY.equals(s)) {
+                seg.key = MULTI_KEY;
+            } else if (s.indexOf('*') >= 0 || s.indexOf('?') >= 0 || s.indexOf('{') >= 0) {
+                seg.key = s;
+                seg.glob = globToPattern(s);
+            } else {
+                seg.key = s;
+            }
+            ret.add(seg);
+        }
+        return ret;
+    }
+
+    /**
+     * walks down to the node of segments, creating missing nodes and skipping dead ones. The caller owns a
+     * reference on the returned node
+     */
+    private Node<T> walk(List<Segment> segments) {
+        Node<T> current = root;
+        current.acquire();
+        for (Segment seg : segments) {
+            Node<T> next = null;
+            while (next == null) {
+                ConcurrentMap<String, Node<T>> m = current.childMap(seg.glob != null, true);
+                Node<T> child = m.get(seg.key);
+                if (child != null) {
+                    if (child.acquire()) {
+                        next = child;
+                    } else {
+                        // dying, its pruner removes it soon
+                        m.remove(seg.key, child);
+                    }
+                    continue;
+                }
+
+                // the new child holds a reference on current; we hold one on current so it can't be dead
+                current.acquire();
+                child = new Node<T>(current, seg.key, seg.glob, 1);
+                if (m.putIfAbsent(seg.key, child) != null) {
+                    current.release();
+                    continue;
+                }
+                next = child;
+            }
+
+            current.release();
+            current = next;
+        }
+        return current;
+    }
+
+    /**
+     * subscribes a path, a subscription with the same identity is replaced
+     */
+    public void subscribe(String path, Object identity, T value) {
+        List<Segment> segments = parse(path);
+        String[] tokenNames = null;
+        for (int i = 0; i < segments.size(); i++) {
+            if (segments.get(i).tokenName != null) {
+                if (tokenNames == null) {
+                    tokenNames = new String[segments.size()];
+                }
+                tokenNames[i] = segments.get(i).tokenName;
+            }
+        }
+
+        // the reference from walk() is taken over by the subscription
+        Node<T> node = walk(segments);
+        Subscription<T> s = new Subscription<T>(identity, value, tokenNames, node);
+        if (node.subscriptions.put(identity, s) != null) {
+            node.release();
+        }
+
+        Subscription<T> old = subscriptions.put(identity, s);
+        if (old != null && old.node != node && old.node.subscriptions.remove(identity, old)) {
+            old.node.release();
+        }
+    }
+
+    public boolean unsubscribe(Object identity) {
+        Subscription<T> s = subscriptions.remove(identity);
+        if (s == null) {
+            return false;
+        }
+
+        if (s.node.subscriptions.remove(identity, s)) {
+            s.node.release();
+        }
+        return true;
+    }
+
+    public int size() {
+        return subscriptions.size();
+    }
+
+    public boolean isEmpty() {
+        return subscriptions.isEmpty();
+    }
+
+    private void collect(Node<T> node, String[] segs, int[] positions, Map<Object, Match<T>> result) {
+        for (Subscription<T> s : node.subscriptions.values()) {
+            if (result.containsKey(s.identity)) {
+                continue;
+            }
+
+            Map<String, String> tokens = new HashMap<String, String>();
+            if (s.tokenNames != null) {
+                for (int i = 0; i < s.tokenNames.length; i++) {
+                    if (s.tokenNames[i] != null) {
+                        tokens.put(s.tokenNames[i], segs[positions[i]]);
+                    }
+                }
+            }
+            result.put(s.identity, new Match<T>(s.value, tokens));
+        }
+    }
+
+    private void match(Node<T> node, String[] segs, int index, int depth, int[] positions, Map<Object, Match<T>> result) {
+        if (index == segs.length) {
+            collect(node, segs, positions, result);
+            return;
+        }
+
+        ConcurrentMap<String, Node<T>> children = node.children;
+        if (children != null) {
+            positions[depth] = index;
+            Node<T> child = children.get(segs[index]);
+            if (child != null) {
+                match(child, segs, index + 1, depth + 1, positions, result);
+            }
+
+            child = children.get(TOKEN_KEY);
+            if (child != null) {
+                match(child, segs, index + 1, depth + 1, positions, result);
+            }
+
+            child = children.get(MULTI_KEY);
+            if (child != null) {
+                for (int next = index + 1; next <= segs.length; next++) {
+                    positions[depth] = index;
+                    match(child, segs, next, depth + 1, positions, result);
+                }
+            }
+        }
+
+        ConcurrentMap<String, Node<T>> globChildren = node.globChildren;
+        if (globChildren != null) {
+            for (Node<T> child : globChildren.values()) {
+                if (child.glob.matcher(segs[index]).matches()) {
+                    positions[depth] = index;
+                    match(child, segs, index + 1, depth + 1, positions, result);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return subscriptions matching the path, each subscription appears once
+     */
+    public List<Match<T>> match(String path) {
+        List<String> lst = split(path);
+        String[] segs = lst.toArray(new String[lst.size()]);
+        Map<Object, Match<T>> result = new LinkedHashMap<Object, Match<T>>();
+        match(root, segs, 0, 0, new int[segs.length], result);
+        return new ArrayList<Match<T>>(result.values());
+    }
+}
@@ -0,0 +1,55 @@
+package org.zstack.core.cloudbus;
+
+import java.beans.ConstructorProperties;
+import java.util.Date;
+
+/**
+ */
+public class MembershipChangeStatistic {
+    private Date date;
+    private String event;
+    private String nodeId;
+    private int nodeNum;
+    private double movedFraction;
+    private int movedHostNum;
+    private int hostNum;
+
+    @ConstructorProperties({"date", "event", "nodeId", "nodeNum", "movedFraction", "movedHostNum", "hostNum"})
+    public MembershipChangeStatistic(Date date, String event, String nodeId, int nodeNum, double movedFraction, int movedHostNum, int hostNum) {
+        this.date = date;
+        this.event = event;
+        this.nodeId = nodeId;
+        this.nodeNum = nodeNum;
+        this.movedFraction = movedFraction;
+        this.movedHostNum = movedHostNum;
+        this.hostNum = hostNum;
+    }
+
+    public Date getDate() {
+        return date;
+    }
+
+    public String getEvent() {
+        return event;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public int getNodeNum() {
+        return nodeNum;
+    }
+
+    public double getMovedFraction() {
+        return movedFraction;
+    }
+
+    public int getMovedHostNum() {
+        return movedHostNum;
+    }
+
+    public int getHostNum() {
+        return hostNum;
+    }
+}
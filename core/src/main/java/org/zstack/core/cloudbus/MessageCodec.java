@@ -0,0 +1,20 @@
+package org.zstack.core.cloudbus;
+
+import org.zstack.header.message.Message;
+
+import java.io.IOException;
+
+/**
+ * converts messages to/from the bytes carried in an AMQP body.
+ *
+ * the codec used to encode a message is advertised by the content-type property of AMQP,
+ * receivers pick the codec by that property; a message without content-type is treated
+ * as JSON so nodes running old versions can still talk to us
+ */
+public interface MessageCodec {
+    String getContentType();
+
+    byte[] encode(Message msg) throws IOException;
+
+    Message decode(byte[] data) throws IOException;
+}
@@ -0,0 +1,74 @@
+package org.zstack.core.cloudbus;
+
+import java.beans.ConstructorProperties;
+
+/**
+ */
+public class PublishStatistic {
+    private int publisherNum;
+    private int queueDepth;
+    private long publishedCount;
+    private long failedCount;
+    private long batchCount;
+    private long averageBatchSize;
+    private long averageLatency;
+    private long maxLatency;
+    private boolean blocked;
+    private long blockedCount;
+
+    @ConstructorProperties({"publisherNum", "queueDepth", "publishedCount", "failedCount", "batchCount", "averageBatchSize",
+            "averageLatency", "maxLatency", "blocked", "blockedCount"})
+    public PublishStatistic(int publisherNum, int queueDepth, long publishedCount, long failedCount, long batchCount, long averageBatchSize,
+                            long averageLatency, long maxLatency, boolean blocked, long blockedCount) {
+        this.publisherNum = publisherNum;
+        this.queueDepth = queueDepth;
+        this.publishedCount = publishedCount;
+        this.failedCount = failedCount;
+        this.batchCount = batchCount;
+        this.averageBatchSize = averageBatchSize;
+        this.averageLatency = averageLatency;
+        this.maxLatency = maxLatency;
+        this.blocked = blocked;
+        this.blockedCount = blockedCount;
+    }
+
+    public int getPublisherNum() {
+        return publisherNum;
+    }
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public long getPublishedCount() {
+        return publishedCount;
+    }
+
+    public long getFailedCount() {
+        return failedCount;
+    }
+
+    public long getBatchCount() {
+        return batchCount;
+    }
+
+    public long getAverageBatchSize() {
+        return averageBatchSize;
+    }
+
+    public long getAverageLatency() {
+        return averageLatency;
+    }
+
+    public long getMaxLatency() {
+        return maxLatency;
+    }
+
+    public boolean isBlocked() {
+        return blocked;
+    }
+
+    public long getBlockedCount() {
+        return blockedCount;
+    }
+}
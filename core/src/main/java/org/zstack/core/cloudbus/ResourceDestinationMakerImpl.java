@@ -4,56 +4,153 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.zstack.core.Platform;
 import org.zstack.core.db.DatabaseFacade;
 import org.zstack.core.db.SimpleQuery;
+import org.zstack.core.jmx.JmxFacade;
 import org.zstack.header.exception.CloudRuntimeException;
+import org.zstack.header.host.HostVO;
+import org.zstack.header.host.HostVO_;
 import org.zstack.header.managementnode.ManagementNodeChangeListener;
 import org.zstack.header.managementnode.ManagementNodeVO;
 import org.zstack.header.managementnode.ManagementNodeVO_;
+import org.zstack.utils.Utils;
 import org.zstack.utils.hash.ApacheHash;
-import org.zstack.utils.hash.ConsistentHash;
+import org.zstack.utils.hash.ConsistentHashRing;
+import org.zstack.utils.logging.CLogger;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.*;
 
 /**
  * Created with IntelliJ IDEA.
  * User: frank
  * Time: 12:36 AM
  * To change this template use File | Settings | File Templates.
+ *
+ * the hash ring is immutable and swapped on membership change, lookups don't lock.
+ *
+ * when CloudBus.boundedLoadFactor is greater than 1, hosts are assigned with bounded load so no management
+ * node owns more than ceil(boundedLoadFactor * hosts / nodes) hosts; hosts moved off their ring owner are kept
+ * in an override map. The map is only recomputed on membership change, which every management node sees,
+ * from the sorted uuids of hosts in the database, so nodes agree on it as long as no host is added or deleted
+ * while the membership change is being handled. Hosts added later are routed by the ring until the next
+ * membership change, see CloudBusGlobalProperty.BOUNDED_LOAD_FACTOR.
  */
-public class ResourceDestinationMakerImpl implements ManagementNodeChangeListener, ResourceDestinationMaker {
-    private ConsistentHash<String> nodeHash = new ConsistentHash<String>(new ApacheHash(), 500, new ArrayList<String>()) ;
+public class ResourceDestinationMakerImpl implements ManagementNodeChangeListener, ResourceDestinationMaker, ResourceDestinationMakerMXBean {
+    private static final CLogger logger = Utils.getLogger(ResourceDestinationMakerImpl.class);
+    private static final int MAX_MEMBERSHIP_CHANGE_RECORDS = 100;
+
+    private static class Routing {
+        final ConsistentHashRing<String> ring;
+        final Map<String, String> overrides;
+
+        Routing(ConsistentHashRing<String> ring, Map<String, String> overrides) {
+            this.ring = ring;
+            this.overrides = overrides;
+        }
+
+        String get(String resourceUuid) {
+            String nodeUuid = overrides.get(resourceUuid);
+            return nodeUuid != null ? nodeUuid : ring.get(resourceUuid);
+        }
+    }
+
+    private volatile Routing routing = new Routing(
+            new ConsistentHashRing<String>(new ApacheHash(), 500, new ArrayList<String>()), new HashMap<String, String>());
+    private final LinkedList<MembershipChangeStatistic> membershipChanges = new LinkedList<MembershipChangeStatistic>();
 
     @Autowired
     private DatabaseFacade dbf;
+    @Autowired
+    private JmxFacade jmxf;
+
+    public void init() {
+        jmxf.registerBean("ResourceDestinationMaker", this);
+    }
+
+    private boolean isBoundedLoad() {
+        return CloudBusGlobalProperty.BOUNDED_LOAD_FACTOR > 1;
+    }
+
+    private List<String> getHostUuids() {
+        SimpleQuery<HostVO> q = dbf.createQuery(HostVO.class);
+        q.select(HostVO_.uuid);
+        List<String> huuids = q.listValue();
+        Collections.sort(huuids);
+        return huuids;
+    }
+
+    private Map<String, String> getOverrides(ConsistentHashRing<String> ring, List<String> hostUuids) {
+        if (!isBoundedLoad() || hostUuids == null) {
+            return new HashMap<String, String>();
+        }
+
+        return ring.getBoundedLoadOverrides(hostUuids, CloudBusGlobalProperty.BOUNDED_LOAD_FACTOR);
+    }
+
+    private synchronized void changeMembership(String event, String nodeId, ConsistentHashRing<String> ring) {
+        List<String> hostUuids = null;
+        try {
+            hostUuids = getHostUuids();
+        } catch (Throwable t) {
+            // the database may be gone when we are dying, route by the ring only
+            logger.warn(String.format("unable to load hosts when handling management node change[%s:%s]", event, nodeId), t);
+        }
+
+        Routing old = routing;
+        routing = new Routing(ring, getOverrides(ring, hostUuids));
+
+        int moved = -1;
+        if (hostUuids != null) {
+            moved = 0;
+            for (String huuid : hostUuids) {
+                String from = old.get(huuid);
+                if (from == null || !from.equals(routing.get(huuid))) {
+                    moved ++;
+                }
+            }
+        }
+
+        MembershipChangeStatistic stat = new MembershipChangeStatistic(new Date(), event, nodeId, ring.getNodes().size(),
+                ConsistentHashRing.getMovedFraction(old.ring, ring), moved, hostUuids == null ? -1 : hostUuids.size());
+        synchronized (membershipChanges) {
+            membershipChanges.add(stat);
+            if (membershipChanges.size() > MAX_MEMBERSHIP_CHANGE_RECORDS) {
+                membershipChanges.removeFirst();
+            }
+        }
+
+        logger.debug(String.format("management node change[%s:%s], %s nodes in the hash ring now, %.2f%% of hash space and %s of %s hosts moved",
+                event, nodeId, stat.getNodeNum(), stat.getMovedFraction() * 100, moved, stat.getHostNum()));
+    }
 
     @Override
-    public void nodeJoin(String nodeId) {
-        nodeHash.add(nodeId);
+    public synchronized void nodeJoin(String nodeId) {
+        changeMembership("nodeJoin", nodeId, routing.ring.add(nodeId));
     }
 
     @Override
-    public void nodeLeft(String nodeId) {
-        nodeHash.remove(nodeId);
+    public synchronized void nodeLeft(String nodeId) {
+        changeMembership("nodeLeft", nodeId, routing.ring.remove(nodeId));
     }
 
     @Override
-    public void iAmDead(String nodeId) {
-        nodeHash.remove(nodeId);
+    public synchronized void iAmDead(String nodeId) {
+        changeMembership("iAmDead", nodeId, routing.ring.remove(nodeId));
     }
 
     @Override
-    public void iJoin(String nodeId) {
+    public synchronized void iJoin(String nodeId) {
         SimpleQuery<ManagementNodeVO> q = dbf.createQuery(ManagementNodeVO.class);
         q.select(ManagementNodeVO_.uuid);
         List<String> nodeIds = q.listValue();
+        ConsistentHashRing<String> ring = routing.ring;
         for (String id : nodeIds) {
-            nodeHash.add(id);
+            ring = ring.add(id);
         }
+        changeMembership("iJoin", nodeId, ring);
     }
 
     @Override
     public String makeDestination(String resourceUuid) {
-        String nodeUuid = nodeHash.get(resourceUuid);
+        String nodeUuid = routing.get(resourceUuid);
         if (nodeUuid == null) {
             throw new CloudRuntimeException("Cannot find any available management node to send message");
         }
@@ -68,6 +165,31 @@ public class ResourceDestinationMakerImpl implements ManagementNodeChangeListene
     }
 
     public boolean isNodeInCircle(String nodeId) {
-        return nodeHash.hasNode(nodeId);
+        return routing.ring.hasNode(nodeId);
+    }
+
+    @Override
+    public List<MembershipChangeStatistic> getMembershipChanges() {
+        synchronized (membershipChanges) {
+            return new ArrayList<MembershipChangeStatistic>(membershipChanges);
+        }
+    }
+
+    @Override
+    public Map<String, Integer> getHostDistribution() {
+        Routing r = routing;
+        Map<String, Integer> ret = new HashMap<String, Integer>();
+        for (String node : r.ring.getNodes()) {
+            ret.put(node, 0);
+        }
+        if (r.ring.isEmpty()) {
+            return ret;
+        }
+
+        for (String huuid : getHostUuids()) {
+            String node = r.get(huuid);
+            ret.put(node, ret.get(node) + 1);
+        }
+        return ret;
     }
 }
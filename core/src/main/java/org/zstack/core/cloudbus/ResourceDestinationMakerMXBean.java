@@ -0,0 +1,12 @@
+package org.zstack.core.cloudbus;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ */
+public interface ResourceDestinationMakerMXBean {
+    List<MembershipChangeStatistic> getMembershipChanges();
+
+    Map<String, Integer> getHostDistribution();
+}
@@ -27,6 +27,7 @@ import org.zstack.utils.Utils;
 import org.zstack.utils.logging.CLogger;
 import org.zstack.utils.serializable.SerializableHelper;
 
+import javax.persistence.Query;
 import javax.persistence.Tuple;
 import javax.persistence.TypedQuery;
 import java.io.IOException;
@@ -37,7 +38,7 @@ import java.util.*;
  */
 public class JobQueueFacadeImpl2 implements JobQueueFacade, CloudBusEventListener, Component, ManagementNodeChangeListener {
     private static final CLogger logger = Utils.getLogger(JobQueueFacadeImpl2.class);
-    private static final String LOCK_NAME = "JobQueueFacade.lock";
+    private static final String LOCK_NAME_PREFIX = "JobQueueFacade.lock";
     private static final String ORPHAN_JOB_LOCK_NAME = "JobQueueFacade.orphanJobLock";
     private static final int LOCK_TIMEOUT = 60;
 
@@ -53,6 +54,15 @@ public class JobQueueFacadeImpl2 implements JobQueueFacade, CloudBusEventListene
     private volatile boolean stopped = false;
     private EventSubscriberReceipt unsubscriber;
 
+    /**
+     * the lock only guards creating/releasing a queue against adding jobs to it, so queues don't need to share
+     * one lock; queue names are hashed to a fixed number of stripes to keep DB locks bounded
+     */
+    private String getLockName(String queueName) {
+        int stripes = Math.max(1, JobGlobalProperty.JOB_QUEUE_LOCK_STRIPES);
+        return String.format("%s.%s", LOCK_NAME_PREFIX, (queueName.hashCode() & Integer.MAX_VALUE) % stripes);
+    }
+
     @Override
     public boolean handleEvent(Event e) {
         if (!(e instanceof JobEvent)) {
@@ -184,6 +194,8 @@ public class JobQueueFacadeImpl2 implements JobQueueFacade, CloudBusEventListene
     private <T> void execute(final String queueName, final String owner, final JobQueueEntryVO entry, final ReturnValueCompletion<T> completion, final Class<? extends T> returnType) {
         new JobWrapper() {
             private Long myJobId;
+            // pending jobs claimed from DB in one query, only touched by the thread processing the queue
+            private LinkedList<JobQueueEntryVO> claimed = new LinkedList<JobQueueEntryVO>();
 
             @Transactional
             private JobQueueVO saveJob() throws IOException {
@@ -253,45 +265,66 @@ public class JobQueueFacadeImpl2 implements JobQueueFacade, CloudBusEventListene
                 bus.publish(evt);
             }
 
-            private JobQueueEntryVO findJob(JobQueueVO qvo) {
+            private List<JobQueueEntryVO> findJobs(JobQueueVO qvo) {
                 SimpleQuery<JobQueueEntryVO> q = dbf.createQuery(JobQueueEntryVO.class);
                 q.add(JobQueueEntryVO_.state, SimpleQuery.Op.EQ, JobState.Pending);
                 q.add(JobQueueEntryVO_.jobQueueId, SimpleQuery.Op.EQ, qvo.getId());
-                q.setLimit(1);
+                q.setLimit(Math.max(1, JobGlobalProperty.JOB_QUEUE_BATCH_CLAIM_SIZE));
                 q.orderBy(JobQueueEntryVO_.id, SimpleQuery.Od.ASC);
-                return q.find();
+                return q.list();
             }
 
-            private Bucket takeJob(final JobQueueVO qvo) {
-                GLock lock = new GLock(LOCK_NAME, LOCK_TIMEOUT);
-                lock.lock();
-                try {
-                    JobQueueEntryVO jobe = findJob(qvo);
-                    if (jobe == null) {
-                        // nothing to do, release queue
-                        dbf.remove(qvo);
-                        logger.debug(String.format("[JobQueue released, no pending task, delete the queue] last owner: %s, queue name: %s, queue id: %s",
-                                qvo.getOwner(), qvo.getName(), qvo.getId()));
-                        return null;
-                    }
+            @Transactional
+            private boolean markProcessing(JobQueueEntryVO jobe) {
+                String sql = "update JobQueueEntryVO e set e.state = :processing where e.id = :id and e.state = :pending";
+                Query q = dbf.getEntityManager().createQuery(sql);
+                q.setParameter("processing", JobState.Processing);
+                q.setParameter("pending", JobState.Pending);
+                q.setParameter("id", jobe.getId());
+                return q.executeUpdate() == 1;
+            }
 
-                    while (true) {
+            private Bucket takeJob(final JobQueueVO qvo) {
+                while (true) {
+                    if (claimed.isEmpty()) {
+                        GLock lock = new GLock(getLockName(qvo.getName()), LOCK_TIMEOUT);
+                        lock.lock();
                         try {
-                            JobContextObject ctx = SerializableHelper.readObject(jobe.getContext());
-                            Job theJob = ctx.load();
-                            jobe.setState(JobState.Processing);
-                            jobe = dbf.updateAndRefresh(jobe);
-                            return Bucket.newBucket(jobe, theJob);
-                        } catch (Exception e1) {
-                            String err = String.format("[Job de-serialize failed, the job will be marked as Error] queue name: %s, job id: %s, %s", qvo.getName(),
-                                    jobe.getId(), e1.getMessage());
-                            logger.warn(err, e1);
-                            jobFail(jobe, errf.stringToInternalError(err));
-                            jobe = findJob(qvo);
+                            claimed.addAll(findJobs(qvo));
+                            if (claimed.isEmpty()) {
+                                // nothing to do, release queue
+                                dbf.remove(qvo);
+                                logger.debug(String.format("[JobQueue released, no pending task, delete the queue] last owner: %s, queue name: %s, queue id: %s",
+                                        qvo.getOwner(), qvo.getName(), qvo.getId()));
+                                return null;
+                            }
+                        } finally {
+                            lock.unlock();
                         }
                     }
-                } finally {
-                    lock.unlock();
+
+                    // claimed jobs stay Pending in DB until they start, so a node taking over the queue restarts them
+                    // as if they were never claimed
+                    JobQueueEntryVO jobe = claimed.poll();
+                    Job theJob;
+                    try {
+                        JobContextObject ctx = SerializableHelper.readObject(jobe.getContext());
+                        theJob = ctx.load();
+                    } catch (Exception e1) {
+                        String err = String.format("[Job de-serialize failed, the job will be marked as Error] queue name: %s, job id: %s, %s", qvo.getName(),
+                                jobe.getId(), e1.getMessage());
+                        logger.warn(err, e1);
+                        jobFail(jobe, errf.stringToInternalError(err));
+                        continue;
+                    }
+
+                    if (!markProcessing(jobe)) {
+                        logger.debug(String.format("[Job skipped] job[id:%s, name:%s] is no longer pending", jobe.getId(), jobe.getName()));
+                        continue;
+                    }
+
+                    jobe.setState(JobState.Processing);
+                    return Bucket.newBucket(jobe, theJob);
                 }
             }
 
@@ -349,7 +382,7 @@ public class JobQueueFacadeImpl2 implements JobQueueFacade, CloudBusEventListene
                 }
 
                 try {
-                    GLock lock = new GLock(LOCK_NAME, LOCK_TIMEOUT);
+                    GLock lock = new GLock(getLockName(queueName), LOCK_TIMEOUT);
                     JobQueueVO qvo = null;
                     lock.lock();
                     try {
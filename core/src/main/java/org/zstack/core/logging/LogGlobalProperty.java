@@ -9,4 +9,18 @@ import org.zstack.core.GlobalPropertyDefinition;
 public class LogGlobalProperty {
     @GlobalProperty(name="LogFacade.backend", defaultValue = LogConstant.MYSQL_BACKEND_TYPE)
     public static String LOG_FACADE_BACKEND_TYPE;
+    @GlobalProperty(name="MysqlLogBackend.bufferSize", defaultValue = "10000")
+    public static int MYSQL_BACKEND_BUFFER_SIZE;
+    @GlobalProperty(name="MysqlLogBackend.batchSize", defaultValue = "500")
+    public static int MYSQL_BACKEND_BATCH_SIZE;
+    @GlobalProperty(name="MysqlLogBackend.flushInterval", defaultValue = "1000")
+    public static long MYSQL_BACKEND_FLUSH_INTERVAL;
+    @GlobalProperty(name="MysqlLogBackend.overflowPolicy", defaultValue = MysqlLogBackend.OVERFLOW_POLICY_DROP)
+    public static String MYSQL_BACKEND_OVERFLOW_POLICY;
+    @GlobalProperty(name="MysqlLogBackend.sampleRate", defaultValue = "10")
+    public static int MYSQL_BACKEND_SAMPLE_RATE;
+    @GlobalProperty(name="MysqlLogBackend.spill", defaultValue = "false")
+    public static boolean MYSQL_BACKEND_SPILL;
+    @GlobalProperty(name="MysqlLogBackend.spillFile", defaultValue = "mysql-log-backend.spill")
+    public static String MYSQL_BACKEND_SPILL_FILE;
 }
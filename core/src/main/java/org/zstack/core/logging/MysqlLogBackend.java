@@ -1,37 +1,73 @@
 package org.zstack.core.logging;
 
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.transaction.annotation.Transactional;
 import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.jmx.JmxFacade;
 import org.zstack.core.thread.Task;
 import org.zstack.core.thread.ThreadFacade;
-import org.zstack.utils.CollectionUtils;
 import org.zstack.utils.Utils;
-import org.zstack.utils.function.Function;
 import org.zstack.utils.gson.JSONObjectUtil;
 import org.zstack.utils.logging.CLogger;
+import org.zstack.utils.path.PathUtil;
 
+import java.io.*;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * logs are buffered in a bounded queue and written by one thread with multi-row inserts, a batch is flushed
+ * when it has MysqlLogBackend.batchSize logs or MysqlLogBackend.flushInterval milliseconds passed.
+ *
+ * write() never blocks. When the queue is full a log is dropped; with overflowPolicy = sample, only one of
+ * MysqlLogBackend.sampleRate Info logs is kept once the queue is 80% full.
+ *
+ * with MysqlLogBackend.spill = true, batches that fail to write or come when the queue is 80% full are appended
+ * to a local spill file, which is written to database when the queue becomes empty.
  */
-public class MysqlLogBackend implements LogBackend {
+public class MysqlLogBackend implements LogBackend, MysqlLogBackendMXBean {
     private static final CLogger logger = Utils.getLogger(MysqlLogBackend.class);
 
+    public static final String OVERFLOW_POLICY_DROP = "drop";
+    public static final String OVERFLOW_POLICY_SAMPLE = "sample";
+
+    private static final String INSERT_SQL = "INSERT INTO LogVO (content, type, level, resourceUuid, createDate) VALUES ";
+    private static final String INSERT_VALUES = "(?, ?, ?, ?, ?)";
+
     @Autowired
     private DatabaseFacade dbf;
     @Autowired
     private ThreadFacade thdf;
+    @Autowired
+    private JmxFacade jmxf;
 
     private volatile boolean isStarted;
-    private BlockingQueue queue = new LinkedBlockingQueue();
-    private QuitToken quitToken =new QuitToken();
+    private BlockingQueue<LogVO> queue;
+    private Future<Void> logThread;
+    private File spillFile;
+    private final Object spillLock = new Object();
+
+    private final AtomicLong writtenNum = new AtomicLong();
+    private final AtomicLong droppedNum = new AtomicLong();
+    private final AtomicLong sampledOutNum = new AtomicLong();
+    private final AtomicLong failedNum = new AtomicLong();
+    private final AtomicLong spilledNum = new AtomicLong();
+    private final AtomicLong sampleCounter = new AtomicLong();
+
+    public void init() {
+        jmxf.registerBean("MysqlLogBackend", this);
+    }
 
-    class QuitToken {
+    private boolean isQueueBusy() {
+        return queue.size() >= LogGlobalProperty.MYSQL_BACKEND_BUFFER_SIZE * 0.8;
     }
 
     @Override
@@ -40,10 +76,20 @@ public class MysqlLogBackend implements LogBackend {
             return;
         }
 
-        try {
-            queue.offer(log, 60, TimeUnit.SECONDS);
-        } catch (InterruptedException e) {
-            logger.warn(String.format("unable to write log %s", JSONObjectUtil.toJsonString(log)), e);
+        if (log.getCreateDate() == null) {
+            log.setCreateDate(new Timestamp(System.currentTimeMillis()));
+        }
+
+        if (OVERFLOW_POLICY_SAMPLE.equals(LogGlobalProperty.MYSQL_BACKEND_OVERFLOW_POLICY) && log.getLevel() == LogLevel.Info
+                && isQueueBusy() && sampleCounter.incrementAndGet() % LogGlobalProperty.MYSQL_BACKEND_SAMPLE_RATE != 0) {
+            sampledOutNum.incrementAndGet();
+            return;
+        }
+
+        if (!queue.offer(log)) {
+            if (droppedNum.incrementAndGet() % 1000 == 1) {
+                logger.warn(String.format("log queue is full[capacity:%s], %s logs dropped so far", LogGlobalProperty.MYSQL_BACKEND_BUFFER_SIZE, droppedNum.get()));
+            }
         }
     }
 
@@ -52,36 +98,175 @@ public class MysqlLogBackend implements LogBackend {
         return LogConstant.MYSQL_BACKEND_TYPE;
     }
 
-    @Transactional
-    private void batchWrite(List lst) {
-        for (Object obj : lst) {
-            LogVO vo = (LogVO) obj;
-            dbf.getEntityManager().persist(vo);
+    private void insert(List<LogVO> lst) throws SQLException {
+        StringBuilder sql = new StringBuilder(INSERT_SQL);
+        for (int i = 0; i < lst.size(); i++) {
+            sql.append(i == 0 ? INSERT_VALUES : "," + INSERT_VALUES);
+        }
+
+        Connection conn = dbf.getDataSource().getConnection();
+        try {
+            PreparedStatement pstmt = conn.prepareStatement(sql.toString());
+            try {
+                int i = 1;
+                for (LogVO vo : lst) {
+                    pstmt.setString(i++, vo.getContent());
+                    pstmt.setString(i++, vo.getType() == null ? null : vo.getType().toString());
+                    pstmt.setString(i++, vo.getLevel() == null ? null : vo.getLevel().toString());
+                    pstmt.setString(i++, vo.getResourceUuid());
+                    pstmt.setTimestamp(i++, vo.getCreateDate());
+                }
+                pstmt.executeUpdate();
+            } finally {
+                pstmt.close();
+            }
+        } finally {
+            conn.close();
+        }
+
+        writtenNum.addAndGet(lst.size());
+    }
+
+    private void spill(List<LogVO> lst) {
+        synchronized (spillLock) {
+            try {
+                Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(spillFile, true), "UTF-8"));
+                try {
+                    for (LogVO vo : lst) {
+                        writer.write(JSONObjectUtil.toJsonString(vo));
+                        writer.write("\n");
+                    }
+                } finally {
+                    writer.close();
+                }
+                spilledNum.addAndGet(lst.size());
+            } catch (IOException e) {
+                failedNum.addAndGet(lst.size());
+                logger.warn(String.format("unable to spill %s logs to %s", lst.size(), spillFile.getAbsolutePath()), e);
+            }
+        }
+    }
+
+    private void flush(List<LogVO> lst) {
+        if (LogGlobalProperty.MYSQL_BACKEND_SPILL && isQueueBusy()) {
+            // database falls behind, spill the batch so the queue drains quickly
+            spill(lst);
+            return;
+        }
+
+        try {
+            insert(lst);
+        } catch (Exception e) {
+            logger.warn(String.format("unable to write %s logs to database", lst.size()), e);
+            if (LogGlobalProperty.MYSQL_BACKEND_SPILL) {
+                spill(lst);
+            } else {
+                failedNum.addAndGet(lst.size());
+            }
+        }
+    }
+
+    private void replaySpill() throws IOException {
+        synchronized (spillLock) {
+            File replaying = new File(spillFile.getAbsolutePath() + ".replaying");
+            if (!replaying.exists()) {
+                if (!spillFile.exists() || spillFile.length() == 0) {
+                    return;
+                }
+
+                if (!spillFile.renameTo(replaying)) {
+                    throw new IOException(String.format("unable to rename %s to %s", spillFile.getAbsolutePath(), replaying.getAbsolutePath()));
+                }
+            }
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(replaying), "UTF-8"));
+            List<LogVO> remaining = null;
+            try {
+                List<LogVO> lst = new ArrayList<LogVO>();
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (remaining != null) {
+                        remaining.add(JSONObjectUtil.toObject(line, LogVO.class));
+                        continue;
+                    }
+
+                    lst.add(JSONObjectUtil.toObject(line, LogVO.class));
+                    if (lst.size() < LogGlobalProperty.MYSQL_BACKEND_BATCH_SIZE) {
+                        continue;
+                    }
+
+                    try {
+                        insert(lst);
+                    } catch (SQLException e) {
+                        logger.warn("unable to write spilled logs to database, try it later", e);
+                        remaining = lst;
+                    }
+                    lst = new ArrayList<LogVO>();
+                }
+
+                if (remaining == null && !lst.isEmpty()) {
+                    try {
+                        insert(lst);
+                    } catch (SQLException e) {
+                        logger.warn("unable to write spilled logs to database, try it later", e);
+                        remaining = lst;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+
+            if (!replaying.delete()) {
+                logger.warn(String.format("unable to delete %s", replaying.getAbsolutePath()));
+            }
+
+            if (remaining != null) {
+                spilledNum.addAndGet(-remaining.size());
+                spill(remaining);
+            }
         }
     }
 
     private void consume() throws InterruptedException {
-        while (true) {
-            List lst = new ArrayList();
-            lst.add(queue.take());
-            queue.drainTo(lst);
-            if (lst.contains(quitToken)) {
-                List ret = CollectionUtils.transformToList(lst, new Function() {
-                    @Override
-                    public Object call(Object arg) {
-                        return arg instanceof LogVO ? arg : null;
+        long flushInterval = LogGlobalProperty.MYSQL_BACKEND_FLUSH_INTERVAL;
+        int batchSize = LogGlobalProperty.MYSQL_BACKEND_BATCH_SIZE;
+
+        while (isStarted || !queue.isEmpty()) {
+            LogVO first = queue.poll(flushInterval, TimeUnit.MILLISECONDS);
+            if (first == null) {
+                if (LogGlobalProperty.MYSQL_BACKEND_SPILL) {
+                    try {
+                        replaySpill();
+                    } catch (Exception e) {
+                        logger.warn("unable to replay spilled logs", e);
                     }
-                });
-                batchWrite(ret);
-                return;
+                }
+                continue;
             }
 
-            batchWrite(lst);
+            List<LogVO> lst = new ArrayList<LogVO>(batchSize);
+            lst.add(first);
+            long deadline = System.currentTimeMillis() + flushInterval;
+            while (lst.size() < batchSize) {
+                queue.drainTo(lst, batchSize - lst.size());
+                long wait = deadline - System.currentTimeMillis();
+                if (lst.size() >= batchSize || wait <= 0) {
+                    break;
+                }
+
+                LogVO vo = queue.poll(wait, TimeUnit.MILLISECONDS);
+                if (vo == null) {
+                    break;
+                }
+                lst.add(vo);
+            }
+
+            flush(lst);
         }
     }
 
     private void startLogThread() {
-        thdf.submit(new Task<Void>() {
+        logThread = thdf.submit(new Task<Void>() {
             @Override
             public String getName() {
                 return "log-thread";
@@ -96,22 +281,61 @@ public class MysqlLogBackend implements LogBackend {
     }
 
     @Override
-    public void start() {
-        isStarted = true;
-        startLogThread();
-    }
+    public synchronized void start() {
+        if (queue == null) {
+            queue = new ArrayBlockingQueue<LogVO>(LogGlobalProperty.MYSQL_BACKEND_BUFFER_SIZE);
+            spillFile = new File(PathUtil.getFilePathUnderZStackHomeFolder(LogGlobalProperty.MYSQL_BACKEND_SPILL_FILE));
+        }
 
-    private void quit() {
-        try {
-            queue.offer(quitToken, 60, TimeUnit.SECONDS);
-        } catch (InterruptedException e) {
-            logger.warn(e.getMessage(), e);
+        isStarted = true;
+        if (logThread == null || logThread.isDone()) {
+            startLogThread();
         }
     }
 
     @Override
     public void stop() {
+        // the log thread quits after writing logs left in the queue
         isStarted = false;
-        quit();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queue == null ? 0 : queue.size();
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        return LogGlobalProperty.MYSQL_BACKEND_BUFFER_SIZE;
+    }
+
+    @Override
+    public long getWrittenLogNum() {
+        return writtenNum.get();
+    }
+
+    @Override
+    public long getDroppedLogNum() {
+        return droppedNum.get();
+    }
+
+    @Override
+    public long getSampledOutLogNum() {
+        return sampledOutNum.get();
+    }
+
+    @Override
+    public long getFailedLogNum() {
+        return failedNum.get();
+    }
+
+    @Override
+    public long getSpilledLogNum() {
+        return spilledNum.get();
+    }
+
+    @Override
+    public long getSpillFileSize() {
+        return spillFile == null || !spillFile.exists() ? 0 : spillFile.length();
     }
 }
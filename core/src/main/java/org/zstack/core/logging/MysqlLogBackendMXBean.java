@@ -0,0 +1,21 @@
+package org.zstack.core.logging;
+
+/**
+ */
+public interface MysqlLogBackendMXBean {
+    int getQueueDepth();
+
+    int getQueueCapacity();
+
+    long getWrittenLogNum();
+
+    long getDroppedLogNum();
+
+    long getSampledOutLogNum();
+
+    long getFailedLogNum();
+
+    long getSpilledLogNum();
+
+    long getSpillFileSize();
+}
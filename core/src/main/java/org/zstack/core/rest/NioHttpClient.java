@@ -0,0 +1,629 @@
+package org.zstack.core.rest;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.zstack.header.exception.CloudRuntimeException;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * a small HTTP/1.1 client on top of java.nio, used by RESTFacade to post commands to agents.
+ *
+ * all sockets are served by one selector thread, so a request waiting for an agent doesn't hold any thread.
+ * Connections are pooled per host:port with an upper limit, requests beyond the limit wait in the queue of
+ * the host; connections are kept alive after a response and closed when idle longer than keepAliveTime.
+ *
+ * handlers are called in the selector thread, they must not block
+ */
+public class NioHttpClient {
+    private static final CLogger logger = Utils.getLogger(NioHttpClient.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int MAX_LINE_LENGTH = 65536;
+
+    public interface ResponseHandler {
+        void success(ResponseEntity<String> rsp);
+
+        void fail(Throwable t);
+    }
+
+    private int maxConnectionsPerHost = 32;
+    private long connectTimeout = 15000;
+    private long keepAliveTime = 60000;
+
+    private Selector selector;
+    private Thread ioThread;
+    private volatile boolean running;
+    private final ConcurrentLinkedQueue<Runnable> ioTasks = new ConcurrentLinkedQueue<Runnable>();
+    // below are only touched in the selector thread
+    private final Map<String, HostPool> pools = new HashMap<String, HostPool>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(16384);
+
+    private class Request {
+        String hostKey;
+        InetSocketAddress address;
+        ByteBuffer data;
+        long deadline;
+        ResponseHandler handler;
+        boolean retried;
+    }
+
+    private class HostPool {
+        final String key;
+        final LinkedList<Connection> idle = new LinkedList<Connection>();
+        final LinkedList<Request> pending = new LinkedList<Request>();
+        final Set<Connection> connections = new HashSet<Connection>();
+
+        HostPool(String key) {
+            this.key = key;
+        }
+
+        void dispatch() {
+            while (!pending.isEmpty()) {
+                Connection conn = idle.poll();
+                if (conn != null) {
+                    conn.assign(pending.poll());
+                    continue;
+                }
+
+                if (connections.size() >= maxConnectionsPerHost) {
+                    break;
+                }
+
+                openConnection(this, pending.poll());
+            }
+        }
+    }
+
+    private class Connection {
+        final HostPool pool;
+        SocketChannel channel;
+        SelectionKey key;
+        boolean connected;
+        boolean closed;
+        long connectStartTime;
+        long idleSince;
+        // number of responses already received on this connection
+        int served;
+
+        Request request;
+        ByteBuffer out;
+        ResponseParser parser;
+
+        Connection(HostPool pool) {
+            this.pool = pool;
+        }
+
+        void assign(Request req) {
+            request = req;
+            out = req.data.duplicate();
+            parser = new ResponseParser();
+            if (connected) {
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    private static class ResponseParser {
+        private enum State {
+            STATUS_LINE,
+            HEADERS,
+            BODY,
+            CHUNK_SIZE,
+            CHUNK_DATA,
+            CHUNK_END,
+            TRAILERS,
+            BODY_TO_EOF,
+            DONE
+        }
+
+        State state = State.STATUS_LINE;
+        StringBuilder line = new StringBuilder();
+        String version;
+        int statusCode;
+        HttpHeaders headers = new HttpHeaders();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        long remaining;
+        boolean keepAlive;
+        boolean received;
+
+        boolean feed(ByteBuffer buf) throws IOException {
+            received = true;
+            while (buf.hasRemaining() && state != State.DONE) {
+                if (state == State.BODY || state == State.CHUNK_DATA) {
+                    int n = (int) Math.min(remaining, buf.remaining());
+                    body.write(buf.array(), buf.arrayOffset() + buf.position(), n);
+                    buf.position(buf.position() + n);
+                    remaining -= n;
+                    if (remaining == 0) {
+                        state = state == State.BODY ? State.DONE : State.CHUNK_END;
+                    }
+                } else if (state == State.BODY_TO_EOF) {
+                    body.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+                    buf.position(buf.limit());
+                } else {
+                    String l = readLine(buf);
+                    if (l == null) {
+                        return false;
+                    }
+                    onLine(l);
+                }
+            }
+
+            if (state == State.DONE && buf.hasRemaining()) {
+                // we never pipeline requests, anything beyond the response means the connection is unusable
+                keepAlive = false;
+            }
+
+            return state == State.DONE;
+        }
+
+        boolean finishOnEof() {
+            if (state == State.BODY_TO_EOF) {
+                state = State.DONE;
+                return true;
+            }
+            return false;
+        }
+
+        private String readLine(ByteBuffer buf) throws IOException {
+            while (buf.hasRemaining()) {
+                char c = (char) (buf.get() & 0xff);
+                if (c == '\n') {
+                    String ret = line.toString();
+                    line.setLength(0);
+                    return ret;
+                } else if (c != '\r') {
+                    line.append(c);
+                    if (line.length() > MAX_LINE_LENGTH) {
+                        throw new IOException(String.format("HTTP response line longer than %s bytes", MAX_LINE_LENGTH));
+                    }
+                }
+            }
+            return null;
+        }
+
+        private void onLine(String l) throws IOException {
+            if (state == State.STATUS_LINE) {
+                if (l.isEmpty()) {
+                    return;
+                }
+
+                String[] parts = l.split(" ", 3);
+                if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+                    throw new IOException(String.format("invalid HTTP status line: %s", l));
+                }
+                version = parts[0];
+                try {
+                    statusCode = Integer.valueOf(parts[1]);
+                } catch (NumberFormatException e) {
+                    throw new IOException(String.format("invalid HTTP status line: %s", l));
+                }
+                state = State.HEADERS;
+            } else if (state == State.HEADERS) {
+                if (l.isEmpty()) {
+                    headersDone();
+                    return;
+                }
+
+                int idx = l.indexOf(':');
+                if (idx > 0) {
+                    headers.add(l.substring(0, idx).trim(), l.substring(idx + 1).trim());
+                }
+            } else if (state == State.CHUNK_SIZE) {
+                int idx = l.indexOf(';');
+                String size = (idx == -1 ? l : l.substring(0, idx)).trim();
+                try {
+                    remaining = Long.parseLong(size, 16);
+                } catch (NumberFormatException e) {
+                    throw new IOException(String.format("invalid HTTP chunk size: %s", l));
+                }
+                state = remaining == 0 ? State.TRAILERS : State.CHUNK_DATA;
+            } else if (state == State.CHUNK_END) {
+                state = State.CHUNK_SIZE;
+            } else if (state == State.TRAILERS) {
+                if (l.isEmpty()) {
+                    state = State.DONE;
+                }
+            }
+        }
+
+        private void headersDone() throws IOException {
+            if (statusCode >= 100 && statusCode < 200) {
+                headers = new HttpHeaders();
+                state = State.STATUS_LINE;
+                return;
+            }
+
+            String connection = headers.getFirst("Connection");
+            if ("HTTP/1.1".equals(version)) {
+                keepAlive = !"close".equalsIgnoreCase(connection);
+            } else {
+                keepAlive = "keep-alive".equalsIgnoreCase(connection);
+            }
+
+            String encoding = headers.getFirst("Transfer-Encoding");
+            String length = headers.getFirst("Content-Length");
+            if (statusCode == 204 || statusCode == 304) {
+                state = State.DONE;
+            } else if (encoding != null && encoding.toLowerCase().contains("chunked")) {
+                state = State.CHUNK_SIZE;
+            } else if (length != null) {
+                try {
+                    remaining = Long.parseLong(length.trim());
+                } catch (NumberFormatException e) {
+                    throw new IOException(String.format("invalid HTTP Content-Length: %s", length));
+                }
+                state = remaining == 0 ? State.DONE : State.BODY;
+            } else {
+                state = State.BODY_TO_EOF;
+                keepAlive = false;
+            }
+        }
+
+        ResponseEntity<String> toResponseEntity() {
+            String b = new String(body.toByteArray(), UTF8);
+            return new ResponseEntity<String>(b, headers, HttpStatus.valueOf(statusCode));
+        }
+    }
+
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    public void setConnectTimeout(long connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public void setKeepAliveTime(long keepAliveTime) {
+        this.keepAliveTime = keepAliveTime;
+    }
+
+    public void start() {
+        try {
+            selector = Selector.open();
+        } catch (IOException e) {
+            throw new CloudRuntimeException(e);
+        }
+
+        running = true;
+        ioThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "nio-http-client");
+        ioThread.setDaemon(true);
+        ioThread.start();
+    }
+
+    public void stop() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * @param timeout in milliseconds, the request fails if no response received in time
+     */
+    public void post(String url, HttpHeaders headers, String body, long timeout, ResponseHandler handler) {
+        if (!running) {
+            throw new CloudRuntimeException("NIO http client is not running");
+        }
+
+        URI uri = URI.create(url);
+        if (!"http".equalsIgnoreCase(uri.getScheme()) || uri.getHost() == null) {
+            throw new CloudRuntimeException(String.format("NIO http client only supports http url, but got %s", url));
+        }
+
+        int port = uri.getPort() == -1 ? 80 : uri.getPort();
+        String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+        if (uri.getRawQuery() != null) {
+            path = path + "?" + uri.getRawQuery();
+        }
+
+        byte[] content = body == null ? new byte[0] : body.getBytes(UTF8);
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("POST %s HTTP/1.1\r\n", path));
+        sb.append(String.format("Host: %s:%s\r\n", uri.getHost(), port));
+        sb.append("Connection: keep-alive\r\n");
+        sb.append(String.format("Content-Length: %s\r\n", content.length));
+        if (headers != null) {
+            for (Entry<String, List<String>> e : headers.entrySet()) {
+                String name = e.getKey();
+                if ("Content-Length".equalsIgnoreCase(name) || "Host".equalsIgnoreCase(name) || "Connection".equalsIgnoreCase(name)) {
+                    continue;
+                }
+                for (String v : e.getValue()) {
+                    sb.append(name).append(": ").append(v).append("\r\n");
+                }
+            }
+        }
+        sb.append("\r\n");
+        byte[] head = sb.toString().getBytes(UTF8);
+
+        final Request req = new Request();
+        req.hostKey = String.format("%s:%s", uri.getHost(), port);
+        req.address = new InetSocketAddress(uri.getHost(), port);
+        if (req.address.isUnresolved()) {
+            throw new CloudRuntimeException(String.format("unable to resolve host[%s]", uri.getHost()));
+        }
+        req.data = ByteBuffer.allocate(head.length + content.length);
+        req.data.put(head);
+        req.data.put(content);
+        req.data.flip();
+        req.deadline = System.currentTimeMillis() + timeout;
+        req.handler = handler;
+
+        ioTasks.offer(new Runnable() {
+            @Override
+            public void run() {
+                HostPool pool = pools.get(req.hostKey);
+                if (pool == null) {
+                    pool = new HostPool(req.hostKey);
+                    pools.put(req.hostKey, pool);
+                }
+                pool.pending.add(req);
+                pool.dispatch();
+            }
+        });
+        selector.wakeup();
+    }
+
+    private void loop() {
+        long lastScan = System.currentTimeMillis();
+        while (running) {
+            try {
+                selector.select(1000);
+
+                Runnable r;
+                while ((r = ioTasks.poll()) != null) {
+                    r.run();
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    handleKey(key);
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastScan >= 1000) {
+                    scanTimeout(now);
+                    lastScan = now;
+                }
+            } catch (Throwable t) {
+                logger.warn("unhandled exception in NIO http client", t);
+            }
+        }
+
+        for (HostPool pool : pools.values()) {
+            for (Connection conn : new ArrayList<Connection>(pool.connections)) {
+                Request req = conn.request;
+                closeConnection(conn);
+                if (req != null) {
+                    failRequest(req, new IOException("NIO http client is stopped"));
+                }
+            }
+            for (Request req : pool.pending) {
+                failRequest(req, new IOException("NIO http client is stopped"));
+            }
+        }
+        pools.clear();
+
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.warn(e.getMessage(), e);
+        }
+    }
+
+    private void openConnection(HostPool pool, Request req) {
+        Connection conn = new Connection(pool);
+        pool.connections.add(conn);
+        conn.connectStartTime = System.currentTimeMillis();
+        try {
+            conn.channel = SocketChannel.open();
+            conn.channel.configureBlocking(false);
+            conn.channel.socket().setTcpNoDelay(true);
+            conn.channel.socket().setKeepAlive(true);
+            conn.connected = conn.channel.connect(req.address);
+            conn.key = conn.channel.register(selector, conn.connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, conn);
+            conn.assign(req);
+        } catch (Exception e) {
+            closeConnection(conn);
+            failRequest(req, e);
+        }
+    }
+
+    private void handleKey(SelectionKey key) {
+        Connection conn = (Connection) key.attachment();
+        try {
+            if (!key.isValid()) {
+                return;
+            }
+
+            if (key.isConnectable()) {
+                conn.channel.finishConnect();
+                conn.connected = true;
+                key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+
+            if (key.isWritable()) {
+                conn.channel.write(conn.out);
+                if (!conn.out.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+                return;
+            }
+
+            if (key.isReadable()) {
+                readBuffer.clear();
+                int n = conn.channel.read(readBuffer);
+                if (n < 0) {
+                    onPeerClosed(conn);
+                    return;
+                }
+
+                if (conn.request == null) {
+                    // the connection is idle and the peer sends nothing we asked for
+                    closeConnection(conn);
+                    return;
+                }
+
+                readBuffer.flip();
+                if (conn.parser.feed(readBuffer)) {
+                    onResponse(conn);
+                }
+            }
+        } catch (IOException e) {
+            onConnectionError(conn, e);
+        }
+    }
+
+    private void onPeerClosed(Connection conn) {
+        if (conn.request == null) {
+            closeConnection(conn);
+        } else if (conn.parser.finishOnEof()) {
+            conn.parser.keepAlive = false;
+            onResponse(conn);
+        } else {
+            onConnectionError(conn, new IOException(String.format("connection to %s closed before a response is received", conn.pool.key)));
+        }
+    }
+
+    private void onConnectionError(Connection conn, IOException e) {
+        Request req = conn.request;
+        // a kept-alive connection may be closed by the peer just when we reuse it, post once more on a new
+        // connection if nothing of the request was written; once any byte is sent the agent may have
+        // received the post, which is not idempotent, so fail it instead
+        boolean stale = req != null && conn.served > 0 && !conn.parser.received
+                && conn.out.position() == req.data.position();
+        closeConnection(conn);
+        if (req != null) {
+            if (stale && !req.retried) {
+                req.retried = true;
+                conn.pool.pending.addFirst(req);
+            } else {
+                failRequest(req, e);
+            }
+        }
+        conn.pool.dispatch();
+    }
+
+    private void onResponse(Connection conn) {
+        Request req = conn.request;
+        ResponseParser parser = conn.parser;
+        conn.request = null;
+        conn.parser = null;
+        conn.out = null;
+        conn.served ++;
+
+        if (parser.keepAlive && running) {
+            conn.idleSince = System.currentTimeMillis();
+            conn.pool.idle.addFirst(conn);
+            // keep reading so we notice when the peer closes the idle connection
+            conn.key.interestOps(SelectionKey.OP_READ);
+        } else {
+            closeConnection(conn);
+        }
+
+        ResponseEntity<String> rsp = null;
+        try {
+            rsp = parser.toResponseEntity();
+        } catch (IllegalArgumentException e) {
+            failRequest(req, new IOException(String.format("unknown HTTP status code[%s]", parser.statusCode)));
+        }
+
+        if (rsp != null) {
+            try {
+                req.handler.success(rsp);
+            } catch (Throwable t) {
+                logger.warn(t.getMessage(), t);
+            }
+        }
+
+        conn.pool.dispatch();
+    }
+
+    private void failRequest(Request req, Throwable t) {
+        try {
+            req.handler.fail(t);
+        } catch (Throwable t1) {
+            logger.warn(t1.getMessage(), t1);
+        }
+    }
+
+    private void closeConnection(Connection conn) {
+        if (conn.closed) {
+            return;
+        }
+
+        conn.closed = true;
+        conn.pool.idle.remove(conn);
+        conn.pool.connections.remove(conn);
+        if (conn.key != null) {
+            conn.key.cancel();
+        }
+        if (conn.channel != null) {
+            try {
+                conn.channel.close();
+            } catch (IOException e) {
+                logger.trace(e.getMessage(), e);
+            }
+        }
+    }
+
+    private void scanTimeout(long now) {
+        Iterator<HostPool> pit = pools.values().iterator();
+        while (pit.hasNext()) {
+            HostPool pool = pit.next();
+            for (Connection conn : new ArrayList<Connection>(pool.connections)) {
+                if (conn.request == null) {
+                    if (now - conn.idleSince > keepAliveTime) {
+                        closeConnection(conn);
+                    }
+                } else if (!conn.connected && now - conn.connectStartTime > connectTimeout) {
+                    Request req = conn.request;
+                    closeConnection(conn);
+                    failRequest(req, new SocketTimeoutException(String.format("unable to connect to %s in %sms", pool.key, connectTimeout)));
+                } else if (now > conn.request.deadline) {
+                    Request req = conn.request;
+                    closeConnection(conn);
+                    failRequest(req, new SocketTimeoutException(String.format("no response from %s before timeout", pool.key)));
+                }
+            }
+
+            Iterator<Request> rit = pool.pending.iterator();
+            while (rit.hasNext()) {
+                Request req = rit.next();
+                if (now > req.deadline) {
+                    rit.remove();
+                    failRequest(req, new SocketTimeoutException(String.format("timeout when waiting for a connection to %s", pool.key)));
+                }
+            }
+
+            pool.dispatch();
+            if (pool.connections.isEmpty() && pool.pending.isEmpty()) {
+                pit.remove();
+            }
+        }
+    }
+}
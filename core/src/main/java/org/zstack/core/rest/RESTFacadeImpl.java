@@ -50,8 +50,13 @@ public class RESTFacadeImpl implements RESTFacade {
     private String path;
     private String callbackUrl;
     private RestTemplate template;
+    private boolean nioTransport = false;
+    private int maxConnectionsPerHost = 32;
+    private long connectTimeout = 15000;
+    private long keepAliveTime = 60000;
+    private NioHttpClient nioClient;
 
-    private Map<String, HttpCallStatistic> statistics = new ConcurrentHashMap<String, HttpCallStatistic>();
+    private ConcurrentHashMap<String, HttpCallStatistic> statistics = new ConcurrentHashMap<String, HttpCallStatistic>();
 
     private interface AsyncHttpWrapper {
         void fail(ErrorCode err);
@@ -83,6 +88,21 @@ public class RESTFacadeImpl implements RESTFacade {
         callbackUrl = ub.build().toUriString();
         logger.debug(String.format("RESTFacade built callback url: %s", callbackUrl));
         template = new RestTemplate();
+
+        if (nioTransport) {
+            nioClient = new NioHttpClient();
+            nioClient.setMaxConnectionsPerHost(maxConnectionsPerHost);
+            nioClient.setConnectTimeout(connectTimeout);
+            nioClient.setKeepAliveTime(keepAliveTime);
+            nioClient.start();
+            logger.debug(String.format("RESTFacade uses NIO transport for async http calls, max connections per host: %s", maxConnectionsPerHost));
+        }
+    }
+
+    void destroy() {
+        if (nioClient != null) {
+            nioClient.stop();
+        }
     }
 
     void notifyCallback(HttpServletRequest req, HttpServletResponse rsp) {
@@ -121,6 +141,27 @@ public class RESTFacadeImpl implements RESTFacade {
         this.path = path;
     }
 
+    public void setNioTransport(boolean nioTransport) {
+        this.nioTransport = nioTransport;
+    }
+
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    public void setConnectTimeout(long connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public void setKeepAliveTime(long keepAliveTime) {
+        this.keepAliveTime = keepAliveTime;
+    }
+
+    @AsyncThread
+    private void failInThread(AsyncHttpWrapper wrapper, ErrorCode err) {
+        wrapper.fail(err);
+    }
+
     @Override
     public void asyncJsonPost(String url, Object body, AsyncRESTCallback callback, TimeUnit unit, long timeout) {
         String bodyStr = JSONObjectUtil.toJsonString(body);
@@ -132,11 +173,10 @@ public class RESTFacadeImpl implements RESTFacade {
         long stime = 0;
         if (CoreGlobalProperty.PROFILER_HTTP_CALL) {
             stime = System.currentTimeMillis();
-            HttpCallStatistic stat = statistics.get(url);
-            if (stat == null) {
-                stat = new HttpCallStatistic();
+            if (!statistics.containsKey(url)) {
+                HttpCallStatistic stat = new HttpCallStatistic();
                 stat.setUrl(url);
-                statistics.put(url, stat);
+                statistics.putIfAbsent(url, stat);
             }
         }
 
@@ -154,7 +194,7 @@ public class RESTFacadeImpl implements RESTFacade {
                                     url, timeout, unit.toString(), body)
                     ));
                 }
-            }, unit, timeout);
+            }, unit, timeout, CoreGlobalProperty.REST_ASYNC_TIMEOUT_TICK);
 
             private void cancelTimeout() {
                 timeoutTaskReceipt.cancel();
@@ -219,6 +259,30 @@ public class RESTFacadeImpl implements RESTFacade {
             if (logger.isTraceEnabled()) {
                 logger.trace(String.format("json post[%s], %s", url, req.toString()));
             }
+
+            if (nioClient != null && url.startsWith("http://")) {
+                // the agent replies the real result to the callback url later, the response here only tells
+                // whether the command is accepted; don't hold a thread waiting for it
+                final AsyncHttpWrapper w = wrapper;
+                nioClient.post(url, requestHeaders, body, unit.toMillis(timeout), new NioHttpClient.ResponseHandler() {
+                    @Override
+                    public void success(ResponseEntity<String> rsp) {
+                        if (rsp.getStatusCode() != org.springframework.http.HttpStatus.OK) {
+                            String err = String.format("http status: %s, response body:%s", rsp.getStatusCode().toString(), rsp.getBody());
+                            logger.warn(err);
+                            failInThread(w, errf.stringToOperationError(err));
+                        }
+                    }
+
+                    @Override
+                    public void fail(Throwable t) {
+                        logger.warn(String.format("Unable to post to %s", url), t);
+                        failInThread(w, errf.throwableToInternalError(t));
+                    }
+                });
+                return;
+            }
+
             ResponseEntity<String> rsp = template.exchange(url, HttpMethod.POST, req, String.class);
             if (rsp.getStatusCode() != org.springframework.http.HttpStatus.OK) {
                 String err = String.format("http status: %s, response body:%s", rsp.getStatusCode().toString(), rsp.getBody());
@@ -10,8 +10,8 @@ import org.zstack.utils.logging.CLogger;
 import org.zstack.utils.logging.CLoggerImpl;
 
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -24,8 +24,8 @@ class DispatchQueueImpl implements DispatchQueue {
 	@Autowired
 	ThreadFacade _threadFacade;
 
-	private final HashMap<String, SyncTaskQueueWrapper> syncTasks = new HashMap<String, SyncTaskQueueWrapper>();
-	private final HashMap<String, ChainTaskQueueWrapper> chainTasks = new HashMap<String, ChainTaskQueueWrapper>();
+	private final ConcurrentHashMap<String, SyncTaskQueueWrapper> syncTasks = new ConcurrentHashMap<String, SyncTaskQueueWrapper>();
+	private final ConcurrentHashMap<String, ChainTaskQueueWrapper> chainTasks = new ConcurrentHashMap<String, ChainTaskQueueWrapper>();
 	private static final CLogger _logger = CLoggerImpl.getLogger(DispatchQueueImpl.class);
 
 
@@ -79,28 +79,102 @@ class DispatchQueueImpl implements DispatchQueue {
         }
     }
 
-    private class SyncTaskQueueWrapper {
-        ConcurrentLinkedQueue queue = new ConcurrentLinkedQueue();
-        AtomicInteger counter = new AtomicInteger(0);
-        int maxThreadNum = -1;
-        String syncSignature;
+    /*
+     * a queue of tasks sharing the same sync signature. No lock is taken, the state is kept by two counters:
+     *
+     * outstanding: tasks submitted but not finished yet. It's increased before a task is queued and
+     * decreased after the task completes. A queue having no outstanding task retires itself by setting
+     * the counter to -1 and removing itself from the map; submitters seeing a retired queue create a new one.
+     * Because retirement only happens when nothing is queued or running, two queues of the same signature
+     * never run tasks at the same time.
+     *
+     * running: threads draining the queue, never exceeds the sync level. A thread finding the queue empty
+     * gives up its slot first then checks the queue again, so a task queued in between is never left behind.
+     */
+    private abstract class TaskQueueWrapper<F> {
+        final ConcurrentLinkedQueue<F> queue = new ConcurrentLinkedQueue<F>();
+        final AtomicInteger counter = new AtomicInteger(0);
+        final AtomicInteger outstanding = new AtomicInteger(0);
+        final int maxThreadNum;
+        final String syncSignature;
+
+        TaskQueueWrapper(String syncSignature, int maxThreadNum) {
+            this.syncSignature = syncSignature;
+            this.maxThreadNum = maxThreadNum;
+        }
 
-        void addTask(SyncTaskFuture task) {
-            queue.offer(task);
-            if (maxThreadNum == -1) {
-                maxThreadNum = task.getSyncLevel();
+        abstract ConcurrentHashMap<String, ? extends TaskQueueWrapper> getMap();
+
+        abstract void startThread();
+
+        boolean addTask(F task) {
+            while (true) {
+                int num = outstanding.get();
+                if (num < 0) {
+                    // retired, make sure it's off the map so the submitter can create a new queue
+                    getMap().remove(syncSignature, this);
+                    return false;
+                }
+
+                if (outstanding.compareAndSet(num, num + 1)) {
+                    break;
+                }
             }
-            if (syncSignature == null) {
-                syncSignature = task.getSyncSignature();
+
+            queue.offer(task);
+            return true;
+        }
+
+        boolean acquireThread() {
+            while (true) {
+                int num = counter.get();
+                if (num >= maxThreadNum) {
+                    return false;
+                }
+
+                if (counter.compareAndSet(num, num + 1)) {
+                    return true;
+                }
             }
         }
 
         void startThreadIfNeeded() {
-            if (counter.get() >= maxThreadNum) {
-                return;
+            if (acquireThread()) {
+                startThread();
+            }
+        }
+
+        void taskDone() {
+            outstanding.decrementAndGet();
+        }
+
+        // called by a thread having found the queue empty, returns true if the thread should go on
+        boolean releaseThread() {
+            counter.decrementAndGet();
+            if (!queue.isEmpty() && acquireThread()) {
+                return true;
             }
 
-            counter.incrementAndGet();
+            if (outstanding.compareAndSet(0, -1)) {
+                getMap().remove(syncSignature, this);
+            }
+
+            return false;
+        }
+    }
+
+    private class SyncTaskQueueWrapper extends TaskQueueWrapper<SyncTaskFuture> {
+        SyncTaskQueueWrapper(String syncSignature, int maxThreadNum) {
+            super(syncSignature, maxThreadNum);
+        }
+
+        @Override
+        ConcurrentHashMap<String, SyncTaskQueueWrapper> getMap() {
+            return syncTasks;
+        }
+
+        @Override
+        void startThread() {
             _threadFacade.submit(new Task<Void>() {
                 @Override
                 public String getName() {
@@ -110,21 +184,18 @@ class DispatchQueueImpl implements DispatchQueue {
                 void run() {
                     SyncTaskFuture stask;
                     while (true) {
-                        while ((stask = (SyncTaskFuture) queue.poll()) != null) {
-                            stask.run();
+                        while ((stask = queue.poll()) != null) {
+                            try {
+                                stask.run();
+                            } finally {
+                                taskDone();
+                            }
                         }
 
-                        synchronized (syncTasks) {
-                            if (queue.isEmpty()) {
-                                if (counter.decrementAndGet() == 0) {
-                                    syncTasks.remove(syncSignature);
-                                }
-
-                                break;
-                            }
+                        if (!releaseThread()) {
+                            break;
                         }
                     }
-
                 }
 
                 @Override
@@ -139,17 +210,17 @@ class DispatchQueueImpl implements DispatchQueue {
 	private <T> Future<T> doSyncSubmit(final SyncTask<T> syncTask) {
 		assert syncTask.getSyncSignature() != null : "How can you submit a sync task without sync signature ???";
 
-        SyncTaskFuture f;
-        synchronized (syncTasks) {
-            SyncTaskQueueWrapper wrapper = syncTasks.get(syncTask.getSyncSignature());
+        SyncTaskFuture f = new SyncTaskFuture(syncTask);
+        SyncTaskQueueWrapper wrapper;
+        do {
+            wrapper = syncTasks.get(syncTask.getSyncSignature());
             if (wrapper == null) {
-                wrapper = new SyncTaskQueueWrapper();
-                syncTasks.put(syncTask.getSyncSignature(), wrapper);
+                wrapper = new SyncTaskQueueWrapper(syncTask.getSyncSignature(), syncTask.getSyncLevel());
+                SyncTaskQueueWrapper old = syncTasks.putIfAbsent(syncTask.getSyncSignature(), wrapper);
+                wrapper = old == null ? wrapper : old;
             }
-            f = new SyncTaskFuture(syncTask);
-            wrapper.addTask(f);
-            wrapper.startThreadIfNeeded();
-        }
+        } while (!wrapper.addTask(f));
+        wrapper.startThreadIfNeeded();
 
 		return f;
 	}
@@ -225,28 +296,18 @@ class DispatchQueueImpl implements DispatchQueue {
         }
     }
 
-    private class ChainTaskQueueWrapper {
-        LinkedList queue = new LinkedList();
-        AtomicInteger counter = new AtomicInteger(0);
-        int maxThreadNum = -1;
-        String syncSignature;
-
-        void addTask(ChainFuture task) {
-            queue.offer(task);
-            if (maxThreadNum == -1) {
-                maxThreadNum = task.getSyncLevel();
-            }
-            if (syncSignature == null) {
-                syncSignature = task.getSyncSignature();
-            }
+    private class ChainTaskQueueWrapper extends TaskQueueWrapper<ChainFuture> {
+        ChainTaskQueueWrapper(String syncSignature, int maxThreadNum) {
+            super(syncSignature, maxThreadNum);
         }
 
-        void startThreadIfNeeded() {
-            if (counter.get() >= maxThreadNum) {
-                return;
-            }
+        @Override
+        ConcurrentHashMap<String, ChainTaskQueueWrapper> getMap() {
+            return chainTasks;
+        }
 
-            counter.incrementAndGet();
+        @Override
+        void startThread() {
             _threadFacade.submit(new Task<Void>() {
                 @Override
                 public String getName() {
@@ -256,21 +317,19 @@ class DispatchQueueImpl implements DispatchQueue {
                 // start a new thread every time to avoid stack overflow
                 @AsyncThread
                 private void runQueue() {
-                    ChainFuture cf;
-                    synchronized (chainTasks) {
-                        cf = (ChainFuture) queue.poll();
-                        if (cf == null) {
-                            if (counter.decrementAndGet() == 0) {
-                                chainTasks.remove(syncSignature);
-                            }
-
-                            return;
+                    ChainFuture cf = queue.poll();
+                    if (cf == null) {
+                        if (releaseThread()) {
+                            runQueue();
                         }
+
+                        return;
                     }
 
                     cf.run(new SyncTaskChain() {
                         @Override
                         public void next() {
+                            taskDone();
                             runQueue();
                         }
                     });
@@ -290,19 +349,19 @@ class DispatchQueueImpl implements DispatchQueue {
         assert task.getSyncSignature() != null : "How can you submit a chain task without sync signature ???";
         DebugUtils.Assert(task.getSyncLevel() >= 1, String.format("getSyncLevel() must return more than 1"));
 
-        synchronized (chainTasks) {
-            final String signature = task.getSyncSignature();
-            ChainTaskQueueWrapper wrapper = chainTasks.get(signature);
+        final String signature = task.getSyncSignature();
+        ChainFuture cf = new ChainFuture(task);
+        ChainTaskQueueWrapper wrapper;
+        do {
+            wrapper = chainTasks.get(signature);
             if (wrapper == null) {
-                wrapper = new ChainTaskQueueWrapper();
-                chainTasks.put(signature, wrapper);
+                wrapper = new ChainTaskQueueWrapper(signature, task.getSyncLevel());
+                ChainTaskQueueWrapper old = chainTasks.putIfAbsent(signature, wrapper);
+                wrapper = old == null ? wrapper : old;
             }
-
-            ChainFuture cf = new ChainFuture(task);
-            wrapper.addTask(cf);
-            wrapper.startThreadIfNeeded();
-            return cf;
-        }
+        } while (!wrapper.addTask(cf));
+        wrapper.startThreadIfNeeded();
+        return cf;
     }
 	
 
@@ -0,0 +1,278 @@
+package org.zstack.core.thread;
+
+import org.zstack.core.thread.ThreadFacadeImpl.TimeoutTaskReceipt;
+import org.zstack.header.exception.CloudRuntimeException;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * a hashed timing wheel for timeouts that are almost always cancelled, like message and http call timeouts.
+ *
+ * schedule() and cancel() only add the timeout to a lock-free queue, so both are O(1) and never contend with
+ * each other. One worker thread wakes up every tick, moves newly scheduled timeouts into wheel buckets,
+ * unlinks cancelled ones, and expires timeouts of the current bucket. Expired tasks run in the executor, the
+ * worker thread never runs them. A timeout fires between its deadline and one tick later.
+ */
+public class HashedWheelTimer {
+    private static final CLogger logger = Utils.getLogger(HashedWheelTimer.class);
+
+    private static final int INIT = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    // at most so many new timeouts are moved into the wheel in one tick, to keep ticks short
+    private static final int MAX_TRANSFER_PER_TICK = 100000;
+
+    private class Timeout implements TimeoutTaskReceipt {
+        private final Runnable task;
+        // milliseconds since the timer started
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(INIT);
+        private long rounds;
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+
+        Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public boolean cancel() {
+            if (!state.compareAndSet(INIT, CANCELLED)) {
+                return false;
+            }
+
+            pendingNum.decrementAndGet();
+            cancelledNum.incrementAndGet();
+            cancelled.add(this);
+            return true;
+        }
+
+        void expire() {
+            if (!state.compareAndSet(INIT, EXPIRED)) {
+                return;
+            }
+
+            pendingNum.decrementAndGet();
+            expiredNum.incrementAndGet();
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            task.run();
+                        } catch (Throwable t) {
+                            logger.warn(String.format("Unhandled exception happened when running %s", task.getClass().getName()), t);
+                        }
+                    }
+                });
+            } catch (Throwable t) {
+                logger.warn(String.format("unable to run timeout task %s", task.getClass().getName()), t);
+            }
+        }
+    }
+
+    // only accessed by the worker thread
+    private static class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout t) {
+            t.bucket = this;
+            if (head == null) {
+                head = tail = t;
+            } else {
+                tail.next = t;
+                t.prev = tail;
+                tail = t;
+            }
+        }
+
+        Timeout remove(Timeout t) {
+            Timeout next = t.next;
+            if (t.prev != null) {
+                t.prev.next = next;
+            }
+            if (t.next != null) {
+                t.next.prev = t.prev;
+            }
+            if (t == head) {
+                head = next;
+            }
+            if (t == tail) {
+                tail = t.prev;
+            }
+            t.prev = null;
+            t.next = null;
+            t.bucket = null;
+            return next;
+        }
+
+        void expire(long deadline) {
+            Timeout t = head;
+            while (t != null) {
+                if (t.state.get() != INIT) {
+                    t = remove(t);
+                } else if (t.rounds <= 0 && t.deadline <= deadline) {
+                    Timeout next = remove(t);
+                    t.expire();
+                    t = next;
+                } else {
+                    t.rounds --;
+                    t = t.next;
+                }
+            }
+        }
+    }
+
+    private final String name;
+    private final long tickMillis;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Executor executor;
+    private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<Timeout>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+    private final long startTime = System.nanoTime();
+    private final Thread worker;
+    private volatile boolean stopped;
+    // only accessed by the worker thread
+    private long tick;
+
+    private final AtomicLong pendingNum = new AtomicLong();
+    private final AtomicLong scheduledNum = new AtomicLong();
+    private final AtomicLong cancelledNum = new AtomicLong();
+    private final AtomicLong expiredNum = new AtomicLong();
+
+    /**
+     * @param tickMillis precision of timeouts
+     * @param wheelSize rounded up to a power of 2; timeouts further than tickMillis * wheelSize take extra rounds
+     * @param executor runs expired tasks
+     */
+    public HashedWheelTimer(String name, long tickMillis, int wheelSize, Executor executor) {
+        if (tickMillis <= 0) {
+            throw new CloudRuntimeException(String.format("tick of timing wheel[%s] must be greater than 0, got %s", name, tickMillis));
+        }
+        if (wheelSize <= 0 || wheelSize > (1 << 30)) {
+            throw new CloudRuntimeException(String.format("size of timing wheel[%s] must be in (0, 2^30], got %s", name, wheelSize));
+        }
+
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+
+        this.name = name;
+        this.tickMillis = tickMillis;
+        this.executor = executor;
+        wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        mask = size - 1;
+
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, String.format("timing-wheel-%s", name));
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    private long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+    }
+
+    public TimeoutTaskReceipt schedule(Runnable task, TimeUnit unit, long delay) {
+        if (stopped) {
+            throw new CloudRuntimeException(String.format("timing wheel[%s] is stopped", name));
+        }
+
+        Timeout t = new Timeout(task, now() + Math.max(0, unit.toMillis(delay)));
+        pendingNum.incrementAndGet();
+        scheduledNum.incrementAndGet();
+        scheduled.add(t);
+        return t;
+    }
+
+    private void transferScheduled() {
+        for (int i = 0; i < MAX_TRANSFER_PER_TICK; i++) {
+            Timeout t = scheduled.poll();
+            if (t == null) {
+                return;
+            }
+
+            if (t.state.get() != INIT) {
+                continue;
+            }
+
+            long expectedTick = t.deadline / tickMillis;
+            t.rounds = (expectedTick - tick) / wheel.length;
+            // a timeout already past its deadline goes to the current bucket
+            long ticks = Math.max(expectedTick, tick);
+            wheel[(int) (ticks & mask)].add(t);
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout t;
+        while ((t = cancelled.poll()) != null) {
+            if (t.bucket != null) {
+                t.bucket.remove(t);
+            }
+        }
+    }
+
+    private void work() {
+        while (!stopped) {
+            long deadline = tickMillis * (tick + 1);
+            long sleep = deadline - now();
+            if (sleep > 0) {
+                try {
+                    TimeUnit.MILLISECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    if (stopped) {
+                        return;
+                    }
+                }
+                continue;
+            }
+
+            try {
+                transferScheduled();
+                removeCancelled();
+                wheel[(int) (tick & mask)].expire(deadline);
+            } catch (Throwable t) {
+                logger.warn(String.format("unhandled exception in timing wheel[%s]", name), t);
+            }
+            tick ++;
+        }
+    }
+
+    /**
+     * pending timeouts are dropped without running
+     */
+    public void stop() {
+        stopped = true;
+        worker.interrupt();
+    }
+
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    public TimeoutWheelStatistic getStatistic() {
+        return new TimeoutWheelStatistic(name, tickMillis, wheel.length, pendingNum.get(), scheduledNum.get(),
+                cancelledNum.get(), expiredNum.get());
+    }
+}
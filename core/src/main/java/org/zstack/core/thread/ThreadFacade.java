@@ -25,4 +25,9 @@ public interface ThreadFacade extends Component {
     void unregisterHook(ThreadAroundHook hook);
     
     ThreadFacadeImpl.TimeoutTaskReceipt submitTimeoutTask(Runnable task, TimeUnit unit, long delay);
+
+    /**
+     * @param tickMillis precision of the timeout, the task runs between delay and delay + tickMillis
+     */
+    ThreadFacadeImpl.TimeoutTaskReceipt submitTimeoutTask(Runnable task, TimeUnit unit, long delay, long tickMillis);
 }
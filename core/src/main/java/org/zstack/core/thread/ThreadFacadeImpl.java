@@ -21,58 +21,12 @@ public class ThreadFacadeImpl implements ThreadFacade, ThreadFactory, RejectedEx
 	private static AtomicInteger seqNum = new AtomicInteger(0);
 	private ScheduledThreadPoolExecutorExt _pool;
 	private DispatchQueue dpq;
-    private TimerPool timerPool = new TimerPool(5);
+    // timing wheels keyed by tick in milliseconds
+    private ConcurrentMap<Long, HashedWheelTimer> timeoutWheels = new ConcurrentHashMap<Long, HashedWheelTimer>();
 
     @Autowired
     private JmxFacade jmxf;
 
-    private class TimerWrapper extends Timer {
-        private int cancelledTimerTaskCount = 0;
-        private static final int PURGE_CANCELLED_TIMER_TASK_THRESHOLD = 2000;
-
-        void notifyCancel() {
-            if (cancelledTimerTaskCount ++ >= PURGE_CANCELLED_TIMER_TASK_THRESHOLD) {
-                cancelledTimerTaskCount = 0;
-                this.purge();
-            }
-        }
-    }
-
-    private class TimerPool {
-        int poolSize;
-        List<TimerWrapper> pool;
-
-        // never use a long type counter for self increment. two issues
-        // 1) Java will silently overflow a number; even long will be overflow some day
-        // 2) big number causes extremely bad performance for mod operation
-        // instead, reset the counter when it exceeds COUNTER_RESET_THRESHOLD to maintain
-        // decent performance for mod operation.
-        int counter = 0;
-        static final int COUNTER_RESET_THRESHOLD = 1000000;
-
-        private TimerPool(int poolSize) {
-            this.poolSize = poolSize;
-            pool = new ArrayList<TimerWrapper>(poolSize);
-            for (int i=0; i<poolSize; i++) {
-                pool.add(new TimerWrapper());
-            }
-        }
-
-        TimerWrapper getTimer() {
-            int index = ++ counter % poolSize;
-            if (counter > COUNTER_RESET_THRESHOLD) {
-                counter = 0;
-            }
-            return pool.get(index);
-        }
-
-        void stop() {
-            for (TimerWrapper wrapper : pool) {
-                wrapper.cancel();
-            }
-        }
-    }
-
     @Override
     public Map<String, SyncTaskStatistic> getSyncTaskStatistics() {
         return dpq.getSyncTaskStatistics();
@@ -83,6 +37,25 @@ public class ThreadFacadeImpl implements ThreadFacade, ThreadFactory, RejectedEx
         return dpq.getChainTaskStatistics();
     }
 
+    @Override
+    public Map<String, TimeoutWheelStatistic> getTimeoutWheelStatistics() {
+        Map<String, TimeoutWheelStatistic> ret = new HashMap<String, TimeoutWheelStatistic>();
+        for (HashedWheelTimer wheel : timeoutWheels.values()) {
+            TimeoutWheelStatistic stat = wheel.getStatistic();
+            ret.put(stat.getName(), stat);
+        }
+        return ret;
+    }
+
+    @Override
+    public long getPendingTimeoutNum() {
+        long num = 0;
+        for (HashedWheelTimer wheel : timeoutWheels.values()) {
+            num += wheel.getStatistic().getPendingTimeoutNum();
+        }
+        return num;
+    }
+
     @Override
     public ThreadPoolStatistic getThreadPoolStatistic() {
         long completedTask = _pool.getCompletedTaskCount();
@@ -222,36 +195,32 @@ public class ThreadFacadeImpl implements ThreadFacade, ThreadFactory, RejectedEx
         boolean cancel();
     }
 
-	@Override
-	public TimeoutTaskReceipt submitTimeoutTask(final Runnable task, TimeUnit unit, long delay) {
-        final TimerWrapper timer = timerPool.getTimer();
-
-        class TimerTaskWorker extends TimerTask implements TimeoutTaskReceipt {
-            @Override
-            @AsyncThread
-            public void run() {
-                try {
-                    task.run();
-                } catch (Throwable t) {
-                    _logger.warn(String.format("Unhandled exception happened when running %s", task.getClass().getName()), t);
-                } finally {
-                    this.cancel();
-                }
-            }
-
-            @Override
-            public boolean cancel() {
-                boolean ret = super.cancel();
-                timer.notifyCancel();
-                return ret;
-            }
+    private HashedWheelTimer getTimeoutWheel(long tickMillis) {
+        HashedWheelTimer wheel = timeoutWheels.get(tickMillis);
+        if (wheel != null) {
+            return wheel;
+        }
+
+        // one wheel per precision, callers use a few configured ticks
+        wheel = new HashedWheelTimer(String.format("%sms", tickMillis), tickMillis, ThreadGlobalProperty.TIMEOUT_WHEEL_SIZE, _pool);
+        HashedWheelTimer old = timeoutWheels.putIfAbsent(tickMillis, wheel);
+        if (old != null) {
+            wheel.stop();
+            return old;
         }
+        return wheel;
+    }
 
-        TimerTaskWorker worker = new TimerTaskWorker();
-		timer.schedule(worker, unit.toMillis(delay));
-		return worker;
+	@Override
+	public TimeoutTaskReceipt submitTimeoutTask(Runnable task, TimeUnit unit, long delay) {
+        return submitTimeoutTask(task, unit, delay, ThreadGlobalProperty.TIMEOUT_WHEEL_TICK);
 	}
 
+    @Override
+    public TimeoutTaskReceipt submitTimeoutTask(Runnable task, TimeUnit unit, long delay, long tickMillis) {
+        return getTimeoutWheel(tickMillis).schedule(task, unit, delay);
+    }
+
 	@Override
 	public boolean start() {
 		return true;
@@ -260,7 +229,9 @@ public class ThreadFacadeImpl implements ThreadFacade, ThreadFactory, RejectedEx
 	@Override
 	public boolean stop() {
 		_pool.shutdown();
-        timerPool.stop();
+        for (HashedWheelTimer wheel : timeoutWheels.values()) {
+            wheel.stop();
+        }
 		return true;
 	}
 
@@ -9,4 +9,8 @@ import org.zstack.core.GlobalPropertyDefinition;
 public class ThreadGlobalProperty {
     @GlobalProperty(name="ThreadFacade.maxThreadNum", defaultValue = "100")
     public static int MAX_THREAD_NUM;
+    @GlobalProperty(name="ThreadFacade.timeoutWheelTick", defaultValue = "100")
+    public static long TIMEOUT_WHEEL_TICK;
+    @GlobalProperty(name="ThreadFacade.timeoutWheelSize", defaultValue = "512")
+    public static int TIMEOUT_WHEEL_SIZE;
 }
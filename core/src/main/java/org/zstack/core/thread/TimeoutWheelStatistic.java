@@ -0,0 +1,54 @@
+package org.zstack.core.thread;
+
+import java.beans.ConstructorProperties;
+
+/**
+ */
+public class TimeoutWheelStatistic {
+    private String name;
+    private long tickMillis;
+    private int wheelSize;
+    private long pendingTimeoutNum;
+    private long scheduledTimeoutNum;
+    private long cancelledTimeoutNum;
+    private long expiredTimeoutNum;
+
+    @ConstructorProperties({"name", "tickMillis", "wheelSize", "pendingTimeoutNum", "scheduledTimeoutNum", "cancelledTimeoutNum", "expiredTimeoutNum"})
+    public TimeoutWheelStatistic(String name, long tickMillis, int wheelSize, long pendingTimeoutNum, long scheduledTimeoutNum, long cancelledTimeoutNum, long expiredTimeoutNum) {
+        this.name = name;
+        this.tickMillis = tickMillis;
+        this.wheelSize = wheelSize;
+        this.pendingTimeoutNum = pendingTimeoutNum;
+        this.scheduledTimeoutNum = scheduledTimeoutNum;
+        this.cancelledTimeoutNum = cancelledTimeoutNum;
+        this.expiredTimeoutNum = expiredTimeoutNum;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    public int getWheelSize() {
+        return wheelSize;
+    }
+
+    public long getPendingTimeoutNum() {
+        return pendingTimeoutNum;
+    }
+
+    public long getScheduledTimeoutNum() {
+        return scheduledTimeoutNum;
+    }
+
+    public long getCancelledTimeoutNum() {
+        return cancelledTimeoutNum;
+    }
+
+    public long getExpiredTimeoutNum() {
+        return expiredTimeoutNum;
+    }
+}
@@ -4,6 +4,7 @@ import org.springframework.beans.factory.annotation.Autowire;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Configurable;
 import org.zstack.core.CoreGlobalProperty;
+import org.zstack.core.Platform;
 import org.zstack.core.errorcode.ErrorFacade;
 import org.zstack.header.core.workflow.*;
 import org.zstack.header.errorcode.OperationFailureException;
@@ -16,6 +17,7 @@ import org.zstack.utils.Utils;
 import org.zstack.utils.function.Function;
 import org.zstack.utils.logging.CLogger;
 
+import java.lang.reflect.Modifier;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -44,6 +46,10 @@ public class SimpleFlowChain implements FlowTrigger, FlowChain {
     private boolean skipRestRollbacks;
     private boolean allowEmptyFlow;
     private FlowMarshaller flowMarshaller;
+    private String journalOwner;
+    private String[] journalDataKeys;
+    private String journalChainUuid;
+    private int currentRollbackPosition;
 
     private static final Map<String, WorkFlowStatistic> statistics = new ConcurrentHashMap<String, WorkFlowStatistic>();
 
@@ -89,6 +95,8 @@ public class SimpleFlowChain implements FlowTrigger, FlowChain {
 
     @Autowired
     private ErrorFacade errf;
+    @Autowired
+    private WorkFlowJournal journal;
 
     public SimpleFlowChain() {
     }
@@ -155,6 +163,50 @@ public class SimpleFlowChain implements FlowTrigger, FlowChain {
         return this;
     }
 
+    @Override
+    public FlowChain journal(String owner, String... dataKeys) {
+        journalOwner = owner;
+        journalDataKeys = dataKeys;
+        return this;
+    }
+
+    private boolean isRecreatable(Flow flow) {
+        Class<?> clazz = flow.getClass();
+        return !clazz.isAnonymousClass() && !clazz.isLocalClass() && !(clazz.isMemberClass() && !Modifier.isStatic(clazz.getModifiers()));
+    }
+
+    private void stopJournal(Flow flow) {
+        logger.warn(String.format("[FlowChain: %s] flow[%s] cannot be created by its class name, stop journaling the chain", name, flow.getClass().getName()));
+        journal.chainFinished(journalChainUuid);
+        journalChainUuid = null;
+    }
+
+    private void journalFlow(Flow flow, WorkFlowState state) {
+        if (journalChainUuid == null) {
+            return;
+        }
+
+        if (!isRecreatable(flow)) {
+            stopJournal(flow);
+            return;
+        }
+
+        journal.flowDone(journalChainUuid, flow.getClass().getName(), rollBackFlows.size(), state, data, journalDataKeys);
+    }
+
+    private void journalRollback() {
+        if (journalChainUuid != null && currentRollbackFlow != null) {
+            journal.flowRolledBack(journalChainUuid, currentRollbackFlow.getClass().getName(), currentRollbackPosition);
+        }
+    }
+
+    private void journalFinish() {
+        if (journalChainUuid != null) {
+            journal.chainFinished(journalChainUuid);
+            journalChainUuid = null;
+        }
+    }
+
     private void runFlow(Flow flow) {
         try {
             Flow toRun = null;
@@ -183,17 +235,20 @@ public class SimpleFlowChain implements FlowTrigger, FlowChain {
             logger.warn(errInfo, oe);
             setErrorCode(oe.getErrorCode());
             rollBackFlows.push(currentFlow);
+            journalFlow(currentFlow, WorkFlowState.Failed);
             rollback();
         } catch (FlowException fe) {
             String errInfo = fe.getErrorCode() != null ? fe.getErrorCode().toString() : "";
             logger.warn(errInfo, fe);
             setErrorCode(fe.getErrorCode());
             rollBackFlows.push(currentFlow);
+            journalFlow(currentFlow, WorkFlowState.Failed);
             rollback();
         } catch (Throwable t) {
             logger.warn(String.format("[FlowChain: %s] unhandled exception when executing flow[%s], start to rollback", name, flow.getClass().getName()), t);
             setErrorCode(errf.throwableToInternalError(t));
             rollBackFlows.push(currentFlow);
+            journalFlow(currentFlow, WorkFlowState.Failed);
             rollback();
         }
     }
@@ -209,6 +264,7 @@ public class SimpleFlowChain implements FlowTrigger, FlowChain {
     }
 
     private void callErrorHandler(boolean info) {
+        journalFinish();
         try {
             if (info) {
                 logger.debug(String.format("[FlowChain: %s] rolled back all flows because error%s", name, errorCode));
@@ -237,6 +293,7 @@ public class SimpleFlowChain implements FlowTrigger, FlowChain {
     @Override
     public void rollback() {
         isRollbackStart = true;
+        journalRollback();
         if (rollBackFlows.empty()) {
             callErrorHandler(true);
             return;
@@ -261,11 +318,32 @@ public class SimpleFlowChain implements FlowTrigger, FlowChain {
             logger.debug(String.format("[FlowChain: %s] start to rollback", name));
         }
 
+        currentRollbackPosition = rollBackFlows.size();
         Flow flow = rollBackFlows.pop();
         currentRollbackFlow = flow;
         rollbackFlow(flow);
     }
 
+    /**
+     * rolls back flows done by a chain that ran on another management node, the last flow in the list is
+     * rolled back first; the error handler is called when all flows are rolled back
+     */
+    void rollback(List<Flow> doneFlows, ErrorCode error) {
+        isStart = true;
+        if (data == null) {
+            data = new HashMap<String, Object>();
+        }
+        if (name == null) {
+            name = "anonymous-chain";
+        }
+
+        for (Flow flow : doneFlows) {
+            rollBackFlows.push(flow);
+        }
+        setErrorCode(error);
+        rollback();
+    }
+
     @Override
     public void skipRestRollbacks() {
         skipRestRollbacks = true;
@@ -281,6 +359,8 @@ public class SimpleFlowChain implements FlowTrigger, FlowChain {
             stopWath.stop();
         }
 
+        journalFinish();
+
         try {
             logger.debug(String.format("[FlowChain: %s] successfully completed", name));
             if (doneHandler != null) {
@@ -295,6 +375,7 @@ public class SimpleFlowChain implements FlowTrigger, FlowChain {
     public void fail(ErrorCode errorCode) {
         setErrorCode(errorCode);
         rollBackFlows.push(currentFlow);
+        journalFlow(currentFlow, WorkFlowState.Failed);
         rollback();
     }
 
@@ -309,6 +390,7 @@ public class SimpleFlowChain implements FlowTrigger, FlowChain {
         }
 
         rollBackFlows.push(currentFlow);
+        journalFlow(currentFlow, WorkFlowState.Done);
 
         logger.debug(String.format("[FlowChain: %s] successfully executed flow[%s]", name, getFlowName(currentFlow)));
 
@@ -346,6 +428,11 @@ public class SimpleFlowChain implements FlowTrigger, FlowChain {
         }
 
         logger.debug(String.format("[FlowChain: %s] starts", name));
+        if (journalOwner != null) {
+            journalChainUuid = Platform.getUuid();
+            journal.chainStarted(journalChainUuid, name, journalOwner, flows.size());
+        }
+
         it = flows.iterator();
         Flow flow = it.next();
         runFlow(flow);
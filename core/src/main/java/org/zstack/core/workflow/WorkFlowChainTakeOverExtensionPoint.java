@@ -0,0 +1,15 @@
+package org.zstack.core.workflow;
+
+import java.util.Map;
+
+/**
+ * called when a management node takes over a journaled flow chain whose management node died
+ */
+public interface WorkFlowChainTakeOverExtensionPoint {
+    /**
+     * @return true if the chain should be rolled back, a chain not claimed by any extension is only removed from the journal
+     */
+    boolean isOrphanChainToRollback(String chainName, String owner, Map data);
+
+    void afterRollbackOrphanChain(String chainName, String owner, Map data);
+}
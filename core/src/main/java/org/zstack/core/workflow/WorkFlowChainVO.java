@@ -32,6 +32,9 @@ public class WorkFlowChainVO {
     @Column
     private Date OperationDate;
 
+    @Column
+    private String managementNodeUuid;
+
     public String getName() {
         return name;
     }
@@ -95,4 +98,12 @@ public class WorkFlowChainVO {
     public void setOwner(String owner) {
         this.owner = owner;
     }
+
+    public String getManagementNodeUuid() {
+        return managementNodeUuid;
+    }
+
+    public void setManagementNodeUuid(String managementNodeUuid) {
+        this.managementNodeUuid = managementNodeUuid;
+    }
 }
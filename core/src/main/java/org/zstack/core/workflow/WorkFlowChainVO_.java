@@ -14,4 +14,5 @@ public class WorkFlowChainVO_ {
     public static volatile SingularAttribute<WorkFlowChainVO, Integer> totalWorkFlows;
     public static volatile SingularAttribute<WorkFlowChainVO, Integer> currentPosition;
     public static volatile SingularAttribute<WorkFlowChainVO, Date> operationDate;
+    public static volatile SingularAttribute<WorkFlowChainVO, String> managementNodeUuid;
 }
@@ -0,0 +1,17 @@
+package org.zstack.core.workflow;
+
+import java.util.Map;
+
+/**
+ * a write-behind journal of flow chains, calls only queue records and return; records are written to
+ * WorkFlowChainVO/WorkFlowVO in batches by the journal thread.
+ */
+public interface WorkFlowJournal {
+    void chainStarted(String chainUuid, String name, String owner, int totalWorkFlows);
+
+    void flowDone(String chainUuid, String flowClassName, int position, WorkFlowState state, Map data, String[] dataKeys);
+
+    void flowRolledBack(String chainUuid, String flowClassName, int position);
+
+    void chainFinished(String chainUuid);
+}
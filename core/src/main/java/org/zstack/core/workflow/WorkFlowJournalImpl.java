@@ -0,0 +1,580 @@
+package org.zstack.core.workflow;
+
+import com.google.gson.ExclusionStrategy;
+import com.google.gson.FieldAttributes;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.annotation.Transactional;
+import org.zstack.core.CoreGlobalProperty;
+import org.zstack.core.Platform;
+import org.zstack.core.cloudbus.ResourceDestinationMaker;
+import org.zstack.core.componentloader.PluginRegistry;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.db.SimpleQuery;
+import org.zstack.core.db.SimpleQuery.Od;
+import org.zstack.core.db.SimpleQuery.Op;
+import org.zstack.core.errorcode.ErrorFacade;
+import org.zstack.core.thread.Task;
+import org.zstack.core.thread.ThreadFacade;
+import org.zstack.header.Component;
+import org.zstack.header.core.workflow.Flow;
+import org.zstack.header.core.workflow.FlowErrorHandler;
+import org.zstack.header.errorcode.ErrorCode;
+import org.zstack.header.exception.CloudRuntimeException;
+import org.zstack.header.managementnode.ManagementNodeChangeListener;
+import org.zstack.header.managementnode.ManagementNodeVO;
+import org.zstack.header.managementnode.ManagementNodeVO_;
+import org.zstack.header.message.Message;
+import org.zstack.utils.Utils;
+import org.zstack.utils.gson.GsonUtil;
+import org.zstack.utils.logging.CLogger;
+
+import javax.persistence.Query;
+import java.io.UnsupportedEncodingException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.*;
+import java.util.concurrent.Future;
+
+/**
+ * records are queued by chain threads and written by the journal thread every WorkFlowJournal.flushInterval
+ * milliseconds or when WorkFlowJournal.batchSize records are queued, with multi-row inserts in one transaction.
+ * A chain finishing before its records are written never touches the database, and only the data of the last
+ * flow of a chain in a batch is written.
+ *
+ * when a management node leaves, chains it was running are taken over by the node managing their owners; flows
+ * not rolled back yet are rolled back in reverse order with data journaled by the last flow.
+ */
+public class WorkFlowJournalImpl implements WorkFlowJournal, Component, ManagementNodeChangeListener {
+    private static final CLogger logger = Utils.getLogger(WorkFlowJournalImpl.class);
+    private static final int ROWS_PER_INSERT = 100;
+
+    // messages in data are request context, they can't be and needn't be restored
+    private static final Gson gson = new GsonUtil().setExclusionStrategies(new ExclusionStrategy[]{
+            new ExclusionStrategy() {
+                @Override
+                public boolean shouldSkipField(FieldAttributes f) {
+                    return Message.class.isAssignableFrom(f.getDeclaredClass());
+                }
+
+                @Override
+                public boolean shouldSkipClass(Class<?> clazz) {
+                    return false;
+                }
+            }
+    }).create();
+
+    @Autowired
+    private DatabaseFacade dbf;
+    @Autowired
+    private ThreadFacade thdf;
+    @Autowired
+    private ErrorFacade errf;
+    @Autowired
+    private PluginRegistry pluginRgty;
+    @Autowired
+    private ResourceDestinationMaker destMaker;
+
+    private enum RecordType {
+        ChainStarted,
+        FlowDone,
+        FlowRolledBack,
+        ChainFinished,
+    }
+
+    private static class Record {
+        RecordType type;
+        String chainUuid;
+        String name;
+        String owner;
+        int position;
+        WorkFlowState state;
+        byte[] context;
+        Timestamp date = new Timestamp(System.currentTimeMillis());
+    }
+
+    private static class DataEntry {
+        String className;
+        String content;
+    }
+
+    private final Object lock = new Object();
+    private List<Record> records = new ArrayList<Record>();
+    // chains having rows in database, only accessed by the journal thread
+    private final Set<String> persistedChains = new HashSet<String>();
+    private volatile boolean isRunning;
+    private Future<Void> journalThread;
+    private List<WorkFlowChainTakeOverExtensionPoint> takeOverExts = new ArrayList<WorkFlowChainTakeOverExtensionPoint>();
+
+    private void queue(Record r) {
+        synchronized (lock) {
+            records.add(r);
+            if (records.size() >= CoreGlobalProperty.WORKFLOW_JOURNAL_BATCH_SIZE) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public void chainStarted(String chainUuid, String name, String owner, int totalWorkFlows) {
+        Record r = new Record();
+        r.type = RecordType.ChainStarted;
+        r.chainUuid = chainUuid;
+        r.name = name;
+        r.owner = owner;
+        r.position = totalWorkFlows;
+        queue(r);
+    }
+
+    @Override
+    public void flowDone(String chainUuid, String flowClassName, int position, WorkFlowState state, Map data, String[] dataKeys) {
+        Record r = new Record();
+        r.type = RecordType.FlowDone;
+        r.chainUuid = chainUuid;
+        r.name = flowClassName;
+        r.position = position;
+        r.state = state;
+        r.context = marshal(data, dataKeys);
+        queue(r);
+    }
+
+    @Override
+    public void flowRolledBack(String chainUuid, String flowClassName, int position) {
+        Record r = new Record();
+        r.type = RecordType.FlowRolledBack;
+        r.chainUuid = chainUuid;
+        r.name = flowClassName;
+        r.position = position;
+        r.state = WorkFlowState.RollbackDone;
+        queue(r);
+    }
+
+    @Override
+    public void chainFinished(String chainUuid) {
+        Record r = new Record();
+        r.type = RecordType.ChainFinished;
+        r.chainUuid = chainUuid;
+        queue(r);
+    }
+
+    private byte[] marshal(Map data, String[] dataKeys) {
+        Set<String> keys = dataKeys == null ? new HashSet<String>() : new HashSet<String>(Arrays.asList(dataKeys));
+        Map<String, DataEntry> entries = new HashMap<String, DataEntry>();
+        for (Object o : data.entrySet()) {
+            Map.Entry e = (Map.Entry) o;
+            Object value = e.getValue();
+            if (!(e.getKey() instanceof String) || value == null) {
+                continue;
+            }
+
+            if (!keys.contains(e.getKey()) && !(value instanceof String || value instanceof Number || value instanceof Boolean)) {
+                continue;
+            }
+
+            DataEntry de = new DataEntry();
+            de.className = value.getClass().getName();
+            de.content = gson.toJson(value);
+            entries.put((String) e.getKey(), de);
+        }
+
+        try {
+            return gson.toJson(entries).getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new CloudRuntimeException(e);
+        }
+    }
+
+    private Map unmarshal(byte[] context) {
+        Map<String, Object> data = new HashMap<String, Object>();
+        if (context == null) {
+            return data;
+        }
+
+        try {
+            Map<String, DataEntry> entries = gson.fromJson(new String(context, "UTF-8"), new TypeToken<Map<String, DataEntry>>(){}.getType());
+            for (Map.Entry<String, DataEntry> e : entries.entrySet()) {
+                data.put(e.getKey(), gson.fromJson(e.getValue().content, Class.forName(e.getValue().className)));
+            }
+        } catch (Exception e) {
+            throw new CloudRuntimeException(e);
+        }
+        return data;
+    }
+
+    private void insertChains(Connection conn, List<Record> rs) throws SQLException {
+        for (int start = 0; start < rs.size(); start += ROWS_PER_INSERT) {
+            List<Record> sub = rs.subList(start, Math.min(start + ROWS_PER_INSERT, rs.size()));
+            StringBuilder sql = new StringBuilder("INSERT INTO WorkFlowChainVO (uuid, name, owner, state, totalWorkFlows, currentPosition, OperationDate, managementNodeUuid) VALUES ");
+            for (int i = 0; i < sub.size(); i++) {
+                sql.append(i == 0 ? "(?, ?, ?, ?, ?, 0, ?, ?)" : ",(?, ?, ?, ?, ?, 0, ?, ?)");
+            }
+
+            PreparedStatement pstmt = conn.prepareStatement(sql.toString());
+            try {
+                int i = 1;
+                for (Record r : sub) {
+                    pstmt.setString(i++, r.chainUuid);
+                    pstmt.setString(i++, r.name);
+                    pstmt.setString(i++, r.owner);
+                    pstmt.setString(i++, WorkFlowChainState.Processing.toString());
+                    pstmt.setInt(i++, r.position);
+                    pstmt.setTimestamp(i++, r.date);
+                    pstmt.setString(i++, Platform.getManagementServerId());
+                }
+                pstmt.executeUpdate();
+            } finally {
+                pstmt.close();
+            }
+        }
+    }
+
+    private void insertFlows(Connection conn, List<Record> rs) throws SQLException {
+        for (int start = 0; start < rs.size(); start += ROWS_PER_INSERT) {
+            List<Record> sub = rs.subList(start, Math.min(start + ROWS_PER_INSERT, rs.size()));
+            StringBuilder sql = new StringBuilder("INSERT INTO WorkFlowVO (chainUuid, name, state, position, OperationDate, context) VALUES ");
+            for (int i = 0; i < sub.size(); i++) {
+                sql.append(i == 0 ? "(?, ?, ?, ?, ?, ?)" : ",(?, ?, ?, ?, ?, ?)");
+            }
+
+            PreparedStatement pstmt = conn.prepareStatement(sql.toString());
+            try {
+                int i = 1;
+                for (Record r : sub) {
+                    pstmt.setString(i++, r.chainUuid);
+                    pstmt.setString(i++, r.name);
+                    pstmt.setString(i++, r.state.toString());
+                    pstmt.setInt(i++, r.position);
+                    pstmt.setTimestamp(i++, r.date);
+                    pstmt.setBytes(i++, r.context);
+                }
+                pstmt.executeUpdate();
+            } finally {
+                pstmt.close();
+            }
+        }
+    }
+
+    private void updateChains(Connection conn, Collection<Record> rs) throws SQLException {
+        PreparedStatement pstmt = conn.prepareStatement("UPDATE WorkFlowChainVO SET currentPosition = ?, state = ?, OperationDate = ? WHERE uuid = ?");
+        try {
+            for (Record r : rs) {
+                WorkFlowChainState state = r.state == WorkFlowState.Done ? WorkFlowChainState.Processing : WorkFlowChainState.ProcessFailed;
+                pstmt.setInt(1, r.position);
+                pstmt.setString(2, state.toString());
+                pstmt.setTimestamp(3, r.date);
+                pstmt.setString(4, r.chainUuid);
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+        } finally {
+            pstmt.close();
+        }
+    }
+
+    private void deleteChains(Connection conn, List<String> chainUuids) throws SQLException {
+        for (int start = 0; start < chainUuids.size(); start += ROWS_PER_INSERT) {
+            List<String> sub = chainUuids.subList(start, Math.min(start + ROWS_PER_INSERT, chainUuids.size()));
+            StringBuilder in = new StringBuilder();
+            for (int i = 0; i < sub.size(); i++) {
+                in.append(i == 0 ? "?" : ",?");
+            }
+
+            for (String sql : new String[]{"DELETE FROM WorkFlowVO WHERE chainUuid IN (%s)", "DELETE FROM WorkFlowChainVO WHERE uuid IN (%s)"}) {
+                PreparedStatement pstmt = conn.prepareStatement(String.format(sql, in));
+                try {
+                    int i = 1;
+                    for (String uuid : sub) {
+                        pstmt.setString(i++, uuid);
+                    }
+                    pstmt.executeUpdate();
+                } finally {
+                    pstmt.close();
+                }
+            }
+        }
+    }
+
+    private void write(List<Record> rs) throws SQLException {
+        Set<String> finished = new HashSet<String>();
+        for (Record r : rs) {
+            if (r.type == RecordType.ChainFinished) {
+                finished.add(r.chainUuid);
+            }
+        }
+
+        List<Record> chainsToInsert = new ArrayList<Record>();
+        List<Record> flowsToInsert = new ArrayList<Record>();
+        Map<String, Record> chainsToUpdate = new LinkedHashMap<String, Record>();
+        List<String> chainsToDelete = new ArrayList<String>();
+        for (Record r : rs) {
+            if (finished.contains(r.chainUuid)) {
+                if (r.type == RecordType.ChainFinished && persistedChains.contains(r.chainUuid)) {
+                    chainsToDelete.add(r.chainUuid);
+                }
+                continue;
+            }
+
+            if (r.type == RecordType.ChainStarted) {
+                chainsToInsert.add(r);
+            } else {
+                flowsToInsert.add(r);
+                chainsToUpdate.put(r.chainUuid, r);
+            }
+        }
+
+        // rollback only needs the data of the last flow
+        Set<String> hasContext = new HashSet<String>();
+        for (int i = flowsToInsert.size() - 1; i >= 0; i--) {
+            Record r = flowsToInsert.get(i);
+            if (r.context != null && !hasContext.add(r.chainUuid)) {
+                r.context = null;
+            }
+        }
+
+        Connection conn = dbf.getDataSource().getConnection();
+        try {
+            conn.setAutoCommit(false);
+            insertChains(conn, chainsToInsert);
+            insertFlows(conn, flowsToInsert);
+            updateChains(conn, chainsToUpdate.values());
+            deleteChains(conn, chainsToDelete);
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+            conn.close();
+        }
+
+        for (Record r : chainsToInsert) {
+            persistedChains.add(r.chainUuid);
+        }
+        persistedChains.removeAll(chainsToDelete);
+    }
+
+    private void writeJournal() throws InterruptedException {
+        while (isRunning) {
+            List<Record> rs;
+            synchronized (lock) {
+                if (records.size() < CoreGlobalProperty.WORKFLOW_JOURNAL_BATCH_SIZE) {
+                    lock.wait(CoreGlobalProperty.WORKFLOW_JOURNAL_FLUSH_INTERVAL);
+                }
+                if (records.isEmpty()) {
+                    continue;
+                }
+
+                rs = records;
+                records = new ArrayList<Record>();
+            }
+
+            try {
+                write(rs);
+            } catch (Exception e) {
+                // finishes of chains must not be lost, otherwise finished chains get rolled back when we die
+                logger.warn(String.format("unable to write %s workflow journal records, retry later", rs.size()), e);
+                synchronized (lock) {
+                    rs.addAll(records);
+                    records = rs;
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean start() {
+        takeOverExts = pluginRgty.getExtensionList(WorkFlowChainTakeOverExtensionPoint.class);
+
+        isRunning = true;
+        journalThread = thdf.submit(new Task<Void>() {
+            @Override
+            public String getName() {
+                return "workflow-journal-thread";
+            }
+
+            @Override
+            public Void call() throws Exception {
+                writeJournal();
+                return null;
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean stop() {
+        isRunning = false;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+        return true;
+    }
+
+    @Transactional
+    private boolean claimChain(String chainUuid, String managementNodeUuid) {
+        String sql = "update WorkFlowChainVO c set c.managementNodeUuid = :myUuid where c.uuid = :uuid and c.managementNodeUuid = :nodeUuid";
+        Query q = dbf.getEntityManager().createQuery(sql);
+        q.setParameter("myUuid", Platform.getManagementServerId());
+        q.setParameter("uuid", chainUuid);
+        q.setParameter("nodeUuid", managementNodeUuid);
+        return q.executeUpdate() == 1;
+    }
+
+    @Transactional
+    private void removeChain(String chainUuid) {
+        Query q = dbf.getEntityManager().createQuery("delete from WorkFlowVO f where f.chainUuid = :uuid");
+        q.setParameter("uuid", chainUuid);
+        q.executeUpdate();
+        q = dbf.getEntityManager().createQuery("delete from WorkFlowChainVO c where c.uuid = :uuid");
+        q.setParameter("uuid", chainUuid);
+        q.executeUpdate();
+    }
+
+    private void takeOverChain(final WorkFlowChainVO chain) {
+        SimpleQuery<WorkFlowVO> q = dbf.createQuery(WorkFlowVO.class);
+        q.add(WorkFlowVO_.chainUuid, Op.EQ, chain.getUuid());
+        q.orderBy(WorkFlowVO_.id, Od.ASC);
+        List<WorkFlowVO> vos = q.list();
+
+        // key: position, value: class name of the flow not rolled back yet
+        TreeMap<Integer, String> toRollback = new TreeMap<Integer, String>();
+        byte[] context = null;
+        for (WorkFlowVO vo : vos) {
+            if (vo.getState() == WorkFlowState.RollbackDone) {
+                toRollback.remove(vo.getPosition());
+            } else {
+                toRollback.put(vo.getPosition(), vo.getName());
+            }
+
+            if (vo.getContext() != null) {
+                context = vo.getContext();
+            }
+        }
+
+        final Map data = unmarshal(context);
+        boolean rollback = false;
+        for (WorkFlowChainTakeOverExtensionPoint ext : takeOverExts) {
+            if (ext.isOrphanChainToRollback(chain.getName(), chain.getOwner(), data)) {
+                rollback = true;
+                break;
+            }
+        }
+
+        if (!rollback) {
+            logger.debug(String.format("no extension rolls back the flow chain[uuid:%s, name:%s, owner:%s], remove it from the journal",
+                    chain.getUuid(), chain.getName(), chain.getOwner()));
+            removeChain(chain.getUuid());
+            return;
+        }
+
+        List<Flow> flows = new ArrayList<Flow>();
+        try {
+            for (String className : toRollback.values()) {
+                flows.add((Flow) Class.forName(className).newInstance());
+            }
+        } catch (Exception e) {
+            throw new CloudRuntimeException(e);
+        }
+
+        logger.debug(String.format("take over the flow chain[uuid:%s, name:%s, owner:%s], roll back %s flows",
+                chain.getUuid(), chain.getName(), chain.getOwner(), flows.size()));
+
+        ErrorCode err = errf.stringToOperationError(String.format("management node[uuid:%s] running the flow chain[%s] died",
+                chain.getManagementNodeUuid(), chain.getName()));
+        SimpleFlowChain rchain = new SimpleFlowChain();
+        rchain.setName(String.format("take-over-%s", chain.getName()));
+        rchain.setData(data);
+        rchain.error(new FlowErrorHandler() {
+            @Override
+            public void handle(ErrorCode errCode, Map data) {
+                for (WorkFlowChainTakeOverExtensionPoint ext : takeOverExts) {
+                    try {
+                        ext.afterRollbackOrphanChain(chain.getName(), chain.getOwner(), data);
+                    } catch (Throwable t) {
+                        logger.warn(String.format("unhandled exception when calling %s", ext.getClass().getName()), t);
+                    }
+                }
+                removeChain(chain.getUuid());
+            }
+        });
+        rchain.rollback(flows, err);
+    }
+
+    private void takeOverChains(String deadNodeUuid) {
+        SimpleQuery<WorkFlowChainVO> q = dbf.createQuery(WorkFlowChainVO.class);
+        if (deadNodeUuid != null) {
+            q.add(WorkFlowChainVO_.managementNodeUuid, Op.EQ, deadNodeUuid);
+        } else {
+            q.add(WorkFlowChainVO_.managementNodeUuid, Op.NOT_NULL);
+        }
+        List<WorkFlowChainVO> chains = q.list();
+        if (chains.isEmpty()) {
+            return;
+        }
+
+        if (deadNodeUuid == null) {
+            SimpleQuery<ManagementNodeVO> mq = dbf.createQuery(ManagementNodeVO.class);
+            mq.select(ManagementNodeVO_.uuid);
+            List<String> alive = mq.listValue();
+            Iterator<WorkFlowChainVO> it = chains.iterator();
+            while (it.hasNext()) {
+                if (alive.contains(it.next().getManagementNodeUuid())) {
+                    it.remove();
+                }
+            }
+        }
+
+        for (WorkFlowChainVO chain : chains) {
+            try {
+                if (!destMaker.isManagedByUs(chain.getOwner()) || !claimChain(chain.getUuid(), chain.getManagementNodeUuid())) {
+                    continue;
+                }
+
+                takeOverChain(chain);
+            } catch (Throwable t) {
+                logger.warn(String.format("failed to take over the flow chain[uuid:%s, name:%s, owner:%s]", chain.getUuid(), chain.getName(), chain.getOwner()), t);
+            }
+        }
+    }
+
+    private void takeOverChainsInBackground(final String deadNodeUuid) {
+        thdf.submit(new Task<Void>() {
+            @Override
+            public String getName() {
+                return "take-over-workflow-chains";
+            }
+
+            @Override
+            public Void call() throws Exception {
+                try {
+                    takeOverChains(deadNodeUuid);
+                } catch (Throwable t) {
+                    logger.warn(String.format("failed to take over flow chains of the management node[uuid:%s]", deadNodeUuid), t);
+                }
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void nodeJoin(String nodeId) {
+    }
+
+    @Override
+    public void nodeLeft(String nodeId) {
+        takeOverChainsInBackground(nodeId);
+    }
+
+    @Override
+    public void iAmDead(String nodeId) {
+    }
+
+    @Override
+    public void iJoin(String nodeId) {
+        // chains of management nodes that died when no one was alive
+        takeOverChainsInBackground(null);
+    }
+}
@@ -31,4 +31,10 @@ public interface FlowChain {
     FlowChain noRollback(boolean no);
 
     FlowChain allowEmptyFlow();
+
+    /**
+     * journals completion of flows, so the management node taking over the owner can roll back the chain if
+     * this node dies. Data of keys in dataKeys and data of simple types are journaled for rollback
+     */
+    FlowChain journal(String owner, String... dataKeys);
 }
@@ -0,0 +1,37 @@
+package org.zstack.header.identity;
+
+import org.zstack.header.message.NeedJsonSchema;
+
+/**
+ */
+public interface IdentityCanonicalEvents {
+    public static final String POLICY_CHANGED_PATH = "/identity/policy/changed/{nodeUuid}";
+    public static final String SESSION_LOGOUT_PATH = "/identity/session/logout/{nodeUuid}";
+
+    @NeedJsonSchema
+    public static class PolicyChangedData {
+        // null means policies of all users may have changed
+        private String userUuid;
+
+        public String getUserUuid() {
+            return userUuid;
+        }
+
+        public void setUserUuid(String userUuid) {
+            this.userUuid = userUuid;
+        }
+    }
+
+    @NeedJsonSchema
+    public static class SessionLogoutData {
+        private String sessionUuid;
+
+        public String getSessionUuid() {
+            return sessionUuid;
+        }
+
+        public void setSessionUuid(String sessionUuid) {
+            this.sessionUuid = sessionUuid;
+        }
+    }
+}
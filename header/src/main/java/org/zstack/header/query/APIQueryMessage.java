@@ -18,6 +18,12 @@ public abstract class APIQueryMessage extends APISyncCallMessage {
     @APIParam(required = false, validValues = {"asc", "desc"})
     private String sortDirection = "asc";
     private List<String> fields;
+    /**
+     * results are ordered by primary key and returned with a continuation token when there may be more,
+     * set the token to the next query to get the rest
+     */
+    private boolean streaming;
+    private String continuationToken;
 
     public List<QueryCondition> getConditions() {
         if (conditions == null) {
@@ -102,6 +108,22 @@ public abstract class APIQueryMessage extends APISyncCallMessage {
         return fields != null && !fields.isEmpty();
     }
 
+    public boolean isStreaming() {
+        return streaming || continuationToken != null;
+    }
+
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    public String getContinuationToken() {
+        return continuationToken;
+    }
+
+    public void setContinuationToken(String continuationToken) {
+        this.continuationToken = continuationToken;
+    }
+
     public boolean isCount() {
         return count;
     }
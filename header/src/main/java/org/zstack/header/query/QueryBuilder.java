@@ -8,5 +8,12 @@ public interface QueryBuilder {
 
     long count(APIQueryMessage msg, Class inventoryClass);
 
+    /**
+     * queries in chunks ordered by primary key, results are handed to the handler chunk by chunk
+     *
+     * @return the continuation token to query the rest, or null if no more results
+     */
+    <T> String query(APIQueryMessage msg, Class<T> inventoryClass, QueryResultHandler<T> handler);
+
     Map<String, List<String>> populateQueryableFields();
 }
@@ -0,0 +1,10 @@
+package org.zstack.header.query;
+
+import java.util.List;
+
+/**
+ * receives inventories of a streaming query chunk by chunk
+ */
+public interface QueryResultHandler<T> {
+    void handle(List<T> inventories);
+}
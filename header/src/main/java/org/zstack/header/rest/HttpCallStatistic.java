@@ -1,14 +1,24 @@
 package org.zstack.header.rest;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 /**
  */
 public class HttpCallStatistic {
+    /**
+     * upper bounds(in milliseconds) of latency histogram buckets, the last bucket holds everything
+     * beyond the last bound
+     */
+    public static final long[] LATENCY_BUCKETS = {10, 50, 100, 500, 1000, 5000, 10000, 30000, 60000, 300000};
+
     private String url;
     private long totalTime;
     private long count;
     private long averageTime;
+    private long maxTime;
+    private long[] histogram = new long[LATENCY_BUCKETS.length + 1];
 
     public String getUrl() {
         return url;
@@ -42,18 +52,65 @@ public class HttpCallStatistic {
         this.averageTime = averageTime;
     }
 
-    public void addStatistic(long time) {
+    public long getMaxTime() {
+        return maxTime;
+    }
+
+    public void setMaxTime(long maxTime) {
+        this.maxTime = maxTime;
+    }
+
+    public synchronized void addStatistic(long time) {
         totalTime += time;
         count ++;
         averageTime = totalTime / count;
+        maxTime = Math.max(maxTime, time);
+
+        int i = 0;
+        while (i < LATENCY_BUCKETS.length && time > LATENCY_BUCKETS[i]) {
+            i ++;
+        }
+        histogram[i] ++;
+    }
+
+    /**
+     * @return count of calls in each latency bucket, keyed by bucket label like "<=100ms" or ">300000ms"
+     */
+    public synchronized Map<String, Long> getHistogram() {
+        Map<String, Long> ret = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+            ret.put(String.format("<=%sms", LATENCY_BUCKETS[i]), histogram[i]);
+        }
+        ret.put(String.format(">%sms", LATENCY_BUCKETS[LATENCY_BUCKETS.length - 1]), histogram[LATENCY_BUCKETS.length]);
+        return ret;
+    }
+
+    /**
+     * @param percent in (0, 100]
+     * @return upper bound of the bucket the percentile falls in, or the max time if it falls in the last bucket
+     */
+    public synchronized long getPercentile(double percent) {
+        long target = (long) Math.ceil(count * percent / 100);
+        long sum = 0;
+        for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+            sum += histogram[i];
+            if (sum >= target) {
+                return Math.min(LATENCY_BUCKETS[i], maxTime);
+            }
+        }
+        return maxTime;
     }
 
     @Override
     public String toString() {
-        return String.format("URL[%s]: total time: %s secs, total count: %s, average time: %s secs",
+        return String.format("URL[%s]: total time: %s secs, total count: %s, average time: %s secs, p50: %sms, p99: %sms, max: %sms, histogram: %s",
                 url,
                 TimeUnit.MILLISECONDS.toSeconds(totalTime),
                 count,
-                TimeUnit.MILLISECONDS.toSeconds(averageTime));
+                TimeUnit.MILLISECONDS.toSeconds(averageTime),
+                getPercentile(50),
+                getPercentile(99),
+                maxTime,
+                getHistogram());
     }
 }
@@ -0,0 +1,22 @@
+package org.zstack.header.search;
+
+import org.zstack.header.message.APIEvent;
+
+public class APIReindexSearchEvent extends APIEvent {
+    private long indexedNum;
+
+    public APIReindexSearchEvent() {
+    }
+
+    public APIReindexSearchEvent(String apiId) {
+        super(apiId);
+    }
+
+    public long getIndexedNum() {
+        return indexedNum;
+    }
+
+    public void setIndexedNum(long indexedNum) {
+        this.indexedNum = indexedNum;
+    }
+}
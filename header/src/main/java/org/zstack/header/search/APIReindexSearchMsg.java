@@ -0,0 +1,29 @@
+package org.zstack.header.search;
+
+import org.zstack.header.message.APIMessage;
+
+import java.util.List;
+
+/**
+ * reindexes all entities of the inventories from database, all inventories if inventoryNames is empty
+ */
+public class APIReindexSearchMsg extends APIMessage {
+    private List<String> inventoryNames;
+    private boolean recreateIndex;
+
+    public List<String> getInventoryNames() {
+        return inventoryNames;
+    }
+
+    public void setInventoryNames(List<String> inventoryNames) {
+        this.inventoryNames = inventoryNames;
+    }
+
+    public boolean isRecreateIndex() {
+        return recreateIndex;
+    }
+
+    public void setRecreateIndex(boolean recreateIndex) {
+        this.recreateIndex = recreateIndex;
+    }
+}
@@ -26,6 +26,9 @@ public class ImageCacheVO {
     
     @Column
     private String installUrl;
+
+    @Column
+    private String hostUuid;
     
     @Column
     @Enumerated(EnumType.STRING)
@@ -79,6 +82,14 @@ public class ImageCacheVO {
         this.installUrl = installUrl;
     }
 
+    public String getHostUuid() {
+        return hostUuid;
+    }
+
+    public void setHostUuid(String hostUuid) {
+        this.hostUuid = hostUuid;
+    }
+
     public long getSize() {
         return size;
     }
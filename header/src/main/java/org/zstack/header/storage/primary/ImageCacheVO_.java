@@ -12,6 +12,7 @@ public class ImageCacheVO_ {
     public static volatile SingularAttribute<ImageCacheVO, String> primaryStorageUuid;
     public static volatile SingularAttribute<ImageCacheVO, String> imageUuid;
     public static volatile SingularAttribute<ImageCacheVO, String> installUrl;
+    public static volatile SingularAttribute<ImageCacheVO, String> hostUuid;
     public static volatile SingularAttribute<ImageCacheVO, String> md5sum;
     public static volatile SingularAttribute<ImageCacheVO, Long> size;
     public static volatile SingularAttribute<ImageCacheVO, Timestamp> createDate;
@@ -0,0 +1,72 @@
+package org.zstack.header.vm;
+
+import org.zstack.header.message.NeedReplyMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * changes states of vms on a host in a batch. A vm changes only if it's still on the host and in the
+ * expected state, the same as ChangeVmMetaDataMsg but without going through the vm's own queue; so it's
+ * only for states no vm operation is in progress, e.g. Running and Unknown
+ */
+public class ChangeVmStatesOnHostMsg extends NeedReplyMessage {
+    public static class VmStateChange {
+        private String vmUuid;
+        private String expected;
+        private String value;
+
+        public String getVmUuid() {
+            return vmUuid;
+        }
+
+        public void setVmUuid(String vmUuid) {
+            this.vmUuid = vmUuid;
+        }
+
+        public VmInstanceState getExpected() {
+            if (expected != null) {
+                return VmInstanceState.valueOf(expected);
+            }
+            return null;
+        }
+
+        public void setExpected(VmInstanceState expected) {
+            if (expected != null) {
+                this.expected = expected.toString();
+            }
+        }
+
+        public VmInstanceState getValue() {
+            if (value != null) {
+                return VmInstanceState.valueOf(value);
+            }
+            return null;
+        }
+
+        public void setValue(VmInstanceState value) {
+            if (value != null) {
+                this.value = value.toString();
+            }
+        }
+    }
+
+    private String hostUuid;
+    private List<VmStateChange> changes = new ArrayList<VmStateChange>();
+
+    public String getHostUuid() {
+        return hostUuid;
+    }
+
+    public void setHostUuid(String hostUuid) {
+        this.hostUuid = hostUuid;
+    }
+
+    public List<VmStateChange> getChanges() {
+        return changes;
+    }
+
+    public void setChanges(List<VmStateChange> changes) {
+        this.changes = changes;
+    }
+}
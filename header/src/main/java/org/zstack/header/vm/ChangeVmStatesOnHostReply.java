@@ -0,0 +1,21 @@
+package org.zstack.header.vm;
+
+import org.zstack.header.message.MessageReply;
+import org.zstack.header.vm.ChangeVmStatesOnHostMsg.VmStateChange;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ */
+public class ChangeVmStatesOnHostReply extends MessageReply {
+    private List<VmStateChange> changesDone = new ArrayList<VmStateChange>();
+
+    public List<VmStateChange> getChangesDone() {
+        return changesDone;
+    }
+
+    public void setChangesDone(List<VmStateChange> changesDone) {
+        this.changesDone = changesDone;
+    }
+}
@@ -2,12 +2,15 @@ package org.zstack.header.vm;
 
 import org.zstack.header.message.NeedJsonSchema;
 
+import java.util.List;
+
 /**
  */
 public interface VmTracerCanonicalEvents {
     public static final String HOST_CHANGED_PATH = "/vmTracer/hostChanged";
     public static final String VM_STATE_CHANGED_PATH = "/vmTracer/vmStateChanged";
     public static final String STRANGER_VM_FOUND_PATH = "/vmTracer/strangerVmFound";
+    public static final String VM_STATES_CHANGED_ON_HOST_PATH = "/vmTracer/vmStatesChangedOnHost";
 
     @NeedJsonSchema
     public static class StrangerVmFoundData {
@@ -86,6 +89,28 @@ public interface VmTracerCanonicalEvents {
         }
     }
 
+    @NeedJsonSchema
+    public static class VmStatesChangedOnHostData {
+        private String hostUuid;
+        private List<VmStateChangedData> changes;
+
+        public String getHostUuid() {
+            return hostUuid;
+        }
+
+        public void setHostUuid(String hostUuid) {
+            this.hostUuid = hostUuid;
+        }
+
+        public List<VmStateChangedData> getChanges() {
+            return changes;
+        }
+
+        public void setChanges(List<VmStateChangedData> changes) {
+            this.changes = changes;
+        }
+    }
+
     @NeedJsonSchema
     public static class HostChangedData {
         private String vmUuid;
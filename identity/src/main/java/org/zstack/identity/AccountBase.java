@@ -206,6 +206,7 @@ public class AccountBase extends AbstractAccount {
     private void handle(AccountDeletionMsg msg) {
         AccountDeletionReply reply = new AccountDeletionReply();
         deleteRelatedResources();
+        acntMgr.policyChanged(null);
         bus.reply(msg, reply);
     }
 
@@ -372,6 +373,7 @@ public class AccountBase extends AbstractAccount {
             dbf.remove(ref);
         }
 
+        acntMgr.policyChanged(msg.getUserUuid());
         bus.publish(new APIRemoveUserFromGroupEvent(msg.getId()));
     }
 
@@ -384,6 +386,8 @@ public class AccountBase extends AbstractAccount {
             dbf.remove(ref);
         }
 
+        // all users in the group are affected
+        acntMgr.policyChanged(null);
         bus.publish(new APIDetachPolicyFromUserGroupEvent(msg.getId()));
     }
 
@@ -396,23 +400,27 @@ public class AccountBase extends AbstractAccount {
             dbf.remove(ref);
         }
 
+        acntMgr.policyChanged(msg.getUserUuid());
         bus.publish(new APIDetachPolicyFromUserEvent(msg.getId()));
     }
 
     private void handle(APIDeletePolicyMsg msg) {
         dbf.removeByPrimaryKey(msg.getUuid(), PolicyVO.class);
+        acntMgr.policyChanged(null);
         APIDeletePolicyEvent evt = new APIDeletePolicyEvent(msg.getId());
         bus.publish(evt);
     }
 
     private void handle(APIDeleteUserMsg msg) {
         dbf.removeByPrimaryKey(msg.getUuid(), UserVO.class);
+        acntMgr.policyChanged(msg.getUuid());
         APIDeleteUserEvent evt = new APIDeleteUserEvent(msg.getId());
         bus.publish(evt);
     }
 
     private void handle(APIDeleteUserGroupMsg msg) {
         dbf.removeByPrimaryKey(msg.getUuid(), UserGroupVO.class);
+        acntMgr.policyChanged(null);
         APIDeleteUserGroupEvent evt = new APIDeleteUserGroupEvent(msg.getId());
         bus.publish(evt);
     }
@@ -422,6 +430,7 @@ public class AccountBase extends AbstractAccount {
         ugvo.setGroupUuid(msg.getGroupUuid());
         ugvo.setUserUuid(msg.getUserUuid());
         dbf.persist(ugvo);
+        acntMgr.policyChanged(msg.getUserUuid());
         APIAddUserToGroupEvent evt = new APIAddUserToGroupEvent(msg.getId());
         bus.publish(evt);
     }
@@ -431,6 +440,7 @@ public class AccountBase extends AbstractAccount {
         grvo.setGroupUuid(msg.getGroupUuid());
         grvo.setPolicyUuid(msg.getPolicyUuid());
         dbf.persist(grvo);
+        acntMgr.policyChanged(null);
         APIAttachPolicyToUserGroupEvent evt = new APIAttachPolicyToUserGroupEvent(msg.getId());
         bus.publish(evt);
     }
@@ -460,7 +470,8 @@ public class AccountBase extends AbstractAccount {
         upvo.setPolicyUuid(msg.getPolicyUuid());
         upvo.setUserUuid(msg.getUserUuid());
         dbf.persist(upvo);
-        
+        acntMgr.policyChanged(msg.getUserUuid());
+
         APIAttachPolicyToUserEvent evt = new APIAttachPolicyToUserEvent(msg.getId());
         bus.publish(evt);
     }
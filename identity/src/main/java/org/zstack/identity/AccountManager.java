@@ -10,4 +10,11 @@ public interface AccountManager {
     boolean isResourceHavingAccountReference(Class entityClass);
 
     List<String> getResourceUuidsCanAccessByAccount(String accountUuid, Class resourceType);
+
+    /**
+     * drops cached policies of the user on all management nodes
+     *
+     * @param userUuid null to drop cached policies of all users
+     */
+    void policyChanged(String userUuid);
 }
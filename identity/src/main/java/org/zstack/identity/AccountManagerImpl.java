@@ -7,6 +7,8 @@ import org.springframework.security.authentication.BadCredentialsException;
 import org.springframework.transaction.annotation.Transactional;
 import org.zstack.core.Platform;
 import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.cloudbus.EventCallback;
+import org.zstack.core.cloudbus.EventFacade;
 import org.zstack.core.cloudbus.MessageSafe;
 import org.zstack.core.componentloader.PluginRegistry;
 import org.zstack.core.config.GlobalConfigFacade;
@@ -26,6 +28,8 @@ import org.zstack.header.errorcode.SysErrors;
 import org.zstack.header.exception.CloudRuntimeException;
 import org.zstack.header.identity.*;
 import org.zstack.header.identity.AccountConstant.StatementEffect;
+import org.zstack.header.identity.IdentityCanonicalEvents.PolicyChangedData;
+import org.zstack.header.identity.IdentityCanonicalEvents.SessionLogoutData;
 import org.zstack.header.identity.PolicyInventory.Statement;
 import org.zstack.header.identity.Quota.QuotaPair;
 import org.zstack.header.managementnode.PrepareDbInitialValueExtensionPoint;
@@ -53,10 +57,12 @@ import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicLong;
 
+import static org.zstack.utils.CollectionDSL.e;
 import static org.zstack.utils.CollectionDSL.list;
+import static org.zstack.utils.CollectionDSL.map;
+import static org.zstack.utils.StringDSL.s;
 
 public class AccountManagerImpl extends AbstractService implements AccountManager, PrepareDbInitialValueExtensionPoint,
         SoftDeleteEntityExtensionPoint, HardDeleteEntityExtensionPoint, GlobalApiMessageInterceptor, ApiMessageInterceptor {
@@ -76,11 +82,19 @@ public class AccountManagerImpl extends AbstractService implements AccountManage
     private PluginRegistry pluginRgty;
     @Autowired
     private GlobalConfigFacade gcf;
+    @Autowired
+    private EventFacade evtf;
 
     private List<String> resourceTypeForAccountRef;
     private List<Class> resourceTypes;
     private Map<String, SessionInventory> sessions = new ConcurrentHashMap<String, SessionInventory>();
     private Map<Class, Quota> messageQuotaMap = new HashMap<Class, Quota>();
+    private Map<String, AccountType> accountTypes = new ConcurrentHashMap<String, AccountType>();
+    private Map<String, UserPolicies> userPolicies = new ConcurrentHashMap<String, UserPolicies>();
+    // bumped on every invalidation, policies loaded across an invalidation are not cached
+    private final AtomicLong policyVersion = new AtomicLong();
+    // the database time minus the local time, sessions are checked against the database time
+    private volatile long sqlTimeOffset;
 
     class AccountCheckField {
         Field field;
@@ -95,6 +109,48 @@ public class AccountManagerImpl extends AbstractService implements AccountManage
         List<AccountCheckField> accountCheckFields;
     }
 
+    class Decision {
+        PolicyMatcher.Match match;
+        boolean userPolicy;
+    }
+
+    private final Decision NO_DECISION = new Decision();
+
+    /**
+     * compiled policies of a user and decisions they made on API messages,
+     * dropped when policies, groups or policy references of the user change
+     */
+    class UserPolicies {
+        String username;
+        PolicyMatcher userPolicyMatcher;
+        PolicyMatcher groupPolicyMatcher;
+        Map<Class, Decision> decisions = new ConcurrentHashMap<Class, Decision>();
+
+        Decision decide(Class msgClass, List<String> actions) {
+            Decision d = decisions.get(msgClass);
+            if (d != null) {
+                return d;
+            }
+
+            d = NO_DECISION;
+            PolicyMatcher.Match m = userPolicyMatcher.match(actions);
+            if (m != null) {
+                d = new Decision();
+                d.match = m;
+                d.userPolicy = true;
+            } else {
+                m = groupPolicyMatcher.match(actions);
+                if (m != null) {
+                    d = new Decision();
+                    d.match = m;
+                }
+            }
+
+            decisions.put(msgClass, d);
+            return d;
+        }
+    }
+
     private Map<Class, MessageAction> actions = new HashMap<Class, MessageAction>();
     private Future<Void> expiredSessionCollector;
 
@@ -402,6 +458,8 @@ public class AccountManagerImpl extends AbstractService implements AccountManage
         try {
             buildResourceTypes();
             buildActions();
+            installEventListeners();
+            refreshSqlTimeOffset();
             startExpiredSessionCollector();
             collectDefaultQuota();
         } catch (Exception e) {
@@ -484,6 +542,7 @@ public class AccountManagerImpl extends AbstractService implements AccountManage
 
             @Override
             public void run() {
+                refreshSqlTimeOffset();
                 List<String> uuids = deleteExpiredSessions();
                 for (String uuid : uuids) {
                     sessions.remove(uuid);
@@ -691,6 +750,123 @@ public class AccountManagerImpl extends AbstractService implements AccountManage
     private void logOutSession(String sessionUuid) {
         sessions.remove(sessionUuid);
         dbf.removeByPrimaryKey(sessionUuid, SessionVO.class);
+
+        SessionLogoutData data = new SessionLogoutData();
+        data.setSessionUuid(sessionUuid);
+        evtf.fire(makeEventPath(IdentityCanonicalEvents.SESSION_LOGOUT_PATH), data);
+    }
+
+    private String makeEventPath(String path) {
+        return s(path).formatByMap(map(e("nodeUuid", Platform.getManagementServerId())));
+    }
+
+    private boolean isFromMyself(Map tokens) {
+        return Platform.getManagementServerId().equals(tokens.get("nodeUuid"));
+    }
+
+    private void installEventListeners() {
+        evtf.on(IdentityCanonicalEvents.POLICY_CHANGED_PATH, new EventCallback() {
+            @Override
+            public void run(Map tokens, Object data) {
+                if (isFromMyself(tokens)) {
+                    return;
+                }
+
+                PolicyChangedData d = (PolicyChangedData) data;
+                invalidatePolicies(d.getUserUuid());
+            }
+        });
+
+        evtf.on(IdentityCanonicalEvents.SESSION_LOGOUT_PATH, new EventCallback() {
+            @Override
+            public void run(Map tokens, Object data) {
+                if (isFromMyself(tokens)) {
+                    return;
+                }
+
+                SessionLogoutData d = (SessionLogoutData) data;
+                sessions.remove(d.getSessionUuid());
+            }
+        });
+    }
+
+    private void invalidatePolicies(String userUuid) {
+        policyVersion.incrementAndGet();
+        if (userUuid == null) {
+            userPolicies.clear();
+            accountTypes.clear();
+        } else {
+            userPolicies.remove(userUuid);
+        }
+    }
+
+    @Override
+    public void policyChanged(String userUuid) {
+        invalidatePolicies(userUuid);
+
+        PolicyChangedData data = new PolicyChangedData();
+        data.setUserUuid(userUuid);
+        evtf.fire(makeEventPath(IdentityCanonicalEvents.POLICY_CHANGED_PATH), data);
+    }
+
+    private AccountType getAccountType(String accountUuid) {
+        AccountType type = accountTypes.get(accountUuid);
+        if (type != null) {
+            return type;
+        }
+
+        SimpleQuery<AccountVO> q = dbf.createQuery(AccountVO.class);
+        q.select(AccountVO_.type);
+        q.add(AccountVO_.uuid, Op.EQ, accountUuid);
+        type = q.findValue();
+        if (type != null) {
+            // the type of an account never changes
+            accountTypes.put(accountUuid, type);
+        }
+        return type;
+    }
+
+    private UserPolicies getUserPolicies(String userUuid) {
+        UserPolicies ups = userPolicies.get(userUuid);
+        if (ups != null) {
+            return ups;
+        }
+
+        long version = policyVersion.get();
+        ups = new UserPolicies();
+        SimpleQuery<UserVO> uq = dbf.createQuery(UserVO.class);
+        uq.select(UserVO_.name);
+        uq.add(UserVO_.uuid, Op.EQ, userUuid);
+        ups.username = uq.findValue();
+        ups.userPolicyMatcher = new PolicyMatcher(loadUserPolicies(userUuid));
+        ups.groupPolicyMatcher = new PolicyMatcher(loadGroupPolicies(userUuid));
+        if (version == policyVersion.get()) {
+            userPolicies.put(userUuid, ups);
+        }
+
+        if (logger.isTraceEnabled()) {
+            logger.trace(String.format("compiled %s user policy rules and %s group policy rules for user[name: %s, uuid: %s]",
+                    ups.userPolicyMatcher.getRuleNum(), ups.groupPolicyMatcher.getRuleNum(), ups.username, userUuid));
+        }
+
+        return ups;
+    }
+
+    @Transactional(readOnly = true)
+    private List<PolicyInventory> loadGroupPolicies(String userUuid) {
+        String sql = "select p from PolicyVO p, UserGroupUserRefVO ref, UserGroupPolicyRefVO gref where" +
+                " p.uuid = gref.policyUuid and gref.groupUuid = ref.groupUuid and ref.userUuid = :uuid";
+        TypedQuery<PolicyVO> q = dbf.getEntityManager().createQuery(sql, PolicyVO.class);
+        q.setParameter("uuid", userUuid);
+        return PolicyInventory.valueOf(q.getResultList());
+    }
+
+    @Transactional(readOnly = true)
+    private List<PolicyInventory> loadUserPolicies(String userUuid) {
+        String sql = "select p from PolicyVO p, UserPolicyRefVO ref where ref.userUuid = :uuid and ref.policyUuid = p.uuid";
+        TypedQuery<PolicyVO> q = dbf.getEntityManager().createQuery(sql, PolicyVO.class);
+        q.setParameter("uuid", userUuid);
+        return PolicyInventory.valueOf(q.getResultList());
     }
 
     @Transactional(readOnly = true)
@@ -699,6 +875,17 @@ public class AccountManagerImpl extends AbstractService implements AccountManage
         return (Timestamp) query.getSingleResult();
     }
 
+    private void refreshSqlTimeOffset() {
+        long before = System.currentTimeMillis();
+        Timestamp curr = getCurrentSqlDate();
+        long after = System.currentTimeMillis();
+        sqlTimeOffset = curr.getTime() - (before + after) / 2;
+    }
+
+    private Timestamp getEstimatedSqlDate() {
+        return new Timestamp(System.currentTimeMillis() + sqlTimeOffset);
+    }
+
     class Auth {
         APIMessage msg;
         SessionInventory session;
@@ -794,17 +981,18 @@ public class AccountManagerImpl extends AbstractService implements AccountManage
             }
         }
 
-        private void useDecision(Decision d, boolean userPolicy) {
-            String policyCategory = userPolicy ? "user policy" : "group policy";
+        private void useDecision(Decision d) {
+            String policyCategory = d.userPolicy ? "user policy" : "group policy";
+            PolicyMatcher.Match m = d.match;
 
-            if (d.effect == StatementEffect.Allow) {
+            if (m.getEffect() == StatementEffect.Allow) {
                 logger.debug(String.format("API[name: %s, action: %s] is approved by a %s[name: %s, uuid: %s]," +
-                        " statement[name: %s, action: %s]", msg.getClass().getSimpleName(), d.action, policyCategory, d.policy.getName(),
-                        d.policy.getUuid(), d.statement.getName(), d.actionRule));
+                        " statement[name: %s, action: %s]", msg.getClass().getSimpleName(), m.getAction(), policyCategory, m.getPolicy().getName(),
+                        m.getPolicy().getUuid(), m.getStatement().getName(), m.getActionRule()));
             } else {
                 logger.debug(String.format("API[name: %s, action: %s] is denied by a %s[name: %s, uuid: %s]," +
-                                " statement[name: %s, action: %s]", msg.getClass().getSimpleName(), d.action, policyCategory, d.policy.getName(),
-                        d.policy.getUuid(), d.statement.getName(), d.actionRule));
+                                " statement[name: %s, action: %s]", msg.getClass().getSimpleName(), m.getAction(), policyCategory, m.getPolicy().getName(),
+                        m.getPolicy().getUuid(), m.getStatement().getName(), m.getActionRule()));
 
                 throw new ApiMessageInterceptionException(errf.instantiateErrorCode(IdentityErrors.PERMISSION_DENIED,
                         String.format("%s denied. user[name: %s, uuid: %s] is denied to execute API[%s]", policyCategory, username, session.getUuid(), msg.getClass().getSimpleName())
@@ -813,10 +1001,7 @@ public class AccountManagerImpl extends AbstractService implements AccountManage
         }
 
         private void policyCheck() {
-            SimpleQuery<AccountVO> q = dbf.createQuery(AccountVO.class);
-            q.select(AccountVO_.type);
-            q.add(AccountVO_.uuid, Op.EQ, session.getAccountUuid());
-            AccountType type = q.findValue();
+            AccountType type = getAccountType(session.getAccountUuid());
 
             if (type == AccountType.SystemAdmin) {
                 return;
@@ -850,22 +1035,11 @@ public class AccountManagerImpl extends AbstractService implements AccountManage
                 return;
             }
 
-            SimpleQuery<UserVO> uq = dbf.createQuery(UserVO.class);
-            uq.select(UserVO_.name);
-            uq.add(UserVO_.uuid, Op.EQ, session.getUserUuid());
-            username = uq.findValue();
-
-            List<PolicyInventory> userPolicies = getUserPolicies();
-            Decision d = decide(userPolicies);
-            if (d != null) {
-                useDecision(d, true);
-                return;
-            }
-
-            List<PolicyInventory> groupPolicies = getGroupPolicies();
-            d = decide(groupPolicies);
-            if (d != null) {
-                useDecision(d, false);
+            UserPolicies ups = getUserPolicies(session.getUserUuid());
+            username = ups.username;
+            Decision d = ups.decide(msg.getClass(), action.actions);
+            if (d != NO_DECISION) {
+                useDecision(d);
                 return;
             }
 
@@ -911,62 +1085,6 @@ public class AccountManagerImpl extends AbstractService implements AccountManage
             return pairs;
         }
 
-        @Transactional(readOnly = true)
-        private List<PolicyInventory> getGroupPolicies() {
-            String sql = "select p from PolicyVO p, UserGroupUserRefVO ref, UserGroupPolicyRefVO gref where" +
-                    " p.uuid = gref.policyUuid and gref.groupUuid = ref.groupUuid and ref.userUuid = :uuid";
-            TypedQuery<PolicyVO> q = dbf.getEntityManager().createQuery(sql, PolicyVO.class);
-            q.setParameter("uuid", session.getUserUuid());
-            return PolicyInventory.valueOf(q.getResultList());
-        }
-
-        class Decision {
-            PolicyInventory policy;
-            String action;
-            Statement statement;
-            String actionRule;
-            StatementEffect effect;
-        }
-
-        private Decision decide(List<PolicyInventory> userPolicies) {
-            for (String a : action.actions) {
-                for (PolicyInventory p : userPolicies) {
-                    for (Statement s : p.getStatements()) {
-                        for (String ac : s.getActions()) {
-                            Pattern pattern = Pattern.compile(ac);
-                            Matcher m = pattern.matcher(a);
-                            boolean ret = m.matches();
-                            if (ret) {
-                                Decision d = new Decision();
-                                d.policy = p;
-                                d.action = a;
-                                d.statement = s;
-                                d.actionRule = ac;
-                                d.effect = s.getEffect();
-                                return d;
-                            }
-
-                            if (logger.isTraceEnabled()) {
-                                logger.trace(String.format("API[name: %s, action: %s] is not matched by policy[name: %s, uuid: %s" +
-                                        ", statement[name: %s, action: %s, effect: %s]", msg.getClass().getSimpleName(), a, p.getName(),
-                                        p.getUuid(), s.getName(), ac, s.getEffect()));
-                            }
-                        }
-                    }
-                }
-            }
-
-            return null;
-        }
-
-        @Transactional(readOnly = true)
-        private List<PolicyInventory> getUserPolicies() {
-            String sql = "select p from PolicyVO p, UserPolicyRefVO ref where ref.userUuid = :uuid and ref.policyUuid = p.uuid";
-            TypedQuery<PolicyVO> q = dbf.getEntityManager().createQuery(sql, PolicyVO.class);
-            q.setParameter("uuid", session.getUserUuid());
-            return PolicyInventory.valueOf(q.getResultList());
-        }
-
         private void sessionCheck() {
             if (msg.getSession() == null) {
                 throw new ApiMessageInterceptionException(errf.instantiateErrorCode(IdentityErrors.INVALID_SESSION,
@@ -988,7 +1106,7 @@ public class AccountManagerImpl extends AbstractService implements AccountManage
                 sessions.put(session.getUuid(), session);
             }
 
-            Timestamp curr = getCurrentSqlDate();
+            Timestamp curr = getEstimatedSqlDate();
             if (curr.after(session.getExpiredDate())) {
                 logger.debug(String.format("session expired[%s < %s] for account[uuid:%s]", curr, session.getExpiredDate(), session.getAccountUuid()));
                 logOutSession(session.getUuid());
@@ -0,0 +1,102 @@
+package org.zstack.identity;
+
+import org.zstack.header.identity.AccountConstant.StatementEffect;
+import org.zstack.header.identity.PolicyInventory;
+import org.zstack.header.identity.PolicyInventory.Statement;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * action rules of policies compiled once. match() tries actions in order and, for each action, rules in the order
+ * of policies, statements and actions in statements; the first matching rule decides.
+ */
+public class PolicyMatcher {
+    public static class Match {
+        private final PolicyInventory policy;
+        private final Statement statement;
+        private final String action;
+        private final String actionRule;
+
+        Match(PolicyInventory policy, Statement statement, String action, String actionRule) {
+            this.policy = policy;
+            this.statement = statement;
+            this.action = action;
+            this.actionRule = actionRule;
+        }
+
+        public PolicyInventory getPolicy() {
+            return policy;
+        }
+
+        public Statement getStatement() {
+            return statement;
+        }
+
+        public String getAction() {
+            return action;
+        }
+
+        public String getActionRule() {
+            return actionRule;
+        }
+
+        public StatementEffect getEffect() {
+            return statement.getEffect();
+        }
+    }
+
+    private static class Rule {
+        final PolicyInventory policy;
+        final Statement statement;
+        final String actionRule;
+        final Pattern pattern;
+
+        Rule(PolicyInventory policy, Statement statement, String actionRule) {
+            this.policy = policy;
+            this.statement = statement;
+            this.actionRule = actionRule;
+            pattern = Pattern.compile(actionRule);
+        }
+    }
+
+    private final List<Rule> rules = new ArrayList<Rule>();
+
+    public PolicyMatcher(List<PolicyInventory> policies) {
+        for (PolicyInventory p : policies) {
+            if (p.getStatements() == null) {
+                continue;
+            }
+
+            for (Statement s : p.getStatements()) {
+                if (s.getActions() == null) {
+                    continue;
+                }
+
+                for (String ac : s.getActions()) {
+                    rules.add(new Rule(p, s, ac));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the first match, or null if no rule matches any of the actions
+     */
+    public Match match(List<String> actions) {
+        for (String a : actions) {
+            for (Rule r : rules) {
+                if (r.pattern.matcher(a).matches()) {
+                    return new Match(r.policy, r.statement, a, r.actionRule);
+                }
+            }
+        }
+
+        return null;
+    }
+
+    public int getRuleNum() {
+        return rules.size();
+    }
+}
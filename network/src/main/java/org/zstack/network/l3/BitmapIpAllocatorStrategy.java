@@ -0,0 +1,185 @@
+package org.zstack.network.l3;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.zstack.core.cloudbus.ResourceDestinationMaker;
+import org.zstack.core.db.SimpleQuery;
+import org.zstack.core.db.SimpleQuery.Op;
+import org.zstack.header.exception.CloudRuntimeException;
+import org.zstack.header.managementnode.ManagementNodeChangeListener;
+import org.zstack.header.network.l3.*;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+import org.zstack.utils.network.NetworkUtils;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * allocates ips from in-memory bitmaps of used ips, one bitmap per ip range.
+ *
+ * bitmaps are loaded from UsedIpVO when a l3 network is first seen and only cached for l3 networks managed by
+ * this management node(AllocateIpMsg is routed to the node ResourceDestinationMaker picks for the l3 network);
+ * they are all dropped when management nodes join or leave, as the ownership may change.
+ *
+ * the cache is kept by reserveIp/returnIp on this node, changes made elsewhere are caught up as:
+ * 1. an ip reserved elsewhere fails in reserveIp with a conflict, it's marked as used and another ip is tried
+ * 2. an ip returned elsewhere is invisible until the range looks full, then the bitmap is reloaded once
+ */
+public class BitmapIpAllocatorStrategy extends AbstractIpAllocatorStrategy implements UsedIpChangeListener, ManagementNodeChangeListener {
+    private static final CLogger logger = Utils.getLogger(BitmapIpAllocatorStrategy.class);
+    public static final IpAllocatorType type = new IpAllocatorType(L3NetworkConstant.BITMAP_IP_ALLOCATOR_STRATEGY);
+
+    @Autowired
+    private ResourceDestinationMaker destMaker;
+
+    // l3 network uuid -> ip range uuid -> bitmap
+    private ConcurrentHashMap<String, ConcurrentHashMap<String, IpRangeBitmap>> bitmaps =
+            new ConcurrentHashMap<String, ConcurrentHashMap<String, IpRangeBitmap>>();
+
+    @Override
+    public IpAllocatorType getType() {
+        return type;
+    }
+
+    private IpRangeBitmap loadBitmap(IpRangeVO vo) {
+        SimpleQuery<UsedIpVO> q = dbf.createQuery(UsedIpVO.class);
+        q.select(UsedIpVO_.ipInLong);
+        q.add(UsedIpVO_.ipRangeUuid, Op.EQ, vo.getUuid());
+        List<Long> used = q.listValue();
+        return new IpRangeBitmap(vo.getUuid(), vo.getStartIp(), vo.getEndIp(), used);
+    }
+
+    private boolean isManagedByUs(String l3NetworkUuid) {
+        try {
+            return destMaker.isManagedByUs(l3NetworkUuid);
+        } catch (CloudRuntimeException e) {
+            // no management node in the hash ring yet
+            return false;
+        }
+    }
+
+    private Map<String, IpRangeBitmap> getBitmaps(String l3NetworkUuid, List<IpRangeVO> ranges) {
+        if (!isManagedByUs(l3NetworkUuid)) {
+            // not our l3 network, don't keep a cache that nobody keeps in sync
+            bitmaps.remove(l3NetworkUuid);
+            Map<String, IpRangeBitmap> ret = new ConcurrentHashMap<String, IpRangeBitmap>();
+            for (IpRangeVO r : ranges) {
+                ret.put(r.getUuid(), loadBitmap(r));
+            }
+            return ret;
+        }
+
+        ConcurrentHashMap<String, IpRangeBitmap> bms = bitmaps.get(l3NetworkUuid);
+        if (bms == null) {
+            bms = new ConcurrentHashMap<String, IpRangeBitmap>();
+            ConcurrentHashMap<String, IpRangeBitmap> old = bitmaps.putIfAbsent(l3NetworkUuid, bms);
+            bms = old == null ? bms : old;
+        }
+
+        Set<String> rangeUuids = new HashSet<String>();
+        for (IpRangeVO r : ranges) {
+            rangeUuids.add(r.getUuid());
+            if (!bms.containsKey(r.getUuid())) {
+                bms.putIfAbsent(r.getUuid(), loadBitmap(r));
+            }
+        }
+        // drop bitmaps of deleted ranges
+        bms.keySet().retainAll(rangeUuids);
+
+        return bms;
+    }
+
+    private UsedIpInventory allocateFromRange(IpRangeVO r, IpRangeBitmap bm) {
+        IpRangeInventory inv = IpRangeInventory.valueOf(r);
+        while (true) {
+            long ip = bm.take();
+            if (ip == -1) {
+                return null;
+            }
+
+            UsedIpInventory uinv = l3NwMgr.reserveIp(inv, NetworkUtils.longToIpv4String(ip));
+            if (uinv != null) {
+                return uinv;
+            }
+
+            // taken by someone else, it stays marked as used in the bitmap
+        }
+    }
+
+    @Override
+    public UsedIpInventory allocateIp(IpAllocateMessage msg) {
+        if (msg.getRequiredIp() != null) {
+            return allocateRequiredIp(msg);
+        }
+
+        SimpleQuery<IpRangeVO> query = dbf.createQuery(IpRangeVO.class);
+        query.add(IpRangeVO_.l3NetworkUuid, Op.EQ, msg.getL3NetworkUuid());
+        List<IpRangeVO> ranges = query.list();
+
+        Map<String, IpRangeBitmap> bms = getBitmaps(msg.getL3NetworkUuid(), ranges);
+        for (IpRangeVO r : ranges) {
+            UsedIpInventory inv = allocateFromRange(r, bms.get(r.getUuid()));
+            if (inv != null) {
+                return inv;
+            }
+        }
+
+        // all ranges look full, ips may be returned by others; reload and try once more
+        for (IpRangeVO r : ranges) {
+            IpRangeBitmap bm = loadBitmap(r);
+            if (bm.isFull()) {
+                logger.debug(String.format("ip range[uuid:%s] has no ip available, try next one", r.getUuid()));
+                continue;
+            }
+
+            bms.put(r.getUuid(), bm);
+            UsedIpInventory inv = allocateFromRange(r, bm);
+            if (inv != null) {
+                return inv;
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public void afterReserveIp(UsedIpInventory ip) {
+        ConcurrentHashMap<String, IpRangeBitmap> bms = bitmaps.get(ip.getL3NetworkUuid());
+        IpRangeBitmap bm = bms == null ? null : bms.get(ip.getIpRangeUuid());
+        if (bm != null) {
+            bm.markUsed(ip.getIpInLong());
+        }
+    }
+
+    @Override
+    public void afterReturnIp(UsedIpInventory ip) {
+        ConcurrentHashMap<String, IpRangeBitmap> bms = bitmaps.get(ip.getL3NetworkUuid());
+        IpRangeBitmap bm = bms == null ? null : bms.get(ip.getIpRangeUuid());
+        if (bm != null) {
+            bm.markFree(ip.getIpInLong());
+        }
+    }
+
+    @Override
+    public void nodeJoin(String nodeId) {
+        bitmaps.clear();
+    }
+
+    @Override
+    public void nodeLeft(String nodeId) {
+        bitmaps.clear();
+    }
+
+    @Override
+    public void iAmDead(String nodeId) {
+        bitmaps.clear();
+    }
+
+    @Override
+    public void iJoin(String nodeId) {
+        bitmaps.clear();
+    }
+}
@@ -0,0 +1,86 @@
+package org.zstack.network.l3;
+
+import org.zstack.utils.network.NetworkUtils;
+
+import java.util.BitSet;
+import java.util.Collection;
+
+/**
+ * used ips of an ip range as a bitmap, bit i stands for startIp + i.
+ *
+ * allocation is next-fit: searching starts after the last allocated bit and wraps around once, so the cost
+ * is amortized O(1) at any fill level and a returned ip isn't handed out again right away
+ */
+public class IpRangeBitmap {
+    private final String ipRangeUuid;
+    private final long startIp;
+    private final int size;
+    private final BitSet used;
+    private int usedCount;
+    private int cursor;
+
+    public IpRangeBitmap(String ipRangeUuid, String startIp, String endIp, Collection<Long> usedIps) {
+        this.ipRangeUuid = ipRangeUuid;
+        this.startIp = NetworkUtils.ipv4StringToLong(startIp);
+        this.size = (int) (NetworkUtils.ipv4StringToLong(endIp) - this.startIp + 1);
+        this.used = new BitSet(size);
+        for (Long ip : usedIps) {
+            markUsed(ip);
+        }
+    }
+
+    public String getIpRangeUuid() {
+        return ipRangeUuid;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public synchronized int getUsedCount() {
+        return usedCount;
+    }
+
+    public synchronized boolean isFull() {
+        return usedCount >= size;
+    }
+
+    /**
+     * @return a free ip marked as used, or -1 if the range is full
+     */
+    public synchronized long take() {
+        if (usedCount >= size) {
+            return -1;
+        }
+
+        int i = used.nextClearBit(cursor);
+        if (i >= size) {
+            i = used.nextClearBit(0);
+        }
+
+        used.set(i);
+        usedCount ++;
+        cursor = i + 1 >= size ? 0 : i + 1;
+        return startIp + i;
+    }
+
+    public synchronized void markUsed(long ip) {
+        int i = (int) (ip - startIp);
+        if (i < 0 || i >= size || used.get(i)) {
+            return;
+        }
+
+        used.set(i);
+        usedCount ++;
+    }
+
+    public synchronized void markFree(long ip) {
+        int i = (int) (ip - startIp);
+        if (i < 0 || i >= size || !used.get(i)) {
+            return;
+        }
+
+        used.clear(i);
+        usedCount --;
+    }
+}
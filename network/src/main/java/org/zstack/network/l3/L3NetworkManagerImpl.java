@@ -64,6 +64,7 @@ public class L3NetworkManagerImpl extends AbstractService implements L3NetworkMa
 
     private Map<String, L3NetworkFactory> l3NetworkFactories = Collections.synchronizedMap(new HashMap<String, L3NetworkFactory>());
     private Map<String, IpAllocatorStrategy> ipAllocatorStrategies = Collections.synchronizedMap(new HashMap<String, IpAllocatorStrategy>());
+    private List<UsedIpChangeListener> usedIpChangeListeners = new ArrayList<UsedIpChangeListener>();
 
     private static final Set<Class> allowedMessageAfterSoftDeletion = new HashSet<Class>();
 
@@ -313,6 +314,8 @@ public class L3NetworkManagerImpl extends AbstractService implements L3NetworkMa
             }
             ipAllocatorStrategies.put(f.getType().toString(), f);
         }
+
+        usedIpChangeListeners = pluginRgty.getExtensionList(UsedIpChangeListener.class);
     }
 
     @Override
@@ -352,7 +355,11 @@ public class L3NetworkManagerImpl extends AbstractService implements L3NetworkMa
             vo.setNetmask(ipRange.getNetmask());
             vo.setGateway(ipRange.getGateway());
             vo = dbf.persistAndRefresh(vo);
-            return UsedIpInventory.valueOf(vo);
+            UsedIpInventory inv = UsedIpInventory.valueOf(vo);
+            for (UsedIpChangeListener l : usedIpChangeListeners) {
+                l.afterReserveIp(inv);
+            }
+            return inv;
         } catch (JpaSystemException e) {
             if (e.getRootCause() instanceof MySQLIntegrityConstraintViolationException) {
                 logger.debug(String.format("Concurrent ip allocation. Ip[%s] in ip range[uuid:%s] has been allocated, try allocating another one. The error[Duplicate entry] printed by jdbc.spi.SqlExceptionHelper is no harm, we will try finding another ip", ip, ipRange.getUuid()));
@@ -365,6 +372,20 @@ public class L3NetworkManagerImpl extends AbstractService implements L3NetworkMa
         return null;
     }
 
+    @Override
+    public void returnIp(String usedIpUuid) {
+        UsedIpVO vo = dbf.findByUuid(usedIpUuid, UsedIpVO.class);
+        if (vo == null) {
+            return;
+        }
+
+        dbf.remove(vo);
+        UsedIpInventory inv = UsedIpInventory.valueOf(vo);
+        for (UsedIpChangeListener l : usedIpChangeListeners) {
+            l.afterReturnIp(inv);
+        }
+    }
+
     @Override
     public boolean isIpRangeFull(IpRangeVO vo) {
         int total = NetworkUtils.getTotalIpInRange(vo.getStartIp(), vo.getEndIp());
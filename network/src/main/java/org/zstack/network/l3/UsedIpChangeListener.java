@@ -0,0 +1,12 @@
+package org.zstack.network.l3;
+
+import org.zstack.header.network.l3.UsedIpInventory;
+
+/**
+ * called after an ip is reserved or returned by L3NetworkManager on this management node
+ */
+public interface UsedIpChangeListener {
+    void afterReserveIp(UsedIpInventory ip);
+
+    void afterReturnIp(UsedIpInventory ip);
+}
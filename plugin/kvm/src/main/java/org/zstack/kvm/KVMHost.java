@@ -71,6 +71,8 @@ public class KVMHost extends HostBase implements Host {
     private ErrorFacade errf;
     @Autowired
     private TagManager tagMgr;
+    @Autowired
+    private KVMHostOperationScheduler scheduler;
 
     private KVMHostContext context;
 
@@ -209,7 +211,7 @@ public class KVMHost extends HostBase implements Host {
     }
 
     private void handle(final DetachNicFromVmOnHypervisorMsg msg) {
-        thdf.chainSubmit(new ChainTask(msg) {
+        scheduler.submit(new ChainTask(msg) {
             @Override
             public String getSyncSignature() {
                 return id;
@@ -229,13 +231,7 @@ public class KVMHost extends HostBase implements Host {
             public String getName() {
                 return "detach-nic-on-kvm-host-" + self.getUuid();
             }
-
-
-            @Override
-            protected int getSyncLevel() {
-                return getHostSyncLevel();
-            }
-        });
+        }, msg.getClass().getSimpleName(), msg.getVmInstanceUuid());
     }
 
     private void detachNic(final DetachNicFromVmOnHypervisorMsg msg, final NoErrorCompletion completion) {
@@ -270,7 +266,7 @@ public class KVMHost extends HostBase implements Host {
     }
 
     private void handle(final KVMHostSyncHttpCallMsg msg) {
-        thdf.chainSubmit(new ChainTask(msg) {
+        scheduler.submit(new ChainTask(msg) {
             @Override
             public String getSyncSignature() {
                 return id;
@@ -290,12 +286,7 @@ public class KVMHost extends HostBase implements Host {
             public String getName() {
                 return String.format("execute-sync-http-call-on-kvm-host-%s", self.getUuid());
             }
-
-            @Override
-            protected int getSyncLevel() {
-                return getHostSyncLevel();
-            }
-        });
+        }, msg.getClass().getSimpleName(), null);
     }
 
     private void executeSyncHttpCall(KVMHostSyncHttpCallMsg msg, NoErrorCompletion completion) {
@@ -311,7 +302,7 @@ public class KVMHost extends HostBase implements Host {
     }
 
     private void handle(final KVMHostAsyncHttpCallMsg msg) {
-        thdf.chainSubmit(new ChainTask(msg) {
+        scheduler.submit(new ChainTask(msg) {
             @Override
             public String getSyncSignature() {
                 return id;
@@ -331,12 +322,7 @@ public class KVMHost extends HostBase implements Host {
             public String getName() {
                 return String.format("execute-async-http-call-on-kvm-host-%s", self.getUuid());
             }
-
-            @Override
-            protected int getSyncLevel() {
-                return getHostSyncLevel();
-            }
-        });
+        }, msg.getClass().getSimpleName(), null);
     }
 
     private String buildUrl(String path) {
@@ -382,7 +368,7 @@ public class KVMHost extends HostBase implements Host {
     }
 
     private void handle(final MergeVolumeSnapshotOnKvmMsg msg) {
-        thdf.chainSubmit(new ChainTask(msg) {
+        scheduler.submit(new ChainTask(msg) {
             @Override
             public String getSyncSignature() {
                 return id;
@@ -402,12 +388,7 @@ public class KVMHost extends HostBase implements Host {
             public String getName() {
                 return String.format("merge-volume-snapshot-on-kvm-%s", self.getUuid());
             }
-
-            @Override
-            protected int getSyncLevel() {
-                return getHostSyncLevel();
-            }
-        });
+        }, msg.getClass().getSimpleName(), msg.getTo().getVmInstanceUuid());
     }
 
     private void mergeVolumeSnapshot(final MergeVolumeSnapshotOnKvmMsg msg, final NoErrorCompletion completion) {
@@ -472,7 +453,7 @@ public class KVMHost extends HostBase implements Host {
     }
 
     private void handle(final TakeSnapshotOnHypervisorMsg msg) {
-        thdf.chainSubmit(new ChainTask(msg) {
+        scheduler.submit(new ChainTask(msg) {
             @Override
             public String getSyncSignature() {
                 return id;
@@ -492,12 +473,7 @@ public class KVMHost extends HostBase implements Host {
             public String getName() {
                 return String.format("take-snapshot-on-kvm-%s", self.getUuid());
             }
-
-            @Override
-            protected int getSyncLevel() {
-                return getHostSyncLevel();
-            }
-        });
+        }, msg.getClass().getSimpleName(), msg.getVmUuid());
     }
 
     private void takeSnapshot(final TakeSnapshotOnHypervisorMsg msg, final NoErrorCompletion completion) {
@@ -611,7 +587,7 @@ public class KVMHost extends HostBase implements Host {
     }
 
     private void handle(final MigrateVmOnHypervisorMsg msg) {
-        thdf.chainSubmit(new ChainTask(msg) {
+        scheduler.submit(new ChainTask(msg) {
             @Override
             public String getSyncSignature() {
                 return id;
@@ -631,12 +607,7 @@ public class KVMHost extends HostBase implements Host {
             public String getName() {
                 return String.format("migrate-vm-on-kvm-%s", self.getUuid());
             }
-
-            @Override
-            protected int getSyncLevel() {
-                return getHostSyncLevel();
-            }
-        });
+        }, msg.getClass().getSimpleName(), msg.getVmInventory().getUuid());
     }
 
     private void migrateVm(final MigrateVmOnHypervisorMsg msg, final NoErrorCompletion completion) {
@@ -662,7 +633,7 @@ public class KVMHost extends HostBase implements Host {
     }
 
     private void handle(final VmAttachNicOnHypervisorMsg msg) {
-        thdf.chainSubmit(new ChainTask(msg) {
+        scheduler.submit(new ChainTask(msg) {
             @Override
             public String getSyncSignature() {
                 return id;
@@ -682,12 +653,7 @@ public class KVMHost extends HostBase implements Host {
             public String getName() {
                 return String.format("attach-nic-on-kvm-%s", self.getUuid());
             }
-
-            @Override
-            protected int getSyncLevel() {
-                return getHostSyncLevel();
-            }
-        });
+        }, msg.getClass().getSimpleName(), msg.getNicInventory().getVmInstanceUuid());
     }
 
     private void attachNic(final VmAttachNicOnHypervisorMsg msg, final NoErrorCompletion completion) {
@@ -728,7 +694,7 @@ public class KVMHost extends HostBase implements Host {
 
 
     private void handle(final DetachVolumeFromVmOnHypervisorMsg msg) {
-        thdf.chainSubmit(new ChainTask(msg) {
+        scheduler.submit(new ChainTask(msg) {
             @Override
             public String getSyncSignature() {
                 return id;
@@ -748,13 +714,7 @@ public class KVMHost extends HostBase implements Host {
             public String getName() {
                 return String.format("detach-volume-on-kvm-%s", self.getUuid());
             }
-
-            @Override
-            protected int getSyncLevel() {
-                return getHostSyncLevel();
-            }
-        });
-
+        }, msg.getClass().getSimpleName(), msg.getVmInventory().getUuid());
     }
 
     private void detachVolume(final DetachVolumeFromVmOnHypervisorMsg msg, final NoErrorCompletion completion) {
@@ -808,7 +768,7 @@ public class KVMHost extends HostBase implements Host {
     }
 
     private void handle(final AttachVolumeToVmOnHypervisorMsg msg) {
-        thdf.chainSubmit(new ChainTask(msg) {
+        scheduler.submit(new ChainTask(msg) {
             @Override
             public String getSyncSignature() {
                 return id;
@@ -828,12 +788,7 @@ public class KVMHost extends HostBase implements Host {
             public String getName() {
                 return String.format("attach-volume-on-kvm-%s", self.getUuid());
             }
-
-            @Override
-            protected int getSyncLevel() {
-                return getHostSyncLevel();
-            }
-        });
+        }, msg.getClass().getSimpleName(), msg.getVmInventory().getUuid());
     }
 
     private void attachVolume(final AttachVolumeToVmOnHypervisorMsg msg, final NoErrorCompletion completion) {
@@ -886,7 +841,7 @@ public class KVMHost extends HostBase implements Host {
     }
 
     private void handle(final DestroyVmOnHypervisorMsg msg) {
-        thdf.chainSubmit(new ChainTask(msg) {
+        scheduler.submit(new ChainTask(msg) {
             @Override
             public String getSyncSignature() {
                 return id;
@@ -906,12 +861,7 @@ public class KVMHost extends HostBase implements Host {
             public String getName() {
                 return String.format("destroy-vm-on-kvm-%s", self.getUuid());
             }
-
-            @Override
-            protected int getSyncLevel() {
-                return getHostSyncLevel();
-            }
-        });
+        }, msg.getClass().getSimpleName(), msg.getVmInventory().getUuid());
     }
 
     private void destroyVm(final DestroyVmOnHypervisorMsg msg, final NoErrorCompletion completion) {
@@ -964,7 +914,7 @@ public class KVMHost extends HostBase implements Host {
     }
 
     private void handle(final RebootVmOnHypervisorMsg msg) {
-        thdf.chainSubmit(new ChainTask(msg) {
+        scheduler.submit(new ChainTask(msg) {
             @Override
             public String getSyncSignature() {
                 return id;
@@ -984,13 +934,7 @@ public class KVMHost extends HostBase implements Host {
             public String getName() {
                 return String.format("reboot-vm-on-kvm-%s", self.getUuid());
             }
-
-            @Override
-            protected int getSyncLevel() {
-                return getHostSyncLevel();
-            }
-        });
-
+        }, msg.getClass().getSimpleName(), msg.getVmInventory().getUuid());
     }
 
     private void rebootVm(final RebootVmOnHypervisorMsg msg, final NoErrorCompletion completion) {
@@ -1044,7 +988,7 @@ public class KVMHost extends HostBase implements Host {
     }
 
     private void handle(final StopVmOnHypervisorMsg msg) {
-        thdf.chainSubmit(new ChainTask(msg) {
+        scheduler.submit(new ChainTask(msg) {
             @Override
             public String getSyncSignature() {
                 return id;
@@ -1064,12 +1008,7 @@ public class KVMHost extends HostBase implements Host {
             public String getName() {
                 return String.format("stop-vm-on-kvm-%s", self.getUuid());
             }
-
-            @Override
-            protected int getSyncLevel() {
-                return getHostSyncLevel();
-            }
-        });
+        }, msg.getClass().getSimpleName(), msg.getVmInventory().getUuid());
     }
 
     private void stopVm(final StopVmOnHypervisorMsg msg, final NoErrorCompletion completion) {
@@ -1123,7 +1062,7 @@ public class KVMHost extends HostBase implements Host {
     }
 
     private void handle(final CreateVmOnHypervisorMsg msg) {
-        thdf.chainSubmit(new ChainTask(msg) {
+        scheduler.submit(new ChainTask(msg) {
             @Override
             public String getSyncSignature() {
                 return id;
@@ -1143,12 +1082,7 @@ public class KVMHost extends HostBase implements Host {
             public String getName() {
                 return String.format("start-vm-on-kvm-%s", self.getUuid());
             }
-
-            @Override
-            protected int getSyncLevel() {
-                return getHostSyncLevel();
-            }
-        });
+        }, msg.getClass().getSimpleName(), msg.getVmSpec().getVmInventory().getUuid());
     }
 
     @Transactional
@@ -1301,7 +1235,7 @@ public class KVMHost extends HostBase implements Host {
     }
 
     private void handle(final StartVmOnHypervisorMsg msg) {
-        thdf.chainSubmit(new ChainTask(msg) {
+        scheduler.submit(new ChainTask(msg) {
             @Override
             public String getSyncSignature() {
                 return id;
@@ -1321,16 +1255,17 @@ public class KVMHost extends HostBase implements Host {
             public String getName() {
                 return String.format("start-vm-on-kvm-%s", self.getUuid());
             }
+        }, msg.getClass().getSimpleName(), msg.getVmSpec().getVmInventory().getUuid());
+    }
 
-            @Override
-            protected int getSyncLevel() {
-                return getHostSyncLevel();
-            }
-        });
+    @Override
+    protected void drainHostOperations(ChainTask task) {
+        // operations of vms run in the lanes of the scheduler instead of the chain of the host
+        scheduler.submitDrain(task, "DrainHostOperations");
     }
 
     private void handle(final CheckNetworkPhysicalInterfaceMsg msg) {
-        thdf.chainSubmit(new ChainTask(msg) {
+        scheduler.submitBarrier(new ChainTask(msg) {
             @Override
             public String getSyncSignature() {
                 return id;
@@ -1350,12 +1285,7 @@ public class KVMHost extends HostBase implements Host {
             public String getName() {
                 return String.format("check-network-physical-interface-on-host-%s", self.getUuid());
             }
-
-            @Override
-            protected int getSyncLevel() {
-                return getHostSyncLevel();
-            }
-        });
+        }, msg.getClass().getSimpleName());
     }
 
     private void checkPhysicalInterface(CheckNetworkPhysicalInterfaceMsg msg, NoErrorCompletion completion) {
@@ -0,0 +1,271 @@
+package org.zstack.kvm;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.zstack.core.jmx.JmxFacade;
+import org.zstack.core.thread.ChainTask;
+import org.zstack.core.thread.SyncTaskChain;
+import org.zstack.core.thread.Task;
+import org.zstack.core.thread.ThreadFacade;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * schedules operations of KVM hosts, operations having the same sync signature belong to the same host.
+ *
+ * an operation on a vm runs in the lane of the vm, operations of a vm run one by one in submission order
+ * while operations of different vms run in parallel. Operations not bound to a vm have no lane. At most
+ * kvm.host.syncLevel operations run on a host at the same time.
+ *
+ * a barrier operation runs alone on the host. It waits for running operations to finish, and vm operations
+ * submitted after it wait for it; operations not bound to a vm are not held by a waiting barrier because
+ * running vm operations may call them to finish.
+ *
+ * a drain operation, like reconnecting or deleting the host, waits for running vm operations to finish and
+ * holds vm operations submitted after it until it calls chain.next(). It neither counts in kvm.host.syncLevel
+ * nor holds operations not bound to a vm, which it may call to finish, e.g. http calls of connecting the host.
+ */
+public class KVMHostOperationScheduler implements KVMHostOperationSchedulerMXBean {
+    private static final CLogger logger = Utils.getLogger(KVMHostOperationScheduler.class);
+
+    @Autowired
+    private ThreadFacade thdf;
+    @Autowired
+    private JmxFacade jmxf;
+
+    private final Map<String, HostLanes> hosts = new HashMap<String, HostLanes>();
+    private final Map<String, WaitCounter> counters = new HashMap<String, WaitCounter>();
+
+    private static class Operation {
+        final ChainTask task;
+        final String operation;
+        final String vmUuid;
+        final boolean barrier;
+        final boolean drain;
+        final long submitTime = System.currentTimeMillis();
+
+        Operation(ChainTask task, String operation, String vmUuid, boolean barrier, boolean drain) {
+            this.task = task;
+            this.operation = operation;
+            this.vmUuid = vmUuid;
+            this.barrier = barrier;
+            this.drain = drain;
+        }
+    }
+
+    private static class HostLanes {
+        final LinkedList<Operation> pending = new LinkedList<Operation>();
+        final Set<String> busyVms = new HashSet<String>();
+        int running;
+        boolean barrierRunning;
+        boolean drained;
+
+        List<Operation> schedule() {
+            List<Operation> ready = new ArrayList<Operation>();
+            if (barrierRunning) {
+                return ready;
+            }
+
+            int syncLevel = KVMGlobalConfig.HOST_SYNC_LEVEL.value(Integer.class);
+            boolean barrierWaiting = false;
+            boolean drainWaiting = false;
+            // vms having an earlier operation waiting, later operations of them must wait too to keep the order
+            Set<String> waitingVms = new HashSet<String>();
+            Iterator<Operation> it = pending.iterator();
+            while (it.hasNext()) {
+                Operation op = it.next();
+                if (op.barrier) {
+                    if (!barrierWaiting && running == 0) {
+                        it.remove();
+                        running ++;
+                        barrierRunning = true;
+                        ready.add(op);
+                        return ready;
+                    }
+
+                    barrierWaiting = true;
+                    continue;
+                }
+
+                if (op.drain) {
+                    if (!barrierWaiting && !drainWaiting && !drained && busyVms.isEmpty()) {
+                        it.remove();
+                        drained = true;
+                        ready.add(op);
+                        continue;
+                    }
+
+                    drainWaiting = true;
+                    continue;
+                }
+
+                if (running >= syncLevel) {
+                    break;
+                }
+
+                if (op.vmUuid == null) {
+                    it.remove();
+                    running ++;
+                    ready.add(op);
+                    continue;
+                }
+
+                if (barrierWaiting || drainWaiting || drained || busyVms.contains(op.vmUuid) || waitingVms.contains(op.vmUuid)) {
+                    waitingVms.add(op.vmUuid);
+                    continue;
+                }
+
+                it.remove();
+                running ++;
+                busyVms.add(op.vmUuid);
+                ready.add(op);
+            }
+
+            return ready;
+        }
+
+        void done(Operation op) {
+            if (op.drain) {
+                drained = false;
+                return;
+            }
+
+            running --;
+            if (op.barrier) {
+                barrierRunning = false;
+            }
+            if (op.vmUuid != null) {
+                busyVms.remove(op.vmUuid);
+            }
+        }
+
+        boolean isIdle() {
+            return running == 0 && pending.isEmpty() && !drained;
+        }
+    }
+
+    private static class WaitCounter {
+        long count;
+        long totalWaitTime;
+        long maxWaitTime;
+    }
+
+    void init() {
+        jmxf.registerBean("KVMHostOperationScheduler", this);
+    }
+
+    /**
+     * @param vmUuid the vm the operation works on, or null if the operation is not bound to a vm
+     */
+    public void submit(ChainTask task, String operation, String vmUuid) {
+        doSubmit(new Operation(task, operation, vmUuid, false, false));
+    }
+
+    public void submitBarrier(ChainTask task, String operation) {
+        doSubmit(new Operation(task, operation, null, true, false));
+    }
+
+    public void submitDrain(ChainTask task, String operation) {
+        doSubmit(new Operation(task, operation, null, false, true));
+    }
+
+    private void doSubmit(Operation op) {
+        String hostId = op.task.getSyncSignature();
+        List<Operation> ready;
+        synchronized (hosts) {
+            HostLanes lanes = hosts.get(hostId);
+            if (lanes == null) {
+                lanes = new HostLanes();
+                hosts.put(hostId, lanes);
+            }
+
+            lanes.pending.add(op);
+            ready = lanes.schedule();
+        }
+
+        start(ready);
+    }
+
+    private void done(Operation op) {
+        String hostId = op.task.getSyncSignature();
+        List<Operation> ready;
+        synchronized (hosts) {
+            HostLanes lanes = hosts.get(hostId);
+            lanes.done(op);
+            ready = lanes.schedule();
+            if (lanes.isIdle()) {
+                hosts.remove(hostId);
+            }
+        }
+
+        start(ready);
+    }
+
+    private void countWaitTime(String operation, long waitTime) {
+        synchronized (counters) {
+            WaitCounter c = counters.get(operation);
+            if (c == null) {
+                c = new WaitCounter();
+                counters.put(operation, c);
+            }
+
+            c.count ++;
+            c.totalWaitTime += waitTime;
+            c.maxWaitTime = Math.max(c.maxWaitTime, waitTime);
+        }
+    }
+
+    private void start(List<Operation> ops) {
+        for (final Operation op : ops) {
+            countWaitTime(op.operation, System.currentTimeMillis() - op.submitTime);
+
+            // run in a new thread every time to avoid stack overflow
+            thdf.submit(new Task<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    run(op);
+                    return null;
+                }
+
+                @Override
+                public String getName() {
+                    return op.task.getName();
+                }
+            });
+        }
+    }
+
+    private void run(final Operation op) {
+        final AtomicBoolean isNextCalled = new AtomicBoolean(false);
+        try {
+            op.task.run(new SyncTaskChain() {
+                @Override
+                public void next() {
+                    if (isNextCalled.compareAndSet(false, true)) {
+                        done(op);
+                    }
+                }
+            });
+        } catch (Throwable t) {
+            logger.warn(String.format("unhandled exception happened when calling %s", op.task.getName()), t);
+            if (isNextCalled.compareAndSet(false, true)) {
+                done(op);
+            }
+        }
+    }
+
+    @Override
+    public Map<String, KVMHostOperationStatistic> getOperationStatistics() {
+        Map<String, KVMHostOperationStatistic> ret = new HashMap<String, KVMHostOperationStatistic>();
+        synchronized (counters) {
+            for (Map.Entry<String, WaitCounter> e : counters.entrySet()) {
+                WaitCounter c = e.getValue();
+                ret.put(e.getKey(), new KVMHostOperationStatistic(e.getKey(), c.count, c.totalWaitTime,
+                        c.count == 0 ? 0 : c.totalWaitTime / c.count, c.maxWaitTime));
+            }
+        }
+        return ret;
+    }
+}
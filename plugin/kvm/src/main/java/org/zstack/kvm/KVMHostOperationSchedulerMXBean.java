@@ -0,0 +1,9 @@
+package org.zstack.kvm;
+
+import java.util.Map;
+
+/**
+ */
+public interface KVMHostOperationSchedulerMXBean {
+    Map<String, KVMHostOperationStatistic> getOperationStatistics();
+}
@@ -0,0 +1,42 @@
+package org.zstack.kvm;
+
+import java.beans.ConstructorProperties;
+
+/**
+ */
+public class KVMHostOperationStatistic {
+    private String operation;
+    private long count;
+    private long totalWaitTime;
+    private long averageWaitTime;
+    private long maxWaitTime;
+
+    @ConstructorProperties({"operation", "count", "totalWaitTime", "averageWaitTime", "maxWaitTime"})
+    public KVMHostOperationStatistic(String operation, long count, long totalWaitTime, long averageWaitTime, long maxWaitTime) {
+        this.operation = operation;
+        this.count = count;
+        this.totalWaitTime = totalWaitTime;
+        this.averageWaitTime = averageWaitTime;
+        this.maxWaitTime = maxWaitTime;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getTotalWaitTime() {
+        return totalWaitTime;
+    }
+
+    public long getAverageWaitTime() {
+        return averageWaitTime;
+    }
+
+    public long getMaxWaitTime() {
+        return maxWaitTime;
+    }
+}
@@ -12,4 +12,6 @@ public class LocalStorageGlobalProperty {
     public static int KVM_SftpDownloadBitsCmd_TIMEOUT;
     @GlobalProperty(name="LocalStorage.kvm.SftpUploadBitsCmd.timeout", defaultValue = "3600")
     public static int KVM_SftpUploadBitsCmd_TIMEOUT;
+    @GlobalProperty(name="LocalStorage.imageCacheDownloadParallelismDegree", defaultValue = "20")
+    public static int IMAGE_CACHE_DOWNLOAD_PARALLELISM_DEGREE;
 }
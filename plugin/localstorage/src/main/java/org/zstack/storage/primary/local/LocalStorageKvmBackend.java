@@ -587,6 +587,11 @@ public class LocalStorageKvmBackend extends LocalStorageHypervisorBackend {
         }
     }
 
+    // completions waiting for an image being downloaded to a host, keyed by primary storage, host and image.
+    // Backends are created per message, so this is shared by all of them
+    private static final Map<String, List<ReturnValueCompletion<String>>> downloadingImageCaches =
+            new HashMap<String, List<ReturnValueCompletion<String>>>();
+
     class ImageCache {
         ImageInventory image;
         BackupStorageInventory backupStorage;
@@ -594,6 +599,32 @@ public class LocalStorageKvmBackend extends LocalStorageHypervisorBackend {
         String primaryStorageInstallPath;
         String backupStorageInstallPath;
 
+        private String findCache() {
+            SimpleQuery<ImageCacheVO> q = dbf.createQuery(ImageCacheVO.class);
+            q.select(ImageCacheVO_.installUrl);
+            q.add(ImageCacheVO_.primaryStorageUuid, Op.EQ, self.getUuid());
+            q.add(ImageCacheVO_.imageUuid, Op.EQ, image.getUuid());
+            q.add(ImageCacheVO_.hostUuid, Op.EQ, hostUuid);
+            String fullPath = q.findValue();
+            if (fullPath == null) {
+                return null;
+            }
+
+            CacheInstallPath path = new CacheInstallPath();
+            path.fullPath = fullPath;
+            String installPath = path.disassemble().installPath;
+            logger.debug(String.format("found image[uuid: %s, name: %s] in the image cache of local primary storage[uuid:%s, installPath: %s] on host[uuid: %s]",
+                    image.getUuid(), image.getName(), self.getUuid(), installPath, hostUuid));
+            return installPath;
+        }
+
+        private List<ReturnValueCompletion<String>> finishDownloading(String key) {
+            synchronized (downloadingImageCaches) {
+                List<ReturnValueCompletion<String>> waiters = downloadingImageCaches.remove(key);
+                return waiters == null ? new ArrayList<ReturnValueCompletion<String>>() : waiters;
+            }
+        }
+
         void download(final ReturnValueCompletion<String> completion) {
             DebugUtils.Assert(image != null, "image cannot be null");
             DebugUtils.Assert(backupStorage != null, "backup storage cannot be null");
@@ -601,27 +632,61 @@ public class LocalStorageKvmBackend extends LocalStorageHypervisorBackend {
             DebugUtils.Assert(primaryStorageInstallPath != null, "primaryStorageInstallPath cannot be null");
             DebugUtils.Assert(backupStorageInstallPath != null, "backupStorageInstallPath cannot be null");
 
-            thdf.chainSubmit(new ChainTask(completion) {
+            String installPath = findCache();
+            if (installPath != null) {
+                completion.success(installPath);
+                return;
+            }
+
+            // requests for the same image on the same host share one download
+            final String key = String.format("%s-%s-%s", self.getUuid(), hostUuid, image.getUuid());
+            synchronized (downloadingImageCaches) {
+                List<ReturnValueCompletion<String>> waiters = downloadingImageCaches.get(key);
+                if (waiters != null) {
+                    waiters.add(completion);
+                    logger.debug(String.format("image[uuid: %s, name: %s] is being downloaded to the image cache of local primary storage[uuid: %s]" +
+                            " on host[uuid: %s], wait for it", image.getUuid(), image.getName(), self.getUuid(), hostUuid));
+                    return;
+                }
+
+                waiters = new ArrayList<ReturnValueCompletion<String>>();
+                waiters.add(completion);
+                downloadingImageCaches.put(key, waiters);
+            }
+
+            final ReturnValueCompletion<String> allWaiters = new ReturnValueCompletion<String>() {
+                @Override
+                public void success(String returnValue) {
+                    for (ReturnValueCompletion<String> c : finishDownloading(key)) {
+                        c.success(returnValue);
+                    }
+                }
+
+                @Override
+                public void fail(ErrorCode errorCode) {
+                    for (ReturnValueCompletion<String> c : finishDownloading(key)) {
+                        c.fail(errorCode);
+                    }
+                }
+            };
+
+            // downloads to different hosts run in parallel, bounded by LocalStorage.imageCacheDownloadParallelismDegree
+            thdf.chainSubmit(new ChainTask(allWaiters) {
                 @Override
                 public String getSyncSignature() {
-                    return String.format("download-image-%s-to-localstorage-%s-cache", image.getUuid(), self.getUuid());
+                    return "download-image-to-localstorage-cache";
+                }
+
+                @Override
+                public int getSyncLevel() {
+                    return LocalStorageGlobalProperty.IMAGE_CACHE_DOWNLOAD_PARALLELISM_DEGREE;
                 }
 
                 @Override
                 public void run(final SyncTaskChain chain) {
-                    SimpleQuery<ImageCacheVO> q = dbf.createQuery(ImageCacheVO.class);
-                    q.select(ImageCacheVO_.installUrl);
-                    q.add(ImageCacheVO_.primaryStorageUuid, Op.EQ, self.getUuid());
-                    q.add(ImageCacheVO_.imageUuid, Op.EQ, image.getUuid());
-                    q.add(ImageCacheVO_.installUrl, Op.LIKE, String.format("%%hostUuid://%s%%", hostUuid));
-                    String fullPath = q.findValue();
-                    if (fullPath != null) {
-                        CacheInstallPath path = new CacheInstallPath();
-                        path.fullPath = fullPath;
-                        String installPath = path.disassemble().installPath;
-                        logger.debug(String.format("found image[uuid: %s, name: %s] in the image cache of local primary storage[uuid:%s, installPath: %s]",
-                                image.getUuid(), image.getName(), self.getUuid(), installPath));
-                        completion.success(installPath);
+                    String installPath = findCache();
+                    if (installPath != null) {
+                        allWaiters.success(installPath);
                         chain.next();
                         return;
                     }
@@ -629,7 +694,7 @@ public class LocalStorageKvmBackend extends LocalStorageHypervisorBackend {
                     LocalStorageBackupStorageMediator m = localStorageFactory.getBackupStorageMediator(KVMConstant.KVM_HYPERVISOR_TYPE, backupStorage.getType());
                     m.downloadBits(getSelfInventory(), backupStorage,
                             backupStorageInstallPath, primaryStorageInstallPath,
-                            hostUuid, new Completion(completion, chain) {
+                            hostUuid, new Completion(allWaiters, chain) {
                                 @Override
                                 public void success() {
                                     ImageCacheVO vo = new ImageCacheVO();
@@ -637,6 +702,7 @@ public class LocalStorageKvmBackend extends LocalStorageHypervisorBackend {
                                     vo.setMediaType(ImageMediaType.valueOf(image.getMediaType()));
                                     vo.setImageUuid(image.getUuid());
                                     vo.setPrimaryStorageUuid(self.getUuid());
+                                    vo.setHostUuid(hostUuid);
                                     vo.setSize(image.getSize());
                                     vo.setMd5sum("not calculated");
 
@@ -648,13 +714,13 @@ public class LocalStorageKvmBackend extends LocalStorageHypervisorBackend {
 
                                     logger.debug(String.format("downloaded image[uuid:%s, name:%s] to the image cache of local primary storage[uuid: %s, installPath: %s] on host[uuid: %s]",
                                             image.getUuid(), image.getName(), self.getUuid(), primaryStorageInstallPath, hostUuid));
-                                    completion.success(primaryStorageInstallPath);
+                                    allWaiters.success(primaryStorageInstallPath);
                                     chain.next();
                                 }
 
                                 @Override
                                 public void fail(ErrorCode errorCode) {
-                                    completion.fail(errorCode);
+                                    allWaiters.fail(errorCode);
                                     chain.next();
                                 }
                             });
@@ -662,7 +728,7 @@ public class LocalStorageKvmBackend extends LocalStorageHypervisorBackend {
 
                 @Override
                 public String getName() {
-                    return getSyncSignature();
+                    return String.format("download-image-%s-to-localstorage-%s-cache-on-host-%s", image.getUuid(), self.getUuid(), hostUuid);
                 }
             });
         }
@@ -20,4 +20,6 @@ public class SecurityGroupGlobalConfig {
     public static GlobalConfig INGRESS_RULE_DEFAULT_POLICY = new GlobalConfig(CATEGORY, "ingress.defaultPolicy");
     @GlobalConfigValidation(validValues = {"accept", "deny"})
     public static GlobalConfig EGRESS_RULE_DEFAULT_POLICY = new GlobalConfig(CATEGORY, "egress.defaultPolicy");
+    @GlobalConfigValidation
+    public static GlobalConfig INCREMENTAL_APPLY = new GlobalConfig(CATEGORY, "host.incrementalApply");
 }
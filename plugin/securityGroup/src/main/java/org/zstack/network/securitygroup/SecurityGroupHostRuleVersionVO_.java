@@ -0,0 +1,13 @@
+package org.zstack.network.securitygroup;
+
+import javax.persistence.metamodel.SingularAttribute;
+import javax.persistence.metamodel.StaticMetamodel;
+import java.sql.Timestamp;
+
+@StaticMetamodel(SecurityGroupHostRuleVersionVO.class)
+public class SecurityGroupHostRuleVersionVO_ {
+    public static volatile SingularAttribute<SecurityGroupHostRuleVersionVO, String> hostUuid;
+    public static volatile SingularAttribute<SecurityGroupHostRuleVersionVO, Long> version;
+    public static volatile SingularAttribute<SecurityGroupHostRuleVersionVO, Timestamp> createDate;
+    public static volatile SingularAttribute<SecurityGroupHostRuleVersionVO, Timestamp> lastOpDate;
+}
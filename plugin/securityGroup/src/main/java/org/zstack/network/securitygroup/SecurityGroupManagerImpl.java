@@ -50,6 +50,8 @@ import javax.persistence.LockModeType;
 import javax.persistence.Query;
 import javax.persistence.Tuple;
 import javax.persistence.TypedQuery;
+import java.math.BigInteger;
+import java.security.MessageDigest;
 import java.util.*;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
@@ -83,6 +85,8 @@ public class SecurityGroupManagerImpl extends AbstractService implements Securit
     private int failureHostWorkerInterval;
     private int failureHostEachTimeTake;
     private Future<Void> failureHostCopingThread;
+    private volatile boolean incrementalApply;
+    private final Map<String, HostRuleSnapshot> hostRuleSnapshots = new HashMap<String, HostRuleSnapshot>();
 
     @Override
     public List<Quota> reportQuota() {
@@ -133,6 +137,8 @@ public class SecurityGroupManagerImpl extends AbstractService implements Securit
         private List<String> securityGroupUuids;
         private List<String> hostUuids;
         private List<VmInstanceState> vmStates;
+        // rules of a security group on a l3 network are the same for all its nics, calculate them once
+        private Map<String, List<RuleTO>> ruleTOCache = new HashMap<String, List<RuleTO>>();
 
         List<HostRuleTO> calculate() {
             if (vmNicUuids != null) {
@@ -226,7 +232,17 @@ public class SecurityGroupManagerImpl extends AbstractService implements Securit
             List<RuleTO> ret = new ArrayList<RuleTO>();
 
             for (String sgUuid : sgUuids) {
-                String sql = "select r from SecurityGroupRuleVO r where r.securityGroupUuid = :sgUuid";
+                String key = String.format("%s-%s", sgUuid, l3Uuid);
+                List<RuleTO> cached = ruleTOCache.get(key);
+                if (cached != null) {
+                    ret.addAll(cached);
+                    continue;
+                }
+
+                List<RuleTO> sgRules = new ArrayList<RuleTO>();
+                ruleTOCache.put(key, sgRules);
+
+                String sql = "select r from SecurityGroupRuleVO r where r.securityGroupUuid = :sgUuid order by r.uuid";
                 TypedQuery<SecurityGroupRuleVO> q = dbf.getEntityManager().createQuery(sql, SecurityGroupRuleVO.class);
                 q.setParameter("sgUuid", sgUuid);
                 List<SecurityGroupRuleVO> rules = q.getResultList();
@@ -257,8 +273,9 @@ public class SecurityGroupManagerImpl extends AbstractService implements Securit
                     rto.setStartPort(r.getStartPort());
                     rto.setType(r.getType().toString());
                     rto.setAllowedInternalIpRange(internalIpRanges);
-                    ret.add(rto);
+                    sgRules.add(rto);
                 }
+                ret.addAll(sgRules);
             }
 
             if (logger.isTraceEnabled()) {
@@ -359,6 +376,8 @@ public class SecurityGroupManagerImpl extends AbstractService implements Securit
                     ip = t.get(6, String.class);
                 }
 
+                // keep the order of rules stable so unchanged rules have the same digest in HostRuleSnapshot
+                Collections.sort(sgUuids);
                 List<RuleTO> rtos = calculateRuleTOBySecurityGroup(sgUuids, l3Uuid);
                 SecurityGroupRuleTO sgto = new SecurityGroupRuleTO();
                 sgto.setEgressDefaultPolicy(SecurityGroupGlobalConfig.EGRESS_RULE_DEFAULT_POLICY.value(String.class));
@@ -465,6 +484,7 @@ public class SecurityGroupManagerImpl extends AbstractService implements Securit
     }
 
     private void handle(RefreshSecurityGroupRulesOnHostMsg msg) {
+        invalidateHostRuleSnapshot(msg.getHostUuid());
         RuleCalculator cal = new RuleCalculator();
         cal.hostUuids = Arrays.asList(msg.getHostUuid());
         // refreshing may happen when host is reconnecting; at that time VMs' states are Unknown
@@ -830,17 +850,156 @@ public class SecurityGroupManagerImpl extends AbstractService implements Securit
         bus.publish(evt);
     }
 
+    /**
+     * rules of vm nics last applied to a host, as digests keyed by nic internal name. The snapshot is only
+     * trusted when its version equals the one in SecurityGroupHostRuleVersionVO, which changes each time
+     * any management node applies rules to the host
+     */
+    private static class HostRuleSnapshot {
+        long version;
+        Map<String, String> digests = new HashMap<String, String>();
+    }
+
+    private static String digest(SecurityGroupRuleTO rto) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            byte[] bytes = md.digest(JSONObjectUtil.toJsonString(rto).getBytes("UTF-8"));
+            return new BigInteger(1, bytes).toString(16);
+        } catch (Exception e) {
+            throw new CloudRuntimeException(e);
+        }
+    }
+
+    private Long getHostRuleVersion(String hostUuid) {
+        SimpleQuery<SecurityGroupHostRuleVersionVO> q = dbf.createQuery(SecurityGroupHostRuleVersionVO.class);
+        q.select(SecurityGroupHostRuleVersionVO_.version);
+        q.add(SecurityGroupHostRuleVersionVO_.hostUuid, Op.EQ, hostUuid);
+        return q.findValue();
+    }
+
+    @Transactional
+    private boolean compareAndSetHostRuleVersion(String hostUuid, Long expected, long version) {
+        if (expected == null) {
+            SecurityGroupHostRuleVersionVO vo = dbf.getEntityManager().find(SecurityGroupHostRuleVersionVO.class, hostUuid);
+            if (vo != null) {
+                return false;
+            }
+
+            vo = new SecurityGroupHostRuleVersionVO();
+            vo.setHostUuid(hostUuid);
+            vo.setVersion(version);
+            dbf.getEntityManager().persist(vo);
+            return true;
+        }
+
+        String sql = "update SecurityGroupHostRuleVersionVO v set v.version = :version where v.hostUuid = :huuid and v.version = :expected";
+        Query q = dbf.getEntityManager().createQuery(sql);
+        q.setParameter("version", version);
+        q.setParameter("huuid", hostUuid);
+        q.setParameter("expected", expected);
+        return q.executeUpdate() == 1;
+    }
+
+    @Transactional
+    private void setHostRuleVersion(String hostUuid, long version) {
+        SecurityGroupHostRuleVersionVO vo = dbf.getEntityManager().find(SecurityGroupHostRuleVersionVO.class, hostUuid);
+        if (vo == null) {
+            vo = new SecurityGroupHostRuleVersionVO();
+            vo.setHostUuid(hostUuid);
+            vo.setVersion(version);
+            dbf.getEntityManager().persist(vo);
+        } else {
+            vo.setVersion(version);
+            dbf.getEntityManager().merge(vo);
+        }
+    }
+
+    private void invalidateHostRuleSnapshot(String hostUuid) {
+        synchronized (hostRuleSnapshots) {
+            hostRuleSnapshots.remove(hostUuid);
+        }
+    }
+
+    /**
+     * @return rules in the hto that differ from the snapshot of the host, or the hto itself if the snapshot
+     * is missing or stale
+     */
+    private HostRuleTO diffHostRules(HostRuleTO hto, Long version) {
+        synchronized (hostRuleSnapshots) {
+            HostRuleSnapshot snapshot = hostRuleSnapshots.get(hto.getHostUuid());
+            if (snapshot == null || version == null || snapshot.version != version) {
+                hostRuleSnapshots.remove(hto.getHostUuid());
+                return hto;
+            }
+
+            HostRuleTO ret = new HostRuleTO();
+            ret.setHostUuid(hto.getHostUuid());
+            ret.setHypervisorType(hto.getHypervisorType());
+            for (SecurityGroupRuleTO rto : hto.getRules()) {
+                if (SecurityGroupRuleTO.ACTION_CODE_APPLY_RULE.equals(rto.getActionCode())
+                        && digest(rto).equals(snapshot.digests.get(rto.getVmNicInternalName()))) {
+                    continue;
+                }
+                ret.getRules().add(rto);
+            }
+            return ret;
+        }
+    }
+
+    private void updateHostRuleSnapshot(HostRuleTO hto, Long expectedVersion) {
+        long version = dbf.generateSequenceNumber(SecurityGroupSequenceNumberVO.class);
+        if (hto.isRefreshHost()) {
+            setHostRuleVersion(hto.getHostUuid(), version);
+        } else if (!compareAndSetHostRuleVersion(hto.getHostUuid(), expectedVersion, version)) {
+            // rules on the host were changed by others meanwhile, we don't know them
+            invalidateHostRuleSnapshot(hto.getHostUuid());
+            return;
+        }
+
+        synchronized (hostRuleSnapshots) {
+            HostRuleSnapshot snapshot = hto.isRefreshHost() ? null : hostRuleSnapshots.get(hto.getHostUuid());
+            if (snapshot == null) {
+                snapshot = new HostRuleSnapshot();
+                hostRuleSnapshots.put(hto.getHostUuid(), snapshot);
+            }
+            snapshot.version = version;
+
+            for (SecurityGroupRuleTO rto : hto.getRules()) {
+                if (SecurityGroupRuleTO.ACTION_CODE_DELETE_CHAIN.equals(rto.getActionCode())) {
+                    snapshot.digests.remove(rto.getVmNicInternalName());
+                } else {
+                    snapshot.digests.put(rto.getVmNicInternalName(), digest(rto));
+                }
+            }
+        }
+    }
+
     private void applyRules(Collection<HostRuleTO> htos) {
-        for (final HostRuleTO h : htos) {
+        for (HostRuleTO hto : htos) {
+            final Long version = incrementalApply ? getHostRuleVersion(hto.getHostUuid()) : null;
+            final HostRuleTO h = incrementalApply && !hto.isRefreshHost() ? diffHostRules(hto, version) : hto;
+            if (h.getRules().isEmpty() && !h.isRefreshHost()) {
+                logger.debug(String.format("security rules on host[uuid:%s] are up to date, skip applying", h.getHostUuid()));
+                continue;
+            }
+
+            if (logger.isTraceEnabled() && h != hto) {
+                logger.trace(String.format("apply rules of %s/%s vm nics changed on host[uuid:%s]", h.getRules().size(), hto.getRules().size(), h.getHostUuid()));
+            }
+
             SecurityGroupHypervisorBackend bkend = hypervisorBackends.get(h.getHypervisorType());
             bkend.applyRules(h, new Completion() {
                 private void copeWithFailureHost() {
+                    invalidateHostRuleSnapshot(h.getHostUuid());
                     createFailureHostTask(h.getHostUuid());
                 }
 
                 @Override
                 public void success() {
                     logger.debug(String.format("successfully applied security rules on host[uuid:%s]", h.getHostUuid()));
+                    if (incrementalApply) {
+                        updateHostRuleSnapshot(h, version);
+                    }
                 }
 
                 @Override
@@ -944,6 +1103,7 @@ public class SecurityGroupManagerImpl extends AbstractService implements Securit
     private void prepareGlobalConfig() {
         failureHostWorkerInterval = SecurityGroupGlobalConfig.FAILURE_HOST_WORKER_INTERVAL.value(Integer.class);
         failureHostEachTimeTake = SecurityGroupGlobalConfig.FAILURE_HOST_EACH_TIME_TO_TAKE.value(Integer.class);
+        incrementalApply = SecurityGroupGlobalConfig.INCREMENTAL_APPLY.value(Boolean.class);
 
         GlobalConfigUpdateExtensionPoint onUpdate = new GlobalConfigUpdateExtensionPoint() {
             @Override
@@ -954,6 +1114,11 @@ public class SecurityGroupManagerImpl extends AbstractService implements Securit
                 } else if (SecurityGroupGlobalConfig.FAILURE_HOST_WORKER_INTERVAL.isMe(newConfig)) {
                     failureHostWorkerInterval = newConfig.value(Integer.class);
                     restartFailureHostCopingThread();
+                } else if (SecurityGroupGlobalConfig.INCREMENTAL_APPLY.isMe(newConfig)) {
+                    incrementalApply = newConfig.value(Boolean.class);
+                    synchronized (hostRuleSnapshots) {
+                        hostRuleSnapshots.clear();
+                    }
                 }
             }
         };
@@ -961,6 +1126,7 @@ public class SecurityGroupManagerImpl extends AbstractService implements Securit
         SecurityGroupGlobalConfig.FAILURE_HOST_WORKER_INTERVAL.installUpdateExtension(onUpdate);
         SecurityGroupGlobalConfig.FAILURE_HOST_EACH_TIME_TO_TAKE.installUpdateExtension(onUpdate);
         SecurityGroupGlobalConfig.DELAY_REFRESH_INTERVAL.installUpdateExtension(onUpdate);
+        SecurityGroupGlobalConfig.INCREMENTAL_APPLY.installUpdateExtension(onUpdate);
     }
 
     public boolean start() {
@@ -1003,6 +1169,8 @@ public class SecurityGroupManagerImpl extends AbstractService implements Securit
         List<HostRuleTO> htos = cal.calculate();
         applyRules(htos);
 
+        // rules of the vm are removed from the last host by the cleanup below
+        invalidateHostRuleSnapshot(inv.getLastHostUuid());
         SecurityGroupHypervisorBackend bkd = getHypervisorBackend(inv.getHypervisorType());
         bkd.cleanUpUnusedRuleOnHost(inv.getLastHostUuid(), new Completion() {
             @Override
@@ -1034,6 +1202,7 @@ public class SecurityGroupManagerImpl extends AbstractService implements Securit
 
         logger.debug(String.format("vm[uuid:%s, name:%s] failed to migrate to host[uuid:%s], recover its rules on previous host[uuid:%s]",
                 inv.getUuid(), inv.getName(), destHostUuid, inv.getHostUuid()));
+        invalidateHostRuleSnapshot(destHostUuid);
         applyRules(htos);
     }
 
@@ -1117,11 +1286,15 @@ public class SecurityGroupManagerImpl extends AbstractService implements Securit
                     public void success() {
                         logger.debug(String.format("successfully re-apply security group rules to host[uuid:%s]", hto.getHostUuid()));
                         dbf.remove(vo);
+                        if (incrementalApply) {
+                            updateHostRuleSnapshot(hto, null);
+                        }
                     }
 
                     @Override
                     public void fail(ErrorCode errorCode) {
                         logger.debug(String.format("failed to re-apply security group rules to host[uuid:%s], because %s, try it later", hto.getHostUuid(), errorCode));
+                        invalidateHostRuleSnapshot(hto.getHostUuid());
                         copeWithFailureHost(vo);
                     }
                 });
@@ -0,0 +1,305 @@
+package org.zstack.network.service.virtualrouter;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.cloudbus.CloudBusCallBack;
+import org.zstack.core.errorcode.ErrorFacade;
+import org.zstack.core.thread.ChainTask;
+import org.zstack.core.thread.SyncTaskChain;
+import org.zstack.core.thread.ThreadFacade;
+import org.zstack.header.core.Completion;
+import org.zstack.header.core.NoErrorCompletion;
+import org.zstack.header.errorcode.ErrorCode;
+import org.zstack.header.message.MessageReply;
+import org.zstack.header.vm.VmInstanceConstant;
+import org.zstack.network.service.virtualrouter.VirtualRouterCommands.*;
+import org.zstack.network.service.virtualrouter.portforwarding.PortForwardingRuleTO;
+import org.zstack.utils.Utils;
+import org.zstack.utils.gson.JSONObjectUtil;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * coalesces entries sent to the same virtual router within VirtualRouter.commandBatchWindow milliseconds into
+ * one agent command per path, so a virtual router serving many vms is configured in a few http calls.
+ *
+ * batches of a virtual router are sent one after another in the order entries are submitted. Each submission
+ * gets its own result: if the agent fails a batch, every submission of the batch is retried alone so only the
+ * failed ones fail.
+ */
+public class VirtualRouterCommandBatcher {
+    private static final CLogger logger = Utils.getLogger(VirtualRouterCommandBatcher.class);
+    // the default timing wheel ticks every 100ms, far coarser than the batch window
+    private static final long BATCH_WINDOW_TICK = 10;
+
+    public static abstract class BatchCommand<T> {
+        private final String path;
+
+        protected BatchCommand(String path) {
+            this.path = path;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        protected abstract AgentCommand makeCommand(List<T> entries);
+    }
+
+    public static final BatchCommand<DhcpInfo> ADD_DHCP = new BatchCommand<DhcpInfo>(VirtualRouterConstant.VR_ADD_DHCP_PATH) {
+        @Override
+        protected AgentCommand makeCommand(List<DhcpInfo> entries) {
+            AddDhcpEntryCmd cmd = new AddDhcpEntryCmd();
+            cmd.setDhcpEntries(entries);
+            return cmd;
+        }
+    };
+
+    public static final BatchCommand<DhcpInfo> REMOVE_DHCP = new BatchCommand<DhcpInfo>(VirtualRouterConstant.VR_REMOVE_DHCP_PATH) {
+        @Override
+        protected AgentCommand makeCommand(List<DhcpInfo> entries) {
+            RemoveDhcpEntryCmd cmd = new RemoveDhcpEntryCmd();
+            cmd.setDhcpEntries(entries);
+            return cmd;
+        }
+    };
+
+    public static final BatchCommand<DnsInfo> SET_DNS = new BatchCommand<DnsInfo>(VirtualRouterConstant.VR_SET_DNS_PATH) {
+        @Override
+        protected AgentCommand makeCommand(List<DnsInfo> entries) {
+            SetDnsCmd cmd = new SetDnsCmd();
+            cmd.setDns(entries);
+            return cmd;
+        }
+    };
+
+    public static final BatchCommand<DnsInfo> REMOVE_DNS = new BatchCommand<DnsInfo>(VirtualRouterConstant.VR_REMOVE_DNS_PATH) {
+        @Override
+        protected AgentCommand makeCommand(List<DnsInfo> entries) {
+            RemoveDnsCmd cmd = new RemoveDnsCmd();
+            cmd.setDns(entries);
+            return cmd;
+        }
+    };
+
+    public static final BatchCommand<SNATInfo> REMOVE_SNAT = new BatchCommand<SNATInfo>(VirtualRouterConstant.VR_REMOVE_SNAT_PATH) {
+        @Override
+        protected AgentCommand makeCommand(List<SNATInfo> entries) {
+            RemoveSNATCmd cmd = new RemoveSNATCmd();
+            cmd.setNatInfo(entries);
+            return cmd;
+        }
+    };
+
+    public static final BatchCommand<PortForwardingRuleTO> CREATE_PORT_FORWARDING = new BatchCommand<PortForwardingRuleTO>(VirtualRouterConstant.VR_CREATE_PORT_FORWARDING) {
+        @Override
+        protected AgentCommand makeCommand(List<PortForwardingRuleTO> entries) {
+            CreatePortForwardingRuleCmd cmd = new CreatePortForwardingRuleCmd();
+            cmd.setRules(entries);
+            return cmd;
+        }
+    };
+
+    public static final BatchCommand<PortForwardingRuleTO> REVOKE_PORT_FORWARDING = new BatchCommand<PortForwardingRuleTO>(VirtualRouterConstant.VR_REVOKE_PORT_FORWARDING) {
+        @Override
+        protected AgentCommand makeCommand(List<PortForwardingRuleTO> entries) {
+            RevokePortForwardingRuleCmd cmd = new RevokePortForwardingRuleCmd();
+            cmd.setRules(entries);
+            return cmd;
+        }
+    };
+
+    @Autowired
+    private CloudBus bus;
+    @Autowired
+    private ThreadFacade thdf;
+    @Autowired
+    private ErrorFacade errf;
+
+    private static class Submission {
+        List entries;
+        Completion completion;
+    }
+
+    private static class Batch {
+        BatchCommand command;
+        List<Submission> submissions = new ArrayList<Submission>();
+    }
+
+    // submissions of a virtual router waiting for the window to close
+    private static class Pending {
+        List<Batch> batches = new ArrayList<Batch>();
+        int entryNum;
+
+        void add(BatchCommand command, Submission s) {
+            Batch last = batches.isEmpty() ? null : batches.get(batches.size() - 1);
+            if (last == null || last.command != command) {
+                last = new Batch();
+                last.command = command;
+                batches.add(last);
+            }
+
+            last.submissions.add(s);
+            entryNum += s.entries.size();
+        }
+    }
+
+    private final Map<String, Pending> pendings = new HashMap<String, Pending>();
+
+    /**
+     * completion succeeds when the agent applies all entries, fails with the reason if the command cannot be
+     * delivered or the agent fails the entries
+     */
+    public <T> void send(final String vrUuid, BatchCommand<T> command, List<T> entries, Completion completion) {
+        Submission s = new Submission();
+        s.entries = entries;
+        s.completion = completion;
+
+        long window = VirtualRouterGlobalProperty.COMMAND_BATCH_WINDOW;
+        synchronized (pendings) {
+            Pending p = pendings.get(vrUuid);
+            boolean first = p == null;
+            if (first) {
+                p = new Pending();
+                pendings.put(vrUuid, p);
+            }
+            p.add(command, s);
+
+            if (window <= 0 || p.entryNum >= VirtualRouterGlobalProperty.COMMAND_BATCH_SIZE) {
+                pendings.remove(vrUuid);
+                flush(vrUuid, p);
+                return;
+            }
+
+            if (first) {
+                final Pending fp = p;
+                thdf.submitTimeoutTask(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (pendings) {
+                            // already flushed because the batch is full
+                            if (pendings.get(vrUuid) != fp) {
+                                return;
+                            }
+
+                            pendings.remove(vrUuid);
+                            flush(vrUuid, fp);
+                        }
+                    }
+                }, TimeUnit.MILLISECONDS, window, Math.min(window, BATCH_WINDOW_TICK));
+            }
+        }
+    }
+
+    // called with the lock held, so flushes of a virtual router are queued in the order of submissions
+    private void flush(final String vrUuid, final Pending p) {
+        thdf.chainSubmit(new ChainTask() {
+            @Override
+            public String getSyncSignature() {
+                return String.format("virtual-router-command-batch-%s", vrUuid);
+            }
+
+            @Override
+            public void run(final SyncTaskChain chain) {
+                sendBatches(vrUuid, p.batches.iterator(), new NoErrorCompletion(chain) {
+                    @Override
+                    public void done() {
+                        chain.next();
+                    }
+                });
+            }
+
+            @Override
+            public String getName() {
+                return getSyncSignature();
+            }
+        });
+    }
+
+    private void sendBatches(final String vrUuid, final Iterator<Batch> it, final NoErrorCompletion completion) {
+        if (!it.hasNext()) {
+            completion.done();
+            return;
+        }
+
+        sendBatch(vrUuid, it.next(), new NoErrorCompletion(completion) {
+            @Override
+            public void done() {
+                sendBatches(vrUuid, it, completion);
+            }
+        });
+    }
+
+    private List makeEntries(Batch batch) {
+        // the same entry submitted by several callers, e.g. dns of a L3 network, is sent once
+        Map<String, Object> entries = new LinkedHashMap<String, Object>();
+        for (Submission s : batch.submissions) {
+            for (Object e : s.entries) {
+                entries.put(JSONObjectUtil.toJsonString(e), e);
+            }
+        }
+        return new ArrayList<Object>(entries.values());
+    }
+
+    private void sendBatch(final String vrUuid, final Batch batch, final NoErrorCompletion completion) {
+        final List entries = makeEntries(batch);
+        VirtualRouterAsyncHttpCallMsg msg = new VirtualRouterAsyncHttpCallMsg();
+        msg.setVmInstanceUuid(vrUuid);
+        msg.setPath(batch.command.getPath());
+        msg.setCommand(batch.command.makeCommand(entries));
+        msg.setCheckStatus(true);
+        bus.makeTargetServiceIdByResourceUuid(msg, VmInstanceConstant.SERVICE_ID, vrUuid);
+        bus.send(msg, new CloudBusCallBack(completion) {
+            @Override
+            public void run(MessageReply reply) {
+                if (!reply.isSuccess()) {
+                    fail(batch, reply.getError());
+                    completion.done();
+                    return;
+                }
+
+                VirtualRouterAsyncHttpCallReply re = reply.castReply();
+                AgentResponse rsp = re.toResponse(AgentResponse.class);
+                if (rsp.isSuccess()) {
+                    if (batch.submissions.size() > 1) {
+                        logger.debug(String.format("virtual router[uuid:%s] applied %s entries of %s submissions to %s in one command",
+                                vrUuid, entries.size(), batch.submissions.size(), batch.command.getPath()));
+                    }
+
+                    for (Submission s : batch.submissions) {
+                        s.completion.success();
+                    }
+                    completion.done();
+                    return;
+                }
+
+                if (batch.submissions.size() == 1) {
+                    String err = String.format("virtual router[uuid:%s] failed to execute %s for entries%s, %s",
+                            vrUuid, batch.command.getPath(), JSONObjectUtil.toJsonString(entries), rsp.getError());
+                    fail(batch, errf.stringToOperationError(err));
+                    completion.done();
+                    return;
+                }
+
+                logger.warn(String.format("virtual router[uuid:%s] failed to execute %s for %s submissions, %s; retry them one by one",
+                        vrUuid, batch.command.getPath(), batch.submissions.size(), rsp.getError()));
+                List<Batch> singles = new ArrayList<Batch>();
+                for (Submission s : batch.submissions) {
+                    Batch single = new Batch();
+                    single.command = batch.command;
+                    single.submissions.add(s);
+                    singles.add(single);
+                }
+                sendBatches(vrUuid, singles.iterator(), completion);
+            }
+        });
+    }
+
+    private void fail(Batch batch, ErrorCode err) {
+        for (Submission s : batch.submissions) {
+            s.completion.fail(err);
+        }
+    }
+}
@@ -21,4 +21,8 @@ public class VirtualRouterGlobalProperty {
     public static List<String> TCP_PORTS_ON_MGMT_NIC;
     @GlobalProperty(name="VirtualRouter.portsOpenOnManagementNic.udp.")
     public static List<String> UDP_PORTS_ON_MGMT_NIC;
+    @GlobalProperty(name="VirtualRouter.commandBatchWindow", defaultValue = "20")
+    public static long COMMAND_BATCH_WINDOW;
+    @GlobalProperty(name="VirtualRouter.commandBatchSize", defaultValue = "500")
+    public static int COMMAND_BATCH_SIZE;
 }
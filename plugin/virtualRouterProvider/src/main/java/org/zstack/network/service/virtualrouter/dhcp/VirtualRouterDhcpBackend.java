@@ -1,31 +1,26 @@
 package org.zstack.network.service.virtualrouter.dhcp;
 
 import org.springframework.beans.factory.annotation.Autowired;
-import org.zstack.core.cloudbus.CloudBus;
-import org.zstack.core.cloudbus.CloudBusCallBack;
-import org.zstack.core.errorcode.ErrorFacade;
 import org.zstack.header.core.Completion;
 import org.zstack.header.core.NoErrorCompletion;
 import org.zstack.header.core.ReturnValueCompletion;
 import org.zstack.header.errorcode.ErrorCode;
-import org.zstack.header.message.MessageReply;
 import org.zstack.header.network.service.DhcpStruct;
 import org.zstack.header.network.service.NetworkServiceDhcpBackend;
 import org.zstack.header.network.service.NetworkServiceProviderType;
-import org.zstack.header.vm.VmInstanceConstant;
 import org.zstack.header.vm.VmInstanceSpec;
 import org.zstack.header.vm.VmNicInventory;
 import org.zstack.network.service.virtualrouter.*;
-import org.zstack.network.service.virtualrouter.VirtualRouterCommands.AddDhcpEntryRsp;
 import org.zstack.utils.CollectionDSL;
 import org.zstack.utils.CollectionUtils;
 import org.zstack.utils.Utils;
 import org.zstack.utils.function.Function;
+import org.zstack.utils.gson.JSONObjectUtil;
 import org.zstack.utils.logging.CLogger;
 
-import java.util.Arrays;
-import java.util.Iterator;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class VirtualRouterDhcpBackend implements NetworkServiceDhcpBackend {
     private final CLogger logger = Utils.getLogger(VirtualRouterDhcpBackend.class);
@@ -33,18 +28,32 @@ public class VirtualRouterDhcpBackend implements NetworkServiceDhcpBackend {
     @Autowired
     private VirtualRouterManager vrMgr;
     @Autowired
-    private ErrorFacade errf;
-    @Autowired
-    private CloudBus bus;
+    private VirtualRouterCommandBatcher batcher;
 
     @Override
     public NetworkServiceProviderType getProviderType() {
         return VirtualRouterConstant.PROVIDER_TYPE;
     }
 
-    private void applyDhcpEntry(final Iterator<DhcpStruct> it, final VmInstanceSpec spec, final Completion completion) {
+    private static class VirtualRouterDhcpEntries {
+        VirtualRouterVmInventory vr;
+        List<VirtualRouterCommands.DhcpInfo> entries = new ArrayList<VirtualRouterCommands.DhcpInfo>();
+    }
+
+    private void addDhcpEntry(Map<String, VirtualRouterDhcpEntries> entries, VirtualRouterVmInventory vr, VirtualRouterCommands.DhcpInfo e) {
+        VirtualRouterDhcpEntries ve = entries.get(vr.getUuid());
+        if (ve == null) {
+            ve = new VirtualRouterDhcpEntries();
+            ve.vr = vr;
+            entries.put(vr.getUuid(), ve);
+        }
+        ve.entries.add(e);
+    }
+
+    // virtual routers are acquired one by one as acquiring may create them, entries are sent after all are acquired
+    private void collectDhcpEntries(final Iterator<DhcpStruct> it, final VmInstanceSpec spec, final Map<String, VirtualRouterDhcpEntries> entries, final Completion completion) {
         if (!it.hasNext()) {
-            completion.success();
+            applyDhcpEntries(entries.values(), completion);
             return;
         }
 
@@ -72,36 +81,8 @@ public class VirtualRouterDhcpBackend implements NetworkServiceDhcpBackend {
                     e.setDns(CollectionDSL.list(vrNic.getIp()));
                 }
 
-                VirtualRouterCommands.AddDhcpEntryCmd cmd = new VirtualRouterCommands.AddDhcpEntryCmd();
-                cmd.setDhcpEntries(Arrays.asList(e));
-                VirtualRouterAsyncHttpCallMsg cmsg = new VirtualRouterAsyncHttpCallMsg();
-                cmsg.setCommand(cmd);
-                cmsg.setPath(VirtualRouterConstant.VR_ADD_DHCP_PATH);
-                cmsg.setVmInstanceUuid(vr.getUuid());
-                cmsg.setCheckStatus(true);
-                bus.makeTargetServiceIdByResourceUuid(cmsg, VmInstanceConstant.SERVICE_ID, vr.getUuid());
-                bus.send(cmsg, new CloudBusCallBack(completion) {
-                    @Override
-                    public void run(MessageReply reply) {
-                        if (!reply.isSuccess()) {
-                            completion.fail(reply.getError());
-                            return;
-                        }
-
-                        VirtualRouterAsyncHttpCallReply re = reply.castReply();
-                        AddDhcpEntryRsp rsp =  re.toResponse(AddDhcpEntryRsp.class);
-                        if (rsp.isSuccess()) {
-                            logger.debug(String.format("successfully add dhcp entry[%s] to virtual router vm[uuid:%s, ip:%s]", struct, vr.getUuid(), vr.getManagementNic()
-                                    .getIp()));
-                            applyDhcpEntry(it, spec, completion);
-                        } else {
-                            String err = String.format("unable to add dhcp entries to virtual router vm[uuid:%s ip:%s], because %s, dhcp entry[%s]",
-                                    vr.getUuid(), vr.getManagementNic().getIp(), rsp.getError(), struct);
-                            logger.warn(err);
-                            completion.fail(errf.stringToOperationError(err));
-                        }
-                    }
-                });
+                addDhcpEntry(entries, vr, e);
+                collectDhcpEntries(it, spec, entries, completion);
             }
 
             @Override
@@ -111,6 +92,33 @@ public class VirtualRouterDhcpBackend implements NetworkServiceDhcpBackend {
         });
     }
 
+    private void applyDhcpEntries(Collection<VirtualRouterDhcpEntries> entries, final Completion completion) {
+        final AtomicInteger count = new AtomicInteger(entries.size());
+        final AtomicBoolean failed = new AtomicBoolean();
+        for (final VirtualRouterDhcpEntries ve : entries) {
+            final VirtualRouterVmInventory vr = ve.vr;
+            batcher.send(vr.getUuid(), VirtualRouterCommandBatcher.ADD_DHCP, ve.entries, new Completion(completion) {
+                @Override
+                public void success() {
+                    logger.debug(String.format("successfully add dhcp entries%s to virtual router vm[uuid:%s, ip:%s]",
+                            JSONObjectUtil.toJsonString(ve.entries), vr.getUuid(), vr.getManagementNic().getIp()));
+                    if (count.decrementAndGet() == 0 && !failed.get()) {
+                        completion.success();
+                    }
+                }
+
+                @Override
+                public void fail(ErrorCode errorCode) {
+                    logger.warn(String.format("unable to add dhcp entries to virtual router vm[uuid:%s ip:%s], because %s, dhcp entries%s",
+                            vr.getUuid(), vr.getManagementNic().getIp(), errorCode, JSONObjectUtil.toJsonString(ve.entries)));
+                    if (failed.compareAndSet(false, true)) {
+                        completion.fail(errorCode);
+                    }
+                }
+            });
+        }
+    }
+
     @Override
     public void applyDhcpService(final List<DhcpStruct> dhcpStructList, final VmInstanceSpec spec, final Completion completion) {
         if (dhcpStructList.isEmpty()) {
@@ -118,78 +126,64 @@ public class VirtualRouterDhcpBackend implements NetworkServiceDhcpBackend {
             return;
         }
 
-        applyDhcpEntry(dhcpStructList.iterator(), spec, completion);
+        collectDhcpEntries(dhcpStructList.iterator(), spec, new LinkedHashMap<String, VirtualRouterDhcpEntries>(), completion);
     }
 
-    private void releaseDhcp(final Iterator<DhcpStruct> it, final VmInstanceSpec spec, final NoErrorCompletion completion) {
-        if (!it.hasNext()) {
-            completion.done();
-            return;
+    @Override
+    public void releaseDhcpService(List<DhcpStruct> dhcpStructList, VmInstanceSpec spec, final NoErrorCompletion completion) {
+        Map<String, VirtualRouterDhcpEntries> entries = new LinkedHashMap<String, VirtualRouterDhcpEntries>();
+        for (final DhcpStruct struct : dhcpStructList) {
+            if (!vrMgr.isVirtualRouterRunningForL3Network(struct.getL3Network().getUuid())) {
+                logger.debug(String.format("virtual router for l3Network[uuid:%s] is not running, skip releasing DHCP", struct.getL3Network().getUuid()));
+                continue;
+            }
+
+            VirtualRouterVmInventory vr = vrMgr.getVirtualRouterVm(struct.getL3Network());
+            VmNicInventory vrNic = CollectionUtils.find(vr.getVmNics(), new Function<VmNicInventory, VmNicInventory>() {
+                @Override
+                public VmNicInventory call(VmNicInventory arg) {
+                    return arg.getL3NetworkUuid().equals(struct.getL3Network().getUuid()) ? arg : null;
+                }
+            });
+
+            VirtualRouterCommands.DhcpInfo e = new VirtualRouterCommands.DhcpInfo();
+            e.setGateway(struct.getGateway());
+            e.setDefaultL3Network(struct.isDefaultL3Network());
+            e.setIp(struct.getIp());
+            e.setMac(struct.getMac());
+            e.setNetmask(struct.getNetmask());
+            e.setVrNicMac(vrNic.getMac());
+            addDhcpEntry(entries, vr, e);
         }
 
-        final DhcpStruct struct = it.next();
-        if (!vrMgr.isVirtualRouterRunningForL3Network(struct.getL3Network().getUuid())) {
-            logger.debug(String.format("virtual router for l3Network[uuid:%s] is not running, skip releasing DHCP", struct.getL3Network().getUuid()));
-            releaseDhcp(it, spec, completion);
+        if (entries.isEmpty()) {
+            completion.done();
             return;
         }
 
-        final VirtualRouterVmInventory vr = vrMgr.getVirtualRouterVm(struct.getL3Network());
-        VmNicInventory vrNic = CollectionUtils.find(vr.getVmNics(), new Function<VmNicInventory, VmNicInventory>() {
-            @Override
-            public VmNicInventory call(VmNicInventory arg) {
-                return arg.getL3NetworkUuid().equals(struct.getL3Network().getUuid()) ? arg : null;
-            }
-        });
+        final AtomicInteger count = new AtomicInteger(entries.size());
+        for (final VirtualRouterDhcpEntries ve : entries.values()) {
+            final VirtualRouterVmInventory vr = ve.vr;
+            batcher.send(vr.getUuid(), VirtualRouterCommandBatcher.REMOVE_DHCP, ve.entries, new Completion(completion) {
+                @Override
+                public void success() {
+                    logger.debug(String.format("successfully removed dhcp entries%s from virtual router vm[uuid:%s, ip:%s]",
+                            JSONObjectUtil.toJsonString(ve.entries), vr.getUuid(), vr.getManagementNic().getIp()));
+                    if (count.decrementAndGet() == 0) {
+                        completion.done();
+                    }
+                }
 
-        VirtualRouterCommands.DhcpInfo e = new VirtualRouterCommands.DhcpInfo();
-        e.setGateway(struct.getGateway());
-        e.setDefaultL3Network(struct.isDefaultL3Network());
-        e.setIp(struct.getIp());
-        e.setMac(struct.getMac());
-        e.setNetmask(struct.getNetmask());
-        e.setVrNicMac(vrNic.getMac());
-
-        VirtualRouterCommands.RemoveDhcpEntryCmd cmd = new VirtualRouterCommands.RemoveDhcpEntryCmd();
-        cmd.setDhcpEntries(Arrays.asList(e));
-
-        VirtualRouterAsyncHttpCallMsg msg = new VirtualRouterAsyncHttpCallMsg();
-        msg.setCheckStatus(true);
-        msg.setVmInstanceUuid(vr.getUuid());
-        msg.setPath(VirtualRouterConstant.VR_REMOVE_DHCP_PATH);
-        msg.setCommand(cmd);
-        bus.makeTargetServiceIdByResourceUuid(msg, VmInstanceConstant.SERVICE_ID, vr.getUuid());
-        bus.send(msg, new CloudBusCallBack(completion) {
-            @Override
-            public void run(MessageReply reply) {
-                if (!reply.isSuccess()) {
-                    logger.warn(String.format("unable to remove dhcp entry[%s] from virtual router vm[uuid:%s, ip:%s], %s", struct, vr.getUuid(), vr
-                            .getManagementNic().getIp(), reply.getError()));
+                @Override
+                public void fail(ErrorCode errorCode) {
+                    logger.warn(String.format("unable to remove dhcp entries%s from virtual router vm[uuid:%s, ip:%s], %s",
+                            JSONObjectUtil.toJsonString(ve.entries), vr.getUuid(), vr.getManagementNic().getIp(), errorCode));
                     //TODO: schedule a job to clean up
-                } else {
-                    VirtualRouterAsyncHttpCallReply ret = reply.castReply();
-                    if (ret.isSuccess()) {
-                        logger.debug(String.format("successfully removed dhcp entry[%s] from virtual router vm[uuid:%s, ip:%s]", struct, vr.getUuid(), vr
-                                .getManagementNic().getIp()));
-                    } else {
-                        logger.warn(String.format("unable to remove dhcp entry[%s] from virtual router vm[uuid:%s, ip:%s], %s", struct, vr.getUuid(), vr
-                                .getManagementNic().getIp(), ret.getError()));
-                        //TODO: schedule a job to clean up
+                    if (count.decrementAndGet() == 0) {
+                        completion.done();
                     }
                 }
-
-                releaseDhcp(it, spec, completion);
-            }
-        });
-    }
-
-    @Override
-    public void releaseDhcpService(List<DhcpStruct> dhcpStructList, VmInstanceSpec spec, NoErrorCompletion completion) {
-        if (dhcpStructList.isEmpty()) {
-            completion.done();
-            return;
+            });
         }
-
-        releaseDhcp(dhcpStructList.iterator(), spec, completion);
     }
 }
@@ -1,23 +1,16 @@
 package org.zstack.network.service.virtualrouter.dns;
 
 import org.springframework.beans.factory.annotation.Autowired;
-import org.zstack.core.cloudbus.CloudBus;
-import org.zstack.core.cloudbus.CloudBusCallBack;
-import org.zstack.core.errorcode.ErrorFacade;
 import org.zstack.header.core.Completion;
 import org.zstack.header.core.NoErrorCompletion;
 import org.zstack.header.core.ReturnValueCompletion;
 import org.zstack.header.errorcode.ErrorCode;
-import org.zstack.header.message.MessageReply;
 import org.zstack.header.network.l3.L3NetworkInventory;
 import org.zstack.header.network.service.NetworkServiceProviderType;
 import org.zstack.header.network.service.DnsStruct;
 import org.zstack.header.network.service.NetworkServiceDnsBackend;
-import org.zstack.header.vm.VmInstanceConstant;
 import org.zstack.header.vm.VmInstanceSpec;
 import org.zstack.network.service.virtualrouter.*;
-import org.zstack.network.service.virtualrouter.VirtualRouterCommands.RemoveDnsRsp;
-import org.zstack.network.service.virtualrouter.VirtualRouterCommands.SetDnsRsp;
 import org.zstack.utils.Utils;
 import org.zstack.utils.gson.JSONObjectUtil;
 import org.zstack.utils.logging.CLogger;
@@ -34,9 +27,7 @@ public class VirtualRouterDnsBackend implements NetworkServiceDnsBackend {
     @Autowired
     private VirtualRouterManager vrMgr;
     @Autowired
-    private CloudBus bus;
-    @Autowired
-    private ErrorFacade errf;
+    private VirtualRouterCommandBatcher batcher;
 
     @Override
     public NetworkServiceProviderType getProviderType() {
@@ -62,35 +53,19 @@ public class VirtualRouterDnsBackend implements NetworkServiceDnsBackend {
                     dns.add(dinfo);
                 }
 
-                VirtualRouterCommands.SetDnsCmd cmd = new VirtualRouterCommands.SetDnsCmd();
-                cmd.setDns(dns);
+                batcher.send(vr.getUuid(), VirtualRouterCommandBatcher.SET_DNS, dns, new Completion(completion) {
+                    @Override
+                    public void success() {
+                        logger.debug(String.format("successfully add dns entry[%s] to virtual router vm[uuid:%s, ip:%s]", struct, vr.getUuid(), vr.getManagementNic()
+                                .getIp()));
+                        applyDns(it, spec, completion);
+                    }
 
-                VirtualRouterAsyncHttpCallMsg msg = new VirtualRouterAsyncHttpCallMsg();
-                msg.setVmInstanceUuid(vr.getUuid());
-                msg.setPath(VirtualRouterConstant.VR_SET_DNS_PATH);
-                msg.setCommand(cmd);
-                msg.setCheckStatus(true);
-                bus.makeTargetServiceIdByResourceUuid(msg, VmInstanceConstant.SERVICE_ID, vr.getUuid());
-                bus.send(msg, new CloudBusCallBack(completion) {
                     @Override
-                    public void run(MessageReply reply) {
-                        if (!reply.isSuccess()) {
-                            completion.fail(reply.getError());
-                            return;
-                        }
-
-                        VirtualRouterAsyncHttpCallReply re = reply.castReply();
-                        SetDnsRsp ret = re.toResponse(SetDnsRsp.class);
-                        if (ret.isSuccess()) {
-                            logger.debug(String.format("successfully add dns entry[%s] to virtual router vm[uuid:%s, ip:%s]", struct, vr.getUuid(), vr.getManagementNic()
-                                    .getIp()));
-                            applyDns(it, spec, completion);
-                        } else {
-                            String err = String.format("virtual router[uuid:%s, ip:%s] failed to configure dns%s for L3Network[uuid:%s, name:%s], %s",
-                                    vr.getUuid(), vr.getManagementNic().getIp(), struct, l3.getUuid(), l3.getName(), ret.getError());
-                            logger.warn(err);
-                            completion.fail(errf.stringToOperationError(err));
-                        }
+                    public void fail(ErrorCode errorCode) {
+                        logger.warn(String.format("virtual router[uuid:%s, ip:%s] failed to configure dns%s for L3Network[uuid:%s, name:%s], %s",
+                                vr.getUuid(), vr.getManagementNic().getIp(), struct, l3.getUuid(), l3.getName(), errorCode));
+                        completion.fail(errorCode);
                     }
                 });
             }
@@ -135,35 +110,19 @@ public class VirtualRouterDnsBackend implements NetworkServiceDnsBackend {
             info.add(i);
         }
 
-        VirtualRouterCommands.RemoveDnsCmd cmd = new VirtualRouterCommands.RemoveDnsCmd();
-        cmd.setDns(info);
-
-        VirtualRouterAsyncHttpCallMsg msg = new VirtualRouterAsyncHttpCallMsg();
-        msg.setCheckStatus(true);
-        msg.setPath(VirtualRouterConstant.VR_REMOVE_DNS_PATH);
-        msg.setCommand(cmd);
-        msg.setVmInstanceUuid(vr.getUuid());
-        bus.makeTargetServiceIdByResourceUuid(msg, VmInstanceConstant.SERVICE_ID, vr.getUuid());
-        bus.send(msg, new CloudBusCallBack(completion) {
+        batcher.send(vr.getUuid(), VirtualRouterCommandBatcher.REMOVE_DNS, info, new Completion(completion) {
             @Override
-            public void run(MessageReply reply) {
-                if (!reply.isSuccess()) {
-                    logger.warn(String.format("virtual router[name: %s, uuid: %s] failed to remove dns%s, because %s",
-                            vr.getName(), vr.getUuid(), JSONObjectUtil.toJsonString(info), reply.getError()));
-                    //TODO: schedule job to clean up
-                } else {
-                    VirtualRouterAsyncHttpCallReply re = reply.castReply();
-                    RemoveDnsRsp ret = re.toResponse(RemoveDnsRsp.class);
-                    if (ret.isSuccess()) {
-                        logger.warn(String.format("virtual router[name: %s, uuid: %s] successfully removed dns%s",
-                                vr.getName(), vr.getUuid(), JSONObjectUtil.toJsonString(info)));
-                    } else {
-                        logger.warn(String.format("virtual router[name: %s, uuid: %s] failed to remove dns%s, because %s",
-                                vr.getName(), vr.getUuid(), JSONObjectUtil.toJsonString(info), ret.getError()));
-                        //TODO: schedule job to clean up
-                    }
-                }
+            public void success() {
+                logger.debug(String.format("virtual router[name: %s, uuid: %s] successfully removed dns%s",
+                        vr.getName(), vr.getUuid(), JSONObjectUtil.toJsonString(info)));
+                releaseDns(it, spec, completion);
+            }
 
+            @Override
+            public void fail(ErrorCode errorCode) {
+                logger.warn(String.format("virtual router[name: %s, uuid: %s] failed to remove dns%s, because %s",
+                        vr.getName(), vr.getUuid(), JSONObjectUtil.toJsonString(info), errorCode));
+                //TODO: schedule job to clean up
                 releaseDns(it, spec, completion);
             }
         });
@@ -22,7 +22,6 @@ import org.zstack.header.vm.VmInstanceConstant;
 import org.zstack.header.vm.VmInstanceSpec;
 import org.zstack.header.vm.VmNicInventory;
 import org.zstack.network.service.virtualrouter.*;
-import org.zstack.network.service.virtualrouter.VirtualRouterCommands.RemoveSNATRsp;
 import org.zstack.network.service.virtualrouter.VirtualRouterCommands.SetSNATRsp;
 import org.zstack.utils.CollectionUtils;
 import org.zstack.utils.DebugUtils;
@@ -52,6 +51,8 @@ public class VirtualRouterSnatBackend implements NetworkServiceSnatBackend {
     private CloudBus bus;
     @Autowired
     private DatabaseFacade dbf;
+    @Autowired
+    private VirtualRouterCommandBatcher batcher;
 
     @Override
     public NetworkServiceProviderType getProviderType() {
@@ -174,41 +175,20 @@ public class VirtualRouterSnatBackend implements NetworkServiceSnatBackend {
         info.setPublicIp(vr.getPublicNic().getIp());
         info.setSnatNetmask(struct.getGuestNetmask());
 
-        VirtualRouterCommands.RemoveSNATCmd cmd = new VirtualRouterCommands.RemoveSNATCmd();
-        cmd.setNatInfo(Arrays.asList(info));
-
-        VirtualRouterAsyncHttpCallMsg msg = new VirtualRouterAsyncHttpCallMsg();
-        msg.setCheckStatus(true);
-        msg.setVmInstanceUuid(vr.getUuid());
-        msg.setCommand(cmd);
-        msg.setPath(VirtualRouterConstant.VR_REMOVE_SNAT_PATH);
-        bus.makeTargetServiceIdByResourceUuid(msg, VirtualRouterConstant.SERVICE_ID, vr.getUuid());
-        bus.send(msg, new CloudBusCallBack(completion) {
+        batcher.send(vr.getUuid(), VirtualRouterCommandBatcher.REMOVE_SNAT, Arrays.asList(info), new Completion(completion) {
             @Override
-            public void run(MessageReply reply) {
-                if (!reply.isSuccess()) {
-                    logger.warn(String.format("failed to release snat[%s] on virtual router[name:%s, uuid:%s] for vm[uuid: %s, name: %s], %s",
-                            struct, vr.getName(), vr.getUuid(), spec.getVmInventory().getUuid(), spec.getVmInventory().getName(), reply.getError()));
-                    //TODO: schedule a job to clean up
-                } else {
-                    VirtualRouterAsyncHttpCallReply re = reply.castReply();
-                    RemoveSNATRsp ret = re.toResponse(RemoveSNATRsp.class);
-                    if (!ret.isSuccess()) {
-                        String err = String.format(
-                                "virtual router[uuid:%s, ip:%s] failed to release snat[%s] for vm[uuid:%s, name:%s] on L3Network[uuid:%s, name:%s], because %s",
-                                vr.getUuid(), vr.getManagementNic().getIp(), JSONObjectUtil.toJsonString(info), spec.getVmInventory().getUuid(), spec.getVmInventory().getName(),
-                                struct.getL3Network().getUuid(), struct.getL3Network().getName(), ret.getError());
-                        logger.warn(err);
-                        //TODO: schedule a job to clean up
-                    } else {
-                        String msg = String.format(
-                                "virtual router[uuid:%s, ip:%s] released snat[%s] for vm[uuid:%s, name:%s] on L3Network[uuid:%s, name:%s], because %s",
-                                vr.getUuid(), vr.getManagementNic().getIp(), JSONObjectUtil.toJsonString(info), spec.getVmInventory().getUuid(), spec.getVmInventory().getName(),
-                                struct.getL3Network().getUuid(), struct.getL3Network().getName(), ret.getError());
-                        logger.warn(msg);
-                    }
-                }
+            public void success() {
+                logger.debug(String.format("virtual router[uuid:%s, ip:%s] released snat[%s] for vm[uuid:%s, name:%s] on L3Network[uuid:%s, name:%s]",
+                        vr.getUuid(), vr.getManagementNic().getIp(), JSONObjectUtil.toJsonString(info), spec.getVmInventory().getUuid(), spec.getVmInventory().getName(),
+                        struct.getL3Network().getUuid(), struct.getL3Network().getName()));
+                releaseSnat(it, spec, completion);
+            }
 
+            @Override
+            public void fail(ErrorCode errorCode) {
+                logger.warn(String.format("failed to release snat[%s] on virtual router[name:%s, uuid:%s] for vm[uuid: %s, name: %s], %s",
+                        struct, vr.getName(), vr.getUuid(), spec.getVmInventory().getUuid(), spec.getVmInventory().getName(), errorCode));
+                //TODO: schedule a job to clean up
                 releaseSnat(it, spec, completion);
             }
         });
@@ -3,16 +3,11 @@ package org.zstack.network.service.virtualrouter.portforwarding;
 import org.springframework.beans.factory.annotation.Autowire;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Configurable;
-import org.zstack.core.cloudbus.CloudBus;
-import org.zstack.core.cloudbus.CloudBusCallBack;
-import org.zstack.core.errorcode.ErrorFacade;
+import org.zstack.header.core.Completion;
 import org.zstack.header.core.workflow.Flow;
 import org.zstack.header.core.workflow.FlowTrigger;
-import org.zstack.header.message.MessageReply;
-import org.zstack.header.vm.VmInstanceConstant;
+import org.zstack.header.errorcode.ErrorCode;
 import org.zstack.network.service.virtualrouter.*;
-import org.zstack.network.service.virtualrouter.VirtualRouterCommands.CreatePortForwardingRuleRsp;
-import org.zstack.network.service.virtualrouter.VirtualRouterCommands.RevokePortForwardingRuleRsp;
 import org.zstack.utils.Utils;
 import org.zstack.utils.gson.JSONObjectUtil;
 import org.zstack.utils.logging.CLogger;
@@ -29,9 +24,7 @@ public class ApplyPortforwardingRuleOnVirtualRouterVmFlow implements Flow {
     @Autowired
     protected VirtualRouterPortForwardingBackend backend;
     @Autowired
-    private CloudBus bus;
-    @Autowired
-    private ErrorFacade errf;
+    private VirtualRouterCommandBatcher batcher;
 
     private final static String VR_APPLY_PORT_FORWARDING_RULE_SUCCESS = "ApplyPortForwardingRuleSuccess";
 
@@ -40,41 +33,26 @@ public class ApplyPortforwardingRuleOnVirtualRouterVmFlow implements Flow {
         final PortForwardingRuleTO to = (PortForwardingRuleTO) data.get(VirtualRouterConstant.VR_PORT_FORWARDING_RULE);
         final VirtualRouterVmInventory vr = (VirtualRouterVmInventory) data.get(VirtualRouterConstant.VR_RESULT_VM);
 
-        VirtualRouterCommands.CreatePortForwardingRuleCmd cmd = new VirtualRouterCommands.CreatePortForwardingRuleCmd();
-        cmd.setRules(Arrays.asList(to));
-
-        VirtualRouterAsyncHttpCallMsg msg = new VirtualRouterAsyncHttpCallMsg();
-        msg.setVmInstanceUuid(vr.getUuid());
-        msg.setCommand(cmd);
-        msg.setPath(VirtualRouterConstant.VR_CREATE_PORT_FORWARDING);
-        msg.setCheckStatus(true);
-        bus.makeTargetServiceIdByResourceUuid(msg, VmInstanceConstant.SERVICE_ID, vr.getUuid());
-        bus.send(msg, new CloudBusCallBack(chain) {
+        batcher.send(vr.getUuid(), VirtualRouterCommandBatcher.CREATE_PORT_FORWARDING, Arrays.asList(to), new Completion(chain) {
             @Override
-            public void run(MessageReply reply) {
-                if (!reply.isSuccess()) {
-                    chain.fail(reply.getError());
-                    return;
-                }
+            public void success() {
+                String info = String
+                        .format("successfully create port forwarding rule[vip ip: %s, private ip: %s, vip start port: %s, vip end port: %s, private start port: %s, private end port: %s]",
+                                to.getVipIp(), to.getPrivateIp(), to.getVipPortStart(), to.getVipPortEnd(),
+                                to.getPrivatePortStart(), to.getPrivatePortEnd());
+                logger.debug(info);
+                data.put(VR_APPLY_PORT_FORWARDING_RULE_SUCCESS, Boolean.TRUE);
+                chain.next();
+            }
 
-                VirtualRouterAsyncHttpCallReply re = reply.castReply();
-                CreatePortForwardingRuleRsp ret = re.toResponse(CreatePortForwardingRuleRsp.class);
-                if (ret.isSuccess()) {
-                    String info = String
-                            .format("successfully create port forwarding rule[vip ip: %s, private ip: %s, vip start port: %s, vip end port: %s, private start port: %s, private end port: %s]",
-                                    to.getVipIp(), to.getPrivateIp(), to.getVipPortStart(), to.getVipPortEnd(),
-                                    to.getPrivatePortStart(), to.getPrivatePortEnd());
-                    logger.debug(info);
-                    data.put(VR_APPLY_PORT_FORWARDING_RULE_SUCCESS, Boolean.TRUE);
-                    chain.next();
-                } else {
-                    String err = String
-                            .format("failed to create port forwarding rule[vip ip: %s, private ip: %s, vip start port: %s, vip end port: %s, private start port: %s, private end port: %s], because %s",
-                                    to.getVipIp(), to.getPrivateIp(), to.getVipPortStart(), to.getVipPortEnd(),
-                                    to.getPrivatePortStart(), to.getPrivatePortEnd(), ret.getError());
-                    logger.warn(err);
-                    chain.fail(errf.stringToOperationError(err));
-                }
+            @Override
+            public void fail(ErrorCode errorCode) {
+                String err = String
+                        .format("failed to create port forwarding rule[vip ip: %s, private ip: %s, vip start port: %s, vip end port: %s, private start port: %s, private end port: %s], because %s",
+                                to.getVipIp(), to.getPrivateIp(), to.getVipPortStart(), to.getVipPortEnd(),
+                                to.getPrivatePortStart(), to.getPrivatePortEnd(), errorCode);
+                logger.warn(err);
+                chain.fail(errorCode);
             }
         });
     }
@@ -85,35 +63,19 @@ public class ApplyPortforwardingRuleOnVirtualRouterVmFlow implements Flow {
             final PortForwardingRuleTO to = (PortForwardingRuleTO) data.get(VirtualRouterConstant.VR_PORT_FORWARDING_RULE);
             final VirtualRouterVmInventory vr = (VirtualRouterVmInventory) data.get(VirtualRouterConstant.VR_RESULT_VM);
 
-            VirtualRouterCommands.RevokePortForwardingRuleCmd cmd = new VirtualRouterCommands.RevokePortForwardingRuleCmd();
-            cmd.setRules(Arrays.asList(to));
-
-            VirtualRouterAsyncHttpCallMsg msg = new VirtualRouterAsyncHttpCallMsg();
-            msg.setCheckStatus(true);
-            msg.setPath(VirtualRouterConstant.VR_REVOKE_PORT_FORWARDING);
-            msg.setCommand(cmd);
-            msg.setVmInstanceUuid(vr.getUuid());
-            bus.makeTargetServiceIdByResourceUuid(msg, VmInstanceConstant.SERVICE_ID, vr.getUuid());
-            bus.send(msg, new CloudBusCallBack(chain) {
+            batcher.send(vr.getUuid(), VirtualRouterCommandBatcher.REVOKE_PORT_FORWARDING, Arrays.asList(to), new Completion(chain) {
                 @Override
-                public void run(MessageReply reply) {
-                    if (!reply.isSuccess()) {
-                        String err = String.format("failed to revoke port forwarding rules %, because %s", JSONObjectUtil.toJsonString(to), reply.getError());
-                        logger.warn(err);
-                        //TODO: schedule a job to clean up
-                    } else {
-                        VirtualRouterAsyncHttpCallReply re = reply.castReply();
-                        RevokePortForwardingRuleRsp ret = re.toResponse(RevokePortForwardingRuleRsp.class);
-                        if (ret.isSuccess()) {
-                            String info = String.format("successfully revoke port forwarding rules: %s", JSONObjectUtil.toJsonString(to));
-                            logger.debug(info);
-                        } else {
-                            String err = String.format("failed to revoke port forwarding rules %, because %s", JSONObjectUtil.toJsonString(to), ret.getError());
-                            logger.warn(err);
-                            //TODO: schedule a job to clean up
-                        }
-                    }
+                public void success() {
+                    String info = String.format("successfully revoke port forwarding rules: %s", JSONObjectUtil.toJsonString(to));
+                    logger.debug(info);
+                    chain.rollback();
+                }
 
+                @Override
+                public void fail(ErrorCode errorCode) {
+                    String err = String.format("failed to revoke port forwarding rules %s, because %s", JSONObjectUtil.toJsonString(to), errorCode);
+                    logger.warn(err);
+                    //TODO: schedule a job to clean up
                     chain.rollback();
                 }
             });
@@ -3,15 +3,11 @@ package org.zstack.network.service.virtualrouter.portforwarding;
 import org.springframework.beans.factory.annotation.Autowire;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Configurable;
-import org.zstack.core.cloudbus.CloudBus;
-import org.zstack.core.cloudbus.CloudBusCallBack;
-import org.zstack.core.errorcode.ErrorFacade;
+import org.zstack.header.core.Completion;
 import org.zstack.header.core.workflow.FlowTrigger;
 import org.zstack.header.core.workflow.NoRollbackFlow;
-import org.zstack.header.message.MessageReply;
-import org.zstack.header.vm.VmInstanceConstant;
+import org.zstack.header.errorcode.ErrorCode;
 import org.zstack.network.service.virtualrouter.*;
-import org.zstack.network.service.virtualrouter.VirtualRouterCommands.RevokePortForwardingRuleRsp;
 import org.zstack.utils.Utils;
 import org.zstack.utils.gson.JSONObjectUtil;
 import org.zstack.utils.logging.CLogger;
@@ -28,45 +24,26 @@ public class ReleasePortForwardingRuleOnVirtualRouterVmFlow extends NoRollbackFl
     @Autowired
     protected VirtualRouterPortForwardingBackend backend;
     @Autowired
-    private CloudBus bus;
-    @Autowired
-    private ErrorFacade errf;
+    private VirtualRouterCommandBatcher batcher;
 
     @Override
     public void run(final FlowTrigger chain, Map data) {
         final PortForwardingRuleTO to = (PortForwardingRuleTO) data.get(VirtualRouterConstant.VR_PORT_FORWARDING_RULE);
         final VirtualRouterVmInventory vr = (VirtualRouterVmInventory) data.get(VirtualRouterConstant.VR_RESULT_VM);
 
-        VirtualRouterCommands.RevokePortForwardingRuleCmd cmd = new VirtualRouterCommands.RevokePortForwardingRuleCmd();
-        cmd.setRules(Arrays.asList(to));
-
-        VirtualRouterAsyncHttpCallMsg msg = new VirtualRouterAsyncHttpCallMsg();
-        msg.setPath(VirtualRouterConstant.VR_REVOKE_PORT_FORWARDING);
-        msg.setVmInstanceUuid(vr.getUuid());
-        msg.setCommand(cmd);
-        msg.setCheckStatus(true);
-        bus.makeTargetServiceIdByResourceUuid(msg, VmInstanceConstant.SERVICE_ID, vr.getUuid());
-        bus.send(msg, new CloudBusCallBack(chain) {
+        batcher.send(vr.getUuid(), VirtualRouterCommandBatcher.REVOKE_PORT_FORWARDING, Arrays.asList(to), new Completion(chain) {
             @Override
-            public void run(MessageReply reply) {
-                if (!reply.isSuccess()) {
-                    String err = String.format("failed to revoke port forwarding rules %s, because %s", JSONObjectUtil.toJsonString(to), reply.getError());
-                    logger.warn(err);
-                    chain.fail(reply.getError());
-                    return;
-                }
+            public void success() {
+                String info = String.format("successfully revoke port forwarding rules: %s", JSONObjectUtil.toJsonString(to));
+                logger.debug(info);
+                chain.next();
+            }
 
-                VirtualRouterAsyncHttpCallReply re = reply.castReply();
-                RevokePortForwardingRuleRsp ret = re.toResponse(RevokePortForwardingRuleRsp.class);
-                if (ret.isSuccess()) {
-                    String info = String.format("successfully revoke port forwarding rules: %s", JSONObjectUtil.toJsonString(to));
-                    logger.debug(info);
-                    chain.next();
-                } else {
-                    String err = String.format("failed to revoke port forwarding rules %s, because %s", JSONObjectUtil.toJsonString(to), ret.getError());
-                    logger.warn(err);
-                    chain.fail(errf.stringToOperationError(err));
-                }
+            @Override
+            public void fail(ErrorCode errorCode) {
+                String err = String.format("failed to revoke port forwarding rules %s, because %s", JSONObjectUtil.toJsonString(to), errorCode);
+                logger.warn(err);
+                chain.fail(errorCode);
             }
         });
     }
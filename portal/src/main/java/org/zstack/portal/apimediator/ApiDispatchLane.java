@@ -0,0 +1,148 @@
+package org.zstack.portal.apimediator;
+
+import org.zstack.header.message.Message;
+import org.zstack.header.query.APIQueryMessage;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * API messages are dispatched in lanes with their own worker number and queue size, so cheap queries and
+ * health checks don't wait behind heavy create/delete calls. A message waiting in a full lane is rejected
+ * at once instead of being queued.
+ */
+class ApiDispatchLane {
+    static final String QUERY = "query";
+    static final String MUTATE = "mutate";
+    static final String ADMIN = "admin";
+
+    /**
+     * upper bounds(in milliseconds) of histogram buckets, the last bucket holds everything beyond the last bound
+     */
+    static final long[] LATENCY_BUCKETS = {1, 5, 10, 50, 100, 500, 1000, 5000, 10000};
+
+    private static class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(LATENCY_BUCKETS.length + 1);
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void add(long time) {
+            int i = 0;
+            while (i < LATENCY_BUCKETS.length && time > LATENCY_BUCKETS[i]) {
+                i ++;
+            }
+            buckets.incrementAndGet(i);
+            total.addAndGet(time);
+
+            long m = max.get();
+            while (time > m && !max.compareAndSet(m, time)) {
+                m = max.get();
+            }
+        }
+
+        Map<String, Long> toMap() {
+            Map<String, Long> ret = new LinkedHashMap<String, Long>();
+            for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+                ret.put(String.format("<=%sms", LATENCY_BUCKETS[i]), buckets.get(i));
+            }
+            ret.put(String.format(">%sms", LATENCY_BUCKETS[LATENCY_BUCKETS.length - 1]), buckets.get(LATENCY_BUCKETS.length));
+            return ret;
+        }
+    }
+
+    private final String name;
+    private final int workerNum;
+    private final int queueSize;
+    private final String syncSignature;
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final Histogram queueTime = new Histogram();
+    private final Histogram serviceTime = new Histogram();
+
+    ApiDispatchLane(String name, int workerNum, int queueSize) {
+        this.name = name;
+        this.workerNum = workerNum;
+        this.queueSize = queueSize;
+        syncSignature = String.format("api.worker.%s", name);
+    }
+
+    static boolean isLane(String name) {
+        return QUERY.equals(name) || MUTATE.equals(name) || ADMIN.equals(name);
+    }
+
+    /**
+     * lane of messages not declaring one in the service configuration file
+     */
+    static String defaultLane(Class<?> msgClass) {
+        if (APIQueryMessage.class.isAssignableFrom(msgClass)) {
+            return QUERY;
+        }
+
+        String name = msgClass.getSimpleName();
+        if (name.startsWith("APIGet") || name.startsWith("APIList") || name.startsWith("APISearch")) {
+            return QUERY;
+        }
+
+        return MUTATE;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    int getWorkerNum() {
+        return workerNum;
+    }
+
+    int getQueueSize() {
+        return queueSize;
+    }
+
+    String getSyncSignature() {
+        return syncSignature;
+    }
+
+    /**
+     * @return false if the lane is full, the message must be rejected
+     */
+    boolean enqueue() {
+        if (waiting.incrementAndGet() > queueSize) {
+            waiting.decrementAndGet();
+            rejected.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    void start(long queuedAt) {
+        waiting.decrementAndGet();
+        running.incrementAndGet();
+        started.incrementAndGet();
+        queueTime.add(System.currentTimeMillis() - queuedAt);
+    }
+
+    void done(long startedAt) {
+        running.decrementAndGet();
+        count.incrementAndGet();
+        serviceTime.add(System.currentTimeMillis() - startedAt);
+    }
+
+    ApiLaneStatistic getStatistic() {
+        long s = started.get();
+        long c = count.get();
+        return new ApiLaneStatistic(name, workerNum, queueSize, waiting.get(), running.get(), c, rejected.get(),
+                s == 0 ? 0 : queueTime.total.get() / s, queueTime.max.get(), queueTime.toMap(),
+                c == 0 ? 0 : serviceTime.total.get() / c, serviceTime.max.get(), serviceTime.toMap());
+    }
+
+    String rejectionReason(Message msg) {
+        return String.format("API message[%s] is rejected, %s messages are waiting in the %s lane[workerNum:%s, queueSize:%s]",
+                msg.getMessageName(), waiting.get(), name, workerNum, queueSize);
+    }
+}
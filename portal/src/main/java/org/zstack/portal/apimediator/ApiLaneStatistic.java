@@ -0,0 +1,94 @@
+package org.zstack.portal.apimediator;
+
+import java.beans.ConstructorProperties;
+import java.util.Map;
+
+/**
+ */
+public class ApiLaneStatistic {
+    private String lane;
+    private int workerNum;
+    private int queueSize;
+    private int waitingNum;
+    private int runningNum;
+    private long count;
+    private long rejectedNum;
+    private long averageQueueTime;
+    private long maxQueueTime;
+    private Map<String, Long> queueTimeHistogram;
+    private long averageServiceTime;
+    private long maxServiceTime;
+    private Map<String, Long> serviceTimeHistogram;
+
+    @ConstructorProperties({"lane", "workerNum", "queueSize", "waitingNum", "runningNum", "count", "rejectedNum",
+            "averageQueueTime", "maxQueueTime", "queueTimeHistogram", "averageServiceTime", "maxServiceTime", "serviceTimeHistogram"})
+    public ApiLaneStatistic(String lane, int workerNum, int queueSize, int waitingNum, int runningNum, long count, long rejectedNum,
+                            long averageQueueTime, long maxQueueTime, Map<String, Long> queueTimeHistogram,
+                            long averageServiceTime, long maxServiceTime, Map<String, Long> serviceTimeHistogram) {
+        this.lane = lane;
+        this.workerNum = workerNum;
+        this.queueSize = queueSize;
+        this.waitingNum = waitingNum;
+        this.runningNum = runningNum;
+        this.count = count;
+        this.rejectedNum = rejectedNum;
+        this.averageQueueTime = averageQueueTime;
+        this.maxQueueTime = maxQueueTime;
+        this.queueTimeHistogram = queueTimeHistogram;
+        this.averageServiceTime = averageServiceTime;
+        this.maxServiceTime = maxServiceTime;
+        this.serviceTimeHistogram = serviceTimeHistogram;
+    }
+
+    public String getLane() {
+        return lane;
+    }
+
+    public int getWorkerNum() {
+        return workerNum;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    public int getWaitingNum() {
+        return waitingNum;
+    }
+
+    public int getRunningNum() {
+        return runningNum;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getRejectedNum() {
+        return rejectedNum;
+    }
+
+    public long getAverageQueueTime() {
+        return averageQueueTime;
+    }
+
+    public long getMaxQueueTime() {
+        return maxQueueTime;
+    }
+
+    public Map<String, Long> getQueueTimeHistogram() {
+        return queueTimeHistogram;
+    }
+
+    public long getAverageServiceTime() {
+        return averageServiceTime;
+    }
+
+    public long getMaxServiceTime() {
+        return maxServiceTime;
+    }
+
+    public Map<String, Long> getServiceTimeHistogram() {
+        return serviceTimeHistogram;
+    }
+}
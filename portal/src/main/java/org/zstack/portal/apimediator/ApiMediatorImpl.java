@@ -5,6 +5,7 @@ import org.zstack.core.Platform;
 import org.zstack.core.cloudbus.CloudBus;
 import org.zstack.core.cloudbus.CloudBusCallBack;
 import org.zstack.core.errorcode.ErrorFacade;
+import org.zstack.core.jmx.JmxFacade;
 import org.zstack.core.thread.SyncTask;
 import org.zstack.core.thread.ThreadFacade;
 import org.zstack.header.AbstractService;
@@ -24,13 +25,14 @@ import org.zstack.utils.logging.CLogger;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 import static org.zstack.utils.CollectionDSL.e;
 import static org.zstack.utils.CollectionDSL.map;
 
-public class ApiMediatorImpl extends AbstractService implements ApiMediator, GlobalApiMessageInterceptor {
+public class ApiMediatorImpl extends AbstractService implements ApiMediator, GlobalApiMessageInterceptor, ApiMediatorMXBean {
     private static final CLogger logger = Utils.getLogger(ApiMediator.class);
 
     @Autowired
@@ -39,11 +41,27 @@ public class ApiMediatorImpl extends AbstractService implements ApiMediator, Glo
     private ThreadFacade thdf;
     @Autowired
     private ErrorFacade errf;
+    @Autowired
+    private JmxFacade jmxf;
 
     private ApiMessageProcessor processor;
 
     private List<String> serviceConfigFolders;
+    // worker number of the mutate lane
     private int apiWorkerNum = 5;
+    private int mutateQueueSize = 1000;
+    private int queryWorkerNum = 10;
+    private int queryQueueSize = 1000;
+    private int adminWorkerNum = 2;
+    private int adminQueueSize = 100;
+    private Map<String, ApiDispatchLane> lanes = new LinkedHashMap<String, ApiDispatchLane>();
+
+    public void init() {
+        lanes.put(ApiDispatchLane.QUERY, new ApiDispatchLane(ApiDispatchLane.QUERY, queryWorkerNum, queryQueueSize));
+        lanes.put(ApiDispatchLane.MUTATE, new ApiDispatchLane(ApiDispatchLane.MUTATE, apiWorkerNum, mutateQueueSize));
+        lanes.put(ApiDispatchLane.ADMIN, new ApiDispatchLane(ApiDispatchLane.ADMIN, adminWorkerNum, adminQueueSize));
+        jmxf.registerBean("ApiMediator", this);
+    }
 
     private void dispatchMessage(APIMessage msg) {
         ApiMessageDescriptor desc = processor.getApiMessageDescriptor(msg);
@@ -82,35 +100,60 @@ public class ApiMediatorImpl extends AbstractService implements ApiMediator, Glo
     }
 
 
+    private ApiDispatchLane getLane(Message msg) {
+        if (msg.getClass() == APIIsReadyToGoMsg.class) {
+            return lanes.get(ApiDispatchLane.ADMIN);
+        }
+
+        ApiMessageDescriptor desc = processor.getApiMessageDescriptor((APIMessage) msg);
+        // messages without descriptor are rejected by dispatchMessage()
+        return lanes.get(desc == null ? ApiDispatchLane.MUTATE : desc.getLane());
+    }
+
     @Override
     public void handleMessage(final Message msg) {
+        final ApiDispatchLane lane = getLane(msg);
+        if (!lane.enqueue()) {
+            String err = lane.rejectionReason(msg);
+            logger.warn(err);
+            bus.replyErrorByMessageType(msg, errf.instantiateErrorCode(PortalErrors.API_LANE_FULL, err));
+            return;
+        }
+
+        final long queuedAt = System.currentTimeMillis();
         thdf.syncSubmit(new SyncTask<Object>() {
             @Override
             public String getSyncSignature() {
-                return "api.worker";
+                return lane.getSyncSignature();
             }
 
             @Override
             public int getSyncLevel() {
-                return apiWorkerNum;
+                return lane.getWorkerNum();
             }
 
             @Override
             public String getName() {
-                return "api.worker";
+                return lane.getSyncSignature();
             }
 
             @Override
             public Object call() throws Exception {
-                if (msg.getClass() == APIIsReadyToGoMsg.class) {
-                    handle((APIIsReadyToGoMsg) msg);
-                } else {
-                    try {
-                        dispatchMessage((APIMessage) msg);
-                    } catch (Throwable t) {
-                        bus.logExceptionWithMessageDump(msg, t);
-                        bus.replyErrorByMessageType(msg, errf.throwableToInternalError(t));
+                long startedAt = System.currentTimeMillis();
+                lane.start(queuedAt);
+                try {
+                    if (msg.getClass() == APIIsReadyToGoMsg.class) {
+                        handle((APIIsReadyToGoMsg) msg);
+                    } else {
+                        try {
+                            dispatchMessage((APIMessage) msg);
+                        } catch (Throwable t) {
+                            bus.logExceptionWithMessageDump(msg, t);
+                            bus.replyErrorByMessageType(msg, errf.throwableToInternalError(t));
+                        }
                     }
+                } finally {
+                    lane.done(startedAt);
                 }
 
                 return null;
@@ -177,6 +220,35 @@ public class ApiMediatorImpl extends AbstractService implements ApiMediator, Glo
         this.apiWorkerNum = apiWorkerNum;
     }
 
+    public void setMutateQueueSize(int mutateQueueSize) {
+        this.mutateQueueSize = mutateQueueSize;
+    }
+
+    public void setQueryWorkerNum(int queryWorkerNum) {
+        this.queryWorkerNum = queryWorkerNum;
+    }
+
+    public void setQueryQueueSize(int queryQueueSize) {
+        this.queryQueueSize = queryQueueSize;
+    }
+
+    public void setAdminWorkerNum(int adminWorkerNum) {
+        this.adminWorkerNum = adminWorkerNum;
+    }
+
+    public void setAdminQueueSize(int adminQueueSize) {
+        this.adminQueueSize = adminQueueSize;
+    }
+
+    @Override
+    public Map<String, ApiLaneStatistic> getLaneStatistics() {
+        Map<String, ApiLaneStatistic> ret = new LinkedHashMap<String, ApiLaneStatistic>();
+        for (ApiDispatchLane lane : lanes.values()) {
+            ret.put(lane.getName(), lane.getStatistic());
+        }
+        return ret;
+    }
+
     @Override
     public List<Class> getMessageClassToIntercept() {
         List<Class> lst = new ArrayList<Class>();
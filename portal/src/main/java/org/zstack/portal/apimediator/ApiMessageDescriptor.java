@@ -14,6 +14,7 @@ public class ApiMessageDescriptor {
     private String name;
     private String serviceId;
     private String configPath;
+    private String lane;
     private List<String> roles;
     private List<ApiMessageInterceptor> interceptors;
     private Class<?> clazz;
@@ -50,6 +51,14 @@ public class ApiMessageDescriptor {
         this.configPath = configPath;
     }
 
+    public String getLane() {
+        return lane;
+    }
+
+    public void setLane(String lane) {
+        this.lane = lane;
+    }
+
     public List<String> getRoles() {
         return roles;
     }
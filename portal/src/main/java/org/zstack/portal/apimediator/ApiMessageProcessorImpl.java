@@ -67,6 +67,7 @@ public class ApiMessageProcessorImpl implements ApiMessageProcessor {
             sb.append(String.format("\nname: %s", desc.getName()));
             sb.append(String.format("\nconfigured service id: %s", desc.getServiceId()));
             sb.append(String.format("\nconfig path: %s", desc.getConfigPath()));
+            sb.append(String.format("\nlane: %s", desc.getLane()));
             sb.append(String.format("\nroles: %s", desc.getRoles()));
             List<String> inc = new ArrayList<String>();
             for (ApiMessageInterceptor ic : desc.getInterceptors()) {
@@ -204,6 +205,11 @@ public class ApiMessageProcessorImpl implements ApiMessageProcessor {
             desc.setServiceId(serviceId);
             desc.setConfigPath(cfgPath);
             desc.setClazz(msgClz);
+            if (mschema.getLane() != null && !ApiDispatchLane.isLane(mschema.getLane())) {
+                throw new CloudRuntimeException(String.format("unknown lane[%s] of message[%s] described in %s, valid lanes are %s, %s and %s",
+                        mschema.getLane(), mschema.getName(), cfgPath, ApiDispatchLane.QUERY, ApiDispatchLane.MUTATE, ApiDispatchLane.ADMIN));
+            }
+            desc.setLane(mschema.getLane() != null ? mschema.getLane() : ApiDispatchLane.defaultLane(msgClz));
 
             prepareRoles(desc, mschema);
             prepareInterceptors(desc, mschema, schema);
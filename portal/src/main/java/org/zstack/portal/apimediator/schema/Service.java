@@ -163,6 +163,7 @@ public class Service {
      *       &lt;sequence>
      *         &lt;element name="name" type="{http://www.w3.org/2001/XMLSchema}string"/>
      *         &lt;element name="serviceId" type="{http://www.w3.org/2001/XMLSchema}string" minOccurs="0"/>
+     *         &lt;element name="lane" type="{http://www.w3.org/2001/XMLSchema}string" minOccurs="0"/>
      *         &lt;sequence maxOccurs="unbounded" minOccurs="0">
      *           &lt;element name="interceptor" type="{http://www.w3.org/2001/XMLSchema}string" minOccurs="0"/>
      *         &lt;/sequence>
@@ -181,6 +182,7 @@ public class Service {
     @XmlType(name = "", propOrder = {
         "name",
         "serviceId",
+        "lane",
         "interceptor",
         "role"
     })
@@ -189,6 +191,7 @@ public class Service {
         @XmlElement(required = true)
         protected String name;
         protected String serviceId;
+        protected String lane;
         protected List<String> interceptor;
         protected List<String> role;
 
@@ -240,6 +243,30 @@ public class Service {
             this.serviceId = value;
         }
 
+        /**
+         * Gets the value of the lane property.
+         * 
+         * @return
+         *     possible object is
+         *     {@link String }
+         *     
+         */
+        public String getLane() {
+            return lane;
+        }
+
+        /**
+         * Sets the value of the lane property.
+         * 
+         * @param value
+         *     allowed object is
+         *     {@link String }
+         *     
+         */
+        public void setLane(String value) {
+            this.lane = value;
+        }
+
         /**
          * Gets the value of the interceptor property.
          * 
@@ -29,9 +29,11 @@ import org.zstack.utils.logging.CLogger;
 
 import javax.persistence.*;
 import javax.persistence.metamodel.StaticMetamodel;
+import javax.xml.bind.DatatypeConverter;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.nio.charset.Charset;
 import java.sql.Timestamp;
 import java.util.*;
 import java.util.Map.Entry;
@@ -54,6 +56,13 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
 
     private static final String USER_TAG = "__userTag__";
     private static final String SYSTEM_TAG = "__systemTag__";
+    private static final String CONTINUATION_KEY = "continuationKey";
+
+    private int streamingChunkSize = 500;
+
+    public void setStreamingChunkSize(int streamingChunkSize) {
+        this.streamingChunkSize = streamingChunkSize;
+    }
 
     @Override
     public List<Class> getMessageClassToIntercept() {
@@ -69,6 +78,18 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
 
     @Override
     public APIMessage intercept(APIMessage msg) throws ApiMessageInterceptionException {
+        APIQueryMessage smsg = (APIQueryMessage) msg;
+        if (smsg.isStreaming() && smsg.getSortBy() != null) {
+            throw new ApiMessageInterceptionException(errf.stringToInvalidArgumentError(
+                    String.format("sortBy[%s] cannot be used in a streaming query, results are sorted by primary key", smsg.getSortBy())
+            ));
+        }
+        if (smsg.isStreaming() && smsg.getStart() != null) {
+            throw new ApiMessageInterceptionException(errf.stringToInvalidArgumentError(
+                    "start cannot be used in a streaming query, use continuationToken to query the rest"
+            ));
+        }
+
         List<ExpandedQueryAliasInfo> infos = aliasInfos.get(msg.getClass());
         if (infos != null) {
             APIQueryMessage qmsg = (APIQueryMessage) msg;
@@ -679,6 +700,11 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
                         return String.format("select count(%s) from %s %s where %s", entityName, entity, entityName, condition);
                     }
                 } else {
+                    if (msg.isStreaming()) {
+                        where.add(String.format("%s.%s > :%s", entityName, info.primaryKey, CONTINUATION_KEY));
+                        condition = StringUtils.join(where, " and ").trim();
+                    }
+
                     String ret = null;
                     String selector = null;
                     if (msg.isFieldQuery()) {
@@ -686,6 +712,10 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
                         for (String f : msg.getFields()) {
                             ss.add(String.format("%s.%s", entityName, f));
                         }
+                        if (msg.isStreaming()) {
+                            // the last column is the key for the continuation token
+                            ss.add(String.format("%s.%s", entityName, info.primaryKey));
+                        }
                         selector = StringUtils.join(ss, ",");
                     } else {
                         selector = entityName;
@@ -697,7 +727,9 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
                         ret = String.format("select %s from %s %s where %s", selector, entity, entityName, condition);
                     }
 
-                    if (msg.getSortBy() != null) {
+                    if (msg.isStreaming()) {
+                        ret = String.format("%s order by %s.%s ASC", ret, entityName, info.primaryKey);
+                    } else if (msg.getSortBy() != null) {
                         if (!FieldUtils.hasField(msg.getSortBy(), info.entityClass)) {
                             throw new IllegalArgumentException(String.format("illegal sortBy[%s], entity[%s] doesn't have this field", msg.getSortBy(), info.entityClass.getName()));
                         }
@@ -877,14 +909,15 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
                 }
 
                 final LinkedHashMap flatMap = new LinkedHashMap();
-                final List primaryKeysNeedResolve = new ArrayList();
+                final Set primaryKeysNeedResolve = new HashSet();
+                List plainVOs = new ArrayList();
                 for (Object vo : vos) {
                     String type = (String) root.info.entityTypeField.get(vo);
                     Object priKey = root.info.getPrimaryKeyValue(vo);
+                    flatMap.put(priKey, null);
                     if (!root.info.flatTypeEntityMap.containsKey(type)) {
-                        flatMap.put(priKey, root.info.inventoryValueOf.invoke(inventoryClass, vo));
+                        plainVOs.add(vo);
                     } else {
-                        flatMap.put(priKey, null);
                         primaryKeysNeedResolve.add(priKey);
                     }
 
@@ -894,6 +927,13 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
                     return (List) root.info.inventoryCollectionValueOf.invoke(inventoryClass, vos);
                 }
 
+                if (!plainVOs.isEmpty()) {
+                    List plainInvs = (List) root.info.inventoryCollectionValueOf.invoke(inventoryClass, plainVOs);
+                    for (int i=0; i<plainVOs.size(); i++) {
+                        flatMap.put(root.info.getPrimaryKeyValue(plainVOs.get(i)), plainInvs.get(i));
+                    }
+                }
+
                 // the inventory has child inventory inheriting it, we have to find out all child inventory and
                 // reload them from DB and keep them in order.
                 class SubInventoryResolver {
@@ -1029,6 +1069,100 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
             }
         }
 
+        private Object getInitialContinuationKey() {
+            Class keyType = root.info.entityPrimaryKeyField.getType();
+            if (String.class.isAssignableFrom(keyType)) {
+                return "";
+            } else if (Long.class.isAssignableFrom(keyType) || Long.TYPE.isAssignableFrom(keyType)) {
+                return Long.MIN_VALUE;
+            } else if (Integer.class.isAssignableFrom(keyType) || Integer.TYPE.isAssignableFrom(keyType)) {
+                return Integer.MIN_VALUE;
+            }
+
+            throw new OperationFailureException(errf.stringToInvalidArgumentError(
+                    String.format("inventory[%s] doesn't support streaming query, its primary key is type of %s", inventoryClass.getName(), keyType.getName())
+            ));
+        }
+
+        private String encodeContinuationToken(Object key) {
+            String token = String.format("%s:%s", inventoryClass.getSimpleName(), key);
+            return DatatypeConverter.printBase64Binary(token.getBytes(Charset.forName("UTF-8")));
+        }
+
+        private Object decodeContinuationToken(String token) {
+            String str;
+            try {
+                str = new String(DatatypeConverter.parseBase64Binary(token), Charset.forName("UTF-8"));
+            } catch (IllegalArgumentException e) {
+                str = null;
+            }
+
+            String prefix = inventoryClass.getSimpleName() + ":";
+            if (str == null || !str.startsWith(prefix)) {
+                throw new OperationFailureException(errf.stringToInvalidArgumentError(
+                        String.format("invalid continuationToken[%s] for inventory[%s]", token, inventoryClass.getName())
+                ));
+            }
+
+            try {
+                return TypeUtils.stringToValue(str.substring(prefix.length()), root.info.entityPrimaryKeyField.getType());
+            } catch (NumberFormatException e) {
+                throw new OperationFailureException(errf.stringToInvalidArgumentError(
+                        String.format("invalid continuationToken[%s] for inventory[%s]", token, inventoryClass.getName())
+                ));
+            }
+        }
+
+        /**
+         * pages through the result by primary key, streamingChunkSize rows a time; every chunk is converted
+         * to inventories and handed to the handler before the next one is loaded, and is detached from the
+         * entity manager afterwards, so the whole result is never held as VOs.
+         */
+        @Transactional(readOnly = true)
+        String query(QueryResultHandler handler) {
+            if (msg.isFieldQuery()) {
+                validateFields();
+            }
+
+            String jpql = build(false);
+            Object key = msg.getContinuationToken() == null ? getInitialContinuationKey() : decodeContinuationToken(msg.getContinuationToken());
+            int remaining = msg.getLimit() == null ? Integer.MAX_VALUE : msg.getLimit();
+
+            while (remaining > 0) {
+                Query q = msg.isFieldQuery() ? dbf.getEntityManager().createQuery(jpql, Tuple.class) : dbf.getEntityManager().createQuery(jpql);
+                if (logger.isTraceEnabled()) {
+                    org.hibernate.Query hq = q.unwrap(org.hibernate.Query.class);
+                    logger.trace(hq.getQueryString());
+                }
+                setQueryValue(q, root);
+                q.setParameter(CONTINUATION_KEY, key);
+                int size = Math.min(streamingChunkSize, remaining);
+                q.setMaxResults(size);
+
+                List rows = q.getResultList();
+                if (rows.isEmpty()) {
+                    return null;
+                }
+
+                Object last = rows.get(rows.size() - 1);
+                if (msg.isFieldQuery()) {
+                    key = ((Tuple) last).get(msg.getFields().size());
+                    handler.handle(convertFieldsTOPartialInventories(rows));
+                } else {
+                    key = root.info.getPrimaryKeyValue(last);
+                    handler.handle(convertVOsToInventories(rows));
+                }
+                dbf.getEntityManager().clear();
+
+                if (rows.size() < size) {
+                    return null;
+                }
+                remaining -= rows.size();
+            }
+
+            return encodeContinuationToken(key);
+        }
+
         @Transactional(readOnly = true)
         long count() {
             String jpql = build(true);
@@ -1265,6 +1399,15 @@ public class MysqlQueryBuilderImpl3 implements Component, QueryBuilder, GlobalAp
         return context.query();
     }
 
+    @Override
+    public <T> String query(APIQueryMessage msg, Class<T> inventoryClass, QueryResultHandler<T> handler) {
+        QueryContext context = new QueryContext();
+        context.msg = msg;
+        context.inventoryClass = selectInventoryClass(msg, inventoryClass);
+
+        return context.query(handler);
+    }
+
     private Class selectInventoryClass(APIQueryMessage msg, Class inventoryClass) {
         EntityInfo info = entityInfos.get(inventoryClass);
         return info.selectInventoryClass(msg);
@@ -2,6 +2,7 @@ package org.zstack.query;
 
 import org.zstack.header.query.APIQueryMessage;
 import org.zstack.header.query.QueryCondition;
+import org.zstack.header.query.QueryResultHandler;
 
 import java.util.List;
 
@@ -9,4 +10,6 @@ public interface QueryFacade {
     <T> List<T> query(APIQueryMessage msg, Class<T> inventoryClass);
 
     long count(APIQueryMessage msg, Class inventoryClass);
+
+    <T> String query(APIQueryMessage msg, Class<T> inventoryClass, QueryResultHandler<T> handler);
 }
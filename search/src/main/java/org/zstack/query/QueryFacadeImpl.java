@@ -66,6 +66,15 @@ public class QueryFacadeImpl extends AbstractService implements QueryFacade, Glo
         return builder.count(msg, inventoryClass);
     }
 
+    @Override
+    public <T> String query(APIQueryMessage msg, Class<T> inventoryClass, QueryResultHandler<T> handler) {
+        validateConditions(msg.getConditions());
+
+        QueryBuilderFactory factory = getFactory(queryBuilderType);
+        QueryBuilder builder = factory.createQueryBuilder();
+        return builder.query(msg, inventoryClass, handler);
+    }
+
     private void populateExtensions() {
         for (QueryBuilderFactory extp : pluginRgty.getExtensionList(QueryBuilderFactory.class)) {
             QueryBuilderFactory old = builerFactories.get(extp.getQueryBuilderType().toString());
@@ -197,6 +206,21 @@ public class QueryFacadeImpl extends AbstractService implements QueryFacade, Glo
                 long count = count(msg, inventoryClass);
                 reply.setTotal(count);
                 bus.reply(msg, reply);
+            } else if (msg.isStreaming()) {
+                final List invs = new ArrayList();
+                String token = query(msg, inventoryClass, new QueryResultHandler() {
+                    @Override
+                    public void handle(List inventories) {
+                        invs.addAll(inventories);
+                    }
+                });
+                setter.invoke(reply, invs);
+                reply.setContinuationToken(token);
+                if (msg.isReplyWithCount()) {
+                    long count = count(msg, inventoryClass);
+                    reply.setTotal(count);
+                }
+                bus.reply(msg, reply);
             } else {
                 List invs = query(msg, inventoryClass);
                 setter.invoke(reply, invs);
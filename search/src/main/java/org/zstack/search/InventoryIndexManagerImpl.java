@@ -28,6 +28,10 @@ import org.zstack.core.componentloader.PluginExtension;
 import org.zstack.core.componentloader.PluginRegistry;
 import org.zstack.core.db.DatabaseFacade;
 import org.zstack.core.db.TransactionalCallback;
+import org.zstack.core.errorcode.ErrorFacade;
+import org.zstack.core.jmx.JmxFacade;
+import org.zstack.core.thread.Task;
+import org.zstack.core.thread.ThreadFacade;
 import org.zstack.header.AbstractService;
 import org.zstack.header.exception.CloudRuntimeException;
 import org.zstack.header.message.APIMessage;
@@ -52,8 +56,19 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.*;
 import java.util.Map.Entry;
-
-public class InventoryIndexManagerImpl extends AbstractService implements InventoryIndexManager, TransactionalCallback {
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * changes of indexed entities are not sent to elasticsearch in the committing thread, they are queued and keyed by
+ * entity, so a later change of an entity overwrites the earlier one not indexed yet. The index thread builds documents
+ * from database and sends them through _bulk when InventoryIndexManager.bulkSize changes are queued or
+ * InventoryIndexManager.flushInterval milliseconds passed; a failed bulk is retried with exponential backoff for
+ * InventoryIndexManager.maxRetryTimes times.
+ *
+ * APIReindexSearchMsg reindexes all entities from database page by page, for recovering from lost changes.
+ */
+public class InventoryIndexManagerImpl extends AbstractService implements InventoryIndexManager, TransactionalCallback, InventoryIndexManagerMXBean {
     private static final CLogger logger = Utils.getLogger(InventoryIndexManagerImpl.class);
     @Autowired
     private DatabaseFacade dbf;
@@ -61,6 +76,12 @@ public class InventoryIndexManagerImpl extends AbstractService implements Invent
     private CloudBus bus;
     @Autowired
     private PluginRegistry rgty;
+    @Autowired
+    private ThreadFacade thdf;
+    @Autowired
+    private JmxFacade jmxf;
+    @Autowired
+    private ErrorFacade errf;
 
     private Map<String, IndexerInfo> voClassToIndexerMapping = new HashMap<String, IndexerInfo>();
     private Set<Class<?>> triggerVOs = new HashSet<Class<?>>();
@@ -79,6 +100,30 @@ public class InventoryIndexManagerImpl extends AbstractService implements Invent
     private Map<Class<?>, List<String>> deleteVOTriggerClassNames = new HashMap<Class<?>, List<String>>();
     private List<SearchIndexRecreateExtensionPoint> reindexExts = new ArrayList<SearchIndexRecreateExtensionPoint>();
 
+    // key: voName:uuid, value: the latest change of the entity
+    private final LinkedHashMap<String, PendingChange> pendingChanges = new LinkedHashMap<String, PendingChange>();
+    private long pendingSince;
+    private volatile List<PendingChange> inFlightChanges = new ArrayList<PendingChange>();
+    private volatile boolean isIndexing;
+    private Future<Void> indexThread;
+
+    private final AtomicLong indexedNum = new AtomicLong();
+    private final AtomicLong coalescedNum = new AtomicLong();
+    private final AtomicLong retryNum = new AtomicLong();
+    private final AtomicLong failedNum = new AtomicLong();
+
+    private class PendingChange {
+        String voName;
+        String uuid;
+        boolean delete;
+        long queuedTime;
+        int retryTimes;
+
+        String getKey() {
+            return voName + ":" + uuid;
+        }
+    }
+
     private class IndexerInfo {
         String url;
         Class<?> inventoryClass;
@@ -318,14 +363,40 @@ public class InventoryIndexManagerImpl extends AbstractService implements Invent
             dumpInventoryIndexer();
             createIndexIfNotExists();
             bus.registerService(this);
+            jmxf.registerBean("InventoryIndexManager", this);
+            startIndexThread();
         } catch (Exception e) {
             throw new CloudRuntimeException(e);
         }
         return true;
     }
 
+    private void startIndexThread() {
+        isIndexing = true;
+        indexThread = thdf.submit(new Task<Void>() {
+            @Override
+            public String getName() {
+                return "search-index-thread";
+            }
+
+            @Override
+            public Void call() throws Exception {
+                index();
+                return null;
+            }
+        });
+    }
+
     @Override
     public boolean stop() {
+        isIndexing = false;
+        synchronized (pendingChanges) {
+            pendingChanges.notifyAll();
+        }
+        if (indexThread != null) {
+            indexThread.cancel(true);
+        }
+
         if (httpClient != null) {
             httpClient.getConnectionManager().shutdown();
         }
@@ -354,28 +425,204 @@ public class InventoryIndexManagerImpl extends AbstractService implements Invent
     public void beforeCompletion(Operation op, Class<?>... entityClass) {
     }
 
-    private void sendBulk(final String requestBody, final String inventoryName) {
+    private boolean sendBulk(final String requestBody, final String inventoryName) {
         try {
             HttpPost post = new HttpPost(bulkUri);
             StringEntity body = new StringEntity(requestBody);
             logger.trace(String.format("%s:\n%s", inventoryName, requestBody));
             body.setChunked(false);
             post.setEntity(body);
-            ResponseHandler<Void> rspHandler = new ResponseHandler<Void>() {
+            ResponseHandler<Boolean> rspHandler = new ResponseHandler<Boolean>() {
                 @Override
-                public Void handleResponse(HttpResponse rsp) throws ClientProtocolException, IOException {
+                public Boolean handleResponse(HttpResponse rsp) throws ClientProtocolException, IOException {
                     if (rsp.getStatusLine().getStatusCode() != HttpStatus.SC_OK && rsp.getStatusLine().getStatusCode() != HttpStatus.SC_CREATED) {
                         logger.warn(String.format("Failed to do bulk operation on[%s] , because: \nstatus line: %s\nresponse body: %s\nrequest body: %s",
                                 inventoryName, rsp.getStatusLine(), EntityUtils.toString(rsp.getEntity()), requestBody));
+                        return false;
+                    }
+
+                    String rspBody = EntityUtils.toString(rsp.getEntity());
+                    if (hasBulkItemErrors(rspBody)) {
+                        // items failed for their documents won't succeed by retrying, only log them
+                        logger.warn(String.format("Some items of bulk operation on[%s] failed, response body: %s", inventoryName, rspBody));
                     } else {
-                        logger.trace(String.format("Successfully did bulk operation on[%s], %s", inventoryName, EntityUtils.toString(rsp.getEntity())));
+                        logger.trace(String.format("Successfully did bulk operation on[%s], %s", inventoryName, rspBody));
                     }
-                    return null;
+                    return true;
                 }
             };
-            httpClient.execute(post, rspHandler);
+            return httpClient.execute(post, rspHandler);
         } catch (Exception e) {
             logger.warn(String.format("Failed to do bulk operation on inventory[%s]", inventoryName), e);
+            return false;
+        }
+    }
+
+    private boolean hasBulkItemErrors(String rspBody) {
+        try {
+            return new JSONObject(rspBody).optBoolean("errors", false);
+        } catch (JSONException e) {
+            return false;
+        }
+    }
+
+    private long getRetryInterval(int failures) {
+        long interval = SearchGlobalProperty.RETRY_INTERVAL << Math.min(failures - 1, 16);
+        return Math.min(interval, SearchGlobalProperty.MAX_RETRY_INTERVAL);
+    }
+
+    private void sendBulkWithRetry(ESBulkBuilder bbuilder) throws InterruptedException {
+        String body = bbuilder.toString();
+        for (int i = 1; ; i++) {
+            if (sendBulk(body, bbuilder.getAffectedInventoryNames())) {
+                return;
+            }
+
+            if (i > SearchGlobalProperty.MAX_RETRY_TIMES) {
+                throw new CloudRuntimeException(String.format("bulk operation on[%s] still failed after retrying %s times",
+                        bbuilder.getAffectedInventoryNames(), SearchGlobalProperty.MAX_RETRY_TIMES));
+            }
+
+            retryNum.incrementAndGet();
+            Thread.sleep(getRetryInterval(i));
+        }
+    }
+
+    // must be called with pendingChanges locked
+    private void putPendingChange(PendingChange c) {
+        if (pendingChanges.isEmpty()) {
+            pendingSince = System.currentTimeMillis();
+        }
+
+        PendingChange old = pendingChanges.put(c.getKey(), c);
+        if (old != null) {
+            c.queuedTime = Math.min(c.queuedTime, old.queuedTime);
+            coalescedNum.incrementAndGet();
+        }
+    }
+
+    private void queueChanges(Map<String, Set<String>> vmap, boolean delete) {
+        long now = System.currentTimeMillis();
+        synchronized (pendingChanges) {
+            for (Map.Entry<String, Set<String>> e : vmap.entrySet()) {
+                if (!voClassToIndexerMapping.containsKey(e.getKey())) {
+                    if (!delete) {
+                        logger.warn(String.format("%s has an entry in InsertVO/UpdateVO/DeleteVO table, but there is no indexer matching it. It can be intended if the entity inherits from another entity but itself is not wanted to be indexed. Otherwise it's most likely a bug",
+                                e.getKey()));
+                    }
+                    /* or it's a RefVO for ManyToMany mapping */
+                    continue;
+                }
+
+                for (String uuid : e.getValue()) {
+                    if (uuid == null) {
+                        continue;
+                    }
+
+                    PendingChange c = new PendingChange();
+                    c.voName = e.getKey();
+                    c.uuid = uuid;
+                    c.delete = delete;
+                    c.queuedTime = now;
+                    putPendingChange(c);
+                }
+            }
+
+            if (!pendingChanges.isEmpty()) {
+                pendingChanges.notifyAll();
+            }
+        }
+    }
+
+    private void requeueChanges(List<PendingChange> changes) {
+        synchronized (pendingChanges) {
+            for (PendingChange c : changes) {
+                if (pendingChanges.containsKey(c.getKey())) {
+                    // a later change of the entity is queued
+                    continue;
+                }
+
+                if (++c.retryTimes > SearchGlobalProperty.MAX_RETRY_TIMES) {
+                    failedNum.incrementAndGet();
+                    logger.warn(String.format("give up indexing %s[uuid:%s] after retrying %s times", c.voName, c.uuid, SearchGlobalProperty.MAX_RETRY_TIMES));
+                    continue;
+                }
+
+                putPendingChange(c);
+            }
+        }
+    }
+
+    private List<PendingChange> takeChanges() throws InterruptedException {
+        synchronized (pendingChanges) {
+            while (isIndexing) {
+                if (pendingChanges.isEmpty()) {
+                    pendingChanges.wait();
+                    continue;
+                }
+
+                long wait = pendingSince + SearchGlobalProperty.FLUSH_INTERVAL - System.currentTimeMillis();
+                if (pendingChanges.size() < SearchGlobalProperty.BULK_SIZE && wait > 0) {
+                    pendingChanges.wait(wait);
+                    continue;
+                }
+
+                List<PendingChange> changes = new ArrayList<PendingChange>(Math.min(pendingChanges.size(), SearchGlobalProperty.BULK_SIZE));
+                Iterator<PendingChange> it = pendingChanges.values().iterator();
+                while (it.hasNext() && changes.size() < SearchGlobalProperty.BULK_SIZE) {
+                    changes.add(it.next());
+                    it.remove();
+                }
+                pendingSince = System.currentTimeMillis();
+                inFlightChanges = changes;
+                return changes;
+            }
+
+            return null;
+        }
+    }
+
+    private boolean sendChanges(List<PendingChange> changes) {
+        Map<String, Set<String>> toIndex = new HashMap<String, Set<String>>();
+        Map<String, Set<String>> toDelete = new HashMap<String, Set<String>>();
+        for (PendingChange c : changes) {
+            Map<String, Set<String>> vmap = c.delete ? toDelete : toIndex;
+            Set<String> uuids = vmap.get(c.voName);
+            if (uuids == null) {
+                uuids = new HashSet<String>();
+                vmap.put(c.voName, uuids);
+            }
+            uuids.add(c.uuid);
+        }
+
+        ESBulkBuilder bbuilder = new ESBulkBuilder();
+        try {
+            bbuilder = addDocToIndexToESBuilder(bbuilder, toIndex);
+        } catch (Exception e) {
+            logger.warn(String.format("unable to build documents to index for %s", toIndex.keySet()), e);
+            return false;
+        }
+        bbuilder = addDocToDeleteToESBuilder(bbuilder, toDelete);
+
+        return bbuilder.isEmpty() || sendBulk(bbuilder.toString(), bbuilder.getAffectedInventoryNames());
+    }
+
+    private void index() throws InterruptedException {
+        int failures = 0;
+        List<PendingChange> changes;
+        while ((changes = takeChanges()) != null) {
+            if (sendChanges(changes)) {
+                failures = 0;
+                indexedNum.addAndGet(changes.size());
+                inFlightChanges = new ArrayList<PendingChange>();
+                continue;
+            }
+
+            failures ++;
+            retryNum.incrementAndGet();
+            requeueChanges(changes);
+            inFlightChanges = new ArrayList<PendingChange>();
+            Thread.sleep(getRetryInterval(failures));
         }
     }
 
@@ -683,8 +930,6 @@ public class InventoryIndexManagerImpl extends AbstractService implements Invent
 
     @Override
     public void afterCommit(Operation op, Class<?>... entityClass) {
-        ESBulkBuilder bbuilder = new ESBulkBuilder();
-
         for (Class<?> vo : entityClass) {
             if (!triggerVOs.contains(vo)) {
                 logger.trace(String.format("Class[%s] is not annotated by @TriggerIndex, no index operation will be proceeded", vo.getName()));
@@ -693,19 +938,15 @@ public class InventoryIndexManagerImpl extends AbstractService implements Invent
 
             if (op == Operation.PERSIST || op == Operation.UPDATE) {
                 Map<String, Set<String>> vmap = getUuidsOfVOToIndexFromInsertVOUpdateVO(vo, op);
-                bbuilder = addDocToIndexToESBuilder(bbuilder, vmap);
+                queueChanges(vmap, false);
             } else if (op == Operation.REMOVE) {
                 Pair<Map<String, Set<String>>, Map<String, Set<String>>> pair = getVOUuidsToDeleteOrIndexFromDeleteVO(vo);
                 Map<String, Set<String>> toIndex = pair.second();
-                bbuilder = addDocToIndexToESBuilder(bbuilder, toIndex);
+                queueChanges(toIndex, false);
                 Map<String, Set<String>> toDelete = pair.first();
-                bbuilder = addDocToDeleteToESBuilder(bbuilder, toDelete);
+                queueChanges(toDelete, true);
             }
         }
-
-        if (!bbuilder.isEmpty()) {
-            sendBulk(bbuilder.toString(), bbuilder.getAffectedInventoryNames());
-        }
     }
 
     @Override
@@ -741,6 +982,8 @@ public class InventoryIndexManagerImpl extends AbstractService implements Invent
             handle((APICreateSearchIndexMsg) msg);
         } else if (msg instanceof APISearchGenerateSqlTriggerMsg) {
         	handle((APISearchGenerateSqlTriggerMsg) msg);
+        } else if (msg instanceof APIReindexSearchMsg) {
+            handle((APIReindexSearchMsg) msg);
         } else {
             bus.dealWithUnknownMessage(msg);
         }
@@ -788,6 +1031,101 @@ public class InventoryIndexManagerImpl extends AbstractService implements Invent
         bus.publish(evt);
     }
 
+    @SuppressWarnings("rawtypes")
+    @Transactional(readOnly = true)
+    private List getEntityPage(IndexerInfo info, String lastId, int pageSize) {
+        String idName = info.entityIdField.getName();
+        String sql;
+        if (lastId == null) {
+            sql = String.format("select e from %s e order by e.%s", info.mappingVOClass.getSimpleName(), idName);
+        } else {
+            sql = String.format("select e from %s e where e.%s > :lastId order by e.%s", info.mappingVOClass.getSimpleName(), idName, idName);
+        }
+
+        TypedQuery query = dbf.getEntityManager().createQuery(sql, info.mappingVOClass);
+        if (lastId != null) {
+            query.setParameter("lastId", lastId);
+        }
+        query.setMaxResults(pageSize);
+        return query.getResultList();
+    }
+
+    @SuppressWarnings("rawtypes")
+    private long reindexAll(IndexerInfo info) throws Exception {
+        int pageSize = SearchGlobalProperty.REINDEX_PAGE_SIZE;
+        long count = 0;
+        String lastId = null;
+        while (true) {
+            List page = getEntityPage(info, lastId, pageSize);
+            if (page.isEmpty()) {
+                break;
+            }
+
+            ESBulkBuilder bbuilder = new ESBulkBuilder();
+            for (Object entity : page) {
+                lastId = (String) info.entityIdField.get(entity);
+                InventoryDoc doc = InventoryDoc.toDoc(info.inventoryName, lastId, info.valueOfMethod.invoke(info.inventoryClass, entity));
+                bbuilder.addIndexBulk(info.inventoryName.toLowerCase(), info.inventoryName, doc);
+            }
+            sendBulkWithRetry(bbuilder);
+            count += page.size();
+
+            if (page.size() < pageSize) {
+                break;
+            }
+        }
+
+        logger.debug(String.format("reindexed %s entities for inventory[%s]", count, info.inventoryName));
+        return count;
+    }
+
+    private void handle(final APIReindexSearchMsg msg) {
+        final APIReindexSearchEvent evt = new APIReindexSearchEvent(msg.getId());
+
+        final List<IndexerInfo> infos = new ArrayList<IndexerInfo>();
+        if (msg.getInventoryNames() == null || msg.getInventoryNames().isEmpty()) {
+            infos.addAll(voClassToIndexerMapping.values());
+        } else {
+            Set<String> validInventoryNames = getAllInventoryNames();
+            for (String invname : msg.getInventoryNames()) {
+                if (!validInventoryNames.contains(invname)) {
+                    evt.setErrorCode(errf.stringToInvalidArgumentError(String.format("zstack doesn't have this inventory[%s]", invname)));
+                    bus.publish(evt);
+                    return;
+                }
+                infos.add(getIndexerInfoByInventoryName(invname));
+            }
+        }
+
+        thdf.submit(new Task<Void>() {
+            @Override
+            public String getName() {
+                return "reindex-search";
+            }
+
+            @Override
+            public Void call() throws Exception {
+                try {
+                    long count = 0;
+                    for (IndexerInfo info : infos) {
+                        if (msg.isRecreateIndex()) {
+                            deleteIndex(info.inventoryName);
+                            doCreateIndexIfNotExists(info.inventoryName);
+                        }
+                        count += reindexAll(info);
+                    }
+                    evt.setIndexedNum(count);
+                } catch (Exception e) {
+                    logger.warn("failed to reindex search", e);
+                    evt.setErrorCode(errf.throwableToInternalError(e));
+                }
+
+                bus.publish(evt);
+                return null;
+            }
+        });
+    }
+
     private Field getEntityIdFieldFromClass(Class<?> clazz) {
     	Class<?> c = clazz;
     	do {
@@ -1074,4 +1412,46 @@ public class InventoryIndexManagerImpl extends AbstractService implements Invent
     public void setDeleteAllIndexWhenStart(boolean deleteAllIndexWhenStart) {
         this.deleteAllIndexWhenStart = deleteAllIndexWhenStart;
     }
+
+    @Override
+    public int getPendingChangeNum() {
+        synchronized (pendingChanges) {
+            return pendingChanges.size();
+        }
+    }
+
+    @Override
+    public long getIndexingLag() {
+        long oldest = Long.MAX_VALUE;
+        for (PendingChange c : inFlightChanges) {
+            oldest = Math.min(oldest, c.queuedTime);
+        }
+        synchronized (pendingChanges) {
+            for (PendingChange c : pendingChanges.values()) {
+                oldest = Math.min(oldest, c.queuedTime);
+            }
+        }
+
+        return oldest == Long.MAX_VALUE ? 0 : System.currentTimeMillis() - oldest;
+    }
+
+    @Override
+    public long getIndexedChangeNum() {
+        return indexedNum.get();
+    }
+
+    @Override
+    public long getCoalescedChangeNum() {
+        return coalescedNum.get();
+    }
+
+    @Override
+    public long getRetryNum() {
+        return retryNum.get();
+    }
+
+    @Override
+    public long getFailedChangeNum() {
+        return failedNum.get();
+    }
 }
@@ -0,0 +1,20 @@
+package org.zstack.search;
+
+/**
+ */
+public interface InventoryIndexManagerMXBean {
+    int getPendingChangeNum();
+
+    /**
+     * @return milliseconds the oldest change not yet indexed has been waiting
+     */
+    long getIndexingLag();
+
+    long getIndexedChangeNum();
+
+    long getCoalescedChangeNum();
+
+    long getRetryNum();
+
+    long getFailedChangeNum();
+}
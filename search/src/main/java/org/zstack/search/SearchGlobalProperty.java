@@ -0,0 +1,22 @@
+package org.zstack.search;
+
+import org.zstack.core.GlobalProperty;
+import org.zstack.core.GlobalPropertyDefinition;
+
+/**
+ */
+@GlobalPropertyDefinition
+public class SearchGlobalProperty {
+    @GlobalProperty(name = "InventoryIndexManager.bulkSize", defaultValue = "500")
+    public static int BULK_SIZE;
+    @GlobalProperty(name = "InventoryIndexManager.flushInterval", defaultValue = "1000")
+    public static long FLUSH_INTERVAL;
+    @GlobalProperty(name = "InventoryIndexManager.retryInterval", defaultValue = "1000")
+    public static long RETRY_INTERVAL;
+    @GlobalProperty(name = "InventoryIndexManager.maxRetryInterval", defaultValue = "60000")
+    public static long MAX_RETRY_INTERVAL;
+    @GlobalProperty(name = "InventoryIndexManager.maxRetryTimes", defaultValue = "10")
+    public static int MAX_RETRY_TIMES;
+    @GlobalProperty(name = "InventoryIndexManager.reindexPageSize", defaultValue = "1000")
+    public static int REINDEX_PAGE_SIZE;
+}
@@ -4,10 +4,8 @@ import org.zstack.header.host.TakeSnapshotOnHypervisorMsg;
 import org.zstack.header.vm.VmInstance;
 import org.zstack.header.vm.VmInstanceState;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  */
@@ -16,6 +14,27 @@ public class SimulatorConfig {
     public Map<String, Map<String, VmInstanceState>> vms = new HashMap<String, Map<String, VmInstanceState>>();
     public volatile boolean snapshotSuccess = true;
     public Map<String, List<TakeSnapshotOnHypervisorMsg>> snapshots = new HashMap<String, List<TakeSnapshotOnHypervisorMsg>>();
+    public volatile long pingDelay;
+    public Map<String, List<Long>> pings = new ConcurrentHashMap<String, List<Long>>();
+    public volatile int inFlightPingNum;
+    public volatile int maxInFlightPingNum;
+    public List<String> connectedHosts = Collections.synchronizedList(new ArrayList<String>());
+
+    public synchronized void pingStarted(String hostUuid) {
+        List<Long> lst = pings.get(hostUuid);
+        if (lst == null) {
+            lst = Collections.synchronizedList(new ArrayList<Long>());
+            pings.put(hostUuid, lst);
+        }
+        lst.add(System.currentTimeMillis());
+
+        inFlightPingNum ++;
+        maxInFlightPingNum = Math.max(maxInFlightPingNum, inFlightPingNum);
+    }
+
+    public synchronized void pingDone() {
+        inFlightPingNum --;
+    }
 
     public void putVm(String hostUuid, String vmUuid, VmInstanceState vmState) {
         Map<String, VmInstanceState> vmmap = vms.get(hostUuid);
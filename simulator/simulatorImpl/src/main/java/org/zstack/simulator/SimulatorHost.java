@@ -20,6 +20,7 @@ import org.zstack.utils.logging.CLogger;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 class SimulatorHost extends HostBase {
 	private static final CLogger logger = Utils.getLogger(SimulatorHost.class);
@@ -61,6 +62,7 @@ class SimulatorHost extends HostBase {
 		}
 		
 		logger.debug(String.format("Host: %s is connected", self.getName()));
+		config.connectedHosts.add(self.getUuid());
 		complete.success();
 	}
 
@@ -75,11 +77,24 @@ class SimulatorHost extends HostBase {
 	}
 
     @Override
-    protected void pingHook(Completion completion) {
-        if (!isDisconnected) {
-            completion.success();
+    protected void pingHook(final Completion completion) {
+        config.pingStarted(self.getUuid());
+        Runnable reply = new Runnable() {
+            @Override
+            public void run() {
+                config.pingDone();
+                if (!isDisconnected) {
+                    completion.success();
+                } else {
+                    completion.fail(errf.stringToOperationError("set to disconnected"));
+                }
+            }
+        };
+
+        if (config.pingDelay > 0) {
+            thdf.submitTimeoutTask(reply, TimeUnit.MILLISECONDS, config.pingDelay);
         } else {
-            completion.fail(errf.stringToOperationError("set to disconnected"));
+            reply.run();
         }
     }
 
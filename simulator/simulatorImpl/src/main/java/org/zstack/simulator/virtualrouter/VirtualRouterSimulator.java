@@ -51,6 +51,7 @@ public class VirtualRouterSimulator {
         }
 
         if (!SimulatorGlobalProperty.NOT_CACHE_AGENT_COMMAND) {
+            config.addDhcpCmds.add(cmd);
             config.dhcpInfos.addAll(cmd.getDhcpEntries());
             for (DhcpInfo info : cmd.getDhcpEntries()) {
                 config.dhcpInfoMap.put(info.getMac(), info);
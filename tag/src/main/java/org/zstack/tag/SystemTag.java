@@ -15,10 +15,7 @@ import org.zstack.utils.logging.CLogger;
 
 import javax.persistence.Query;
 import javax.persistence.Tuple;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 
 /**
  */
@@ -31,6 +28,7 @@ public class SystemTag {
 
     // TagManager must be explicitly set. use @Autowried will cause circular dependency
     protected TagManager tagMgr;
+    protected SystemTagIndex tagIndex;
 
     protected String tagFormat;
     protected Class resourceClass;
@@ -72,21 +70,55 @@ public class SystemTag {
         return hasTag(resourceUuid, resourceClass);
     }
 
-    public boolean hasTag(String resourceUuid, Class resourceClass) {
-        SimpleQuery<SystemTagVO> q = dbf.createQuery(SystemTagVO.class);
-        q.add(SystemTagVO_.resourceType, Op.EQ, resourceClass.getSimpleName());
-        q.add(SystemTagVO_.resourceUuid, Op.EQ, resourceUuid);
-        q.add(SystemTagVO_.tag, useOp(), useTagFormat());
-        return q.isExists();
+    private <T> T lookup(SystemTagIndex.Lookup<T> l) {
+        return tagIndex == null ? l.fromDatabase() : tagIndex.lookup(l);
     }
 
-    public List<String> getTags(String resourceUuid, Class resourceClass) {
-        SimpleQuery<SystemTagVO> q = dbf.createQuery(SystemTagVO.class);
-        q.select(SystemTagVO_.tag);
-        q.add(SystemTagVO_.resourceType, Op.EQ, resourceClass.getSimpleName());
-        q.add(SystemTagVO_.resourceUuid, Op.EQ, resourceUuid);
-        q.add(SystemTagVO_.tag, useOp(), useTagFormat());
-        return q.listValue();
+    public boolean hasTag(final String resourceUuid, final Class resourceClass) {
+        return lookup(new SystemTagIndex.Lookup<Boolean>(String.format("hasTag(%s, %s, %s)", resourceUuid, resourceClass.getSimpleName(), tagFormat)) {
+            @Override
+            Boolean fromIndex(SystemTagIndex index) {
+                return index.hasTag(resourceUuid, resourceClass.getSimpleName(), useTagFormat(), useOp());
+            }
+
+            @Override
+            Boolean fromDatabase() {
+                SimpleQuery<SystemTagVO> q = dbf.createQuery(SystemTagVO.class);
+                q.add(SystemTagVO_.resourceType, Op.EQ, resourceClass.getSimpleName());
+                q.add(SystemTagVO_.resourceUuid, Op.EQ, resourceUuid);
+                q.add(SystemTagVO_.tag, useOp(), useTagFormat());
+                return q.isExists();
+            }
+
+            @Override
+            boolean isMiss(Boolean fromIndex) {
+                return !fromIndex;
+            }
+        });
+    }
+
+    public List<String> getTags(final String resourceUuid, final Class resourceClass) {
+        return lookup(new SystemTagIndex.Lookup<List<String>>(String.format("getTags(%s, %s, %s)", resourceUuid, resourceClass.getSimpleName(), tagFormat)) {
+            @Override
+            List<String> fromIndex(SystemTagIndex index) {
+                return index.getTags(resourceUuid, resourceClass.getSimpleName(), useTagFormat(), useOp());
+            }
+
+            @Override
+            List<String> fromDatabase() {
+                SimpleQuery<SystemTagVO> q = dbf.createQuery(SystemTagVO.class);
+                q.select(SystemTagVO_.tag);
+                q.add(SystemTagVO_.resourceType, Op.EQ, resourceClass.getSimpleName());
+                q.add(SystemTagVO_.resourceUuid, Op.EQ, resourceUuid);
+                q.add(SystemTagVO_.tag, useOp(), useTagFormat());
+                return q.listValue();
+            }
+
+            @Override
+            boolean isMiss(List<String> fromIndex) {
+                return fromIndex.isEmpty();
+            }
+        });
     }
 
     public List<String> getTags(String resourceUuid) {
@@ -105,24 +137,72 @@ public class SystemTag {
         return getTag(resourceUuid, resourceClass);
     }
 
-    public Map<String, List<String>> getTags(List<String> resourceUuids, Class resourceClass) {
-        SimpleQuery<SystemTagVO> q = dbf.createQuery(SystemTagVO.class);
-        q.select(SystemTagVO_.tag, SystemTagVO_.resourceUuid);
-        q.add(SystemTagVO_.resourceType, Op.EQ, resourceClass.getSimpleName());
-        q.add(SystemTagVO_.resourceUuid, Op.IN, resourceUuids);
-        q.add(SystemTagVO_.tag, useOp(), useTagFormat());
-        List<Tuple> ts = q.listTuple();
-        Map<String, List<String>> ret = new HashMap<String, List<String>>();
-        for (Tuple t : ts) {
-            String uuid = t.get(1, String.class);
-            List<String> tags = ret.get(uuid);
-            if (tags == null) {
-                tags = new ArrayList<String>();
-                ret.put(uuid, tags);
+    public Map<String, List<String>> getTags(final List<String> resourceUuids, final Class resourceClass) {
+        return lookup(new SystemTagIndex.Lookup<Map<String, List<String>>>(String.format("getTags(%s resources, %s, %s)", resourceUuids.size(), resourceClass.getSimpleName(), tagFormat)) {
+            @Override
+            Map<String, List<String>> fromIndex(SystemTagIndex index) {
+                return index.getTags(resourceUuids, resourceClass.getSimpleName(), useTagFormat(), useOp());
+            }
+
+            @Override
+            Map<String, List<String>> fromDatabase() {
+                SimpleQuery<SystemTagVO> q = dbf.createQuery(SystemTagVO.class);
+                q.select(SystemTagVO_.tag, SystemTagVO_.resourceUuid);
+                q.add(SystemTagVO_.resourceType, Op.EQ, resourceClass.getSimpleName());
+                q.add(SystemTagVO_.resourceUuid, Op.IN, resourceUuids);
+                q.add(SystemTagVO_.tag, useOp(), useTagFormat());
+                List<Tuple> ts = q.listTuple();
+                Map<String, List<String>> ret = new HashMap<String, List<String>>();
+                for (Tuple t : ts) {
+                    String uuid = t.get(1, String.class);
+                    List<String> tags = ret.get(uuid);
+                    if (tags == null) {
+                        tags = new ArrayList<String>();
+                        ret.put(uuid, tags);
+                    }
+                    tags.add(t.get(0, String.class));
+                }
+                return ret;
             }
-            tags.add(t.get(0, String.class));
+        });
+    }
+
+    /**
+     * @return resources among resourceUuids having this tag, in the order of resourceUuids
+     */
+    public List<String> filterResourcesHavingTag(final List<String> resourceUuids, final Class resourceClass) {
+        if (resourceUuids.isEmpty()) {
+            return new ArrayList<String>();
         }
-        return ret;
+
+        return lookup(new SystemTagIndex.Lookup<List<String>>(String.format("filterResourcesHavingTag(%s resources, %s, %s)", resourceUuids.size(), resourceClass.getSimpleName(), tagFormat)) {
+            @Override
+            List<String> fromIndex(SystemTagIndex index) {
+                return index.filterResources(resourceUuids, resourceClass.getSimpleName(), useTagFormat(), useOp());
+            }
+
+            @Override
+            List<String> fromDatabase() {
+                SimpleQuery<SystemTagVO> q = dbf.createQuery(SystemTagVO.class);
+                q.select(SystemTagVO_.resourceUuid);
+                q.add(SystemTagVO_.resourceType, Op.EQ, resourceClass.getSimpleName());
+                q.add(SystemTagVO_.resourceUuid, Op.IN, resourceUuids);
+                q.add(SystemTagVO_.tag, useOp(), useTagFormat());
+                Set<String> having = new HashSet<String>(q.<String>listValue());
+
+                List<String> ret = new ArrayList<String>();
+                for (String uuid : resourceUuids) {
+                    if (having.contains(uuid)) {
+                        ret.add(uuid);
+                    }
+                }
+                return ret;
+            }
+        });
+    }
+
+    public List<String> filterResourcesHavingTag(List<String> resourceUuids) {
+        return filterResourcesHavingTag(resourceUuids, resourceClass);
     }
 
     public Map<String, List<String>> getTags(List<String> resourceUuids) {
@@ -209,6 +289,10 @@ public class SystemTag {
         this.tagMgr = tagMgr;
     }
 
+    void setTagIndex(SystemTagIndex tagIndex) {
+        this.tagIndex = tagIndex;
+    }
+
     public List<SystemTagValidator> getValidators() {
         return validators;
     }
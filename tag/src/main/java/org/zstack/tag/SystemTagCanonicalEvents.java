@@ -0,0 +1,52 @@
+package org.zstack.tag;
+
+import org.zstack.header.message.NeedJsonSchema;
+import org.zstack.header.tag.SystemTagInventory;
+
+import java.util.List;
+
+/**
+ */
+public class SystemTagCanonicalEvents {
+    public static final String INDEX_CHANGE_EVENT_PATH = "/systemTag/index/change/{nodeUuid}";
+
+    @NeedJsonSchema
+    public static class IndexChangeEvent {
+        private List<SystemTagInventory> createdTags;
+        private List<SystemTagInventory> deletedTags;
+        private String resourceType;
+        private List<String> deletedResourceUuids;
+
+        public List<SystemTagInventory> getCreatedTags() {
+            return createdTags;
+        }
+
+        public void setCreatedTags(List<SystemTagInventory> createdTags) {
+            this.createdTags = createdTags;
+        }
+
+        public List<SystemTagInventory> getDeletedTags() {
+            return deletedTags;
+        }
+
+        public void setDeletedTags(List<SystemTagInventory> deletedTags) {
+            this.deletedTags = deletedTags;
+        }
+
+        public String getResourceType() {
+            return resourceType;
+        }
+
+        public void setResourceType(String resourceType) {
+            this.resourceType = resourceType;
+        }
+
+        public List<String> getDeletedResourceUuids() {
+            return deletedResourceUuids;
+        }
+
+        public void setDeletedResourceUuids(List<String> deletedResourceUuids) {
+            this.deletedResourceUuids = deletedResourceUuids;
+        }
+    }
+}
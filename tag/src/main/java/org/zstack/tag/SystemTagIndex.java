@@ -0,0 +1,370 @@
+package org.zstack.tag;
+
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.db.SimpleQuery;
+import org.zstack.core.db.SimpleQuery.Op;
+import org.zstack.header.exception.CloudRuntimeException;
+import org.zstack.header.tag.SystemTagInventory;
+import org.zstack.header.tag.SystemTagVO;
+import org.zstack.header.tag.SystemTagVO_;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import javax.persistence.Tuple;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+ * an in-memory copy of SystemTagVO keyed by resource uuid, so allocators looking up tags of every candidate don't
+ * query the database each time. TagManagerImpl writes through it when firing tag created/deleted and broadcasts the
+ * change to other management nodes; a periodic reload repairs changes lost in broadcasting.
+ *
+ * as the broadcast arrives later than the commit, a lookup of a single resource that finds nothing in the index is
+ * done again in the database, so a tag created on another node, e.g. in the same API call, is seen right after it's
+ * committed. Lookups of many resources, which allocators do for every candidate, are served by the index only.
+ *
+ * tags are matched as MySQL does with the default utf8 collation, that is case-insensitively, and '%' and '_' are
+ * wildcards of LIKE patterns. With SystemTagIndex.verify = true every lookup is done in the database as well,
+ * a mismatch is logged and the database result is returned.
+ */
+class SystemTagIndex {
+    private static final CLogger logger = Utils.getLogger(SystemTagIndex.class);
+
+    private static class Entry {
+        private String uuid;
+        private String resourceUuid;
+        private String resourceType;
+        private String tag;
+    }
+
+    abstract static class Lookup<T> {
+        private final String description;
+
+        Lookup(String description) {
+            this.description = description;
+        }
+
+        abstract T fromIndex(SystemTagIndex index);
+
+        abstract T fromDatabase();
+
+        /**
+         * @return true if the result from the index must be confirmed in the database
+         */
+        boolean isMiss(T fromIndex) {
+            return false;
+        }
+    }
+
+    private final DatabaseFacade dbf;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Pattern> patterns = new ConcurrentHashMap<String, Pattern>();
+    private final AtomicLong mismatchNum = new AtomicLong();
+    // resource uuid -> tag uuid -> tag
+    private Map<String, Map<String, Entry>> resourceTags = new HashMap<String, Map<String, Entry>>();
+    private long version;
+    private volatile boolean loaded;
+
+    SystemTagIndex(DatabaseFacade dbf) {
+        this.dbf = dbf;
+    }
+
+    boolean isReady() {
+        return TagGlobalProperty.SYSTEM_TAG_INDEX_ENABLE && loaded;
+    }
+
+    long getMismatchNum() {
+        return mismatchNum.get();
+    }
+
+    private Map<String, Map<String, Entry>> loadFromDatabase() {
+        SimpleQuery<SystemTagVO> q = dbf.createQuery(SystemTagVO.class);
+        q.select(SystemTagVO_.uuid, SystemTagVO_.resourceUuid, SystemTagVO_.resourceType, SystemTagVO_.tag);
+        List<Tuple> ts = q.listTuple();
+
+        Map<String, Map<String, Entry>> ret = new HashMap<String, Map<String, Entry>>();
+        for (Tuple t : ts) {
+            Entry e = new Entry();
+            e.uuid = t.get(0, String.class);
+            e.resourceUuid = t.get(1, String.class);
+            e.resourceType = t.get(2, String.class);
+            e.tag = t.get(3, String.class);
+            put(ret, e);
+        }
+        return ret;
+    }
+
+    /**
+     * @return false if tags changed during loading, the loaded copy is then discarded as it may miss the change
+     */
+    boolean load() {
+        long v;
+        lock.readLock().lock();
+        try {
+            v = version;
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        Map<String, Map<String, Entry>> tags = loadFromDatabase();
+
+        lock.writeLock().lock();
+        try {
+            if (v != version) {
+                logger.debug("system tags changed while loading the system tag index, discard the loaded copy");
+                return false;
+            }
+
+            resourceTags = tags;
+            loaded = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        logger.debug(String.format("loaded %s resources into the system tag index", tags.size()));
+        return true;
+    }
+
+    private static void put(Map<String, Map<String, Entry>> tags, Entry e) {
+        Map<String, Entry> m = tags.get(e.resourceUuid);
+        if (m == null) {
+            m = new LinkedHashMap<String, Entry>();
+            tags.put(e.resourceUuid, m);
+        }
+        m.put(e.uuid, e);
+    }
+
+    void add(Collection<SystemTagInventory> invs) {
+        if (!TagGlobalProperty.SYSTEM_TAG_INDEX_ENABLE) {
+            return;
+        }
+
+        lock.writeLock().lock();
+        try {
+            for (SystemTagInventory inv : invs) {
+                Entry e = new Entry();
+                e.uuid = inv.getUuid();
+                e.resourceUuid = inv.getResourceUuid();
+                e.resourceType = inv.getResourceType();
+                e.tag = inv.getTag();
+                put(resourceTags, e);
+            }
+            version ++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void remove(Collection<SystemTagInventory> invs) {
+        if (!TagGlobalProperty.SYSTEM_TAG_INDEX_ENABLE) {
+            return;
+        }
+
+        lock.writeLock().lock();
+        try {
+            for (SystemTagInventory inv : invs) {
+                Map<String, Entry> m = resourceTags.get(inv.getResourceUuid());
+                if (m == null) {
+                    continue;
+                }
+
+                m.remove(inv.getUuid());
+                if (m.isEmpty()) {
+                    resourceTags.remove(inv.getResourceUuid());
+                }
+            }
+            version ++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void removeResources(String resourceType, Collection<String> resourceUuids) {
+        if (!TagGlobalProperty.SYSTEM_TAG_INDEX_ENABLE) {
+            return;
+        }
+
+        lock.writeLock().lock();
+        try {
+            for (String resourceUuid : resourceUuids) {
+                Map<String, Entry> m = resourceTags.get(resourceUuid);
+                if (m == null) {
+                    continue;
+                }
+
+                Iterator<Entry> it = m.values().iterator();
+                while (it.hasNext()) {
+                    if (resourceType.equals(it.next().resourceType)) {
+                        it.remove();
+                    }
+                }
+
+                if (m.isEmpty()) {
+                    resourceTags.remove(resourceUuid);
+                }
+            }
+            version ++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private Pattern likeToPattern(String like) {
+        Pattern p = patterns.get(like);
+        if (p != null) {
+            return p;
+        }
+
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (int i = 0; i < like.length(); i++) {
+            char c = like.charAt(i);
+            if (c == '\\' && i + 1 < like.length()) {
+                literal.append(like.charAt(++i));
+                continue;
+            }
+
+            if (c != '%' && c != '_') {
+                literal.append(c);
+                continue;
+            }
+
+            if (literal.length() > 0) {
+                regex.append(Pattern.quote(literal.toString()));
+                literal = new StringBuilder();
+            }
+            regex.append(c == '%' ? ".*" : ".");
+        }
+        if (literal.length() > 0) {
+            regex.append(Pattern.quote(literal.toString()));
+        }
+
+        p = Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE | Pattern.DOTALL);
+        patterns.put(like, p);
+        return p;
+    }
+
+    private boolean isMatch(Entry e, String resourceType, String tag, Op op) {
+        if (resourceType != null && !resourceType.equals(e.resourceType)) {
+            return false;
+        }
+
+        if (tag == null) {
+            return true;
+        } else if (op == Op.EQ) {
+            return tag.equalsIgnoreCase(e.tag);
+        } else if (op == Op.LIKE) {
+            return likeToPattern(tag).matcher(e.tag).matches();
+        } else {
+            throw new CloudRuntimeException(String.format("system tag index doesn't support operator %s", op));
+        }
+    }
+
+    private List<String> doGetTags(String resourceUuid, String resourceType, String tag, Op op) {
+        List<String> ret = new ArrayList<String>();
+        Map<String, Entry> m = resourceTags.get(resourceUuid);
+        if (m != null) {
+            for (Entry e : m.values()) {
+                if (isMatch(e, resourceType, tag, op)) {
+                    ret.add(e.tag);
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @param resourceType null matches any resource type
+     * @param tag null matches any tag
+     */
+    List<String> getTags(String resourceUuid, String resourceType, String tag, Op op) {
+        lock.readLock().lock();
+        try {
+            return doGetTags(resourceUuid, resourceType, tag, op);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return tags of each resource having at least one matched tag
+     */
+    Map<String, List<String>> getTags(Collection<String> resourceUuids, String resourceType, String tag, Op op) {
+        Map<String, List<String>> ret = new HashMap<String, List<String>>();
+        lock.readLock().lock();
+        try {
+            for (String resourceUuid : resourceUuids) {
+                List<String> tags = doGetTags(resourceUuid, resourceType, tag, op);
+                if (!tags.isEmpty()) {
+                    ret.put(resourceUuid, tags);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return ret;
+    }
+
+    boolean hasTag(String resourceUuid, String resourceType, String tag, Op op) {
+        return !getTags(resourceUuid, resourceType, tag, op).isEmpty();
+    }
+
+    /**
+     * @return resources having a matched tag, in the order of resourceUuids
+     */
+    List<String> filterResources(Collection<String> resourceUuids, String resourceType, String tag, Op op) {
+        List<String> ret = new ArrayList<String>();
+        lock.readLock().lock();
+        try {
+            for (String resourceUuid : resourceUuids) {
+                if (!doGetTags(resourceUuid, resourceType, tag, op).isEmpty()) {
+                    ret.add(resourceUuid);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return ret;
+    }
+
+    private Object normalize(Object obj) {
+        if (obj instanceof List) {
+            List<String> lst = new ArrayList<String>((List<String>) obj);
+            Collections.sort(lst);
+            return lst;
+        } else if (obj instanceof Map) {
+            Map<Object, Object> m = new TreeMap<Object, Object>();
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) obj).entrySet()) {
+                m.put(e.getKey(), normalize(e.getValue()));
+            }
+            return m;
+        }
+        return obj;
+    }
+
+    <T> T lookup(Lookup<T> l) {
+        if (!isReady()) {
+            return l.fromDatabase();
+        }
+
+        T ret = l.fromIndex(this);
+        if (l.isMiss(ret)) {
+            return l.fromDatabase();
+        }
+
+        if (!TagGlobalProperty.SYSTEM_TAG_INDEX_VERIFY) {
+            return ret;
+        }
+
+        T db = l.fromDatabase();
+        if (!normalize(ret).equals(normalize(db))) {
+            mismatchNum.incrementAndGet();
+            logger.warn(String.format("system tag index mismatches the database for %s, index: %s, database: %s", l.description, ret, db));
+            return db;
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,16 @@
+package org.zstack.tag;
+
+import org.zstack.core.GlobalProperty;
+import org.zstack.core.GlobalPropertyDefinition;
+
+/**
+ */
+@GlobalPropertyDefinition
+public class TagGlobalProperty {
+    @GlobalProperty(name = "SystemTagIndex.enable", defaultValue = "true")
+    public static boolean SYSTEM_TAG_INDEX_ENABLE;
+    @GlobalProperty(name = "SystemTagIndex.verify", defaultValue = "false")
+    public static boolean SYSTEM_TAG_INDEX_VERIFY;
+    @GlobalProperty(name = "SystemTagIndex.reloadInterval", defaultValue = "600")
+    public static long SYSTEM_TAG_INDEX_RELOAD_INTERVAL;
+}
@@ -33,6 +33,11 @@ public interface TagManager {
 
     boolean hasSystemTag(String resourceUuid, Enum tag);
 
+    /**
+     * @return resources among resourceUuids having the system tag, in the order of resourceUuids
+     */
+    List<String> findResourcesHavingSystemTag(List<String> resourceUuids, String tag);
+
     void deleteSystemTag(String tag, String resourceUuid, String resourceType, Boolean inherit);
 
     void deleteSystemTagUseLike(String tag, String resourceUuid, String resourceType, Boolean inherit);
@@ -4,6 +4,8 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.transaction.annotation.Transactional;
 import org.zstack.core.Platform;
 import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.cloudbus.EventCallback;
+import org.zstack.core.cloudbus.EventFacade;
 import org.zstack.core.cloudbus.MessageSafe;
 import org.zstack.core.componentloader.PluginRegistry;
 import org.zstack.core.db.DatabaseFacade;
@@ -11,6 +13,8 @@ import org.zstack.core.db.SimpleQuery;
 import org.zstack.core.db.SimpleQuery.Op;
 import org.zstack.core.db.SoftDeleteEntityExtensionPoint;
 import org.zstack.core.errorcode.ErrorFacade;
+import org.zstack.core.thread.PeriodicTask;
+import org.zstack.core.thread.ThreadFacade;
 import org.zstack.header.AbstractService;
 import org.zstack.header.apimediator.ApiMessageInterceptionException;
 import org.zstack.header.apimediator.GlobalApiMessageInterceptor;
@@ -34,6 +38,7 @@ import org.zstack.header.vm.VmInstanceVO;
 import org.zstack.header.volume.VolumeVO;
 import org.zstack.header.zone.ZoneVO;
 import org.zstack.query.QueryFacade;
+import org.zstack.tag.SystemTagCanonicalEvents.IndexChangeEvent;
 import org.zstack.utils.*;
 import org.zstack.utils.logging.CLogger;
 
@@ -43,8 +48,12 @@ import javax.persistence.metamodel.EntityType;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
+import static org.zstack.utils.CollectionDSL.e;
+import static org.zstack.utils.CollectionDSL.map;
 import static org.zstack.utils.CollectionUtils.removeDuplicateFromList;
+import static org.zstack.utils.StringDSL.s;
 
 public class TagManagerImpl extends AbstractService implements TagManager,
         SoftDeleteEntityExtensionPoint, GlobalApiMessageInterceptor, SystemTagLifeCycleExtension {
@@ -60,7 +69,12 @@ public class TagManagerImpl extends AbstractService implements TagManager,
     private ErrorFacade errf;
     @Autowired
     private PluginRegistry pluginRgty;
+    @Autowired
+    private EventFacade evtf;
+    @Autowired
+    private ThreadFacade thdf;
 
+    private SystemTagIndex tagIndex;
     private List<SystemTag> systemTags = new ArrayList<SystemTag>();
     private Map<String, List<SystemTag>> resourceTypeSystemTagMap = new HashMap<String, List<SystemTag>>();
     private Map<String, Class> resourceTypeClassMap = new HashMap<String, Class>();
@@ -102,6 +116,7 @@ public class TagManagerImpl extends AbstractService implements TagManager,
                 }
 
                 stag.setTagMgr(this);
+                stag.setTagIndex(tagIndex);
                 List<SystemTag> lst = resourceTypeSystemTagMap.get(stag.getResourceClass().getSimpleName());
                 if (lst == null) {
                     lst = new ArrayList<SystemTag>();
@@ -120,6 +135,8 @@ public class TagManagerImpl extends AbstractService implements TagManager,
             logger.debug(String.format("discovered tag resource type[%s], class[%s]", name, type));
         }
 
+        tagIndex = new SystemTagIndex(dbf);
+
         try {
             // this makes sure DatabaseFacade is injected into every SystemTag object
             initSystemTags();
@@ -262,8 +279,17 @@ public class TagManagerImpl extends AbstractService implements TagManager,
     }
 
     @Override
-    @Transactional
     public void copySystemTag(String srcResourceUuid, String srcResourceType, String dstResourceUuid, String dstResourceType) {
+        List<SystemTagInventory> copied = doCopySystemTag(srcResourceUuid, srcResourceType, dstResourceUuid, dstResourceType);
+        if (!copied.isEmpty()) {
+            tagIndex.add(copied);
+            broadcastIndexChange(copied, null);
+        }
+    }
+
+    @Transactional
+    private List<SystemTagInventory> doCopySystemTag(String srcResourceUuid, String srcResourceType, String dstResourceUuid, String dstResourceType) {
+        List<SystemTagInventory> copied = new ArrayList<SystemTagInventory>();
         String sql = "select stag from SystemTagVO stag where stag.resourceUuid = :ruuid and stag.resourceType = :rtype and stag.inherent = :ih";
         TypedQuery<SystemTagVO> srcq = dbf.getEntityManager().createQuery(sql, SystemTagVO.class);
         srcq.setParameter("ruuid", srcResourceUuid);
@@ -271,7 +297,7 @@ public class TagManagerImpl extends AbstractService implements TagManager,
         srcq.setParameter("ih", false);
         List<SystemTagVO> srctags = srcq.getResultList();
         if (srctags.isEmpty()) {
-            return;
+            return copied;
         }
 
         for (SystemTagVO stag : srctags) {
@@ -280,15 +306,63 @@ public class TagManagerImpl extends AbstractService implements TagManager,
             ntag.setResourceType(dstResourceType);
             ntag.setResourceUuid(dstResourceUuid);
             dbf.getEntityManager().persist(ntag);
+            copied.add(SystemTagInventory.valueOf(ntag));
         }
+        return copied;
     }
 
     @Override
-    public List<String> findSystemTags(String resourceUuid) {
-        SimpleQuery<SystemTagVO> q = dbf.createQuery(SystemTagVO.class);
-        q.select(SystemTagVO_.tag);
-        q.add(SystemTagVO_.resourceUuid, SimpleQuery.Op.EQ, resourceUuid);
-        return q.listValue();
+    public List<String> findSystemTags(final String resourceUuid) {
+        return tagIndex.lookup(new SystemTagIndex.Lookup<List<String>>(String.format("findSystemTags(%s)", resourceUuid)) {
+            @Override
+            List<String> fromIndex(SystemTagIndex index) {
+                return index.getTags(resourceUuid, null, null, Op.EQ);
+            }
+
+            @Override
+            List<String> fromDatabase() {
+                SimpleQuery<SystemTagVO> q = dbf.createQuery(SystemTagVO.class);
+                q.select(SystemTagVO_.tag);
+                q.add(SystemTagVO_.resourceUuid, SimpleQuery.Op.EQ, resourceUuid);
+                return q.listValue();
+            }
+
+            @Override
+            boolean isMiss(List<String> fromIndex) {
+                return fromIndex.isEmpty();
+            }
+        });
+    }
+
+    @Override
+    public List<String> findResourcesHavingSystemTag(final List<String> resourceUuids, final String tag) {
+        if (resourceUuids.isEmpty()) {
+            return new ArrayList<String>();
+        }
+
+        return tagIndex.lookup(new SystemTagIndex.Lookup<List<String>>(String.format("findResourcesHavingSystemTag(%s resources, %s)", resourceUuids.size(), tag)) {
+            @Override
+            List<String> fromIndex(SystemTagIndex index) {
+                return index.filterResources(resourceUuids, null, tag, Op.EQ);
+            }
+
+            @Override
+            List<String> fromDatabase() {
+                SimpleQuery<SystemTagVO> q = dbf.createQuery(SystemTagVO.class);
+                q.select(SystemTagVO_.resourceUuid);
+                q.add(SystemTagVO_.resourceUuid, Op.IN, resourceUuids);
+                q.add(SystemTagVO_.tag, Op.EQ, tag);
+                Set<String> having = new HashSet<String>(q.<String>listValue());
+
+                List<String> ret = new ArrayList<String>();
+                for (String uuid : resourceUuids) {
+                    if (having.contains(uuid)) {
+                        ret.add(uuid);
+                    }
+                }
+                return ret;
+            }
+        });
     }
 
     @Override
@@ -314,13 +388,28 @@ public class TagManagerImpl extends AbstractService implements TagManager,
     }
 
     @Override
-    public boolean hasSystemTag(String resourceUuid, String tag) {
-        return hasTag(resourceUuid, tag, TagType.System);
+    public boolean hasSystemTag(final String resourceUuid, final String tag) {
+        return tagIndex.lookup(new SystemTagIndex.Lookup<Boolean>(String.format("hasSystemTag(%s, %s)", resourceUuid, tag)) {
+            @Override
+            Boolean fromIndex(SystemTagIndex index) {
+                return index.hasTag(resourceUuid, null, tag, Op.EQ);
+            }
+
+            @Override
+            Boolean fromDatabase() {
+                return hasTag(resourceUuid, tag, TagType.System);
+            }
+
+            @Override
+            boolean isMiss(Boolean fromIndex) {
+                return !fromIndex;
+            }
+        });
     }
 
     @Override
     public boolean hasSystemTag(String resourceUuid, Enum tag) {
-        return hasTag(resourceUuid, tag.toString(), TagType.System);
+        return hasSystemTag(resourceUuid, tag.toString());
     }
 
     @Override
@@ -360,7 +449,32 @@ public class TagManagerImpl extends AbstractService implements TagManager,
         deleteSystemTag(tag, resourceUuid, resourceType, inherit, true);
     }
 
+    private void broadcastIndexChange(List<SystemTagInventory> created, List<SystemTagInventory> deleted) {
+        IndexChangeEvent evt = new IndexChangeEvent();
+        evt.setCreatedTags(created);
+        evt.setDeletedTags(deleted);
+        fireIndexChangeEvent(evt);
+    }
+
+    private void fireIndexChangeEvent(IndexChangeEvent evt) {
+        if (!TagGlobalProperty.SYSTEM_TAG_INDEX_ENABLE) {
+            return;
+        }
+
+        try {
+            evtf.fire(s(SystemTagCanonicalEvents.INDEX_CHANGE_EVENT_PATH).formatByMap(map(
+                    e("nodeUuid", Platform.getManagementServerId())
+            )), evt);
+        } catch (Exception ex) {
+            // other nodes repair their index in the next periodic reload
+            logger.warn("unable to broadcast system tag index change", ex);
+        }
+    }
+
     private void fireTagDeleted(List<SystemTagInventory> tags) {
+        tagIndex.remove(tags);
+        broadcastIndexChange(null, tags);
+
         for (SystemTagInventory tag : tags) {
             List<SystemTagLifeCycleExtension> exts = lifeCycleExtensions.get(tag.getResourceType());
             if (exts != null) {
@@ -376,6 +490,9 @@ public class TagManagerImpl extends AbstractService implements TagManager,
     }
 
     private void fireTagCreated(List<SystemTagInventory> tags) {
+        tagIndex.add(tags);
+        broadcastIndexChange(tags, null);
+
         for (SystemTagInventory tag : tags) {
             List<SystemTagLifeCycleExtension> exts = lifeCycleExtensions.get(tag.getResourceType());
             if (exts != null) {
@@ -499,9 +616,75 @@ public class TagManagerImpl extends AbstractService implements TagManager,
         return bus.makeLocalServiceId(TagConstant.SERVICE_ID);
     }
 
+    private void loadTagIndex() {
+        for (int i = 0; i < 3; i++) {
+            if (tagIndex.load()) {
+                return;
+            }
+        }
+
+        logger.warn("system tags kept changing while loading the system tag index, lookups go to the database until the next reload");
+    }
+
+    private void startTagIndex() {
+        if (!TagGlobalProperty.SYSTEM_TAG_INDEX_ENABLE) {
+            return;
+        }
+
+        loadTagIndex();
+
+        evtf.on(SystemTagCanonicalEvents.INDEX_CHANGE_EVENT_PATH, new EventCallback() {
+            @Override
+            public void run(Map tokens, Object data) {
+                String nodeUuid = (String) tokens.get("nodeUuid");
+                if (Platform.getManagementServerId().equals(nodeUuid)) {
+                    return;
+                }
+
+                IndexChangeEvent evt = (IndexChangeEvent) data;
+                if (evt.getCreatedTags() != null) {
+                    tagIndex.add(evt.getCreatedTags());
+                }
+                if (evt.getDeletedTags() != null) {
+                    tagIndex.remove(evt.getDeletedTags());
+                }
+                if (evt.getDeletedResourceUuids() != null) {
+                    tagIndex.removeResources(evt.getResourceType(), evt.getDeletedResourceUuids());
+                }
+            }
+        });
+
+        thdf.submitPeriodicTask(new PeriodicTask() {
+            @Override
+            public TimeUnit getTimeUnit() {
+                return TimeUnit.SECONDS;
+            }
+
+            @Override
+            public long getInterval() {
+                return TagGlobalProperty.SYSTEM_TAG_INDEX_RELOAD_INTERVAL;
+            }
+
+            @Override
+            public String getName() {
+                return "reload-system-tag-index";
+            }
+
+            @Override
+            public void run() {
+                try {
+                    loadTagIndex();
+                } catch (Throwable t) {
+                    logger.warn("unable to reload the system tag index", t);
+                }
+            }
+        });
+    }
+
     @Override
     public boolean start() {
         populateExtensions();
+        startTagIndex();
         return true;
     }
 
@@ -530,8 +713,23 @@ public class TagManagerImpl extends AbstractService implements TagManager,
     }
 
     @Override
-    @Transactional
     public void postSoftDelete(Collection entityIds, Class entityClass) {
+        deleteTagsOfResources(entityIds, entityClass);
+
+        List<String> resourceUuids = new ArrayList<String>();
+        for (Object id : entityIds) {
+            resourceUuids.add(id.toString());
+        }
+        tagIndex.removeResources(entityClass.getSimpleName(), resourceUuids);
+
+        IndexChangeEvent evt = new IndexChangeEvent();
+        evt.setResourceType(entityClass.getSimpleName());
+        evt.setDeletedResourceUuids(resourceUuids);
+        fireIndexChangeEvent(evt);
+    }
+
+    @Transactional
+    private void deleteTagsOfResources(Collection entityIds, Class entityClass) {
         String sql = "delete from SystemTagVO s where s.resourceType = :resourceType and s.resourceUuid in (:resourceUuids)";
         Query q = dbf.getEntityManager().createQuery(sql);
         q.setParameter("resourceType", entityClass.getSimpleName());
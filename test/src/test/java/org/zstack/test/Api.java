@@ -1933,6 +1933,17 @@ public class Api implements CloudBusEventListener {
         sender.send(msg, APIDeleteSearchIndexEvent.class);
     }
 
+    public long reindexSearch(List<String> inventoryNames, boolean recreateIndex) throws ApiSenderException {
+        APIReindexSearchMsg msg = new APIReindexSearchMsg();
+        msg.setInventoryNames(inventoryNames);
+        msg.setRecreateIndex(recreateIndex);
+        msg.setSession(adminSession);
+        ApiSender sender = new ApiSender();
+        sender.setTimeout(timeout);
+        APIReindexSearchEvent evt = sender.send(msg, APIReindexSearchEvent.class);
+        return evt.getIndexedNum();
+    }
+
     public void generateInventoryQueryDetails() throws ApiSenderException {
         APIGenerateInventoryQueryDetailsMsg msg = new APIGenerateInventoryQueryDetailsMsg();
         msg.setSession(adminSession);
@@ -0,0 +1,136 @@
+package org.zstack.test.compute.host;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.compute.host.HostGlobalConfig;
+import org.zstack.compute.host.HostTrackImpl;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.header.cluster.ClusterInventory;
+import org.zstack.header.host.HostInventory;
+import org.zstack.header.zone.ZoneInventory;
+import org.zstack.simulator.SimulatorConfig;
+import org.zstack.simulator.SimulatorController;
+import org.zstack.test.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * track 20 simulator hosts with ping.interval = 5
+ * 1. ping hosts with ping.parallelismDegree = 100
+ * 2. ping hosts with ping.parallelismDegree = 5, every ping takes 1.5s
+ * 3. disconnect 3 hosts on the simulator with reconnectHostOnError = true
+ *
+ * confirm
+ * 1. every host is pinged once per interval in its own slot, pings spread over the seconds of the interval
+ * 2. no more than 5 pings are in flight, hosts over the bound are deferred and still pinged
+ * 3. the 3 hosts are reconnected, other hosts are not
+ */
+public class TestHostTrack {
+    Api api;
+    ComponentLoader loader;
+    DatabaseFacade dbf;
+    SimulatorController sctrl;
+    SimulatorConfig config;
+    HostTrackImpl tracker;
+    List<HostInventory> hosts;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        BeanConstructor con = new BeanConstructor();
+        /* This loads spring application context */
+        loader = con.addXml("PortalForUnitTest.xml").addXml("ClusterManager.xml")
+                .addXml("ZoneManager.xml").addXml("HostManager.xml")
+                .addXml("Simulator.xml").addXml("AccountManager.xml")
+                .addXml("HostAllocatorManager.xml").build();
+        dbf = loader.getComponent(DatabaseFacade.class);
+        sctrl = loader.getComponent(SimulatorController.class);
+        config = loader.getComponent(SimulatorConfig.class);
+        tracker = loader.getComponent(HostTrackImpl.class);
+        HostGlobalConfig.PING_HOST_INTERVAL.updateValue(5);
+        HostGlobalConfig.HOST_TRACK_PARALLELISM_DEGREE.updateValue(100);
+        HostGlobalConfig.AUTO_RECONNECT_ON_ERROR.updateValue(true);
+        api = new Api();
+        api.startServer();
+    }
+
+    private List<Long> allPings() {
+        List<Long> ret = new ArrayList<Long>();
+        for (List<Long> lst : config.pings.values()) {
+            synchronized (lst) {
+                ret.addAll(lst);
+            }
+        }
+        Collections.sort(ret);
+        return ret;
+    }
+
+    @Test
+    public void test() throws ApiSenderException, InterruptedException {
+        ZoneInventory zone = api.createZones(1).get(0);
+        ClusterInventory cluster = api.createClusters(1, zone.getUuid()).get(0);
+        hosts = api.createHost(20, cluster.getUuid());
+
+        TimeUnit.SECONDS.sleep(5);
+        config.pings.clear();
+        TimeUnit.SECONDS.sleep(10);
+        for (HostInventory host : hosts) {
+            List<Long> pings = config.pings.get(host.getUuid());
+            Assert.assertNotNull(String.format("host[uuid:%s] is not pinged", host.getUuid()), pings);
+            Assert.assertTrue(pings.size() <= 3);
+            for (int i = 1; i < pings.size(); i++) {
+                long gap = pings.get(i) - pings.get(i - 1);
+                Assert.assertTrue(String.format("host[uuid:%s] is pinged %sms after last ping", host.getUuid(), gap), gap > 4000 && gap < 6000);
+            }
+        }
+
+        List<Long> pings = allPings();
+        Map<Long, Integer> pingsPerSecond = new HashMap<Long, Integer>();
+        for (Long t : pings) {
+            long second = (t - pings.get(0)) / 1000;
+            Integer num = pingsPerSecond.get(second);
+            pingsPerSecond.put(second, num == null ? 1 : num + 1);
+        }
+        Assert.assertTrue(pingsPerSecond.toString(), pingsPerSecond.size() >= 5);
+        Assert.assertTrue(pingsPerSecond.toString(), Collections.max(pingsPerSecond.values()) < hosts.size());
+
+        HostGlobalConfig.HOST_TRACK_PARALLELISM_DEGREE.updateValue(5);
+        config.pingDelay = 1500;
+        config.maxInFlightPingNum = 0;
+        config.pings.clear();
+        int maxDeferred = 0;
+        for (int i = 0; i < 75; i++) {
+            TimeUnit.MILLISECONDS.sleep(200);
+            maxDeferred = Math.max(maxDeferred, tracker.getPingStatistic().getDeferredPingNum());
+            Assert.assertTrue(tracker.getPingStatistic().getInFlightPingNum() <= 5);
+        }
+        Assert.assertTrue(config.maxInFlightPingNum <= 5);
+        Assert.assertTrue(config.maxInFlightPingNum > 1);
+        Assert.assertTrue(maxDeferred > 0);
+        for (HostInventory host : hosts) {
+            Assert.assertTrue(String.format("deferred host[uuid:%s] is never pinged", host.getUuid()), config.pings.containsKey(host.getUuid()));
+        }
+
+        config.pingDelay = 0;
+        HostGlobalConfig.HOST_TRACK_PARALLELISM_DEGREE.updateValue(100);
+        TimeUnit.SECONDS.sleep(3);
+        config.connectedHosts.clear();
+        final List<String> disconnected = new ArrayList<String>();
+        for (HostInventory host : hosts.subList(0, 3)) {
+            sctrl.setSimulatorHostConnectionState(host.getUuid(), true);
+            disconnected.add(host.getUuid());
+        }
+        for (int i = 0; i < 30 && !config.connectedHosts.containsAll(disconnected); i++) {
+            TimeUnit.MILLISECONDS.sleep(500);
+        }
+        for (String huuid : disconnected) {
+            sctrl.setSimulatorHostConnectionState(huuid, false);
+        }
+        Assert.assertTrue(config.connectedHosts.toString(), config.connectedHosts.containsAll(disconnected));
+        Assert.assertTrue(config.connectedHosts.toString(), disconnected.containsAll(config.connectedHosts));
+        Assert.assertTrue(tracker.getPingStatistic().getDisconnectedCount() >= 3);
+    }
+}
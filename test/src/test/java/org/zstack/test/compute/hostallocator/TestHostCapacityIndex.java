@@ -0,0 +1,104 @@
+package org.zstack.test.compute.hostallocator;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.compute.allocator.HostCapacityIndex;
+import org.zstack.compute.allocator.HostCapacityReserveManager;
+import org.zstack.compute.host.HostSystemTags;
+import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.header.allocator.HostCapacityVO;
+import org.zstack.header.allocator.ReservedHostCapacity;
+import org.zstack.header.configuration.InstanceOfferingInventory;
+import org.zstack.header.host.HostInventory;
+import org.zstack.header.image.ImageInventory;
+import org.zstack.header.network.l3.L3NetworkInventory;
+import org.zstack.header.tag.TagInventory;
+import org.zstack.test.*;
+import org.zstack.test.deployer.Deployer;
+
+import java.util.Arrays;
+
+import static org.zstack.utils.CollectionDSL.e;
+import static org.zstack.utils.CollectionDSL.map;
+
+/**
+ * 1. create a vm
+ * 2. change HostCapacityVO behind the index and reconcile
+ * 3. reserve all memory of the host by a host tag
+ *
+ * confirm the index follows the capacity of the host in 1, 2 and excludes the host in 3
+ */
+public class TestHostCapacityIndex {
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    CloudBus bus;
+    DatabaseFacade dbf;
+    HostCapacityIndex index;
+    HostCapacityReserveManager reserveMgr;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        WebBeanConstructor con = new WebBeanConstructor();
+        deployer = new Deployer("deployerXml/hostAllocator/TestReservedHostCapacity.xml", con);
+        deployer.addSpringConfig("KVMRelated.xml");
+        deployer.build();
+        api = deployer.getApi();
+        loader = deployer.getComponentLoader();
+        bus = loader.getComponent(CloudBus.class);
+        dbf = loader.getComponent(DatabaseFacade.class);
+        index = loader.getComponent(HostCapacityIndex.class);
+        reserveMgr = loader.getComponent(HostCapacityReserveManager.class);
+    }
+
+    private void assertCapacity(String hostUuid) {
+        HostCapacityVO cap = dbf.findByUuid(hostUuid, HostCapacityVO.class);
+        ReservedHostCapacity rc = reserveMgr.getReservedHostCapacityByHosts(Arrays.asList(hostUuid));
+        HostCapacityIndex.Capacity c = index.getCapacity(hostUuid);
+        Assert.assertNotNull(c);
+        Assert.assertEquals(cap.getAvailableCpu() - rc.getReservedCpuCapacity(), c.getFreeCpu());
+        Assert.assertEquals(cap.getAvailableMemory() - rc.getReservedMemoryCapacity(), c.getFreeMemory());
+    }
+
+    @Test
+    public void test() throws ApiSenderException {
+        index.reconcile();
+        HostInventory host = deployer.hosts.values().iterator().next();
+        assertCapacity(host.getUuid());
+
+        L3NetworkInventory l3 = deployer.l3Networks.get("TestL3Network1");
+        InstanceOfferingInventory instanceOffering = deployer.instanceOfferings.get("TestInstanceOffering");
+        ImageInventory imageInventory = deployer.images.get("TestImage");
+        VmCreator creator = new VmCreator(api);
+        creator.timeout = 600;
+        creator.addL3Network(l3.getUuid());
+        creator.imageUuid = imageInventory.getUuid();
+        creator.instanceOfferingUuid = instanceOffering.getUuid();
+        creator.create();
+        assertCapacity(host.getUuid());
+
+        HostCapacityIndex.Capacity c = index.getCapacity(host.getUuid());
+        Assert.assertTrue(index.find(c.getFreeCpu(), c.getFreeMemory()).contains(host.getUuid()));
+        Assert.assertFalse(index.find(c.getFreeCpu() + 1, c.getFreeMemory()).contains(host.getUuid()));
+        Assert.assertFalse(index.find(c.getFreeCpu(), c.getFreeMemory() + 1).contains(host.getUuid()));
+
+        HostCapacityVO cap = dbf.findByUuid(host.getUuid(), HostCapacityVO.class);
+        cap.setAvailableCpu(cap.getAvailableCpu() / 2);
+        cap.setAvailableMemory(cap.getAvailableMemory() / 2);
+        dbf.update(cap);
+        index.reconcile();
+        assertCapacity(host.getUuid());
+
+        cap = dbf.findByUuid(host.getUuid(), HostCapacityVO.class);
+        TagInventory tag = HostSystemTags.RESERVED_MEMORY_CAPACITY.createTag(host.getUuid(), map(e("capacity", cap.getAvailableMemory())));
+        Assert.assertFalse(index.find(1, 1).contains(host.getUuid()));
+        assertCapacity(host.getUuid());
+
+        api.deleteTag(tag.getUuid());
+        Assert.assertTrue(index.find(1, 1).contains(host.getUuid()));
+    }
+}
@@ -0,0 +1,120 @@
+package org.zstack.test.compute.vm;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.compute.host.HostGlobalConfig;
+import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.cloudbus.EventCallback;
+import org.zstack.core.cloudbus.EventFacade;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.db.SimpleQuery;
+import org.zstack.core.db.SimpleQuery.Op;
+import org.zstack.header.vm.VmInstanceState;
+import org.zstack.header.vm.VmInstanceVO;
+import org.zstack.header.vm.VmInstanceVO_;
+import org.zstack.header.vm.VmTracerCanonicalEvents;
+import org.zstack.header.vm.VmTracerCanonicalEvents.VmStateChangedData;
+import org.zstack.header.vm.VmTracerCanonicalEvents.VmStatesChangedOnHostData;
+import org.zstack.simulator.SimulatorController;
+import org.zstack.test.DBUtil;
+import org.zstack.test.deployer.Deployer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1. all vms on a host turn to Unknown on host side
+ * 2. they turn back to Running
+ * 3. nothing changes for a few pings
+ *
+ * confirm states in database are changed in 1, 2 and each change comes in one batched event per host;
+ * confirm no event comes in 3
+ */
+public class TestVmStateTracer7 {
+    Deployer deployer;
+    ComponentLoader loader;
+    CloudBus bus;
+    DatabaseFacade dbf;
+    EventFacade evtf;
+    SimulatorController sctrl;
+    List<VmStatesChangedOnHostData> events = new ArrayList<VmStatesChangedOnHostData>();
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        deployer = new Deployer("deployerXml/vm/TestVmStateTracer.xml");
+        loader = deployer.getComponentLoader();
+        sctrl = loader.getComponent(SimulatorController.class);
+        HostGlobalConfig.PING_HOST_INTERVAL.updateValue(1);
+        bus = loader.getComponent(CloudBus.class);
+        dbf = loader.getComponent(DatabaseFacade.class);
+        evtf = loader.getComponent(EventFacade.class);
+        deployer.build();
+    }
+
+    private List<VmInstanceVO> vmsOnHost(String hostUuid) {
+        SimpleQuery<VmInstanceVO> q = dbf.createQuery(VmInstanceVO.class);
+        q.add(VmInstanceVO_.hostUuid, Op.EQ, hostUuid);
+        return q.list();
+    }
+
+    private void changeAndCheck(String hostUuid, VmInstanceState state) throws InterruptedException {
+        synchronized (events) {
+            events.clear();
+        }
+
+        List<VmInstanceVO> vms = vmsOnHost(hostUuid);
+        for (VmInstanceVO vm : vms) {
+            sctrl.setVmStateOnSimulatorHost(hostUuid, vm.getUuid(), state);
+        }
+        TimeUnit.SECONDS.sleep(3);
+
+        for (VmInstanceVO vm : vmsOnHost(hostUuid)) {
+            Assert.assertEquals(state, vm.getState());
+        }
+
+        int changes = 0;
+        synchronized (events) {
+            for (VmStatesChangedOnHostData data : events) {
+                Assert.assertEquals(hostUuid, data.getHostUuid());
+                for (VmStateChangedData c : data.getChanges()) {
+                    Assert.assertEquals(state, c.getTo());
+                    changes ++;
+                }
+            }
+        }
+        Assert.assertEquals(vms.size(), changes);
+    }
+
+    @Test
+    public void test() throws InterruptedException {
+        evtf.on(VmTracerCanonicalEvents.VM_STATES_CHANGED_ON_HOST_PATH, new EventCallback() {
+            @Override
+            public void run(Map tokens, Object data) {
+                synchronized (events) {
+                    events.add((VmStatesChangedOnHostData) data);
+                }
+            }
+        });
+
+        SimpleQuery<VmInstanceVO> q = dbf.createQuery(VmInstanceVO.class);
+        q.add(VmInstanceVO_.name, Op.EQ, "TestVm1");
+        VmInstanceVO vm1 = q.find();
+        String hostUuid = vm1.getHostUuid();
+
+        changeAndCheck(hostUuid, VmInstanceState.Unknown);
+        changeAndCheck(hostUuid, VmInstanceState.Running);
+
+        synchronized (events) {
+            events.clear();
+        }
+        TimeUnit.SECONDS.sleep(3);
+        synchronized (events) {
+            Assert.assertTrue(events.isEmpty());
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package org.zstack.test.compute.zone;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.CoreGlobalProperty;
+import org.zstack.core.Platform;
+import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.header.query.QueryOp;
+import org.zstack.header.zone.APIQueryZoneMsg;
+import org.zstack.header.zone.APIQueryZoneReply;
+import org.zstack.header.zone.ZoneInventory;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.DBUtil;
+import org.zstack.test.deployer.Deployer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 1. query zones in streaming mode, 2 zones a page
+ * 2. query zones in streaming mode with fields
+ * 3. query with an invalid continuation token
+ *
+ * confirm all zones are returned once in order of uuid and the last page has no continuation token
+ */
+public class TestQueryZoneStreaming {
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    CloudBus bus;
+    DatabaseFacade dbf;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        // initialize properties
+        Platform.getUuid();
+        CoreGlobalProperty.CHECK_BOX_TYPE_IN_INVENTORY = true;
+
+        deployer = new Deployer("deployerXml/zone/TestQueryZone.xml");
+        deployer.build();
+        api = deployer.getApi();
+        loader = deployer.getComponentLoader();
+        bus = loader.getComponent(CloudBus.class);
+        dbf = loader.getComponent(DatabaseFacade.class);
+    }
+
+    private List<ZoneInventory> queryAll(boolean fieldQuery) throws ApiSenderException {
+        List<ZoneInventory> ret = new ArrayList<ZoneInventory>();
+        String token = null;
+        int pages = 0;
+        do {
+            APIQueryZoneMsg msg = new APIQueryZoneMsg();
+            msg.addQueryCondition("name", QueryOp.LIKE, "Zone%");
+            if (fieldQuery) {
+                msg.addField("name");
+            }
+            msg.setStreaming(true);
+            msg.setContinuationToken(token);
+            msg.setLimit(2);
+            APIQueryZoneReply reply = api.query(msg, APIQueryZoneReply.class);
+            Assert.assertTrue(reply.getInventories().size() <= 2);
+            ret.addAll(reply.getInventories());
+            token = reply.getContinuationToken();
+            pages ++;
+        } while (token != null);
+
+        Assert.assertEquals(3, pages);
+        return ret;
+    }
+
+    @Test
+    public void test() throws ApiSenderException {
+        List<ZoneInventory> zones = queryAll(false);
+        Assert.assertEquals(5, zones.size());
+        for (int i=1; i<zones.size(); i++) {
+            Assert.assertTrue(zones.get(i-1).getUuid().compareTo(zones.get(i).getUuid()) < 0);
+        }
+
+        zones = queryAll(true);
+        Assert.assertEquals(5, zones.size());
+        for (ZoneInventory zone : zones) {
+            Assert.assertNotNull(zone.getName());
+            Assert.assertNull(zone.getUuid());
+        }
+
+        APIQueryZoneMsg msg = new APIQueryZoneMsg();
+        msg.setContinuationToken("invalid");
+        boolean s = false;
+        try {
+            api.query(msg, APIQueryZoneReply.class);
+        } catch (ApiSenderException e) {
+            s = true;
+        }
+        Assert.assertTrue(s);
+    }
+}
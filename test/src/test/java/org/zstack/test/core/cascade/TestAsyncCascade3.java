@@ -0,0 +1,164 @@
+package org.zstack.test.core.cascade;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.cascade.*;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.header.core.Completion;
+import org.zstack.header.errorcode.ErrorCode;
+import org.zstack.test.BeanConstructor;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.*;
+
+/**
+ * 1. zone has two independent children, cluster and primaryStorage, both hold their completions
+ * 2. vm is a batch extension under both cluster and primaryStorage, returning overlapped uuids
+ *
+ * confirm cluster and primaryStorage run at the same time and zone runs after both in 1,
+ * and vm receives each uuid once in 2
+ */
+public class TestAsyncCascade3 {
+    CLogger logger = Utils.getLogger(TestAsyncCascade3.class);
+    ComponentLoader loader;
+    CascadeFacade casf;
+    List<Completion> pending = new ArrayList<Completion>();
+    List<String> batched = new ArrayList<String>();
+    boolean zoneDone;
+    boolean success;
+
+    @Before
+    public void setUp() throws Exception {
+        BeanConstructor con = new BeanConstructor();
+        loader = con.build();
+        casf = loader.getComponent(CascadeFacade.class);
+    }
+
+    private void bootstrap(Map<String, CascadeExtensionPoint> exts) throws NoSuchMethodException, InvocationTargetException, IllegalAccessException {
+        Method method = CascadeFacadeImpl.class.getDeclaredMethod("populateCascadeNodes", Map.class);
+        method.setAccessible(true);
+        method.invoke(casf, exts);
+
+        method = CascadeFacadeImpl.class.getDeclaredMethod("populateTree");
+        method.setAccessible(true);
+        method.invoke(casf);
+    }
+
+    private CascadeExtensionPoint pendingExtension(final String name, final String parent) {
+        return new AbstractAsyncCascadeExtension() {
+            @Override
+            public void asyncCascade(CascadeAction action, Completion completion) {
+                pending.add(completion);
+            }
+
+            @Override
+            public List<String> getEdgeNames() {
+                return Arrays.asList(parent);
+            }
+
+            @Override
+            public String getCascadeResourceName() {
+                return name;
+            }
+
+            @Override
+            public CascadeAction createActionForChildResource(CascadeAction action) {
+                return action.copy().setParentIssuer(name);
+            }
+        };
+    }
+
+    class VmExtension extends AbstractAsyncCascadeExtension implements CascadeBatchExtensionPoint {
+        @Override
+        public List<String> getCascadeResourceUuids(CascadeAction action) {
+            if ("cluster".equals(action.getParentIssuer())) {
+                return Arrays.asList("vm1", "vm2");
+            } else {
+                return Arrays.asList("vm2", "vm3");
+            }
+        }
+
+        @Override
+        public void asyncBatchCascade(CascadeAction action, List<String> resourceUuids, Completion completion) {
+            batched.addAll(resourceUuids);
+            completion.success();
+        }
+
+        @Override
+        public void asyncCascade(CascadeAction action, Completion completion) {
+            Assert.fail("vm should be cascaded in batch");
+        }
+
+        @Override
+        public List<String> getEdgeNames() {
+            return Arrays.asList("cluster", "primaryStorage");
+        }
+
+        @Override
+        public String getCascadeResourceName() {
+            return "vm";
+        }
+
+        @Override
+        public CascadeAction createActionForChildResource(CascadeAction action) {
+            return null;
+        }
+    }
+
+    @Test
+    public void test() throws NoSuchMethodException, IllegalAccessException, InvocationTargetException {
+        Map<String, CascadeExtensionPoint> map = new HashMap<String, CascadeExtensionPoint>();
+        map.put("zone", new AbstractAsyncCascadeExtension() {
+            @Override
+            public void asyncCascade(CascadeAction action, Completion completion) {
+                zoneDone = true;
+                completion.success();
+            }
+
+            @Override
+            public List<String> getEdgeNames() {
+                return Arrays.asList();
+            }
+
+            @Override
+            public String getCascadeResourceName() {
+                return "zone";
+            }
+
+            @Override
+            public CascadeAction createActionForChildResource(CascadeAction action) {
+                return action.copy().setParentIssuer("zone");
+            }
+        });
+        map.put("cluster", pendingExtension("cluster", "zone"));
+        map.put("primaryStorage", pendingExtension("primaryStorage", "zone"));
+        map.put("vm", new VmExtension());
+
+        bootstrap(map);
+        casf.asyncCascade("test", "zone", null, new Completion() {
+            @Override
+            public void success() {
+                success = true;
+            }
+
+            @Override
+            public void fail(ErrorCode errorCode) {
+            }
+        });
+
+        Assert.assertEquals(2, pending.size());
+        Assert.assertFalse(zoneDone);
+        Collections.sort(batched);
+        Assert.assertEquals(Arrays.asList("vm1", "vm2", "vm3"), batched);
+
+        pending.get(0).success();
+        Assert.assertFalse(zoneDone);
+        pending.get(1).success();
+        Assert.assertTrue(zoneDone);
+        Assert.assertTrue(success);
+    }
+}
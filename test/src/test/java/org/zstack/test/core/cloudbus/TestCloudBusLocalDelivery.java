@@ -0,0 +1,149 @@
+package org.zstack.test.core.cloudbus;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.cloudbus.CloudBusCallBack;
+import org.zstack.core.cloudbus.CloudBusIN;
+import org.zstack.core.cloudbus.CloudBusMXBean;
+import org.zstack.core.cloudbus.DeliveryStatistic;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.header.AbstractService;
+import org.zstack.header.Service;
+import org.zstack.header.errorcode.SysErrors;
+import org.zstack.header.message.Message;
+import org.zstack.header.message.MessageReply;
+import org.zstack.header.message.NeedReplyMessage;
+import org.zstack.test.BeanConstructor;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1. send a message to a service of this management node, the service changes the message it received then replies
+ * 2. send a message the service never replies
+ *
+ * confirm both messages are delivered without the broker, the sender's message is not changed by the service,
+ * the reply is correlated to the first message and the second message times out
+ */
+public class TestCloudBusLocalDelivery {
+    CLogger logger = Utils.getLogger(TestCloudBusLocalDelivery.class);
+    ComponentLoader loader;
+    CloudBusIN bus;
+    Service serv;
+    boolean isSuccess = false;
+    boolean isTimeout = false;
+
+    public static class HelloWorldMsg extends NeedReplyMessage {
+        private String greet;
+
+        public String getGreet() {
+            return greet;
+        }
+
+        public void setGreet(String greet) {
+            this.greet = greet;
+        }
+    }
+
+    public static class NoReplyMsg extends NeedReplyMessage {
+    }
+
+    public static class HelloWorldReply extends MessageReply {
+        private String greet;
+
+        public String getGreet() {
+            return greet;
+        }
+
+        public void setGreet(String greet) {
+            this.greet = greet;
+        }
+    }
+
+    class FakeService extends AbstractService {
+        @Override
+        public boolean start() {
+            bus.registerService(this);
+            bus.activeService(this);
+            return true;
+        }
+
+        @Override
+        public boolean stop() {
+            bus.deActiveService(this);
+            bus.unregisterService(this);
+            return true;
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.getClass() == HelloWorldMsg.class) {
+                HelloWorldMsg hmsg = (HelloWorldMsg) msg;
+                HelloWorldReply r = new HelloWorldReply();
+                r.setGreet(hmsg.getGreet());
+                hmsg.setGreet("changed by receiver");
+                bus.reply(msg, r);
+            }
+        }
+
+        @Override
+        public String getId() {
+            return this.getClass().getCanonicalName();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        BeanConstructor con = new BeanConstructor();
+        loader = con.build();
+        bus = loader.getComponent(CloudBusIN.class);
+        serv = new FakeService();
+        serv.start();
+    }
+
+    @Test
+    public void test() throws InterruptedException {
+        DeliveryStatistic before = ((CloudBusMXBean) bus).getDeliveryStatistic();
+        Assert.assertTrue(before.isLocalDeliveryEnabled());
+
+        final CountDownLatch latch = new CountDownLatch(2);
+        final HelloWorldMsg msg = new HelloWorldMsg();
+        msg.setGreet("Hello");
+        msg.setServiceId(FakeService.class.getCanonicalName());
+        msg.setTimeout(TimeUnit.SECONDS.toMillis(10));
+        bus.send(msg, new CloudBusCallBack() {
+            @Override
+            public void run(MessageReply reply) {
+                if (reply instanceof HelloWorldReply) {
+                    HelloWorldReply hr = (HelloWorldReply) reply;
+                    isSuccess = "Hello".equals(hr.getGreet()) && "Hello".equals(msg.getGreet());
+                }
+                latch.countDown();
+            }
+        });
+
+        NoReplyMsg nmsg = new NoReplyMsg();
+        nmsg.setServiceId(FakeService.class.getCanonicalName());
+        nmsg.setTimeout(TimeUnit.SECONDS.toMillis(1));
+        bus.send(nmsg, new CloudBusCallBack() {
+            @Override
+            public void run(MessageReply reply) {
+                isTimeout = !reply.isSuccess() && SysErrors.TIMEOUT.toString().equals(reply.getError().getCode());
+                latch.countDown();
+            }
+        });
+
+        latch.await(15, TimeUnit.SECONDS);
+        serv.stop();
+        Assert.assertTrue(isSuccess);
+        Assert.assertTrue(isTimeout);
+
+        DeliveryStatistic after = ((CloudBusMXBean) bus).getDeliveryStatistic();
+        Assert.assertEquals(before.getLocalRequestCount() + 2, after.getLocalRequestCount());
+        Assert.assertEquals(before.getLocalReplyCount() + 1, after.getLocalReplyCount());
+        Assert.assertEquals(before.getLocalFallbackCount(), after.getLocalFallbackCount());
+    }
+}
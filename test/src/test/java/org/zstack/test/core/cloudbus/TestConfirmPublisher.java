@@ -0,0 +1,226 @@
+package org.zstack.test.core.cloudbus;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import junit.framework.Assert;
+import org.junit.Test;
+import org.zstack.core.cloudbus.ConfirmPublisher;
+import org.zstack.core.cloudbus.ConfirmPublisher.PendingPublish;
+import org.zstack.header.message.Message;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * publish through a ConfirmPublisher on fake channels:
+ * 1. messages queued before the publisher starts are published in batches and all confirmed
+ * 2. nacked messages fail
+ * 3. messages not confirmed in time stay pending, are confirmed later, or fail when the channel is found closed
+ * 4. a channel closed in the middle of a batch fails the rest of the batch and is reopened for the next batch
+ * 5. a full queue blocks the sender until the publisher drains it
+ */
+public class TestConfirmPublisher {
+    static final String ACK = "ack";
+    static final String NACK = "nack";
+    static final String TIMEOUT = "timeout";
+
+    class FakeChannel implements InvocationHandler {
+        volatile boolean open = true;
+        volatile ConfirmListener confirmListener;
+        long seq = 1;
+        int publishedNum;
+        int waitNum;
+        int closeAtPublish = -1;
+        String confirmMode = ACK;
+        Channel channel = (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class[]{Channel.class}, this);
+
+        @Override
+        public synchronized Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("addConfirmListener".equals(name)) {
+                confirmListener = (ConfirmListener) args[0];
+            } else if ("getNextPublishSeqNo".equals(name)) {
+                return seq;
+            } else if ("basicPublish".equals(name)) {
+                if (publishedNum == closeAtPublish) {
+                    open = false;
+                }
+                if (!open) {
+                    throw new AlreadyClosedException("channel is already closed", null);
+                }
+                seq ++;
+                publishedNum ++;
+            } else if ("waitForConfirms".equals(name)) {
+                waitNum ++;
+                if (ACK.equals(confirmMode)) {
+                    confirmListener.handleAck(seq - 1, true);
+                } else if (NACK.equals(confirmMode)) {
+                    confirmListener.handleNack(seq - 1, true);
+                } else {
+                    throw new TimeoutException();
+                }
+                return true;
+            } else if ("isOpen".equals(name)) {
+                return open;
+            } else if ("abort".equals(name) || "close".equals(name)) {
+                open = false;
+            } else if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            } else if ("equals".equals(name)) {
+                return proxy == args[0];
+            } else if ("toString".equals(name)) {
+                return "FakeChannel";
+            }
+            return null;
+        }
+    }
+
+    class Publisher implements ConfirmPublisher.ChannelFactory, ConfirmPublisher.PublishListener {
+        List<FakeChannel> channels = Collections.synchronizedList(new ArrayList<FakeChannel>());
+        List<Message> confirmed = Collections.synchronizedList(new ArrayList<Message>());
+        List<String> failed = Collections.synchronizedList(new ArrayList<String>());
+        List<Integer> batches = Collections.synchronizedList(new ArrayList<Integer>());
+        String confirmMode = ACK;
+        ConfirmPublisher publisher;
+
+        Publisher(int queueSize, int batchSize) throws IOException {
+            publisher = new ConfirmPublisher("test-publisher", this, this, queueSize, batchSize, 100);
+        }
+
+        FakeChannel channel() {
+            return channels.get(channels.size() - 1);
+        }
+
+        void publish(int num) {
+            for (int i = 0; i < num; i++) {
+                Message msg = new FakeNeedReplyMessage();
+                msg.setAMQPProperties(new AMQP.BasicProperties());
+                publisher.publish(new PendingPublish("exchange", "key", msg, new byte[]{1}));
+            }
+        }
+
+        void waitFor(int num) throws InterruptedException {
+            for (int i = 0; i < 100 && confirmed.size() + failed.size() < num; i++) {
+                TimeUnit.MILLISECONDS.sleep(50);
+            }
+        }
+
+        @Override
+        public Channel createChannel() throws IOException {
+            FakeChannel c = new FakeChannel();
+            c.confirmMode = confirmMode;
+            channels.add(c);
+            return c.channel;
+        }
+
+        @Override
+        public void confirmed(PendingPublish p, long latency) {
+            confirmed.add(p.getMsg());
+        }
+
+        @Override
+        public void failed(PendingPublish p, String reason) {
+            failed.add(reason);
+        }
+
+        @Override
+        public void batched(int size) {
+            batches.add(size);
+        }
+    }
+
+    @Test
+    public void test() throws Exception {
+        Publisher p = new Publisher(1000, 10);
+        p.publish(95);
+        p.publisher.start();
+        p.waitFor(95);
+        Assert.assertEquals(95, p.confirmed.size());
+        Assert.assertTrue(p.failed.isEmpty());
+        Assert.assertEquals(10, p.batches.size());
+        Assert.assertEquals(Integer.valueOf(5), p.batches.get(9));
+        Assert.assertEquals(10, p.channel().waitNum);
+        Assert.assertEquals(0, p.publisher.getQueueDepth());
+        p.publisher.destruct();
+
+        p = new Publisher(1000, 10);
+        p.confirmMode = NACK;
+        p.channel().confirmMode = NACK;
+        p.publisher.start();
+        p.publish(15);
+        p.waitFor(15);
+        Assert.assertTrue(p.confirmed.isEmpty());
+        Assert.assertEquals(15, p.failed.size());
+        Assert.assertTrue(p.failed.get(0).contains("rejected"));
+        p.publisher.destruct();
+
+        p = new Publisher(1000, 10);
+        p.channel().confirmMode = TIMEOUT;
+        p.publisher.start();
+        p.publish(10);
+        TimeUnit.MILLISECONDS.sleep(500);
+        Assert.assertTrue(p.confirmed.isEmpty());
+        Assert.assertTrue(p.failed.isEmpty());
+        Assert.assertEquals(10, p.publisher.getQueueDepth());
+        // RabbitMQ confirms them late
+        p.channel().confirmListener.handleAck(5, true);
+        Assert.assertEquals(5, p.confirmed.size());
+        Assert.assertEquals(5, p.publisher.getQueueDepth());
+        // the channel is closed before the others are confirmed, they are found when the publisher is idle
+        p.channel().open = false;
+        p.waitFor(10);
+        Assert.assertEquals(5, p.failed.size());
+        Assert.assertTrue(p.failed.get(0).contains("may have been delivered"));
+        Assert.assertEquals(0, p.publisher.getQueueDepth());
+        Assert.assertEquals(2, p.channels.size());
+        p.publisher.destruct();
+
+        p = new Publisher(1000, 10);
+        p.channel().closeAtPublish = 3;
+        p.publish(10);
+        p.publisher.start();
+        p.waitFor(10);
+        // the 3 published before the channel is closed may have been delivered, the 7 left are never published
+        Assert.assertEquals(10, p.failed.size());
+        int notPublished = 0;
+        for (String reason : p.failed) {
+            if (!reason.contains("may have been delivered")) {
+                notPublished ++;
+            }
+        }
+        Assert.assertEquals(7, notPublished);
+        Assert.assertEquals(2, p.channels.size());
+        p.publish(10);
+        p.waitFor(20);
+        Assert.assertEquals(10, p.confirmed.size());
+        Assert.assertEquals(10, p.channel().publishedNum);
+        p.publisher.destruct();
+
+        final Publisher bp = new Publisher(5, 5);
+        bp.publish(5);
+        Thread sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                bp.publish(5);
+            }
+        });
+        sender.start();
+        sender.join(500);
+        Assert.assertTrue(sender.isAlive());
+        bp.publisher.start();
+        sender.join(TimeUnit.SECONDS.toMillis(5));
+        Assert.assertFalse(sender.isAlive());
+        bp.waitFor(10);
+        Assert.assertEquals(10, bp.confirmed.size());
+        bp.publisher.destruct();
+    }
+}
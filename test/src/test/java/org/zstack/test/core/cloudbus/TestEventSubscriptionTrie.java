@@ -0,0 +1,104 @@
+package org.zstack.test.core.cloudbus;
+
+import junit.framework.Assert;
+import org.junit.Test;
+import org.zstack.core.cloudbus.EventSubscriptionTrie;
+import org.zstack.core.cloudbus.EventSubscriptionTrie.Match;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1. subscribe paths with literals, tokens, globs and multi-segment wildcards
+ * 2. subscribe and unsubscribe in parallel threads
+ *
+ * confirm events match the right subscriptions with tokens extracted, and no subscription is lost
+ * when branches of the trie are pruned concurrently
+ */
+public class TestEventSubscriptionTrie {
+    private List<String> values(List<Match<String>> ms) {
+        List<String> ret = new ArrayList<String>();
+        for (Match<String> m : ms) {
+            ret.add(m.getValue());
+        }
+        return ret;
+    }
+
+    @Test
+    public void test() throws InterruptedException {
+        final EventSubscriptionTrie<String> trie = new EventSubscriptionTrie<String>();
+        trie.subscribe("/vm/{uuid}/state", "token", "token");
+        trie.subscribe("/vm/123/state", "literal", "literal");
+        trie.subscribe("/vm/*", "multi", "multi");
+        trie.subscribe("/?m/1*/state", "glob", "glob");
+        trie.subscribe("/{greeting}/event/{uuid}", "greeting", "greeting");
+
+        List<Match<String>> ms = trie.match("/vm/123/state");
+        List<String> vals = values(ms);
+        Assert.assertEquals(4, vals.size());
+        Assert.assertTrue(vals.contains("token"));
+        Assert.assertTrue(vals.contains("literal"));
+        Assert.assertTrue(vals.contains("multi"));
+        Assert.assertTrue(vals.contains("glob"));
+        for (Match<String> m : ms) {
+            if ("token".equals(m.getValue())) {
+                Assert.assertEquals("123", m.getTokens().get("uuid"));
+            }
+        }
+
+        vals = values(trie.match("/vm/456/state"));
+        Assert.assertEquals(2, vals.size());
+        Assert.assertTrue(vals.contains("token"));
+        Assert.assertTrue(vals.contains("multi"));
+
+        // a token matches exactly one segment
+        Assert.assertEquals(1, trie.match("/vm/456/state/extra").size());
+        Assert.assertTrue(trie.match("/host/123/state").isEmpty());
+
+        ms = trie.match("/hello, world/event/abc");
+        Assert.assertEquals(1, ms.size());
+        Assert.assertEquals("hello, world", ms.get(0).getTokens().get("greeting"));
+        Assert.assertEquals("abc", ms.get(0).getTokens().get("uuid"));
+
+        // re-subscribing replaces the old subscription
+        trie.subscribe("/host/{uuid}/state", "token", "token");
+        Assert.assertEquals(1, trie.match("/host/123/state").size());
+        Assert.assertFalse(values(trie.match("/vm/123/state")).contains("token"));
+
+        Assert.assertTrue(trie.unsubscribe("literal"));
+        Assert.assertFalse(trie.unsubscribe("literal"));
+        Assert.assertFalse(values(trie.match("/vm/123/state")).contains("literal"));
+
+        final int threadNum = 8;
+        final int rounds = 5000;
+        final CountDownLatch latch = new CountDownLatch(threadNum);
+        for (int i = 0; i < threadNum; i++) {
+            final int id = i;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < rounds; j++) {
+                            String identity = String.format("%s-%s", id, j);
+                            trie.subscribe(String.format("/race/%s/{uuid}", j % 4), identity, identity);
+                            if (j % 2 == 0) {
+                                trie.unsubscribe(identity);
+                            }
+                        }
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            }).start();
+        }
+        Assert.assertTrue(latch.await(60, TimeUnit.SECONDS));
+
+        int total = 0;
+        for (int i = 0; i < 4; i++) {
+            total += trie.match(String.format("/race/%s/abc", i)).size();
+        }
+        Assert.assertEquals(threadNum * rounds / 2, total);
+    }
+}
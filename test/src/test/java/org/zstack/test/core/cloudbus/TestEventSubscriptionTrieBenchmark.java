@@ -0,0 +1,101 @@
+package org.zstack.test.core.cloudbus;
+
+import org.apache.commons.lang.time.StopWatch;
+import org.junit.Test;
+import org.zstack.core.cloudbus.EventSubscriptionTrie;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * cost of subscribing, matching and unsubscribing canonical event paths with 10k, 100k and 1M subscriptions,
+ * compared with testing every subscription by regex as EventFacadeImpl did before
+ */
+public class TestEventSubscriptionTrieBenchmark {
+    private static final int[] SUBSCRIPTION_NUMS = new int[]{10000, 100000, 1000000};
+    private static final int MATCH_ROUNDS = 100000;
+    // rounds of the linear scan with 100k subscriptions
+    private static final int LINEAR_MATCH_ROUNDS = 100;
+
+    private String path(int i) {
+        // like VmInstanceBase waiting for unlocking of each resource, plus a few subscriptions with tokens
+        if (i % 100 == 0) {
+            return String.format("/resource/%s/state/{nodeUuid}", i);
+        }
+        return String.format("/resource/unlock/%s", i);
+    }
+
+    private void benchmarkTrie(int num) {
+        EventSubscriptionTrie<Integer> trie = new EventSubscriptionTrie<Integer>();
+        List<Integer> ids = new ArrayList<Integer>(num);
+        for (int i = 0; i < num; i++) {
+            ids.add(i);
+        }
+
+        StopWatch w = new StopWatch();
+        w.start();
+        for (Integer id : ids) {
+            trie.subscribe(path(id), id, id);
+        }
+        w.stop();
+        System.out.println(String.format("[trie] %s subscriptions: subscribe cost %sms, %sns/op",
+                num, w.getTime(), w.getTime() * 1000000 / num));
+
+        int matched = 0;
+        for (int i = 0; i < MATCH_ROUNDS; i++) {
+            matched += trie.match(String.format("/resource/unlock/%s", i % num)).size();
+        }
+
+        w = new StopWatch();
+        w.start();
+        for (int i = 0; i < MATCH_ROUNDS; i++) {
+            matched += trie.match(String.format("/resource/unlock/%s", i % num)).size();
+            matched += trie.match(String.format("/resource/%s/state/node", (i % num) / 100 * 100)).size();
+        }
+        w.stop();
+        System.out.println(String.format("[trie] %s subscriptions: match cost %sms, %sns/op, %s matched",
+                num, w.getTime(), w.getTime() * 1000000 / (MATCH_ROUNDS * 2), matched));
+
+        w = new StopWatch();
+        w.start();
+        for (Integer id : ids) {
+            trie.unsubscribe(id);
+        }
+        w.stop();
+        System.out.println(String.format("[trie] %s subscriptions: unsubscribe cost %sms, %sns/op",
+                num, w.getTime(), w.getTime() * 1000000 / num));
+    }
+
+    private void benchmarkLinear(int num) {
+        List<Pattern> patterns = new ArrayList<Pattern>(num);
+        for (int i = 0; i < num; i++) {
+            patterns.add(Pattern.compile(path(i).replaceAll("\\{.*\\}", ".*")));
+        }
+
+        // every round tests all subscriptions, so fewer rounds are run for big numbers; the cost is per round
+        int rounds = Math.max(1, LINEAR_MATCH_ROUNDS * 100000 / num);
+        StopWatch w = new StopWatch();
+        w.start();
+        int matched = 0;
+        for (int i = 0; i < rounds; i++) {
+            String path = String.format("/resource/unlock/%s", i % num);
+            for (Pattern p : patterns) {
+                if (p.matcher(path).matches()) {
+                    matched ++;
+                }
+            }
+        }
+        w.stop();
+        System.out.println(String.format("[linear] %s subscriptions: match cost %sms, %sns/op, %s matched",
+                num, w.getTime(), w.getTime() * 1000000 / rounds, matched));
+    }
+
+    @Test
+    public void test() {
+        for (int num : SUBSCRIPTION_NUMS) {
+            benchmarkTrie(num);
+            benchmarkLinear(num);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package org.zstack.test.core.cloudbus;
+
+import junit.framework.Assert;
+import org.junit.Test;
+import org.zstack.core.cloudbus.BinaryMessageCodec;
+import org.zstack.core.cloudbus.JsonMessageCodec;
+import org.zstack.header.message.NeedReplyMessage;
+import org.zstack.header.vm.StartVmInstanceMsg;
+import org.zstack.header.vm.VmInstanceState;
+import org.zstack.kvm.KVMAgentCommands.NicTO;
+import org.zstack.kvm.KVMAgentCommands.StartVmCmd;
+import org.zstack.kvm.KVMAgentCommands.VolumeTO;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * encode/decode messages by the binary codec, and make sure the JSON codec can read what it writes
+ */
+public class TestMessageCodec {
+    public static class CommandCarrierMsg extends NeedReplyMessage {
+        private Object command;
+        private VmInstanceState state;
+        private Timestamp createDate;
+        private List<String> uuids;
+        private int[] ports;
+
+        public Object getCommand() {
+            return command;
+        }
+
+        public void setCommand(Object command) {
+            this.command = command;
+        }
+
+        public VmInstanceState getState() {
+            return state;
+        }
+
+        public void setState(VmInstanceState state) {
+            this.state = state;
+        }
+
+        public Timestamp getCreateDate() {
+            return createDate;
+        }
+
+        public void setCreateDate(Timestamp createDate) {
+            this.createDate = createDate;
+        }
+
+        public List<String> getUuids() {
+            return uuids;
+        }
+
+        public void setUuids(List<String> uuids) {
+            this.uuids = uuids;
+        }
+
+        public int[] getPorts() {
+            return ports;
+        }
+
+        public void setPorts(int[] ports) {
+            this.ports = ports;
+        }
+    }
+
+    static StartVmCmd makeStartVmCmd() {
+        StartVmCmd cmd = new StartVmCmd();
+        cmd.setVmInstanceUuid("b6f4e3d2a1c04f9a8e7d6c5b4a392817");
+        cmd.setVmName("vm-for-codec-test");
+        cmd.setMemory(2147483648L);
+        cmd.setCpuNum(4);
+        cmd.setCpuSpeed(2600);
+        cmd.setBootDev("hd");
+        cmd.setTimeout(300);
+
+        VolumeTO root = new VolumeTO();
+        root.setVolumeUuid("0f6c5d4e3b2a41908f7e6d5c4b3a2918");
+        root.setInstallPath("/opt/zstack/nfsprimarystorage/prim-1/rootVolumes/acct-1/vol-0f6c/0f6c.qcow2");
+        root.setDeviceId(0);
+        cmd.setRootVolume(root);
+
+        List<VolumeTO> data = new ArrayList<VolumeTO>();
+        for (int i = 1; i < 4; i++) {
+            VolumeTO vol = new VolumeTO();
+            vol.setVolumeUuid(String.format("data-volume-%s", i));
+            vol.setInstallPath(String.format("/opt/zstack/nfsprimarystorage/prim-1/dataVolumes/vol-%s.qcow2", i));
+            vol.setDeviceId(i);
+            data.add(vol);
+        }
+        cmd.setDataVolumes(data);
+
+        List<NicTO> nics = new ArrayList<NicTO>();
+        for (int i = 0; i < 2; i++) {
+            NicTO nic = new NicTO();
+            nic.setMac(String.format("fa:16:3e:00:00:0%s", i));
+            nic.setBridgeName(String.format("br_eth%s", i));
+            nic.setDeviceId(i);
+            nic.setUseVirtio(true);
+            nics.add(nic);
+        }
+        cmd.setNics(nics);
+
+        Map<String, Object> addons = new HashMap<String, Object>();
+        addons.put("channel", "org.qemu.guest_agent.0");
+        addons.put("vnc", true);
+        cmd.setAddons(addons);
+        return cmd;
+    }
+
+    @Test
+    public void test() throws Exception {
+        BinaryMessageCodec binary = new BinaryMessageCodec();
+        JsonMessageCodec json = new JsonMessageCodec();
+
+        StartVmInstanceMsg smsg = new StartVmInstanceMsg();
+        smsg.setVmInstanceUuid("b6f4e3d2a1c04f9a8e7d6c5b4a392817");
+        smsg.setTimeout(1800000);
+        smsg.setServiceId("vmInstance.b6f4e3d2");
+        smsg.putHeaderEntry("correlationId", smsg.getId());
+
+        StartVmInstanceMsg smsg2 = (StartVmInstanceMsg) binary.decode(binary.encode(smsg));
+        Assert.assertEquals(smsg.getId(), smsg2.getId());
+        Assert.assertEquals(smsg.getServiceId(), smsg2.getServiceId());
+        Assert.assertEquals(smsg.getVmInstanceUuid(), smsg2.getVmInstanceUuid());
+        Assert.assertEquals(smsg.getTimeout(), smsg2.getTimeout());
+        Assert.assertEquals(smsg.getCreatingTime(), smsg2.getCreatingTime());
+        Assert.assertEquals(smsg.getId(), smsg2.getHeaderEntry("correlationId"));
+
+        CommandCarrierMsg cmsg = new CommandCarrierMsg();
+        cmsg.setCommand(makeStartVmCmd());
+        cmsg.setState(VmInstanceState.Running);
+        cmsg.setCreateDate(new Timestamp(System.currentTimeMillis()));
+        List<String> uuids = new ArrayList<String>();
+        uuids.add("uuid1");
+        uuids.add(null);
+        uuids.add("uuid3");
+        cmsg.setUuids(uuids);
+        cmsg.setPorts(new int[]{22, 80, 443});
+
+        CommandCarrierMsg cmsg2 = (CommandCarrierMsg) binary.decode(binary.encode(cmsg));
+        // the binary codec keeps the real type of the field declared as Object
+        Assert.assertTrue(cmsg2.getCommand() instanceof StartVmCmd);
+        StartVmCmd cmd = (StartVmCmd) cmsg.getCommand();
+        StartVmCmd cmd2 = (StartVmCmd) cmsg2.getCommand();
+        Assert.assertEquals(cmd.getVmUuid(), cmd2.getVmUuid());
+        Assert.assertEquals(cmd.getMemory(), cmd2.getMemory());
+        Assert.assertEquals(cmd.getCpuNum(), cmd2.getCpuNum());
+        Assert.assertEquals(cmd.getRootVolume().getInstallPath(), cmd2.getRootVolume().getInstallPath());
+        Assert.assertEquals(3, cmd2.getDataVolumes().size());
+        Assert.assertEquals(cmd.getDataVolumes().get(2).getVolumeUuid(), cmd2.getDataVolumes().get(2).getVolumeUuid());
+        Assert.assertEquals(2, cmd2.getNics().size());
+        Assert.assertEquals(cmd.getNics().get(1).getMac(), cmd2.getNics().get(1).getMac());
+        Assert.assertEquals(Boolean.TRUE, cmd2.getNics().get(1).getUseVirtio());
+        Assert.assertEquals(Boolean.TRUE, cmd2.getAddons().get("vnc"));
+        Assert.assertEquals(VmInstanceState.Running, cmsg2.getState());
+        Assert.assertEquals(cmsg.getCreateDate(), cmsg2.getCreateDate());
+        Assert.assertEquals(uuids, cmsg2.getUuids());
+        Assert.assertEquals(3, cmsg2.getPorts().length);
+        Assert.assertEquals(443, cmsg2.getPorts()[2]);
+
+        StartVmInstanceMsg smsg3 = (StartVmInstanceMsg) json.decode(json.encode(smsg));
+        Assert.assertEquals(smsg.getVmInstanceUuid(), smsg3.getVmInstanceUuid());
+    }
+}
@@ -0,0 +1,65 @@
+package org.zstack.test.core.cloudbus;
+
+import org.apache.commons.lang.time.StopWatch;
+import org.junit.Test;
+import org.zstack.core.cloudbus.BinaryMessageCodec;
+import org.zstack.core.cloudbus.JsonMessageCodec;
+import org.zstack.core.cloudbus.MessageCodec;
+import org.zstack.header.message.Message;
+import org.zstack.header.vm.StartVmInstanceMsg;
+import org.zstack.kvm.KVMHostAsyncHttpCallMsg;
+import org.zstack.test.core.cloudbus.TestMessageCodec.CommandCarrierMsg;
+import org.zstack.utils.gson.JSONObjectUtil;
+
+/**
+ * compare cost and size of the JSON codec and the binary codec on typical messages
+ */
+public class TestMessageCodecBenchmark {
+    private static final int WARMUP = 10000;
+    private static final int ROUNDS = 50000;
+
+    private long run(MessageCodec codec, Message msg, int rounds) throws Exception {
+        long size = 0;
+        for (int i = 0; i < rounds; i++) {
+            byte[] data = codec.encode(msg);
+            codec.decode(data);
+            size = data.length;
+        }
+        return size;
+    }
+
+    private void benchmark(String name, Message msg) throws Exception {
+        MessageCodec[] codecs = new MessageCodec[]{new JsonMessageCodec(), new BinaryMessageCodec()};
+        for (MessageCodec codec : codecs) {
+            run(codec, msg, WARMUP);
+
+            StopWatch w = new StopWatch();
+            w.start();
+            long size = run(codec, msg, ROUNDS);
+            w.stop();
+            System.out.println(String.format("[%s] codec[%s]: %s rounds of encode/decode cost %sms, %sns/op, %s bytes",
+                    name, codec.getContentType(), ROUNDS, w.getTime(), w.getTime() * 1000000 / ROUNDS, size));
+        }
+    }
+
+    @Test
+    public void test() throws Exception {
+        StartVmInstanceMsg smsg = new StartVmInstanceMsg();
+        smsg.setVmInstanceUuid("b6f4e3d2a1c04f9a8e7d6c5b4a392817");
+        smsg.setServiceId("vmInstance.b6f4e3d2");
+        smsg.setTimeout(1800000);
+        benchmark("StartVmInstanceMsg", smsg);
+
+        KVMHostAsyncHttpCallMsg kmsg = new KVMHostAsyncHttpCallMsg();
+        kmsg.setHostUuid("2f4a9b8c7d6e4f5a9b8c7d6e5f4a3b2c");
+        kmsg.setPath("/vm/start");
+        kmsg.setCommand(JSONObjectUtil.toJsonString(TestMessageCodec.makeStartVmCmd()));
+        kmsg.setServiceId("host.2f4a9b8c");
+        benchmark("KVMHostAsyncHttpCallMsg", kmsg);
+
+        CommandCarrierMsg cmsg = new CommandCarrierMsg();
+        cmsg.setCommand(TestMessageCodec.makeStartVmCmd());
+        cmsg.setServiceId("host.2f4a9b8c");
+        benchmark("StartVmCmd", cmsg);
+    }
+}
@@ -0,0 +1,50 @@
+package org.zstack.test.core.job;
+
+import org.zstack.core.job.Job;
+import org.zstack.core.job.JobContext;
+import org.zstack.header.core.ReturnValueCompletion;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class FakeJob3 implements Job {
+    CLogger logger = Utils.getLogger(FakeJob3.class);
+
+    static ConcurrentHashMap<String, AtomicInteger> running = new ConcurrentHashMap<String, AtomicInteger>();
+    static volatile boolean success = true;
+
+    @JobContext
+    private String queueName;
+
+    private FakeJob3() {
+    }
+
+    public FakeJob3(String queueName) {
+        this.queueName = queueName;
+    }
+
+    @Override
+    public void run(ReturnValueCompletion<Object> complete) {
+        try {
+            running.putIfAbsent(queueName, new AtomicInteger(0));
+            AtomicInteger r = running.get(queueName);
+            if (r.incrementAndGet() > 1) {
+                logger.debug(String.format("more than one job running in queue[%s]", queueName));
+                success = false;
+            }
+
+            try {
+                TimeUnit.MILLISECONDS.sleep(10);
+            } catch (InterruptedException e) {
+                logger.warn(e.getMessage(), e);
+            }
+
+            r.decrementAndGet();
+        } finally {
+            complete.success(null);
+        }
+    }
+}
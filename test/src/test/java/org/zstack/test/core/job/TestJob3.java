@@ -0,0 +1,78 @@
+package org.zstack.test.core.job;
+
+import junit.framework.Assert;
+import org.apache.commons.lang.time.StopWatch;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.job.JobQueueFacade;
+import org.zstack.core.thread.AsyncThread;
+import org.zstack.header.core.Completion;
+import org.zstack.header.errorcode.ErrorCode;
+import org.zstack.test.Api;
+import org.zstack.test.BeanConstructor;
+import org.zstack.test.DBUtil;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * jobs spread on many queues:
+ * 1. jobs in the same queue never run concurrently
+ * 2. all jobs complete
+ */
+public class TestJob3 {
+    CLogger logger = Utils.getLogger(TestJob3.class);
+    ComponentLoader loader;
+    JobQueueFacade jobf;
+    int queueNum = 20;
+    int jobNumPerQueue = 20;
+    AtomicInteger failed = new AtomicInteger(0);
+    CountDownLatch latch = new CountDownLatch(queueNum * jobNumPerQueue);
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        BeanConstructor con = new BeanConstructor();
+        loader = con.addXml("JobForUnitTest.xml").addXml("PortalForUnitTest.xml").addXml("AccountManager.xml").build();
+        jobf = loader.getComponent(JobQueueFacade.class);
+        new Api().startServer();
+    }
+
+    @AsyncThread
+    private void startJob(String queueName) {
+        jobf.execute(queueName, "TestJob3", new FakeJob3(queueName), new Completion() {
+            @Override
+            public void success() {
+                latch.countDown();
+            }
+
+            @Override
+            public void fail(ErrorCode errorCode) {
+                logger.debug(errorCode.toString());
+                failed.incrementAndGet();
+                latch.countDown();
+            }
+        });
+    }
+
+    @Test
+    public void test() throws InterruptedException {
+        StopWatch w = new StopWatch();
+        w.start();
+        for (int i = 0; i < jobNumPerQueue; i++) {
+            for (int j = 0; j < queueNum; j++) {
+                startJob(String.format("fake-job-queue-%s", j));
+            }
+        }
+
+        Assert.assertTrue(latch.await(240, TimeUnit.SECONDS));
+        w.stop();
+        logger.debug(String.format("%s jobs in %s queues cost %sms", queueNum * jobNumPerQueue, queueNum, w.getTime()));
+        Assert.assertEquals(0, failed.get());
+        Assert.assertTrue(FakeJob3.success);
+    }
+}
@@ -0,0 +1,304 @@
+package org.zstack.test.core.logging;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.logging.*;
+import org.zstack.core.thread.Task;
+import org.zstack.core.thread.ThreadFacade;
+
+import javax.sql.DataSource;
+import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * write logs through a MysqlLogBackend on a fake database
+ * 1. block the database and write more logs than the queue holds with overflowPolicy = drop
+ * 2. block the database and write Info and Error logs over 80% of the queue with overflowPolicy = sample
+ * 3. write 3 batches of logs at once
+ * 4. write fewer logs than a batch
+ * 5. enable spill, fail the database, write logs, then recover the database
+ *
+ * confirm
+ * 1. write() never blocks, the queue never exceeds its capacity and extra logs are counted as dropped
+ * 2. only one of sampleRate Info logs is kept, Error logs are all kept
+ * 3. the logs are written in 3 multi-row inserts
+ * 4. the logs are written in one insert after flushInterval
+ * 5. failed batches are written to the spill file, and replayed to the database when the queue is empty
+ */
+public class TestMysqlLogBackend {
+    int bufferSize;
+    int batchSize;
+    long flushInterval;
+    String overflowPolicy;
+    int sampleRate;
+    boolean spill;
+    File spillFile;
+    List<MysqlLogBackend> backends = new ArrayList<MysqlLogBackend>();
+
+    class FakeDatabase implements InvocationHandler {
+        volatile boolean fail;
+        volatile CountDownLatch gate;
+        volatile CountDownLatch inInsert = new CountDownLatch(1);
+        List<Integer> inserts = Collections.synchronizedList(new ArrayList<Integer>());
+        List<String> contents = Collections.synchronizedList(new ArrayList<String>());
+
+        <T> T proxy(Class<T> clz, InvocationHandler handler) {
+            return clz.cast(Proxy.newProxyInstance(clz.getClassLoader(), new Class[]{clz}, handler));
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if ("getDataSource".equals(method.getName())) {
+                return proxy(DataSource.class, this);
+            } else if ("getConnection".equals(method.getName())) {
+                return proxy(Connection.class, this);
+            } else if ("prepareStatement".equals(method.getName())) {
+                return proxy(PreparedStatement.class, new FakeStatement(this));
+            }
+            return null;
+        }
+
+        int rows() {
+            int ret = 0;
+            for (int i : inserts) {
+                ret += i;
+            }
+            return ret;
+        }
+    }
+
+    class FakeStatement implements InvocationHandler {
+        final FakeDatabase db;
+        final Map<Integer, Object> params = new TreeMap<Integer, Object>();
+
+        FakeStatement(FakeDatabase db) {
+            this.db = db;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getName().startsWith("set")) {
+                params.put((Integer) args[0], args[1]);
+            } else if ("executeUpdate".equals(method.getName())) {
+                db.inInsert.countDown();
+                CountDownLatch gate = db.gate;
+                if (gate != null) {
+                    gate.await();
+                }
+                if (db.fail) {
+                    throw new SQLException("the fake database fails");
+                }
+
+                int rows = params.size() / 5;
+                db.inserts.add(rows);
+                for (int i = 0; i < rows; i++) {
+                    db.contents.add((String) params.get(i * 5 + 1));
+                }
+                return rows;
+            }
+            return null;
+        }
+    }
+
+    class FakeThreadFacade implements InvocationHandler {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (!"submit".equals(method.getName())) {
+                return null;
+            }
+
+            final Task task = (Task) args[0];
+            FutureTask future = new FutureTask(new Callable() {
+                @Override
+                public Object call() throws Exception {
+                    return task.call();
+                }
+            });
+            Thread t = new Thread(future, task.getName());
+            t.setDaemon(true);
+            t.start();
+            return future;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        bufferSize = LogGlobalProperty.MYSQL_BACKEND_BUFFER_SIZE;
+        batchSize = LogGlobalProperty.MYSQL_BACKEND_BATCH_SIZE;
+        flushInterval = LogGlobalProperty.MYSQL_BACKEND_FLUSH_INTERVAL;
+        overflowPolicy = LogGlobalProperty.MYSQL_BACKEND_OVERFLOW_POLICY;
+        sampleRate = LogGlobalProperty.MYSQL_BACKEND_SAMPLE_RATE;
+        spill = LogGlobalProperty.MYSQL_BACKEND_SPILL;
+        spillFile = File.createTempFile("mysql-log-backend", ".spill");
+        spillFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        for (MysqlLogBackend b : backends) {
+            b.stop();
+        }
+        LogGlobalProperty.MYSQL_BACKEND_BUFFER_SIZE = bufferSize;
+        LogGlobalProperty.MYSQL_BACKEND_BATCH_SIZE = batchSize;
+        LogGlobalProperty.MYSQL_BACKEND_FLUSH_INTERVAL = flushInterval;
+        LogGlobalProperty.MYSQL_BACKEND_OVERFLOW_POLICY = overflowPolicy;
+        LogGlobalProperty.MYSQL_BACKEND_SAMPLE_RATE = sampleRate;
+        LogGlobalProperty.MYSQL_BACKEND_SPILL = spill;
+        spillFile.delete();
+    }
+
+    private void setField(Object obj, String name, Object value) throws Exception {
+        Field f = MysqlLogBackend.class.getDeclaredField(name);
+        f.setAccessible(true);
+        f.set(obj, value);
+    }
+
+    private MysqlLogBackend newBackend(FakeDatabase db) throws Exception {
+        MysqlLogBackend backend = new MysqlLogBackend();
+        setField(backend, "dbf", Proxy.newProxyInstance(DatabaseFacade.class.getClassLoader(), new Class[]{DatabaseFacade.class}, db));
+        setField(backend, "thdf", Proxy.newProxyInstance(ThreadFacade.class.getClassLoader(), new Class[]{ThreadFacade.class}, new FakeThreadFacade()));
+        setField(backend, "queue", new ArrayBlockingQueue<LogVO>(LogGlobalProperty.MYSQL_BACKEND_BUFFER_SIZE));
+        setField(backend, "spillFile", spillFile);
+        backend.start();
+        backends.add(backend);
+        return backend;
+    }
+
+    private void stop(MysqlLogBackend backend) throws Exception {
+        // wait for the log thread to quit, it must not replay the spill file of the next backend
+        backend.stop();
+        Field f = MysqlLogBackend.class.getDeclaredField("logThread");
+        f.setAccessible(true);
+        ((Future) f.get(backend)).get(30, TimeUnit.SECONDS);
+    }
+
+    private LogVO log(LogLevel level, String content) {
+        LogVO vo = new LogVO();
+        vo.setContent(content);
+        vo.setLevel(level);
+        vo.setType(LogType.Text);
+        return vo;
+    }
+
+    private void waitFor(FakeDatabase db, int rows) throws InterruptedException {
+        for (int i = 0; i < 100 && db.rows() < rows; i++) {
+            TimeUnit.MILLISECONDS.sleep(50);
+        }
+    }
+
+    @Test
+    public void test() throws Exception {
+        LogGlobalProperty.MYSQL_BACKEND_BUFFER_SIZE = 100;
+        LogGlobalProperty.MYSQL_BACKEND_BATCH_SIZE = 10;
+        LogGlobalProperty.MYSQL_BACKEND_FLUSH_INTERVAL = 300;
+        LogGlobalProperty.MYSQL_BACKEND_OVERFLOW_POLICY = MysqlLogBackend.OVERFLOW_POLICY_DROP;
+        LogGlobalProperty.MYSQL_BACKEND_SAMPLE_RATE = 10;
+        LogGlobalProperty.MYSQL_BACKEND_SPILL = false;
+
+        FakeDatabase db = new FakeDatabase();
+        db.gate = new CountDownLatch(1);
+        MysqlLogBackend backend = newBackend(db);
+        backend.write(log(LogLevel.Info, "first"));
+        Assert.assertTrue(db.inInsert.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 110; i++) {
+            backend.write(log(LogLevel.Info, "drop-" + i));
+        }
+        Assert.assertEquals(100, backend.getQueueDepth());
+        Assert.assertEquals(10, backend.getDroppedLogNum());
+        db.gate.countDown();
+        waitFor(db, 101);
+        Assert.assertEquals(101, db.rows());
+        Assert.assertEquals(101, backend.getWrittenLogNum());
+        stop(backend);
+
+        LogGlobalProperty.MYSQL_BACKEND_OVERFLOW_POLICY = MysqlLogBackend.OVERFLOW_POLICY_SAMPLE;
+        db = new FakeDatabase();
+        db.gate = new CountDownLatch(1);
+        backend = newBackend(db);
+        backend.write(log(LogLevel.Info, "first"));
+        Assert.assertTrue(db.inInsert.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 80; i++) {
+            backend.write(log(LogLevel.Info, "info-" + i));
+        }
+        Assert.assertEquals(0, backend.getSampledOutLogNum());
+        for (int i = 0; i < 50; i++) {
+            backend.write(log(LogLevel.Info, "sampled-" + i));
+        }
+        backend.write(log(LogLevel.Error, "error"));
+        Assert.assertEquals(45, backend.getSampledOutLogNum());
+        Assert.assertEquals(86, backend.getQueueDepth());
+        Assert.assertEquals(0, backend.getDroppedLogNum());
+        db.gate.countDown();
+        waitFor(db, 87);
+        Assert.assertTrue(db.contents.contains("error"));
+        stop(backend);
+
+        LogGlobalProperty.MYSQL_BACKEND_OVERFLOW_POLICY = MysqlLogBackend.OVERFLOW_POLICY_DROP;
+        LogGlobalProperty.MYSQL_BACKEND_FLUSH_INTERVAL = TimeUnit.SECONDS.toMillis(5);
+        db = new FakeDatabase();
+        backend = newBackend(db);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 30; i++) {
+            backend.write(log(LogLevel.Info, "size-" + i));
+        }
+        waitFor(db, 30);
+        Assert.assertTrue(System.currentTimeMillis() - start < TimeUnit.SECONDS.toMillis(5));
+        Assert.assertEquals(Arrays.asList(10, 10, 10), db.inserts);
+        stop(backend);
+
+        LogGlobalProperty.MYSQL_BACKEND_FLUSH_INTERVAL = 500;
+        db = new FakeDatabase();
+        backend = newBackend(db);
+        start = System.currentTimeMillis();
+        for (int i = 0; i < 5; i++) {
+            backend.write(log(LogLevel.Info, "time-" + i));
+        }
+        waitFor(db, 5);
+        Assert.assertTrue(System.currentTimeMillis() - start >= 400);
+        Assert.assertEquals(Arrays.asList(5), db.inserts);
+        stop(backend);
+
+        LogGlobalProperty.MYSQL_BACKEND_FLUSH_INTERVAL = 300;
+        LogGlobalProperty.MYSQL_BACKEND_SPILL = true;
+        db = new FakeDatabase();
+        db.fail = true;
+        backend = newBackend(db);
+        for (int i = 0; i < 25; i++) {
+            backend.write(log(LogLevel.Info, "spill-" + i));
+        }
+        // replaying failed spilled logs spills them again, check both at once
+        boolean spilled = false;
+        for (int i = 0; i < 100 && !spilled; i++) {
+            spilled = backend.getSpilledLogNum() == 25 && backend.getSpillFileSize() > 0;
+            TimeUnit.MILLISECONDS.sleep(50);
+        }
+        Assert.assertTrue(spilled);
+        Assert.assertEquals(0, backend.getWrittenLogNum());
+        Assert.assertEquals(0, backend.getFailedLogNum());
+
+        db.fail = false;
+        waitFor(db, 25);
+        Assert.assertEquals(25, db.rows());
+        Assert.assertEquals(25, backend.getWrittenLogNum());
+        Assert.assertEquals(0, backend.getSpillFileSize());
+        for (int i = 0; i < 25; i++) {
+            Assert.assertTrue(db.contents.contains("spill-" + i));
+        }
+    }
+}
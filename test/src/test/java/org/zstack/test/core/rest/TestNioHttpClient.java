@@ -0,0 +1,141 @@
+package org.zstack.test.core.rest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.zstack.core.rest.NioHttpClient;
+import org.zstack.header.rest.HttpCallStatistic;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * post to a local http server through the NIO client:
+ * 1. responses with Content-Length and chunked responses are both parsed
+ * 2. connections to a host never exceed the limit and are reused by keep-alive
+ * 3. a refused connection fails the request
+ */
+public class TestNioHttpClient {
+    HttpServer server;
+    NioHttpClient client;
+    int port = 8990;
+    int maxConnections = 4;
+    AtomicInteger running = new AtomicInteger(0);
+    AtomicInteger maxRunning = new AtomicInteger(0);
+    Set<Integer> clientPorts = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 100);
+        server.createContext("/echo", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                int r = running.incrementAndGet();
+                synchronized (maxRunning) {
+                    maxRunning.set(Math.max(maxRunning.get(), r));
+                }
+                clientPorts.add(exchange.getRemoteAddress().getPort());
+
+                try {
+                    TimeUnit.MILLISECONDS.sleep(5);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+
+                byte[] body = IOUtils.toByteArray(exchange.getRequestBody());
+                boolean chunked = exchange.getRequestURI().getQuery() != null;
+                running.decrementAndGet();
+                exchange.sendResponseHeaders(200, chunked ? 0 : body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.setExecutor(Executors.newFixedThreadPool(16));
+        server.start();
+
+        client = new NioHttpClient();
+        client.setMaxConnectionsPerHost(maxConnections);
+        client.start();
+    }
+
+    @After
+    public void tearDown() {
+        client.stop();
+        server.stop(0);
+    }
+
+    @Test
+    public void test() throws InterruptedException {
+        final int num = 200;
+        final CountDownLatch latch = new CountDownLatch(num);
+        final AtomicInteger success = new AtomicInteger(0);
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        for (int i = 0; i < num; i++) {
+            final String body = String.format("{\"index\":%s,\"name\":\"\u6d4b\u8bd5\"}", i);
+            String url = i % 2 == 0 ? String.format("http://127.0.0.1:%s/echo", port) : String.format("http://127.0.0.1:%s/echo?chunked", port);
+            client.post(url, headers, body, TimeUnit.SECONDS.toMillis(30), new NioHttpClient.ResponseHandler() {
+                @Override
+                public void success(ResponseEntity<String> rsp) {
+                    if (body.equals(rsp.getBody())) {
+                        success.incrementAndGet();
+                    }
+                    latch.countDown();
+                }
+
+                @Override
+                public void fail(Throwable t) {
+                    latch.countDown();
+                }
+            });
+        }
+
+        Assert.assertTrue(latch.await(1, TimeUnit.MINUTES));
+        Assert.assertEquals(num, success.get());
+        Assert.assertTrue(maxRunning.get() <= maxConnections);
+        Assert.assertTrue(clientPorts.size() <= maxConnections);
+
+        final CountDownLatch failLatch = new CountDownLatch(1);
+        final AtomicInteger failed = new AtomicInteger(0);
+        client.post("http://127.0.0.1:8991/echo", headers, "{}", TimeUnit.SECONDS.toMillis(30), new NioHttpClient.ResponseHandler() {
+            @Override
+            public void success(ResponseEntity<String> rsp) {
+                failLatch.countDown();
+            }
+
+            @Override
+            public void fail(Throwable t) {
+                failed.incrementAndGet();
+                failLatch.countDown();
+            }
+        });
+        Assert.assertTrue(failLatch.await(1, TimeUnit.MINUTES));
+        Assert.assertEquals(1, failed.get());
+
+        HttpCallStatistic stat = new HttpCallStatistic();
+        stat.addStatistic(5);
+        stat.addStatistic(80);
+        stat.addStatistic(2000);
+        stat.addStatistic(400000);
+        Assert.assertEquals(Long.valueOf(1), stat.getHistogram().get("<=10ms"));
+        Assert.assertEquals(Long.valueOf(1), stat.getHistogram().get("<=100ms"));
+        Assert.assertEquals(Long.valueOf(1), stat.getHistogram().get("<=5000ms"));
+        Assert.assertEquals(Long.valueOf(1), stat.getHistogram().get(">300000ms"));
+        Assert.assertEquals(100, stat.getPercentile(50));
+        Assert.assertEquals(400000, stat.getPercentile(100));
+    }
+}
@@ -0,0 +1,126 @@
+package org.zstack.test.core.thread;
+
+import junit.framework.Assert;
+import org.apache.commons.lang.time.StopWatch;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.thread.ChainTask;
+import org.zstack.core.thread.SyncTask;
+import org.zstack.core.thread.SyncTaskChain;
+import org.zstack.core.thread.ThreadFacade;
+import org.zstack.test.BeanConstructor;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * throughput of chain tasks and sync tasks with 10k distinct signatures and with a few hot signatures.
+ * Tasks are submitted from several threads at the same time, and the sync level must never be exceeded
+ */
+public class TestDispatchQueueBenchmark {
+    ComponentLoader loader;
+    ThreadFacade thdf;
+    int submitterNum = 8;
+
+    @Before
+    public void setUp() throws Exception {
+        BeanConstructor con = new BeanConstructor();
+        loader = con.build();
+        thdf = loader.getComponent(ThreadFacade.class);
+    }
+
+    private void benchmark(final int signatureNum, final int taskNumPerSignature, final int syncLevel) throws InterruptedException {
+        final int total = signatureNum * taskNumPerSignature;
+        final CountDownLatch latch = new CountDownLatch(total * 2);
+        final AtomicInteger violations = new AtomicInteger(0);
+        final ConcurrentHashMap<String, AtomicInteger> running = new ConcurrentHashMap<String, AtomicInteger>();
+        for (int i = 0; i < signatureNum; i++) {
+            running.put("chain-" + i, new AtomicInteger(0));
+            running.put("sync-" + i, new AtomicInteger(0));
+        }
+
+        ExecutorService submitters = Executors.newFixedThreadPool(submitterNum);
+        StopWatch w = new StopWatch();
+        w.start();
+        for (int i = 0; i < total; i++) {
+            final int index = i % signatureNum;
+            submitters.submit(new Runnable() {
+                @Override
+                public void run() {
+                    thdf.chainSubmit(new ChainTask() {
+                        @Override
+                        public String getName() {
+                            return getSyncSignature();
+                        }
+
+                        @Override
+                        public String getSyncSignature() {
+                            return "chain-" + index;
+                        }
+
+                        @Override
+                        protected int getSyncLevel() {
+                            return syncLevel;
+                        }
+
+                        @Override
+                        public void run(SyncTaskChain chain) {
+                            AtomicInteger r = running.get(getSyncSignature());
+                            if (r.incrementAndGet() > syncLevel) {
+                                violations.incrementAndGet();
+                            }
+                            r.decrementAndGet();
+                            latch.countDown();
+                            chain.next();
+                        }
+                    });
+
+                    thdf.syncSubmit(new SyncTask<Void>() {
+                        @Override
+                        public String getSyncSignature() {
+                            return "sync-" + index;
+                        }
+
+                        @Override
+                        public int getSyncLevel() {
+                            return syncLevel;
+                        }
+
+                        @Override
+                        public String getName() {
+                            return getSyncSignature();
+                        }
+
+                        @Override
+                        public Void call() throws Exception {
+                            AtomicInteger r = running.get(getSyncSignature());
+                            if (r.incrementAndGet() > syncLevel) {
+                                violations.incrementAndGet();
+                            }
+                            r.decrementAndGet();
+                            latch.countDown();
+                            return null;
+                        }
+                    });
+                }
+            });
+        }
+
+        Assert.assertTrue(latch.await(5, TimeUnit.MINUTES));
+        w.stop();
+        submitters.shutdown();
+
+        System.out.println(String.format("%s signatures, %s tasks per signature, sync level %s: %s chain tasks and %s sync tasks cost %sms, %s tasks/s",
+                signatureNum, taskNumPerSignature, syncLevel, total, total, w.getTime(), total * 2 * 1000L / Math.max(w.getTime(), 1)));
+        Assert.assertEquals(0, violations.get());
+    }
+
+    @Test
+    public void test() throws InterruptedException {
+        benchmark(10000, 10, 1);
+        benchmark(10000, 10, 5);
+        benchmark(4, 25000, 1);
+        benchmark(4, 25000, 5);
+    }
+}
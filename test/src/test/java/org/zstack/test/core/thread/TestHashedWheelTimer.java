@@ -0,0 +1,70 @@
+package org.zstack.test.core.thread;
+
+import junit.framework.Assert;
+import org.junit.Test;
+import org.zstack.core.thread.HashedWheelTimer;
+import org.zstack.core.thread.ThreadFacadeImpl.TimeoutTaskReceipt;
+import org.zstack.core.thread.TimeoutWheelStatistic;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 1. schedule 10000 timeouts on a small wheel, some of them take more than one round
+ * 2. cancel half of them
+ *
+ * confirm only the uncancelled ones expire, none of them expires before its delay, and no timeout is left pending
+ */
+public class TestHashedWheelTimer {
+    @Test
+    public void test() throws InterruptedException {
+        HashedWheelTimer timer = new HashedWheelTimer("test", 10, 8, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+
+        final int num = 10000;
+        final AtomicInteger early = new AtomicInteger();
+        final AtomicInteger expired = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(num / 2);
+        List<TimeoutTaskReceipt> receipts = new ArrayList<TimeoutTaskReceipt>();
+        for (int i = 0; i < num; i++) {
+            final long delay = 10 + i % 200;
+            final long scheduledAt = System.nanoTime();
+            receipts.add(timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - scheduledAt) < delay) {
+                        early.incrementAndGet();
+                    }
+                    expired.incrementAndGet();
+                    latch.countDown();
+                }
+            }, TimeUnit.MILLISECONDS, delay));
+        }
+
+        for (int i = 0; i < num; i += 2) {
+            Assert.assertTrue(receipts.get(i).cancel());
+            Assert.assertFalse(receipts.get(i).cancel());
+        }
+
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        TimeUnit.MILLISECONDS.sleep(500);
+        Assert.assertEquals(num / 2, expired.get());
+        Assert.assertEquals(0, early.get());
+        Assert.assertFalse(receipts.get(1).cancel());
+
+        TimeoutWheelStatistic stat = timer.getStatistic();
+        Assert.assertEquals(0, stat.getPendingTimeoutNum());
+        Assert.assertEquals(num, stat.getScheduledTimeoutNum());
+        Assert.assertEquals(num / 2, stat.getCancelledTimeoutNum());
+        Assert.assertEquals(num / 2, stat.getExpiredTimeoutNum());
+        timer.stop();
+    }
+}
@@ -0,0 +1,101 @@
+package org.zstack.test.core.workflow;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.CoreGlobalProperty;
+import org.zstack.core.Platform;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.db.SimpleQuery;
+import org.zstack.core.db.SimpleQuery.Op;
+import org.zstack.core.workflow.*;
+import org.zstack.header.core.workflow.FlowDoneHandler;
+import org.zstack.header.core.workflow.FlowTrigger;
+import org.zstack.header.core.workflow.NoRollbackFlow;
+import org.zstack.test.Api;
+import org.zstack.test.BeanConstructor;
+import org.zstack.test.DBUtil;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1. run a journaled chain, the second flow waits
+ * 2. let the second flow go
+ *
+ * confirm the chain and the first flow are journaled with data in 1, and the journal is removed in 2
+ */
+public class TestWorkFlowJournal {
+    ComponentLoader loader;
+    DatabaseFacade dbf;
+    Api api;
+    static FlowTrigger waiting;
+    boolean success;
+
+    public static class DoneFlow extends NoRollbackFlow {
+        @Override
+        public void run(FlowTrigger trigger, Map data) {
+            data.put("count", 1);
+            trigger.next();
+        }
+    }
+
+    public static class WaitFlow extends NoRollbackFlow {
+        @Override
+        public void run(FlowTrigger trigger, Map data) {
+            waiting = trigger;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        BeanConstructor con = new BeanConstructor();
+        loader = con.addXml("PortalForUnitTest.xml").addXml("AccountManager.xml").build();
+        dbf = loader.getComponent(DatabaseFacade.class);
+        api = new Api();
+        api.startServer();
+    }
+
+    @Test
+    public void test() throws InterruptedException {
+        String owner = Platform.getUuid();
+        FlowChainBuilder.newSimpleFlowChain()
+                .then(new DoneFlow())
+                .then(new WaitFlow())
+                .journal(owner)
+                .setName("test-workflow-journal")
+                .done(new FlowDoneHandler() {
+                    @Override
+                    public void handle(Map data) {
+                        success = true;
+                    }
+                }).start();
+
+        TimeUnit.MILLISECONDS.sleep(CoreGlobalProperty.WORKFLOW_JOURNAL_FLUSH_INTERVAL * 3);
+
+        SimpleQuery<WorkFlowChainVO> q = dbf.createQuery(WorkFlowChainVO.class);
+        q.add(WorkFlowChainVO_.owner, Op.EQ, owner);
+        WorkFlowChainVO chain = q.find();
+        Assert.assertNotNull(chain);
+        Assert.assertEquals(Platform.getManagementServerId(), chain.getManagementNodeUuid());
+        Assert.assertEquals(2, chain.getTotalWorkFlows());
+        Assert.assertEquals(1, chain.getCurrentPosition());
+
+        SimpleQuery<WorkFlowVO> fq = dbf.createQuery(WorkFlowVO.class);
+        fq.add(WorkFlowVO_.chainUuid, Op.EQ, chain.getUuid());
+        List<WorkFlowVO> flows = fq.list();
+        Assert.assertEquals(1, flows.size());
+        Assert.assertEquals(DoneFlow.class.getName(), flows.get(0).getName());
+        Assert.assertEquals(WorkFlowState.Done, flows.get(0).getState());
+        Assert.assertTrue(new String(flows.get(0).getContext()).contains("count"));
+
+        waiting.next();
+        Assert.assertTrue(success);
+        TimeUnit.MILLISECONDS.sleep(CoreGlobalProperty.WORKFLOW_JOURNAL_FLUSH_INTERVAL * 3);
+        Assert.assertFalse(dbf.isExist(chain.getUuid(), WorkFlowChainVO.class));
+        Assert.assertEquals(0L, (long) fq.count());
+    }
+}
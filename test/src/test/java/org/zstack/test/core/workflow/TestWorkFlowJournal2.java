@@ -0,0 +1,187 @@
+package org.zstack.test.core.workflow;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.compute.vm.VmAllocatePrimaryStorageFlow;
+import org.zstack.core.CoreGlobalProperty;
+import org.zstack.core.Platform;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.db.SimpleQuery;
+import org.zstack.core.db.SimpleQuery.Op;
+import org.zstack.core.workflow.*;
+import org.zstack.header.configuration.DiskOfferingInventory;
+import org.zstack.header.configuration.InstanceOfferingInventory;
+import org.zstack.header.core.workflow.Flow;
+import org.zstack.header.core.workflow.FlowChain;
+import org.zstack.header.core.workflow.FlowTrigger;
+import org.zstack.header.core.workflow.NoRollbackFlow;
+import org.zstack.header.host.HostInventory;
+import org.zstack.header.host.HostVO;
+import org.zstack.header.host.HostVO_;
+import org.zstack.header.image.ImageInventory;
+import org.zstack.header.image.ImagePlatform;
+import org.zstack.header.simulator.SimulatorConstant;
+import org.zstack.header.storage.primary.PrimaryStorageConstant;
+import org.zstack.header.storage.primary.PrimaryStorageInventory;
+import org.zstack.header.storage.primary.PrimaryStorageVO;
+import org.zstack.header.vm.*;
+import org.zstack.header.vm.VmInstanceConstant.VmOperation;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.DBUtil;
+import org.zstack.test.deployer.Deployer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1. create a vm in Starting state
+ * 2. run a chain creating the vm journaled with the VmInstanceSpec, the chain allocates primary storage
+ *    between 2 other flows and waits in the last flow
+ * 3. make the journal of the chain belong to another management node, then the management node leaves
+ *
+ * confirm
+ * 1. the 3 done flows are rolled back in reverse order with data restored from the journal
+ * 2. the capacity of primary storage is returned
+ * 3. the vm is removed and the journal of the chain is removed
+ */
+public class TestWorkFlowJournal2 {
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    DatabaseFacade dbf;
+    static List<String> rollbacks = Collections.synchronizedList(new ArrayList<String>());
+    static List<Object> rollbackData = Collections.synchronizedList(new ArrayList<Object>());
+
+    public static abstract class RecordFlow implements Flow {
+        @Override
+        public void run(FlowTrigger trigger, Map data) {
+            data.put(getClass().getSimpleName(), true);
+            trigger.next();
+        }
+
+        @Override
+        public void rollback(FlowTrigger trigger, Map data) {
+            rollbacks.add(getClass().getSimpleName());
+            rollbackData.add(data.get(VmInstanceConstant.Params.VmInstanceSpec.toString()));
+            rollbackData.add(data.get(FirstFlow.class.getSimpleName()));
+            trigger.rollback();
+        }
+    }
+
+    public static class FirstFlow extends RecordFlow {
+    }
+
+    public static class SecondFlow extends RecordFlow {
+    }
+
+    public static class WaitFlow extends NoRollbackFlow {
+        @Override
+        public void run(FlowTrigger trigger, Map data) {
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        deployer = new Deployer("deployerXml/vm/TestVmAllocatePrimaryStorageFlow.xml");
+        deployer.build();
+        api = deployer.getApi();
+        loader = deployer.getComponentLoader();
+        dbf = loader.getComponent(DatabaseFacade.class);
+    }
+
+    @Test
+    public void test() throws InterruptedException, ApiSenderException {
+        InstanceOfferingInventory ioinv = api.listInstanceOffering(null).get(0);
+        ImageInventory iminv = api.listImage(null).get(0);
+        VmInstanceVO vo = new VmInstanceVO();
+        vo.setInstanceOfferingUuid(ioinv.getUuid());
+        vo.setState(VmInstanceState.Starting);
+        vo.setHypervisorType(SimulatorConstant.SIMULATOR_HYPERVISOR_TYPE);
+        vo.setType(VmInstanceConstant.USER_VM_TYPE);
+        vo.setImageUuid(iminv.getUuid());
+        vo.setName("TestVm");
+        vo.setPlatform(ImagePlatform.Linux.toString());
+        vo.setUuid(Platform.getUuid());
+        vo.setInternalId(10);
+        dbf.persist(vo);
+
+        SimpleQuery<HostVO> query = dbf.createQuery(HostVO.class);
+        query.add(HostVO_.name, Op.EQ, "TestHost2");
+        HostInventory hinv = HostInventory.valueOf(query.find());
+        List<DiskOfferingInventory> disks = api.listDiskOffering(null);
+        for (DiskOfferingInventory dinv : disks) {
+            if (dinv.getAllocatorStrategy() == null) {
+                dinv.setAllocatorStrategy(PrimaryStorageConstant.DEFAULT_PRIMARY_STORAGE_ALLOCATION_STRATEGY_TYPE);
+            }
+        }
+        VmInstanceSpec spec = new VmInstanceSpec();
+        spec.setVmInventory(VmInstanceInventory.valueOf(vo));
+        spec.setCurrentVmOperation(VmOperation.NewCreate);
+        spec.setDataDiskOfferings(disks);
+        spec.getImageSpec().setInventory(iminv);
+        spec.setDestHost(hinv);
+
+        PrimaryStorageInventory pinv = deployer.primaryStorages.get("TestPrimaryStorage");
+        long availSize = pinv.getAvailableCapacity();
+        FlowChain fchain = FlowChainBuilder.newSimpleFlowChain()
+                .then(new FirstFlow())
+                .then(new VmAllocatePrimaryStorageFlow())
+                .then(new SecondFlow())
+                .then(new WaitFlow())
+                .journal(vo.getUuid(), VmInstanceConstant.Params.VmInstanceSpec.toString())
+                .setName("test-workflow-journal-takeover");
+        fchain.getData().put(VmInstanceConstant.Params.VmInstanceSpec.toString(), spec);
+        fchain.start();
+
+        TimeUnit.MILLISECONDS.sleep(CoreGlobalProperty.WORKFLOW_JOURNAL_FLUSH_INTERVAL * 3);
+        PrimaryStorageVO psvo = dbf.findByUuid(pinv.getUuid(), PrimaryStorageVO.class);
+        Assert.assertTrue(psvo.getCapacity().getAvailableCapacity() < availSize);
+
+        SimpleQuery<WorkFlowChainVO> q = dbf.createQuery(WorkFlowChainVO.class);
+        q.add(WorkFlowChainVO_.owner, Op.EQ, vo.getUuid());
+        WorkFlowChainVO chain = q.find();
+        Assert.assertNotNull(chain);
+        Assert.assertEquals(3, chain.getCurrentPosition());
+
+        String deadNodeUuid = Platform.getUuid();
+        chain.setManagementNodeUuid(deadNodeUuid);
+        dbf.update(chain);
+        loader.getComponent(WorkFlowJournalImpl.class).nodeLeft(deadNodeUuid);
+
+        for (int i = 0; i < 100 && dbf.isExist(chain.getUuid(), WorkFlowChainVO.class); i++) {
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+        Assert.assertFalse(dbf.isExist(chain.getUuid(), WorkFlowChainVO.class));
+        SimpleQuery<WorkFlowVO> fq = dbf.createQuery(WorkFlowVO.class);
+        fq.add(WorkFlowVO_.chainUuid, Op.EQ, chain.getUuid());
+        Assert.assertEquals(0L, (long) fq.count());
+
+        Assert.assertEquals(2, rollbacks.size());
+        Assert.assertEquals(SecondFlow.class.getSimpleName(), rollbacks.get(0));
+        Assert.assertEquals(FirstFlow.class.getSimpleName(), rollbacks.get(1));
+        for (int i = 0; i < rollbackData.size(); i += 2) {
+            VmInstanceSpec rspec = (VmInstanceSpec) rollbackData.get(i);
+            Assert.assertNotNull(rspec);
+            Assert.assertEquals(vo.getUuid(), rspec.getVmInventory().getUuid());
+            Assert.assertFalse(rspec.getVolumeSpecs().isEmpty());
+            Assert.assertEquals(Boolean.TRUE, rollbackData.get(i + 1));
+        }
+
+        for (int i = 0; i < 100; i++) {
+            psvo = dbf.findByUuid(pinv.getUuid(), PrimaryStorageVO.class);
+            if (psvo.getCapacity().getAvailableCapacity() == availSize) {
+                break;
+            }
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+        Assert.assertEquals(availSize, psvo.getCapacity().getAvailableCapacity());
+        Assert.assertFalse(dbf.isExist(vo.getUuid(), VmInstanceVO.class));
+    }
+}
@@ -0,0 +1,119 @@
+package org.zstack.test.identity;
+
+import junit.framework.Assert;
+import org.apache.commons.lang.time.StopWatch;
+import org.junit.Test;
+import org.zstack.header.identity.AccountConstant.StatementEffect;
+import org.zstack.header.identity.PolicyInventory;
+import org.zstack.header.identity.PolicyInventory.Statement;
+import org.zstack.identity.PolicyMatcher;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * compare cost of deciding an API by 50 policies of a user: compiling action rules on every check,
+ * matching by a PolicyMatcher and looking up a decision cached by the API class
+ *
+ * confirm all of them make the same decision
+ */
+public class TestPolicyCheckBenchmark {
+    private static final int POLICY_NUM = 50;
+    private static final int WARMUP = 2000;
+    private static final int ROUNDS = 20000;
+
+    private List<PolicyInventory> makePolicies() {
+        List<PolicyInventory> ret = new ArrayList<PolicyInventory>();
+        for (int i = 0; i < POLICY_NUM; i++) {
+            Statement s = new Statement();
+            s.setName(String.format("statement-%s", i));
+            s.setEffect(StatementEffect.Allow);
+            s.addAction(String.format("category%s:.*", i));
+            s.addAction(String.format("vm:APIFakeOperation%sMsg", i));
+            s.addAction(String.format("vm:fake-action-%s", i));
+
+            PolicyInventory p = new PolicyInventory();
+            p.setName(String.format("policy-%s", i));
+            p.setUuid(String.format("%032d", i));
+            p.setStatements(Arrays.asList(s));
+            ret.add(p);
+        }
+
+        // the last policy allows the API
+        ret.get(POLICY_NUM - 1).getStatements().get(0).addAction("vm:APIStartVmInstanceMsg");
+        return ret;
+    }
+
+    private String compileEveryTime(List<PolicyInventory> policies, List<String> actions) {
+        for (String a : actions) {
+            for (PolicyInventory p : policies) {
+                for (Statement s : p.getStatements()) {
+                    for (String ac : s.getActions()) {
+                        if (Pattern.compile(ac).matcher(a).matches()) {
+                            return p.getUuid();
+                        }
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void test() {
+        final List<PolicyInventory> policies = makePolicies();
+        final List<String> actions = Arrays.asList("vm:start", "vm:APIStartVmInstanceMsg");
+        final PolicyMatcher matcher = new PolicyMatcher(policies);
+        final Map<Class, String> decisions = new ConcurrentHashMap<Class, String>();
+
+        String expected = policies.get(POLICY_NUM - 1).getUuid();
+        Assert.assertEquals(expected, compileEveryTime(policies, actions));
+        Assert.assertEquals(expected, matcher.match(actions).getPolicy().getUuid());
+        Assert.assertEquals("vm:APIStartVmInstanceMsg", matcher.match(actions).getAction());
+        Assert.assertNull(matcher.match(Arrays.asList("vm:stop")));
+
+        benchmark("compile every time", new Runnable() {
+            @Override
+            public void run() {
+                compileEveryTime(policies, actions);
+            }
+        });
+
+        benchmark("policy matcher", new Runnable() {
+            @Override
+            public void run() {
+                matcher.match(actions);
+            }
+        });
+
+        benchmark("cached decision", new Runnable() {
+            @Override
+            public void run() {
+                String d = decisions.get(TestPolicyCheckBenchmark.class);
+                if (d == null) {
+                    d = matcher.match(actions).getPolicy().getUuid();
+                    decisions.put(TestPolicyCheckBenchmark.class, d);
+                }
+            }
+        });
+    }
+
+    private void benchmark(String name, Runnable r) {
+        for (int i = 0; i < WARMUP; i++) {
+            r.run();
+        }
+
+        StopWatch w = new StopWatch();
+        w.start();
+        for (int i = 0; i < ROUNDS; i++) {
+            r.run();
+        }
+        w.stop();
+        System.out.println(String.format("[%s]: %s rounds of policy check with %s policies cost %sms, %sns/op",
+                name, ROUNDS, POLICY_NUM, w.getTime(), w.getTime() * 1000000 / ROUNDS));
+    }
+}
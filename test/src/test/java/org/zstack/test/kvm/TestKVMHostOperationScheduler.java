@@ -0,0 +1,210 @@
+package org.zstack.test.kvm;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.cloudbus.CloudBusCallBack;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.thread.ChainTask;
+import org.zstack.core.thread.SyncTaskChain;
+import org.zstack.header.host.*;
+import org.zstack.header.message.MessageReply;
+import org.zstack.kvm.KVMGlobalConfig;
+import org.zstack.kvm.KVMHostOperationScheduler;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.DBUtil;
+import org.zstack.test.WebBeanConstructor;
+import org.zstack.test.deployer.Deployer;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * submit operations to the KVMHostOperationScheduler for a KVM host
+ * 1. operations of 10 vms with kvm.host.syncLevel 3
+ * 2. 5 operations of the same vm
+ * 3. a vm operation, a barrier, then another vm operation
+ * 4. a long vm operation, reconnect the host, then an operation of another vm
+ * 5. a long vm operation, delete the host, then an operation of another vm
+ *
+ * confirm
+ * 1. operations of different vms run in parallel but never more than 3 at the same time
+ * 2. operations of the same vm run one by one in submission order
+ * 3. the barrier waits for the first operation, runs alone and the last operation waits for it
+ * 4. reconnecting waits for the running operation, and the operation submitted meanwhile waits for reconnecting
+ * 5. deleting waits for the running operation, and the operation submitted meanwhile waits for deleting
+ */
+public class TestKVMHostOperationScheduler {
+    CLogger logger = Utils.getLogger(TestKVMHostOperationScheduler.class);
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    CloudBus bus;
+    DatabaseFacade dbf;
+    KVMHostOperationScheduler scheduler;
+    HostInventory host;
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+    List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        WebBeanConstructor con = new WebBeanConstructor();
+        deployer = new Deployer("deployerXml/kvm/TestCreateVmOnKvm.xml", con);
+        deployer.addSpringConfig("KVMRelated.xml");
+        deployer.build();
+        api = deployer.getApi();
+        loader = deployer.getComponentLoader();
+        bus = loader.getComponent(CloudBus.class);
+        dbf = loader.getComponent(DatabaseFacade.class);
+        scheduler = loader.getComponent(KVMHostOperationScheduler.class);
+        host = deployer.hosts.get("host1");
+    }
+
+    class Operation extends ChainTask {
+        final String name;
+        final long duration;
+        final CountDownLatch latch;
+        volatile HostStatus statusAtStart;
+
+        Operation(String name, long duration, CountDownLatch latch) {
+            this.name = name;
+            this.duration = duration;
+            this.latch = latch;
+        }
+
+        @Override
+        public String getSyncSignature() {
+            return "Host-" + host.getUuid();
+        }
+
+        @Override
+        public void run(SyncTaskChain chain) {
+            int r = running.incrementAndGet();
+            synchronized (maxRunning) {
+                maxRunning.set(Math.max(maxRunning.get(), r));
+            }
+            HostVO vo = dbf.findByUuid(host.getUuid(), HostVO.class);
+            statusAtStart = vo == null ? null : vo.getStatus();
+            events.add("start-" + name);
+
+            try {
+                TimeUnit.MILLISECONDS.sleep(duration);
+            } catch (InterruptedException e) {
+                logger.warn(e.getMessage(), e);
+            }
+
+            events.add("end-" + name);
+            running.decrementAndGet();
+            latch.countDown();
+            chain.next();
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+    }
+
+    private void reset() {
+        events.clear();
+        running.set(0);
+        maxRunning.set(0);
+    }
+
+    private void assertBefore(String e1, String e2) {
+        Assert.assertTrue(String.format("%s should happen before %s, %s", e1, e2, events),
+                events.indexOf(e1) >= 0 && events.indexOf(e1) < events.indexOf(e2));
+    }
+
+    @Test
+    public void test() throws ApiSenderException, InterruptedException {
+        int syncLevel = KVMGlobalConfig.HOST_SYNC_LEVEL.value(Integer.class);
+        KVMGlobalConfig.HOST_SYNC_LEVEL.updateValue(3);
+        try {
+            CountDownLatch latch = new CountDownLatch(10);
+            for (int i = 0; i < 10; i++) {
+                scheduler.submit(new Operation("vm" + i, 300, latch), "test", "vm" + i);
+            }
+            Assert.assertTrue(latch.await(30, TimeUnit.SECONDS));
+            Assert.assertEquals(3, maxRunning.get());
+        } finally {
+            KVMGlobalConfig.HOST_SYNC_LEVEL.updateValue(syncLevel);
+        }
+
+        reset();
+        CountDownLatch latch = new CountDownLatch(5);
+        for (int i = 0; i < 5; i++) {
+            scheduler.submit(new Operation("same-vm-" + i, 50, latch), "test", "same-vm");
+        }
+        Assert.assertTrue(latch.await(30, TimeUnit.SECONDS));
+        Assert.assertEquals(1, maxRunning.get());
+        for (int i = 0; i < 4; i++) {
+            assertBefore("end-same-vm-" + i, "start-same-vm-" + (i + 1));
+        }
+
+        reset();
+        latch = new CountDownLatch(3);
+        scheduler.submit(new Operation("before-barrier", 300, latch), "test", "vm1");
+        scheduler.submitBarrier(new Operation("barrier", 300, latch), "test");
+        scheduler.submit(new Operation("after-barrier", 50, latch), "test", "vm2");
+        Assert.assertTrue(latch.await(30, TimeUnit.SECONDS));
+        assertBefore("end-before-barrier", "start-barrier");
+        assertBefore("end-barrier", "start-after-barrier");
+        Assert.assertEquals(1, maxRunning.get());
+
+        reset();
+        latch = new CountDownLatch(2);
+        scheduler.submit(new Operation("before-reconnect", 1000, latch), "test", "vm1");
+        ReconnectHostMsg rmsg = new ReconnectHostMsg();
+        rmsg.setHostUuid(host.getUuid());
+        bus.makeTargetServiceIdByResourceUuid(rmsg, HostConstant.SERVICE_ID, host.getUuid());
+        final CountDownLatch rlatch = new CountDownLatch(1);
+        bus.send(rmsg, new CloudBusCallBack() {
+            @Override
+            public void run(MessageReply reply) {
+                events.add("reconnected");
+                rlatch.countDown();
+            }
+        });
+        TimeUnit.MILLISECONDS.sleep(300);
+        Operation afterReconnect = new Operation("after-reconnect", 50, latch);
+        scheduler.submit(afterReconnect, "test", "vm2");
+        Assert.assertTrue(latch.await(30, TimeUnit.SECONDS));
+        Assert.assertTrue(rlatch.await(30, TimeUnit.SECONDS));
+        assertBefore("end-before-reconnect", "reconnected");
+        assertBefore("end-before-reconnect", "start-after-reconnect");
+        Assert.assertEquals(HostStatus.Connected, afterReconnect.statusAtStart);
+
+        reset();
+        latch = new CountDownLatch(2);
+        scheduler.submit(new Operation("before-deletion", 1000, latch), "test", "vm1");
+        HostDeletionMsg dmsg = new HostDeletionMsg();
+        dmsg.setHostUuid(host.getUuid());
+        bus.makeTargetServiceIdByResourceUuid(dmsg, HostConstant.SERVICE_ID, host.getUuid());
+        final CountDownLatch dlatch = new CountDownLatch(1);
+        bus.send(dmsg, new CloudBusCallBack() {
+            @Override
+            public void run(MessageReply reply) {
+                events.add("deleted");
+                dlatch.countDown();
+            }
+        });
+        TimeUnit.MILLISECONDS.sleep(300);
+        scheduler.submit(new Operation("after-deletion", 50, latch), "test", "vm2");
+        Assert.assertTrue(latch.await(30, TimeUnit.SECONDS));
+        Assert.assertTrue(dlatch.await(30, TimeUnit.SECONDS));
+        assertBefore("end-before-deletion", "deleted");
+        assertBefore("end-before-deletion", "start-after-deletion");
+    }
+}
@@ -0,0 +1,104 @@
+package org.zstack.test.network;
+
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.header.network.l2.L2NetworkInventory;
+import org.zstack.header.network.l3.*;
+import org.zstack.header.zone.ZoneInventory;
+import org.zstack.network.l3.L3NetworkManager;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.BeanConstructor;
+import org.zstack.test.DBUtil;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+import org.zstack.utils.network.NetworkUtils;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 1. allocate all ips of a range with the bitmap strategy, no ip is allocated twice
+ * 2. an ip reserved behind the strategy is skipped
+ * 3. a returned ip can be allocated again
+ * 4. allocation fails when the range is full
+ */
+public class TestBitmapIpAllocatorStrategy {
+    CLogger logger = Utils.getLogger(TestBitmapIpAllocatorStrategy.class);
+    Api api;
+    ComponentLoader loader;
+    DatabaseFacade dbf;
+    CloudBus bus;
+    L3NetworkManager l3NwMgr;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        BeanConstructor con = new BeanConstructor();
+        loader = con.addXml("PortalForUnitTest.xml").addXml("ZoneManager.xml").addXml("NetworkManager.xml").addXml("AccountManager.xml").build();
+        dbf = loader.getComponent(DatabaseFacade.class);
+        bus = loader.getComponent(CloudBus.class);
+        l3NwMgr = loader.getComponent(L3NetworkManager.class);
+        api = new Api();
+        api.startServer();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        api.stopServer();
+    }
+
+    private AllocateIpReply allocate(String l3Uuid) {
+        AllocateIpMsg msg = new AllocateIpMsg();
+        msg.setL3NetworkUuid(l3Uuid);
+        msg.setServiceId(bus.makeLocalServiceId(L3NetworkConstant.SERVICE_ID));
+        msg.setAllocateStrategy(L3NetworkConstant.BITMAP_IP_ALLOCATOR_STRATEGY);
+        return (AllocateIpReply) bus.call(msg);
+    }
+
+    @Test
+    public void test() throws ApiSenderException {
+        ZoneInventory zone = api.createZones(1).get(0);
+        L2NetworkInventory linv = api.createNoVlanL2Network(zone.getUuid(), "eth0");
+        L3NetworkInventory l3inv = api.createL3BasicNetwork(linv.getUuid());
+        String startIp = "10.223.110.10";
+        String endIp = "10.223.110.20";
+        IpRangeInventory ipInv = api.addIpRange(l3inv.getUuid(), startIp, endIp, "10.223.110.1", "255.255.255.0");
+
+        // allocate one to load the bitmap, then reserve an ip behind the strategy
+        UsedIpInventory first = allocate(l3inv.getUuid()).getIpInventory();
+        Assert.assertEquals(startIp, first.getIp());
+        UsedIpInventory reserved = l3NwMgr.reserveIp(ipInv, "10.223.110.11");
+        Assert.assertNotNull(reserved);
+
+        Set<String> ips = new HashSet<String>();
+        ips.add(first.getIp());
+        ips.add(reserved.getIp());
+        UsedIpInventory last = null;
+        for (int i = 0; i < 9; i++) {
+            AllocateIpReply reply = allocate(l3inv.getUuid());
+            Assert.assertTrue(reply.isSuccess());
+            last = reply.getIpInventory();
+            Assert.assertTrue(NetworkUtils.isIpv4InRange(last.getIp(), startIp, endIp));
+            Assert.assertTrue(String.format("ip[%s] allocated twice", last.getIp()), ips.add(last.getIp()));
+        }
+        Assert.assertEquals(11, ips.size());
+
+        Assert.assertFalse(allocate(l3inv.getUuid()).isSuccess());
+
+        ReturnIpMsg rmsg = new ReturnIpMsg();
+        rmsg.setL3NetworkUuid(l3inv.getUuid());
+        rmsg.setUsedIpUuid(last.getUuid());
+        rmsg.setServiceId(bus.makeLocalServiceId(L3NetworkConstant.SERVICE_ID));
+        bus.call(rmsg);
+
+        AllocateIpReply reply = allocate(l3inv.getUuid());
+        Assert.assertTrue(reply.isSuccess());
+        Assert.assertEquals(last.getIp(), reply.getIpInventory().getIp());
+    }
+}
@@ -0,0 +1,72 @@
+package org.zstack.test.portal;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.header.zone.ZoneInventory;
+import org.zstack.portal.apimediator.ApiLaneStatistic;
+import org.zstack.portal.apimediator.ApiMediator;
+import org.zstack.portal.apimediator.ApiMediatorMXBean;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.BeanConstructor;
+import org.zstack.test.DBUtil;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 1. check the management node is ready
+ * 2. log in, create a zone and list it
+ *
+ * confirm messages are dispatched in admin, mutate and query lanes, and the statistics of each lane are counted
+ */
+public class TestApiDispatchLane {
+    ComponentLoader loader;
+    Api api;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        BeanConstructor con = new BeanConstructor();
+        con.addXml("PortalForUnitTest.xml");
+        con.addXml("ZoneManager.xml");
+        con.addXml("AccountManager.xml");
+        loader = con.build();
+        api = new Api();
+        api.startServer();
+    }
+
+    @Test
+    public void test() throws ApiSenderException {
+        api.loginAsAdmin();
+        ZoneInventory zone = api.createZones(1).get(0);
+        List<ZoneInventory> zones = api.listZones(null);
+        Assert.assertEquals(zone.getUuid(), zones.get(0).getUuid());
+
+        ApiMediatorMXBean mediator = (ApiMediatorMXBean) loader.getComponent(ApiMediator.class);
+        Map<String, ApiLaneStatistic> stats = mediator.getLaneStatistics();
+        Assert.assertEquals(3, stats.size());
+
+        // APIIsReadyToGoMsg sent by startServer() and APILogInByAccountMsg
+        ApiLaneStatistic admin = stats.get("admin");
+        Assert.assertTrue(admin.getCount() >= 2);
+
+        ApiLaneStatistic mutate = stats.get("mutate");
+        Assert.assertTrue(mutate.getCount() >= 1);
+
+        ApiLaneStatistic query = stats.get("query");
+        Assert.assertTrue(query.getCount() >= 1);
+        long sum = 0;
+        for (long c : query.getServiceTimeHistogram().values()) {
+            sum += c;
+        }
+        Assert.assertEquals(query.getCount(), sum);
+
+        for (ApiLaneStatistic s : stats.values()) {
+            Assert.assertEquals(0, s.getRejectedNum());
+            Assert.assertEquals(0, s.getWaitingNum());
+        }
+    }
+}
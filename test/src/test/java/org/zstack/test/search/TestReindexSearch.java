@@ -0,0 +1,92 @@
+package org.zstack.test.search;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.header.search.APISearchMessage;
+import org.zstack.header.search.SearchOp;
+import org.zstack.header.zone.APISearchZoneMsg;
+import org.zstack.header.zone.ZoneInventory;
+import org.zstack.header.zone.ZoneVO;
+import org.zstack.search.SearchGlobalProperty;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.DBUtil;
+import org.zstack.test.deployer.Deployer;
+import org.zstack.utils.gson.JSONObjectUtil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1. update a zone's name several times in a row
+ * 2. recreate the index of ZoneInventory and reindex it
+ *
+ * confirm the search result has the last name of the zone after the index is flushed, and all zones are
+ * searchable again after reindexing
+ */
+public class TestReindexSearch {
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    DatabaseFacade dbf;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        deployer = new Deployer("deployerXml/vm/TestSearchZone.xml");
+        deployer.addSpringConfig("SearchManager.xml");
+        deployer.build();
+        api = deployer.getApi();
+        loader = deployer.getComponentLoader();
+        dbf = loader.getComponent(DatabaseFacade.class);
+    }
+
+    private List<ZoneInventory> searchZones(String name) throws ApiSenderException {
+        APISearchZoneMsg msg = new APISearchZoneMsg();
+        if (name != null) {
+            APISearchMessage.NOVTriple t = new APISearchMessage.NOVTriple();
+            t.setName("name");
+            t.setOp(SearchOp.AND_EQ.toString());
+            t.setVal(name);
+            msg.getNameOpValueTriples().add(t);
+        }
+        String content = api.search(msg);
+        return JSONObjectUtil.toCollection(content, ArrayList.class, ZoneInventory.class);
+    }
+
+    private void waitForIndex() throws InterruptedException {
+        // changes are flushed to elasticsearch every flushInterval milliseconds, which then refreshes the index
+        TimeUnit.MILLISECONDS.sleep(SearchGlobalProperty.FLUSH_INTERVAL + 2000);
+    }
+
+    @Test
+    public void test() throws ApiSenderException, InterruptedException {
+        waitForIndex();
+        ZoneInventory zone = searchZones("Zone1").get(0);
+
+        for (int i = 0; i < 5; i++) {
+            zone.setName(String.format("zone-renamed-%s", i));
+            zone = api.updateZone(zone);
+        }
+        waitForIndex();
+
+        Assert.assertTrue(searchZones("Zone1").isEmpty());
+        List<ZoneInventory> zones = searchZones("zone-renamed-4");
+        Assert.assertEquals(1, zones.size());
+        Assert.assertEquals(zone.getUuid(), zones.get(0).getUuid());
+
+        long num = api.reindexSearch(Arrays.asList(ZoneInventory.class.getSimpleName()), true);
+        Assert.assertEquals(dbf.count(ZoneVO.class), num);
+        waitForIndex();
+
+        Assert.assertEquals(num, searchZones(null).size());
+        zones = searchZones("zone-renamed-4");
+        Assert.assertEquals(1, zones.size());
+        Assert.assertEquals(zone.getUuid(), zones.get(0).getUuid());
+    }
+}
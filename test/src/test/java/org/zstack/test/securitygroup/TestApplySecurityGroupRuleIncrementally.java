@@ -0,0 +1,135 @@
+package org.zstack.test.securitygroup;
+
+import junit.framework.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.header.exception.CloudRuntimeException;
+import org.zstack.header.network.l3.L3NetworkInventory;
+import org.zstack.header.vm.VmInstanceInventory;
+import org.zstack.header.vm.VmNicInventory;
+import org.zstack.kvm.KVMAgentCommands.ApplySecurityGroupRuleCmd;
+import org.zstack.network.securitygroup.*;
+import org.zstack.network.securitygroup.APIAddSecurityGroupRuleMsg.SecurityGroupRuleAO;
+import org.zstack.simulator.kvm.KVMSimulatorConfig;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.DBUtil;
+import org.zstack.test.WebBeanConstructor;
+import org.zstack.test.deployer.Deployer;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1. create two vms on two hosts, add their nics on l3Network1 to sg1
+ * 2. refresh rules of vm1
+ * 3. add a rule to sg1
+ * 4. disable host.incrementalApply and refresh rules of vm1
+ *
+ * confirm nothing is sent in 2, rules of both nics are sent in 3, and rules of vm1 are sent in 4
+ */
+public class TestApplySecurityGroupRuleIncrementally {
+    static CLogger logger = Utils.getLogger(TestApplySecurityGroupRuleIncrementally.class);
+    static Deployer deployer;
+    static Api api;
+    static ComponentLoader loader;
+    static DatabaseFacade dbf;
+    static CloudBus bus;
+    static KVMSimulatorConfig config;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        WebBeanConstructor con = new WebBeanConstructor();
+        deployer = new Deployer("deployerXml/securityGroup/TestApplySeurityGroupRulesToVmOnKvm2.xml", con);
+        deployer.addSpringConfig("KVMRelated.xml");
+        deployer.build();
+        api = deployer.getApi();
+        loader = deployer.getComponentLoader();
+        dbf = loader.getComponent(DatabaseFacade.class);
+        bus = loader.getComponent(CloudBus.class);
+        config = loader.getComponent(KVMSimulatorConfig.class);
+    }
+
+    private VmNicInventory getNicByL3NwUuid(List<VmNicInventory> nics, String l3NwUuid) {
+        for (VmNicInventory nic : nics) {
+            if (nic.getL3NetworkUuid().equals(l3NwUuid)) {
+                return nic;
+            }
+        }
+        throw new CloudRuntimeException(String.format("cannot find nic on l3Network[uuid:%s]", l3NwUuid));
+    }
+
+    private Set<String> appliedNics() {
+        Set<String> ret = new HashSet<String>();
+        for (ApplySecurityGroupRuleCmd cmd : config.securityGroupApplyRuleCmds) {
+            for (SecurityGroupRuleTO rto : cmd.getRuleTOs()) {
+                ret.add(rto.getVmNicInternalName());
+            }
+        }
+        return ret;
+    }
+
+    private void refreshVm(VmInstanceInventory vm) throws InterruptedException {
+        config.securityGroupApplyRuleCmds.clear();
+        RefreshSecurityGroupRulesOnVmMsg msg = new RefreshSecurityGroupRulesOnVmMsg();
+        msg.setVmInstanceUuid(vm.getUuid());
+        msg.setHostUuid(vm.getHostUuid());
+        bus.makeLocalServiceId(msg, SecurityGroupConstant.SERVICE_ID);
+        Assert.assertTrue(bus.call(msg).isSuccess());
+        TimeUnit.MILLISECONDS.sleep(500);
+    }
+
+    @Test
+    public void test() throws ApiSenderException, InterruptedException {
+        SecurityGroupInventory scinv1 = deployer.securityGroups.get("test1");
+        L3NetworkInventory l3nw1 = deployer.l3Networks.get("TestL3Network1");
+        VmInstanceInventory vm1 = deployer.vms.get("TestVm1");
+        VmInstanceInventory vm2 = deployer.vms.get("TestVm2");
+        VmNicInventory vm1Nic1 = getNicByL3NwUuid(vm1.getVmNics(), l3nw1.getUuid());
+        VmNicInventory vm2Nic1 = getNicByL3NwUuid(vm2.getVmNics(), l3nw1.getUuid());
+
+        config.securityGroupSuccess = true;
+        List<String> nicUuids = new ArrayList<String>();
+        nicUuids.add(vm1Nic1.getUuid());
+        nicUuids.add(vm2Nic1.getUuid());
+        api.addVmNicToSecurityGroup(scinv1.getUuid(), nicUuids);
+        TimeUnit.MILLISECONDS.sleep(500);
+        Assert.assertTrue(appliedNics().contains(vm1Nic1.getInternalName()));
+        Assert.assertTrue(appliedNics().contains(vm2Nic1.getInternalName()));
+
+        refreshVm(vm1);
+        Assert.assertTrue(appliedNics().isEmpty());
+
+        config.securityGroupApplyRuleCmds.clear();
+        SecurityGroupRuleAO ao = new SecurityGroupRuleAO();
+        ao.setAllowedCidr("192.168.10.0/24");
+        ao.setType(SecurityGroupRuleType.Ingress.toString());
+        ao.setProtocol(SecurityGroupRuleProtocolType.TCP.toString());
+        ao.setStartPort(8080);
+        ao.setEndPort(8080);
+        scinv1 = api.addSecurityGroupRuleByFullConfig(scinv1.getUuid(), ao);
+        TimeUnit.MILLISECONDS.sleep(500);
+        Set<String> nics = appliedNics();
+        Assert.assertEquals(2, nics.size());
+        SecurityGroupRuleTO actual11 = config.securityGroups.get(vm1Nic1.getInternalName());
+        SecurityGroupTestValidator.validateInternalIpIn(actual11, vm2Nic1.getIp(), scinv1.getRules());
+
+        boolean incremental = SecurityGroupGlobalConfig.INCREMENTAL_APPLY.value(Boolean.class);
+        SecurityGroupGlobalConfig.INCREMENTAL_APPLY.updateValue(false);
+        try {
+            refreshVm(vm1);
+            Assert.assertTrue(appliedNics().contains(vm1Nic1.getInternalName()));
+        } finally {
+            SecurityGroupGlobalConfig.INCREMENTAL_APPLY.updateValue(incremental);
+        }
+    }
+}
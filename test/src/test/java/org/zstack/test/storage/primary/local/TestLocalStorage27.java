@@ -0,0 +1,120 @@
+package org.zstack.test.storage.primary.local;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.cloudbus.CloudBus;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.db.SimpleQuery;
+import org.zstack.core.db.SimpleQuery.Op;
+import org.zstack.core.thread.SyncThread;
+import org.zstack.header.configuration.InstanceOfferingInventory;
+import org.zstack.header.host.HostInventory;
+import org.zstack.header.identity.SessionInventory;
+import org.zstack.header.image.ImageInventory;
+import org.zstack.header.network.l3.L3NetworkInventory;
+import org.zstack.header.storage.primary.ImageCacheVO;
+import org.zstack.header.storage.primary.ImageCacheVO_;
+import org.zstack.storage.primary.local.LocalStorageSimulatorConfig;
+import org.zstack.storage.primary.local.LocalStorageSimulatorConfig.Capacity;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.DBUtil;
+import org.zstack.test.VmCreator;
+import org.zstack.test.WebBeanConstructor;
+import org.zstack.test.deployer.Deployer;
+import org.zstack.utils.data.SizeUnit;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1. use local storage
+ * 2. create a vm
+ * 3. remove the image cache, then create 5 vms on the same host concurrently
+ *
+ * confirm the image cache records the host in 2
+ * confirm the image is downloaded to the host only once in 3
+ */
+public class TestLocalStorage27 {
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    CloudBus bus;
+    DatabaseFacade dbf;
+    SessionInventory session;
+    LocalStorageSimulatorConfig config;
+    long totalSize = SizeUnit.GIGABYTE.toByte(100);
+    int vmNum = 5;
+    CountDownLatch latch = new CountDownLatch(vmNum);
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        WebBeanConstructor con = new WebBeanConstructor();
+        deployer = new Deployer("deployerXml/localStorage/TestLocalStorage27.xml", con);
+        deployer.addSpringConfig("KVMRelated.xml");
+        deployer.addSpringConfig("localStorageSimulator.xml");
+        deployer.addSpringConfig("localStorage.xml");
+        deployer.load();
+
+        loader = deployer.getComponentLoader();
+        bus = loader.getComponent(CloudBus.class);
+        dbf = loader.getComponent(DatabaseFacade.class);
+        config = loader.getComponent(LocalStorageSimulatorConfig.class);
+
+        Capacity c = new Capacity();
+        c.total = totalSize;
+        c.avail = totalSize;
+
+        config.capacityMap.put("host1", c);
+
+        deployer.build();
+        api = deployer.getApi();
+        session = api.loginAsAdmin();
+    }
+
+    @SyncThread(level = 10)
+    private void createVm(String imageUuid, String instanceOfferingUuid, String l3Uuid) throws ApiSenderException {
+        try {
+            VmCreator creator = new VmCreator(api);
+            creator.imageUuid = imageUuid;
+            creator.instanceOfferingUuid = instanceOfferingUuid;
+            creator.addL3Network(l3Uuid);
+            creator.create();
+        } finally {
+            latch.countDown();
+        }
+    }
+
+    private List<ImageCacheVO> findCaches(String hostUuid) {
+        SimpleQuery<ImageCacheVO> q = dbf.createQuery(ImageCacheVO.class);
+        q.add(ImageCacheVO_.hostUuid, Op.EQ, hostUuid);
+        return q.list();
+    }
+
+	@Test
+	public void test() throws InterruptedException, ApiSenderException {
+        HostInventory host = deployer.hosts.get("host1");
+        ImageInventory image = deployer.images.get("TestImage");
+        InstanceOfferingInventory ioinv = deployer.instanceOfferings.get("TestInstanceOffering");
+        L3NetworkInventory l3 = deployer.l3Networks.get("TestL3Network1");
+
+        List<ImageCacheVO> caches = findCaches(host.getUuid());
+        Assert.assertEquals(1, caches.size());
+        Assert.assertEquals(image.getUuid(), caches.get(0).getImageUuid());
+
+        dbf.removeCollection(caches, ImageCacheVO.class);
+        config.downloadBitsCmds.clear();
+
+        for (int i = 0; i < vmNum; i++) {
+            createVm(image.getUuid(), ioinv.getUuid(), l3.getUuid());
+        }
+        latch.await(2, TimeUnit.MINUTES);
+
+        Assert.assertEquals(1, config.downloadBitsCmds.size());
+        Assert.assertEquals(1, findCaches(host.getUuid()).size());
+    }
+}
@@ -0,0 +1,123 @@
+package org.zstack.test.tag;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.Platform;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.core.db.SimpleQuery;
+import org.zstack.core.db.SimpleQuery.Op;
+import org.zstack.header.tag.SystemTagVO;
+import org.zstack.header.tag.SystemTagVO_;
+import org.zstack.header.tag.TagDefinition;
+import org.zstack.header.tag.TagInventory;
+import org.zstack.header.tag.TagType;
+import org.zstack.header.zone.ZoneInventory;
+import org.zstack.header.zone.ZoneVO;
+import org.zstack.tag.PatternedSystemTag;
+import org.zstack.tag.SystemTag;
+import org.zstack.tag.TagGlobalProperty;
+import org.zstack.tag.TagManager;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.DBUtil;
+import org.zstack.test.deployer.Deployer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.zstack.utils.CollectionDSL.e;
+import static org.zstack.utils.CollectionDSL.map;
+
+/**
+ * 1. create tags on zones
+ * 2. look up tags one by one and in batch
+ * 3. delete and recreate tags
+ * 4. create a tag in the database only, as another management node does before its broadcast arrives
+ *
+ * confirm lookups served by the system tag index agree with the database in verify mode, and lookups of a single
+ * resource see the tag the index doesn't know yet
+ */
+public class TestSystemTagIndex {
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    DatabaseFacade dbf;
+    TagManager tagMgr;
+
+    @TagDefinition
+    public static class TestSystemTags {
+        public static SystemTag big = new SystemTag("big", ZoneVO.class);
+        public static PatternedSystemTag size = new PatternedSystemTag("size::{size}", ZoneVO.class);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        TagGlobalProperty.SYSTEM_TAG_INDEX_VERIFY = true;
+        deployer = new Deployer("deployerXml/tag/TestUserTag.xml");
+        deployer.build();
+        api = deployer.getApi();
+        loader = deployer.getComponentLoader();
+        dbf = loader.getComponent(DatabaseFacade.class);
+        tagMgr = loader.getComponent(TagManager.class);
+    }
+
+    private List<String> zoneHavingTagInDb(String tag) {
+        SimpleQuery<SystemTagVO> q = dbf.createQuery(SystemTagVO.class);
+        q.select(SystemTagVO_.resourceUuid);
+        q.add(SystemTagVO_.tag, Op.EQ, tag);
+        return q.listValue();
+    }
+
+    @Test
+    public void test() throws ApiSenderException {
+        ZoneInventory zone1 = deployer.zones.get("Zone1");
+        ZoneInventory zone2 = deployer.zones.get("Zone2");
+        ZoneInventory zone3 = deployer.zones.get("Zone3");
+        List<String> zoneUuids = new ArrayList<String>();
+        for (ZoneInventory zone : deployer.zones.values()) {
+            zoneUuids.add(zone.getUuid());
+        }
+
+        TagInventory inv = api.createSystemTag(zone1.getUuid(), "big", ZoneVO.class);
+        api.createSystemTag(zone2.getUuid(), "big", ZoneVO.class);
+        TestSystemTags.size.createTag(zone3.getUuid(), map(e("size", "10")));
+
+        Assert.assertTrue(TestSystemTags.big.hasTag(zone1.getUuid()));
+        Assert.assertFalse(TestSystemTags.big.hasTag(zone3.getUuid()));
+        Assert.assertTrue(tagMgr.hasSystemTag(zone2.getUuid(), "big"));
+        Assert.assertEquals(Arrays.asList("big"), tagMgr.findSystemTags(zone1.getUuid()));
+        Assert.assertEquals("10", TestSystemTags.size.getTokenByResourceUuid(zone3.getUuid(), "size"));
+
+        List<String> bigZones = TestSystemTags.big.filterResourcesHavingTag(zoneUuids);
+        Assert.assertEquals(2, bigZones.size());
+        Assert.assertTrue(bigZones.containsAll(zoneHavingTagInDb("big")));
+        Assert.assertEquals(bigZones, tagMgr.findResourcesHavingSystemTag(zoneUuids, "big"));
+        Assert.assertEquals(1, TestSystemTags.size.getTags(zoneUuids).size());
+
+        api.deleteTag(inv.getUuid());
+        Assert.assertFalse(TestSystemTags.big.hasTag(zone1.getUuid()));
+        Assert.assertEquals(Arrays.asList(zone2.getUuid()), TestSystemTags.big.filterResourcesHavingTag(zoneUuids));
+
+        TestSystemTags.size.recreateTag(zone3.getUuid(), map(e("size", "20")));
+        Assert.assertEquals("20", TestSystemTags.size.getTokenByResourceUuid(zone3.getUuid(), "size"));
+        Assert.assertEquals(1, TestSystemTags.size.getTags(zone3.getUuid()).size());
+
+        TagGlobalProperty.SYSTEM_TAG_INDEX_VERIFY = false;
+        SystemTagVO vo = new SystemTagVO();
+        vo.setUuid(Platform.getUuid());
+        vo.setResourceUuid(zone1.getUuid());
+        vo.setResourceType(ZoneVO.class.getSimpleName());
+        vo.setInherent(false);
+        vo.setTag("big");
+        vo.setType(TagType.System);
+        dbf.persist(vo);
+        Assert.assertTrue(TestSystemTags.big.hasTag(zone1.getUuid()));
+        Assert.assertEquals(Arrays.asList("big"), TestSystemTags.big.getTags(zone1.getUuid()));
+        Assert.assertTrue(tagMgr.hasSystemTag(zone1.getUuid(), "big"));
+        Assert.assertEquals(Arrays.asList("big"), tagMgr.findSystemTags(zone1.getUuid()));
+    }
+}
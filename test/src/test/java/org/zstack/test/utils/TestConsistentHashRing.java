@@ -0,0 +1,78 @@
+package org.zstack.test.utils;
+
+import junit.framework.Assert;
+import org.junit.Test;
+import org.zstack.utils.hash.ApacheHash;
+import org.zstack.utils.hash.ConsistentHash;
+import org.zstack.utils.hash.ConsistentHashRing;
+
+import java.util.*;
+
+/**
+ * 1. build a ring and a ConsistentHash with the same nodes
+ * 2. add a node to the ring
+ * 3. assign keys with bounded load
+ *
+ * confirm both map keys to the same nodes in 1, about 1/N of the hash space moves in 2
+ * and no node owns more than ceil(loadFactor * keys / nodes) keys in 3
+ */
+public class TestConsistentHashRing {
+    private static final int NODE_NUM = 5;
+    private static final int KEY_NUM = 10000;
+
+    private List<String> uuids(int num) {
+        List<String> ret = new ArrayList<String>();
+        for (int i = 0; i < num; i++) {
+            ret.add(UUID.randomUUID().toString().replace("-", ""));
+        }
+        return ret;
+    }
+
+    @Test
+    public void test() {
+        List<String> nodes = uuids(NODE_NUM);
+        List<String> keys = uuids(KEY_NUM);
+
+        ConsistentHash<String> old = new ConsistentHash<String>(new ApacheHash(), 500, nodes);
+        ConsistentHashRing<String> ring = new ConsistentHashRing<String>(new ApacheHash(), 500, nodes);
+        for (String key : keys) {
+            Assert.assertEquals(old.get(key), ring.get(key));
+        }
+
+        ConsistentHashRing<String> empty = new ConsistentHashRing<String>(new ApacheHash(), 500, new ArrayList<String>());
+        Assert.assertNull(empty.get(keys.get(0)));
+        Assert.assertEquals(1.0, ConsistentHashRing.getMovedFraction(empty, ring));
+        Assert.assertEquals(0.0, ConsistentHashRing.getMovedFraction(ring, ring));
+
+        String newNode = uuids(1).get(0);
+        ConsistentHashRing<String> ring2 = ring.add(newNode);
+        Assert.assertTrue(ring2.hasNode(newNode));
+        Assert.assertFalse(ring.hasNode(newNode));
+        double fraction = ConsistentHashRing.getMovedFraction(ring, ring2);
+        Assert.assertTrue(String.format("moved fraction %s", fraction), Math.abs(fraction - 1.0 / (NODE_NUM + 1)) < 0.05);
+
+        int moved = 0;
+        for (String key : keys) {
+            if (!ring.get(key).equals(ring2.get(key))) {
+                Assert.assertEquals(newNode, ring2.get(key));
+                moved ++;
+            }
+        }
+        Assert.assertTrue(Math.abs((double) moved / KEY_NUM - fraction) < 0.05);
+        Assert.assertEquals(ring.getNodes(), ring2.remove(newNode).getNodes());
+
+        double loadFactor = 1.1;
+        Map<String, String> overrides = ring2.getBoundedLoadOverrides(keys, loadFactor);
+        long capacity = (long) Math.ceil(loadFactor * KEY_NUM / (NODE_NUM + 1));
+        Map<String, Integer> loads = new HashMap<String, Integer>();
+        for (String key : keys) {
+            String node = overrides.containsKey(key) ? overrides.get(key) : ring2.get(key);
+            Integer load = loads.get(node);
+            loads.put(node, load == null ? 1 : load + 1);
+        }
+        for (int load : loads.values()) {
+            Assert.assertTrue(load <= capacity);
+        }
+        Assert.assertEquals(overrides, ring2.getBoundedLoadOverrides(keys, loadFactor));
+    }
+}
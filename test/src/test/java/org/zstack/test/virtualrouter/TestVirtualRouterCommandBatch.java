@@ -0,0 +1,95 @@
+package org.zstack.test.virtualrouter;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.zstack.core.componentloader.ComponentLoader;
+import org.zstack.core.db.DatabaseFacade;
+import org.zstack.header.core.Completion;
+import org.zstack.header.errorcode.ErrorCode;
+import org.zstack.network.service.virtualrouter.VirtualRouterCommandBatcher;
+import org.zstack.network.service.virtualrouter.VirtualRouterCommands.DhcpInfo;
+import org.zstack.network.service.virtualrouter.VirtualRouterVmVO;
+import org.zstack.simulator.virtualrouter.VirtualRouterSimulatorConfig;
+import org.zstack.test.Api;
+import org.zstack.test.ApiSenderException;
+import org.zstack.test.DBUtil;
+import org.zstack.test.WebBeanConstructor;
+import org.zstack.test.deployer.Deployer;
+import org.zstack.utils.Utils;
+import org.zstack.utils.logging.CLogger;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 1. create a vm
+ * 2. send 100 dhcp entries to the virtual router at the same time
+ *
+ * confirm every entry succeeds, all of them reach the virtual router and they are sent in a few commands
+ */
+public class TestVirtualRouterCommandBatch {
+    CLogger logger = Utils.getLogger(TestVirtualRouterCommandBatch.class);
+    Deployer deployer;
+    Api api;
+    ComponentLoader loader;
+    DatabaseFacade dbf;
+    VirtualRouterCommandBatcher batcher;
+    VirtualRouterSimulatorConfig vconfig;
+
+    @Before
+    public void setUp() throws Exception {
+        DBUtil.reDeployDB();
+        WebBeanConstructor con = new WebBeanConstructor();
+        deployer = new Deployer("deployerXml/virtualRouter/TestVirtualRouterDhcp.xml", con);
+        deployer.addSpringConfig("NetworkService.xml");
+        deployer.addSpringConfig("VirtualRouter.xml");
+        deployer.addSpringConfig("VirtualRouterSimulator.xml");
+        deployer.addSpringConfig("KVMRelated.xml");
+        deployer.build();
+        api = deployer.getApi();
+        loader = deployer.getComponentLoader();
+        vconfig = loader.getComponent(VirtualRouterSimulatorConfig.class);
+        batcher = loader.getComponent(VirtualRouterCommandBatcher.class);
+        dbf = loader.getComponent(DatabaseFacade.class);
+    }
+
+    @Test
+    public void test() throws ApiSenderException, InterruptedException {
+        VirtualRouterVmVO vr = dbf.listAll(VirtualRouterVmVO.class).get(0);
+        vconfig.dhcpInfos.clear();
+        vconfig.addDhcpCmds.clear();
+
+        final int num = 100;
+        final CountDownLatch latch = new CountDownLatch(num);
+        final AtomicInteger success = new AtomicInteger();
+        for (int i = 0; i < num; i++) {
+            DhcpInfo info = new DhcpInfo();
+            info.setIp(String.format("10.0.%s.%s", i / 250, i % 250 + 1));
+            info.setMac(String.format("fa:16:3e:00:00:%02x", i));
+            info.setNetmask("255.255.0.0");
+            info.setGateway("10.0.0.1");
+            batcher.send(vr.getUuid(), VirtualRouterCommandBatcher.ADD_DHCP, Arrays.asList(info), new Completion() {
+                @Override
+                public void success() {
+                    success.incrementAndGet();
+                    latch.countDown();
+                }
+
+                @Override
+                public void fail(ErrorCode errorCode) {
+                    logger.warn(errorCode.toString());
+                    latch.countDown();
+                }
+            });
+        }
+
+        Assert.assertTrue(latch.await(30, TimeUnit.SECONDS));
+        Assert.assertEquals(num, success.get());
+        Assert.assertEquals(num, vconfig.dhcpInfos.size());
+        Assert.assertTrue(String.format("%s entries are sent in %s commands", num, vconfig.addDhcpCmds.size()),
+                vconfig.addDhcpCmds.size() < num / 10);
+    }
+}
@@ -0,0 +1,195 @@
+package org.zstack.utils.hash;
+
+import java.util.*;
+
+/**
+ * an immutable consistent hash ring. Virtual nodes are kept in a sorted int array and looked up by binary
+ * search; a membership change builds a new ring by add()/remove() instead of modifying this one, so a ring
+ * can be shared by threads without locking.
+ *
+ * virtual node i of a node is placed at hash(node.toString() + i), the same as ConsistentHash, so both
+ * map keys to the same nodes; when two virtual nodes collide, the smaller node wins.
+ */
+public class ConsistentHashRing<T extends Comparable<T>> {
+    private static final long HASH_SPACE = 1L << 32;
+
+    private final HashFunction hashFunction;
+    private final int numberOfReplicas;
+    private final List<T> nodes;
+    private final int[] hashes;
+    private final Object[] owners;
+
+    public ConsistentHashRing(HashFunction hashFunction, int numberOfReplicas, Collection<T> nodes) {
+        this.hashFunction = hashFunction;
+        this.numberOfReplicas = numberOfReplicas;
+
+        List<T> sorted = new ArrayList<T>(new TreeSet<T>(nodes));
+        this.nodes = Collections.unmodifiableList(sorted);
+
+        // hash in the high 32 bits, node index in the low 32 bits; sorting puts the smaller node first on collision
+        long[] points = new long[sorted.size() * numberOfReplicas];
+        int n = 0;
+        for (int i = 0; i < sorted.size(); i++) {
+            String name = sorted.get(i).toString();
+            for (int j = 0; j < numberOfReplicas; j++) {
+                points[n++] = ((long) hashFunction.hash(name + j) << 32) | i;
+            }
+        }
+        Arrays.sort(points);
+
+        int[] hs = new int[points.length];
+        Object[] os = new Object[points.length];
+        int size = 0;
+        for (long p : points) {
+            int h = (int) (p >> 32);
+            if (size > 0 && hs[size - 1] == h) {
+                continue;
+            }
+            hs[size] = h;
+            os[size] = sorted.get((int) p);
+            size++;
+        }
+
+        hashes = Arrays.copyOf(hs, size);
+        owners = Arrays.copyOf(os, size);
+    }
+
+    public ConsistentHashRing<T> add(T node) {
+        Set<T> ns = new HashSet<T>(nodes);
+        ns.add(node);
+        return new ConsistentHashRing<T>(hashFunction, numberOfReplicas, ns);
+    }
+
+    public ConsistentHashRing<T> remove(T node) {
+        Set<T> ns = new HashSet<T>(nodes);
+        ns.remove(node);
+        return new ConsistentHashRing<T>(hashFunction, numberOfReplicas, ns);
+    }
+
+    public List<T> getNodes() {
+        return nodes;
+    }
+
+    public boolean hasNode(T node) {
+        return Collections.binarySearch(nodes, node) >= 0;
+    }
+
+    public boolean isEmpty() {
+        return hashes.length == 0;
+    }
+
+    /**
+     * @return the number of virtual nodes on the ring
+     */
+    public int size() {
+        return hashes.length;
+    }
+
+    private int indexOfHash(int hash) {
+        int i = Arrays.binarySearch(hashes, hash);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return i == hashes.length ? 0 : i;
+    }
+
+    /**
+     * @return index of the virtual node owning the key, or -1 if the ring is empty
+     */
+    public int indexOf(Object key) {
+        if (hashes.length == 0) {
+            return -1;
+        }
+        return indexOfHash(hashFunction.hash(key));
+    }
+
+    public T getOwner(int index) {
+        return (T) owners[index % owners.length];
+    }
+
+    public T get(Object key) {
+        if (hashes.length == 0) {
+            return null;
+        }
+        return (T) owners[indexOfHash(hashFunction.hash(key))];
+    }
+
+    /**
+     * assigns keys with bounded load: walking the ring clockwise from its virtual node, a key goes to the first
+     * node having less than ceil(loadFactor * keys / nodes) keys. Keys are assigned in their order in the list,
+     * so rings with the same nodes and the same key list give the same result.
+     *
+     * @param loadFactor must be greater than 1
+     * @return keys not owned by the node get() returns, mapped to their assigned node
+     */
+    public Map<String, T> getBoundedLoadOverrides(List<String> keys, double loadFactor) {
+        Map<String, T> overrides = new HashMap<String, T>();
+        if (hashes.length == 0 || keys.isEmpty()) {
+            return overrides;
+        }
+
+        if (loadFactor <= 1) {
+            throw new IllegalArgumentException(String.format("loadFactor must be greater than 1, but got %s", loadFactor));
+        }
+
+        long capacity = (long) Math.ceil(loadFactor * keys.size() / nodes.size());
+        Map<T, Integer> loads = new HashMap<T, Integer>();
+        for (T node : nodes) {
+            loads.put(node, 0);
+        }
+
+        for (String key : keys) {
+            int start = indexOfHash(hashFunction.hash(key));
+            for (int i = start; ; i++) {
+                T node = getOwner(i);
+                int load = loads.get(node);
+                if (load < capacity) {
+                    loads.put(node, load + 1);
+                    if (i != start && !node.equals(owners[start])) {
+                        overrides.put(key, node);
+                    }
+                    break;
+                }
+            }
+        }
+
+        return overrides;
+    }
+
+    /**
+     * @return fraction of the hash space whose owner differs between the two rings, which is the expected
+     * fraction of resources that move from one ring to the other
+     */
+    public static <T extends Comparable<T>> double getMovedFraction(ConsistentHashRing<T> from, ConsistentHashRing<T> to) {
+        if (from.isEmpty() || to.isEmpty()) {
+            return from.isEmpty() && to.isEmpty() ? 0 : 1;
+        }
+
+        long[] points = new long[from.hashes.length + to.hashes.length];
+        int n = 0;
+        for (int h : from.hashes) {
+            points[n++] = h;
+        }
+        for (int h : to.hashes) {
+            points[n++] = h;
+        }
+        Arrays.sort(points);
+
+        long moved = 0;
+        long previous = points[points.length - 1] - HASH_SPACE;
+        for (long p : points) {
+            if (p == previous) {
+                continue;
+            }
+
+            // the segment (previous, p] is owned by whoever owns p
+            int h = (int) p;
+            if (!from.owners[from.indexOfHash(h)].equals(to.owners[to.indexOfHash(h)])) {
+                moved += p - previous;
+            }
+            previous = p;
+        }
+
+        return (double) moved / HASH_SPACE;
+    }
+}